@@ -0,0 +1,54 @@
+package com.dezzy.skrop2_server.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the server benchmarks. Takes the usual JMH command line arguments (run with <code>-h</code> to list them), but unlike the stock
+ * JMH main, the GC profiler is always enabled, so every result comes with its allocation rate in bytes per operation
+ * (<code>gc.alloc.rate.norm</code>). An allocation regression on a hot path shows up there even when the timings are too noisy to notice it.
+ * <p>
+ * Usage: <code>java -jar bench/target/benchmarks.jar [JMH options] [benchmark regex]</code>
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class BenchmarkMain {
+	
+	public static void main(String[] args) throws RunnerException, IOException {
+		CommandLineOptions commandLine;
+		
+		try {
+			commandLine = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+		
+		if (commandLine.shouldList()) {
+			new Runner(commandLine).list();
+			return;
+		}
+		
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		
+		if (commandLine.getProfilers().stream().noneMatch(p -> p.getKlass().equals(GCProfiler.class.getName()))) {
+			options.addProfiler(GCProfiler.class);
+		}
+		
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,148 @@
+package com.dezzy.skrop2_server.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dezzy.skrop2_server.net.NetUtils;
+import com.dezzy.skrop2_server.net.protocol.ClientMessage;
+import com.dezzy.skrop2_server.net.protocol.ClientOpcode;
+
+/**
+ * Measures the work {@link com.dezzy.skrop2_server.server.GameServer#processClientEvent(int, ClientMessage) GameServer.processClientEvent}
+ * does for the two client messages that carry fields, <code>c</code> (a click) and <code>init-player</code>: decrypt the line into a reused
+ * buffer, look up the opcode, and parse the fields in place, exactly as the click and init-player handlers do. The handlers themselves need
+ * a Room with connected players, so the parsing is driven directly. {@link #legacyClick()} is the way clicks were parsed before
+ * {@link ClientMessage} (decrypt to a String, then <code>substring</code>, <code>split</code> and <code>Float.parseFloat</code>).
+ * 
+ * @author Dezzmeister
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientEventBenchmark {
+	
+	private String key;
+	private byte[] keyBytes;
+	
+	private String clickLine;
+	private byte[] clickBytes;
+	private byte[] initPlayerBytes;
+	
+	private byte[] decryptBuffer;
+	private final ClientMessage message = new ClientMessage();
+	
+	@Setup
+	public void setup() {
+		key = NetUtils.getRandomString(1000);
+		keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		
+		clickLine = NetUtils.encrypt("c l:0.53125:0.25 a:left", key);
+		clickBytes = clickLine.getBytes(StandardCharsets.US_ASCII);
+		initPlayerBytes = NetUtils.encrypt("init-player name:Some_Player color:16711935", key).getBytes(StandardCharsets.US_ASCII);
+		
+		decryptBuffer = new byte[Math.max(clickBytes.length, initPlayerBytes.length)];
+	}
+	
+	@Benchmark
+	public void click(final Blackhole blackhole) {
+		int length = NetUtils.decrypt(clickBytes, 0, clickBytes.length, keyBytes, decryptBuffer);
+		message.reset(decryptBuffer, 0, length);
+		
+		if (message.opcode() == ClientOpcode.CLICK) {
+			float x = -1;
+			float y = -1;
+			CharSequence aux = null;
+			
+			while (message.nextField()) {
+				if (message.fieldHasBody()) {
+					if (message.fieldHeaderEquals("l")) {
+						int split = message.indexOf(':', message.fieldBodyStart(), message.fieldEnd());
+						x = message.parseFloat(message.fieldBodyStart(), split);
+						y = message.parseFloat(split + 1, message.fieldEnd());
+					} else if (message.fieldHeaderEquals("a")) {
+						aux = message.fieldBody();
+					}
+				}
+			}
+			
+			blackhole.consume(x);
+			blackhole.consume(y);
+			blackhole.consume(aux);
+		}
+	}
+	
+	@Benchmark
+	public void initPlayer(final Blackhole blackhole) {
+		int length = NetUtils.decrypt(initPlayerBytes, 0, initPlayerBytes.length, keyBytes, decryptBuffer);
+		message.reset(decryptBuffer, 0, length);
+		
+		if (message.opcode() == ClientOpcode.INIT_PLAYER) {
+			String name = "Jose";
+			int color = 0xFF00FF;
+			
+			while (message.nextField()) {
+				if (message.fieldHeaderEquals("name")) {
+					name = message.fieldBodyString().replace('_', ' ');
+				} else if (message.fieldHeaderEquals("color")) {
+					CharSequence fieldBody = message.fieldBody();
+					color = Integer.parseInt(fieldBody, 0, fieldBody.length(), 10);
+				}
+			}
+			
+			blackhole.consume(name);
+			blackhole.consume(color);
+		}
+	}
+	
+	@Benchmark
+	public void legacyClick(final Blackhole blackhole) {
+		String message = NetUtils.decrypt(clickLine, key);
+		String header = message;
+		String body = "";
+		
+		if (message.contains(" ")) {
+			header = message.substring(0, message.indexOf(" "));
+			body = message.substring(message.indexOf(" ") + 1);
+		}
+		
+		if (header.equals("c")) {
+			float x = -1;
+			float y = -1;
+			String aux = null;
+			
+			for (String field : body.split(" ")) {
+				if (field.contains(":")) {
+					String fieldHeader = field.substring(0, field.indexOf(":"));
+					String fieldBody = field.substring(field.indexOf(":") + 1);
+					
+					if (fieldHeader.equals("l")) {
+						x = Float.parseFloat(fieldBody.substring(0, fieldBody.indexOf(":")));
+						y = Float.parseFloat(fieldBody.substring(fieldBody.indexOf(":") + 1));
+					} else if (fieldHeader.equals("a")) {
+						aux = fieldBody;
+					}
+				}
+			}
+			
+			blackhole.consume(x);
+			blackhole.consume(y);
+			blackhole.consume(aux);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.dezzy.skrop2_server.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dezzy.skrop2_server.net.NetUtils;
+
+/**
+ * Measures the {@link NetUtils} cipher at several message sizes, for both protocols: the text protocol encrypts into Base64 and decrypts
+ * straight from Base64, and the binary protocol uses the raw kernels. The String methods, which allocate on every call, are measured too
+ * so that the allocation-free kernels have something to be compared against.
+ * 
+ * @author Dezzmeister
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetUtilsBenchmark {
+	
+	/**
+	 * Message length in bytes. A click is about 25 bytes and a full player list a few hundred.
+	 */
+	@Param({"16", "64", "256", "1024", "4096"})
+	public int size;
+	
+	private String key;
+	private byte[] keyBytes;
+	
+	private String message;
+	private byte[] messageBytes;
+	
+	private String encryptedText;
+	private byte[] encryptedTextBytes;
+	private byte[] encryptedBinary;
+	
+	private byte[] scratch;
+	private ByteBuffer textOut;
+	private byte[] binaryOut;
+	private byte[] decryptOut;
+	
+	@Setup
+	public void setup() {
+		key = NetUtils.getRandomString(1000);
+		keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		
+		message = NetUtils.getRandomStringInRange(size, (byte) 'a', (byte) 'z');
+		messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		
+		encryptedText = NetUtils.encrypt(message, key);
+		encryptedTextBytes = encryptedText.getBytes(StandardCharsets.US_ASCII);
+		encryptedBinary = NetUtils.encrypt(messageBytes, keyBytes);
+		
+		scratch = new byte[NetUtils.encryptedLength(size)];
+		textOut = ByteBuffer.allocate(NetUtils.base64Length(NetUtils.encryptedLength(size)));
+		binaryOut = new byte[NetUtils.encryptedLength(size)];
+		decryptOut = new byte[encryptedTextBytes.length];
+	}
+	
+	@Benchmark
+	public String encryptString() {
+		return NetUtils.encrypt(message, key);
+	}
+	
+	@Benchmark
+	public String decryptString() {
+		return NetUtils.decrypt(encryptedText, key);
+	}
+	
+	@Benchmark
+	public ByteBuffer encryptText() {
+		textOut.clear();
+		NetUtils.encryptBase64(messageBytes, 0, messageBytes.length, keyBytes, scratch, textOut);
+		return textOut;
+	}
+	
+	@Benchmark
+	public int decryptText() {
+		return NetUtils.decrypt(encryptedTextBytes, 0, encryptedTextBytes.length, keyBytes, decryptOut);
+	}
+	
+	@Benchmark
+	public int encryptBinary() {
+		return NetUtils.encrypt(messageBytes, 0, messageBytes.length, keyBytes, binaryOut, 0);
+	}
+	
+	@Benchmark
+	public int decryptBinary() {
+		return NetUtils.decryptRaw(encryptedBinary, 0, encryptedBinary.length, keyBytes, decryptOut, 0);
+	}
+}
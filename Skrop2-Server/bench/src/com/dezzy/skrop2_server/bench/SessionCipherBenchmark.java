@@ -0,0 +1,116 @@
+package com.dezzy.skrop2_server.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dezzy.skrop2_server.net.NetUtils;
+import com.dezzy.skrop2_server.net.SessionCipher;
+
+/**
+ * Compares the two binary protocol ciphers, the {@link NetUtils} cipher and AES-GCM through the {@link SessionCipher}, in bytes per second
+ * per core. Each benchmark runs on one thread and counts the payload bytes it encrypts or decrypts in the <code>bytes</code> counter, which
+ * JMH reports as a rate next to the operation rate.
+ * 
+ * @author Dezzmeister
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+@Fork(1)
+public class SessionCipherBenchmark {
+	
+	/**
+	 * Payload length in bytes. A frame of a few rectangle updates is about 64 bytes and a full world a few kilobytes.
+	 */
+	@Param({"64", "1024", "16384"})
+	public int size;
+	
+	private byte[] keyBytes;
+	private byte[] payload;
+	
+	private SessionCipher cipher;
+	private long sequence = 0;
+	
+	private byte[] legacyEncrypted;
+	private byte[] sealed;
+	private byte[] out;
+	private byte[] decryptOut;
+	
+	/**
+	 * Payload bytes processed, reported by JMH as bytes per second
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+	
+	@Setup
+	public void setup() {
+		keyBytes = NetUtils.getRandomString(1000).getBytes(StandardCharsets.UTF_8);
+		payload = NetUtils.getRandomStringInRange(size, (byte) 'a', (byte) 'z').getBytes(StandardCharsets.UTF_8);
+		
+		KeyPair keyPair = SessionCipher.newKeyPair();
+		String agreement = SessionCipher.agreementField(keyPair);
+		cipher = SessionCipher.agree(keyPair, agreement);
+		
+		legacyEncrypted = NetUtils.encrypt(payload, keyBytes);
+		sealed = new byte[SessionCipher.sealedLength(size)];
+		SessionCipher.agree(keyPair, agreement).seal(SessionCipher.SERVER_TO_CLIENT, 0, payload, 0, size, sealed, 0);
+		
+		out = new byte[Math.max(NetUtils.encryptedLength(size), SessionCipher.sealedLength(size))];
+		decryptOut = new byte[legacyEncrypted.length];
+	}
+	
+	@Benchmark
+	public int legacyEncrypt(final Bytes counter) {
+		counter.bytes += size;
+		return NetUtils.encrypt(payload, 0, size, keyBytes, out, 0);
+	}
+	
+	@Benchmark
+	public int legacyDecrypt(final Bytes counter) {
+		counter.bytes += size;
+		return NetUtils.decryptRaw(legacyEncrypted, 0, legacyEncrypted.length, keyBytes, decryptOut, 0);
+	}
+	
+	/**
+	 * Every frame gets the next sequence number, as on a real connection; GCM does not allow a nonce to be reused for encryption.
+	 */
+	@Benchmark
+	public int aesGcmSeal(final Bytes counter) {
+		counter.bytes += size;
+		return cipher.seal(SessionCipher.SERVER_TO_CLIENT, ++sequence, payload, 0, size, out, 0);
+	}
+	
+	@Benchmark
+	public int aesGcmOpen(final Bytes counter) {
+		counter.bytes += size;
+		return cipher.open(SessionCipher.SERVER_TO_CLIENT, 0, sealed, 0, sealed.length, decryptOut, 0);
+	}
+}
@@ -0,0 +1,156 @@
+package com.dezzy.skrop2_server.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dezzy.skrop2_server.game.skrop2.GameWorld;
+import com.dezzy.skrop2_server.game.skrop2.PackedWorld;
+import com.dezzy.skrop2_server.game.skrop2.RectListener;
+import com.dezzy.skrop2_server.game.skrop2.ScoreInfo;
+import com.dezzy.skrop2_server.game.skrop2.World;
+
+/**
+ * Measures one tick ({@link GameWorld#update(RectListener)}) and one click ({@link GameWorld#checkClick(float, float)}) for both
+ * {@link GameWorld} layouts, from 10 to 10000 rectangles. {@link World} keeps a {@link com.dezzy.skrop2_server.game.skrop2.Rectangle Rectangle}
+ * object per rectangle and a grid index; {@link PackedWorld} keeps every field in a primitive array.
+ * <p>
+ * A click that hits replaces the rectangle with a new one of size 0, which only grows when the world is ticked. The click benchmark
+ * therefore ticks the world before every click, outside of the measurement, as a game does when players click less than once a tick;
+ * otherwise the world would soon be all size 0 rectangles and only misses would be measured. Hits and misses are counted, so the hit rate
+ * of each run can be read from the <code>hits</code> and <code>misses</code> counters.
+ * 
+ * @author Dezzmeister
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldBenchmark {
+	
+	@Param({"10", "100", "1000", "10000"})
+	public int size;
+	
+	@Param({"objects", "packed"})
+	public String layout;
+	
+	private GameWorld world;
+	private SplittableRandom random;
+	
+	/**
+	 * Counts events instead of building messages, so that only the world is measured
+	 */
+	private static final class Counter implements RectListener {
+		private final Blackhole blackhole;
+		
+		private Counter(final Blackhole _blackhole) {
+			blackhole = _blackhole;
+		}
+		
+		@Override
+		public void rectDestroyed(int id, float x, float y, int color) {
+			blackhole.consume(id);
+		}
+		
+		@Override
+		public void rectAdded(int id, float x, float y, int color, float growthFactor, float maxSize) {
+			blackhole.consume(id);
+		}
+	}
+	
+	private Counter counter;
+	
+	/**
+	 * Clicks that hit and missed a rectangle
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Hits {
+		public long hits;
+		public long misses;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			hits = 0;
+			misses = 0;
+		}
+	}
+	
+	/**
+	 * A world of the same size and layout that is ticked before every click. Kept apart from the world of {@link WorldBenchmark#update()}
+	 * so that the update benchmark is not run with {@link Level#Invocation} setup.
+	 */
+	@State(Scope.Thread)
+	public static class Clicking {
+		private GameWorld world;
+		private Counter counter;
+		
+		@Setup
+		public void setup(final BenchmarkParams params, final Blackhole blackhole) {
+			counter = new Counter(blackhole);
+			world = steadyWorld(Integer.parseInt(params.getParam("size")), params.getParam("layout"), counter);
+		}
+		
+		@Setup(Level.Invocation)
+		public void tick() {
+			world.update(counter);
+		}
+	}
+	
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		random = new SplittableRandom(size);
+		counter = new Counter(blackhole);
+		world = steadyWorld(size, layout, counter);
+	}
+	
+	/**
+	 * Creates a world and ticks it until every rectangle has reached a steady cycle of growing and shrinking.
+	 */
+	private static GameWorld steadyWorld(int size, final String layout, final RectListener listener) {
+		GameWorld world = layout.equals("packed") ? new PackedWorld(size) : new World(size);
+		
+		int ticks = Math.max(100, 200_000 / size);
+		for (int i = 0; i < ticks; i++) {
+			world.update(listener);
+		}
+		
+		return world;
+	}
+	
+	@Benchmark
+	public void update() {
+		world.update(counter);
+	}
+	
+	@Benchmark
+	public ScoreInfo checkClick(final Clicking clicking, final Hits counter) {
+		ScoreInfo scoreInfo = clicking.world.checkClick((float) random.nextDouble(), (float) random.nextDouble());
+		
+		if (scoreInfo.destroyed != null) {
+			counter.hits++;
+		} else {
+			counter.misses++;
+		}
+		
+		return scoreInfo;
+	}
+}
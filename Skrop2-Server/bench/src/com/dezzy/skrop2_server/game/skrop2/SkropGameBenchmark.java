@@ -0,0 +1,80 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
+
+/**
+ * Measures the messages {@link SkropGame} broadcasts after every successful click: the ranked score update and the destroyed and added
+ * rectangles. Each benchmark builds the message and encodes it in both the text and the binary protocol, which is what
+ * {@link com.dezzy.skrop2_server.server.Room#broadcastTCP(Message) Room.broadcastTCP} costs when a room has clients of both kinds.
+ * This class is in the game package so that it can reach {@link SkropGame#getScoreUpdate()}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkropGameBenchmark {
+	
+	@Param({"2", "8"})
+	public int players;
+	
+	private SkropGame game;
+	private Rectangle rect;
+	
+	@Setup
+	public void setup() {
+		game = new SkropGame(null, "Benchmark", players, SkropWinCondition.FIRST_TO_X_POINTS, "1000");
+		
+		for (int i = 0; i < players; i++) {
+			SkropPlayer player = new SkropPlayer("Player_" + i, i * 0x202020);
+			player.score = (i * 37) % 11;
+			player.rectsDestroyed = i;
+			game.players[i] = player;
+		}
+		
+		rect = new Rectangle(0, 0.5f, 0.25f, 1.0f);
+	}
+	
+	@Benchmark
+	public void scoreUpdate(final Blackhole blackhole) {
+		encode(game.getScoreUpdate(), blackhole);
+	}
+	
+	@Benchmark
+	public void rectDestroyed(final Blackhole blackhole) {
+		encode(Messages.rectDestroyed(rect.id, rect.x, rect.y, rect.color), blackhole);
+	}
+	
+	@Benchmark
+	public void rectAdded(final Blackhole blackhole) {
+		encode(Messages.rectAdded(rect.id, rect.x, rect.y, rect.color, rect.growthFactor(), rect.maxSize), blackhole);
+	}
+	
+	private static void encode(final Message message, final Blackhole blackhole) {
+		blackhole.consume(message.textBytes());
+		blackhole.consume(message.binary());
+		blackhole.consume(message.binary(BinaryProtocol.PACKED_VERSION));
+		blackhole.consume(message.binary(BinaryProtocol.SEEDED_VERSION));
+	}
+}
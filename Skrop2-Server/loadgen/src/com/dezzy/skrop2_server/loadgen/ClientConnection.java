@@ -0,0 +1,531 @@
+package com.dezzy.skrop2_server.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.function.Consumer;
+
+import com.dezzy.skrop2_server.net.NetUtils;
+import com.dezzy.skrop2_server.net.SessionCipher;
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.FrameReader;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+import com.dezzy.skrop2_server.net.protocol.RectCodec;
+import com.dezzy.skrop2_server.net.protocol.RectSpawner;
+import com.dezzy.skrop2_server.net.tcp.Server;
+
+/**
+ * The client side of a {@link Server} connection. Opening a connection completes the key negotiation: the server's key is decrypted with
+ * {@link Server#NEGOTIATION_KEY} and accepted with <code>key-accepted</code>, asking for the {@link BinaryProtocol} if the connection should
+ * use it. After that, {@link #send(String)} sends encrypted text lines and {@link #read(Consumer)} reads whatever the server sends in either
+ * protocol. Every byte sent and received is counted in the {@link LoadStats}. A connection to a game server slot that loses its socket can
+ * {@link #resume(String, int, String) resume} its session on a new one with the token from the server's <code>resume</code> message.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class ClientConnection implements Closeable {
+	private static final byte[] NEGOTIATION_KEY_BYTES = Server.NEGOTIATION_KEY.getBytes(StandardCharsets.UTF_8);
+	
+	/**
+	 * Every opcode, by binary code
+	 */
+	private static final Opcode[] OPCODES = new Opcode[128];
+	
+	static {
+		for (Opcode opcode : Opcode.values()) {
+			OPCODES[opcode.code] = opcode;
+		}
+	}
+	
+	/**
+	 * Replaced when the session is resumed. Writing is guarded by the lock of this connection, and reading only happens on the reading thread.
+	 */
+	private volatile Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private final LoadStats stats;
+	
+	private final String key;
+	private final byte[] keyBytes;
+	private final boolean binary;
+	
+	/**
+	 * True if the server agreed to a binary protocol version that packs rectangles with the {@link RectCodec}
+	 */
+	private final boolean packed;
+	
+	/**
+	 * True if the server agreed to a binary protocol version that sends rectangles as ids for a {@link RectSpawner}
+	 */
+	private final boolean seeded;
+	
+	/**
+	 * AES-GCM ciphers for sending and for reading, or null if the server did not agree to AES-GCM. A SessionCipher is not thread safe, so
+	 * the sending threads and the reading thread each have their own.
+	 */
+	private final SessionCipher sealer;
+	private final SessionCipher opener;
+	
+	/**
+	 * Frames sealed and opened, which number the nonces. Sealing is guarded by the lock of this connection, and opening only happens on the
+	 * reading thread.
+	 */
+	private long framesSealed = 0;
+	private long framesOpened = 0;
+	
+	/**
+	 * Token and grace period from the server's <code>resume</code> message, or null and 0 if the session cannot be resumed
+	 */
+	private volatile String resumeToken = null;
+	private volatile int resumeGraceMillis = 0;
+	
+	/**
+	 * Lines (text protocol) or frames (binary protocol) read since negotiation, which the server replays from when the session is resumed.
+	 * Only accessed from the reading thread.
+	 */
+	private long framesRead = 0;
+	
+	/**
+	 * Name of the player whose score is read from {@link Opcode#SCORES} messages, with spaces as underscores, or null
+	 */
+	private volatile String scoreName = null;
+	
+	/**
+	 * Spawner from the last <code>world-seed</code>, or null before the first game starts. Only accessed from the reading thread.
+	 */
+	private RectSpawner spawner = null;
+	
+	private byte[] lineBuffer = new byte[8192];
+	private byte[] decryptBuffer = new byte[8192];
+	private final FrameReader frameReader = new FrameReader();
+	private final ServerMessage message = new ServerMessage();
+	
+	/**
+	 * Connects to a server and negotiates a key.
+	 * 
+	 * @param host server address
+	 * @param port server TCP port
+	 * @param _binary true to ask for the binary protocol, false to use the text protocol
+	 * @param _stats where to count bytes
+	 * @throws IOException if the connection fails or the server does not send a key
+	 */
+	ClientConnection(final String host, int port, boolean _binary, final LoadStats _stats) throws IOException {
+		this(host, port, null, _binary, false, _stats);
+	}
+	
+	/**
+	 * Connects to a server, presents a session token if the server runs in single-port mode, and negotiates a key.
+	 * 
+	 * @param host server address
+	 * @param port server TCP port
+	 * @param session session token from <code>join-game</code>, or null if the port belongs to one slot
+	 * @param _binary true to ask for the binary protocol, false to use the text protocol
+	 * @param sealed true to ask for the AES-GCM {@link SessionCipher}; only used with the binary protocol
+	 * @param _stats where to count bytes
+	 * @throws IOException if the connection fails or the server does not send a key
+	 */
+	ClientConnection(final String host, int port, final String session, boolean _binary, boolean sealed, final LoadStats _stats) throws IOException {
+		stats = _stats;
+		
+		connect(host, port);
+		
+		if (session != null) {
+			writeLine(NetUtils.encrypt("session " + session, Server.NEGOTIATION_KEY));
+		}
+		
+		int length = readLine();
+		if (length < 0) {
+			throw new EOFException("Server closed the connection before sending a key");
+		}
+		
+		int decrypted = NetUtils.decrypt(lineBuffer, 0, length, NEGOTIATION_KEY_BYTES, decryptBuffer);
+		String keyMessage = new String(decryptBuffer, 0, decrypted, StandardCharsets.UTF_8);
+		
+		if (!keyMessage.startsWith("key ")) {
+			throw new IOException("Expected a key from the server, got \"" + keyMessage + "\"");
+		}
+		
+		key = keyMessage.substring(4);
+		keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		String keyAccepted = _binary ? "key-accepted " + BinaryProtocol.REQUEST_FIELD + ":" + BinaryProtocol.VERSION : "key-accepted";
+		KeyPair keyPair = (_binary && sealed) ? SessionCipher.newKeyPair() : null;
+		if (keyPair != null) {
+			keyAccepted += " " + SessionCipher.REQUEST_FIELD + ":" + SessionCipher.NAME + " " + SessionCipher.agreementField(keyPair);
+		}
+		writeLine(NetUtils.encrypt(keyAccepted, Server.NEGOTIATION_KEY));
+		
+		if (_binary) {
+			length = readLine();
+			if (length < 0) {
+				throw new EOFException("Server closed the connection during protocol negotiation");
+			}
+			
+			decrypted = NetUtils.decrypt(lineBuffer, 0, length, keyBytes, decryptBuffer);
+			String reply = new String(decryptBuffer, 0, decrypted, StandardCharsets.UTF_8);
+			String prefix = "protocol " + BinaryProtocol.REQUEST_FIELD + ":";
+			binary = reply.startsWith(prefix);
+			int version = binary ? BinaryProtocol.negotiate(reply) : 0;
+			packed = version >= BinaryProtocol.PACKED_VERSION;
+			seeded = version >= BinaryProtocol.SEEDED_VERSION;
+			boolean agreed = binary && keyPair != null && SessionCipher.requested(reply);
+			sealer = agreed ? SessionCipher.agree(keyPair, reply) : null;
+			opener = agreed ? SessionCipher.agree(keyPair, reply) : null;
+			if (agreed && sealer == null) {
+				throw new IOException("Server agreed to AES-GCM without a valid public key: \"" + reply + "\"");
+			}
+		} else {
+			binary = false;
+			packed = false;
+			seeded = false;
+			sealer = null;
+			opener = null;
+		}
+	}
+	
+	private void connect(final String host, int port) throws IOException {
+		Socket connected = new Socket();
+		connected.setTcpNoDelay(true);
+		connected.connect(new InetSocketAddress(host, port));
+		
+		socket = connected;
+		in = new BufferedInputStream(connected.getInputStream());
+		out = connected.getOutputStream();
+	}
+	
+	/**
+	 * True if the server sent a resume token, so that the session can outlive its socket.
+	 * 
+	 * @return true if {@link #resume(String, int, String)} can be tried
+	 */
+	boolean resumable() {
+		return resumeToken != null;
+	}
+	
+	/**
+	 * How long the server holds the session after the socket is lost.
+	 * 
+	 * @return grace period in milliseconds, or 0 if the session cannot be resumed
+	 */
+	int resumeGraceMillis() {
+		return resumeGraceMillis;
+	}
+	
+	/**
+	 * Opens a new socket and resumes the session on it. Every line or frame the server sent after the last one read is sent again, so reading
+	 * carries on where it stopped; messages sent while the socket was down are lost. Must be called from the reading thread.
+	 * 
+	 * @param host server address
+	 * @param port server TCP port
+	 * @param session session token from <code>join-game</code>, or null if the port belongs to one slot
+	 * @throws IOException if the connection fails or the server does not resume the session
+	 */
+	synchronized void resume(final String host, int port, final String session) throws IOException {
+		drop();
+		connect(host, port);
+		
+		if (session != null) {
+			writeLine(NetUtils.encrypt("session " + session, Server.NEGOTIATION_KEY));
+		}
+		
+		writeLine(NetUtils.encrypt("resume token:" + resumeToken + " frames:" + framesRead + " sent:" + framesSealed, Server.NEGOTIATION_KEY));
+		
+		int length = readLine();
+		if (length < 0) {
+			throw new EOFException("Server closed the connection instead of resuming the session");
+		}
+		
+		int decrypted = decrypt(length);
+		String reply = new String(decryptBuffer, 0, decrypted, StandardCharsets.UTF_8);
+		
+		if (!reply.equals("resumed")) {
+			throw new IOException("Server did not resume the session");
+		}
+	}
+	
+	/**
+	 * Closes the socket without quitting, as if the network had failed.
+	 */
+	void drop() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			//Already closed
+		}
+	}
+	
+	/**
+	 * Encrypts and sends one message. Safe to call from several threads.
+	 * 
+	 * @param text message to send
+	 * @throws IOException if the connection is broken
+	 */
+	void send(final String text) throws IOException {
+		if (sealer != null) {
+			writeSealed(text.getBytes(StandardCharsets.UTF_8));
+		} else {
+			writeLine(NetUtils.encrypt(text, key));
+		}
+	}
+	
+	/**
+	 * Reads one line (text protocol) or frame (binary protocol) and passes every message in it to a consumer. The {@link ServerMessage}
+	 * is reused, so the consumer must not keep it. Blocks until something arrives.
+	 * 
+	 * @param consumer receives each message
+	 * @throws IOException if the connection is broken or closed
+	 */
+	void read(final Consumer<ServerMessage> consumer) throws IOException {
+		if (binary) {
+			readFrame(consumer);
+		} else {
+			int length = readLine();
+			if (length < 0) {
+				throw new EOFException();
+			}
+			
+			framesRead++;
+			int decrypted = decrypt(length);
+			String batch = new String(decryptBuffer, 0, decrypted, StandardCharsets.UTF_8);
+			
+			for (String line : batch.split("\r\n")) {
+				parseText(line);
+				consumer.accept(message);
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+	
+	private synchronized void writeLine(final String line) throws IOException {
+		byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+		out.write(bytes);
+		out.flush();
+		stats.tcpBytesOut.addAndGet(bytes.length);
+	}
+	
+	private synchronized void writeSealed(final byte[] message) throws IOException {
+		byte[] frame = new byte[5 + SessionCipher.sealedLength(message.length)];
+		
+		int length = SessionCipher.sealedLength(message.length);
+		int header = 0;
+		do {
+			frame[header++] = (byte) ((length & 0x7F) | (length > 0x7F ? 0x80 : 0));
+			length >>>= 7;
+		} while (length != 0);
+		
+		int sealed = sealer.seal(SessionCipher.CLIENT_TO_SERVER, framesSealed++, message, 0, message.length, frame, header);
+		out.write(frame, 0, header + sealed);
+		out.flush();
+		stats.tcpBytesOut.addAndGet(header + sealed);
+	}
+	
+	/**
+	 * Reads a line into {@link #lineBuffer}, without the line separator.
+	 * 
+	 * @return length of the line, or -1 at the end of the stream
+	 */
+	private int readLine() throws IOException {
+		int length = 0;
+		int b;
+		
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				return -1;
+			}
+			
+			if (length == lineBuffer.length) {
+				byte[] larger = new byte[lineBuffer.length * 2];
+				System.arraycopy(lineBuffer, 0, larger, 0, length);
+				lineBuffer = larger;
+			}
+			
+			lineBuffer[length++] = (byte) b;
+		}
+		
+		stats.tcpBytesIn.addAndGet(length + 1);
+		
+		if (length > 0 && lineBuffer[length - 1] == '\r') {
+			length--;
+		}
+		
+		return length;
+	}
+	
+	private int decrypt(int length) {
+		if (decryptBuffer.length < length) {
+			decryptBuffer = new byte[length];
+		}
+		
+		return NetUtils.decrypt(lineBuffer, 0, length, keyBytes, decryptBuffer);
+	}
+	
+	private void readFrame(final Consumer<ServerMessage> consumer) throws IOException {
+		int length = 0;
+		int shift = 0;
+		int b;
+		int headerLength = 0;
+		
+		do {
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			
+			length |= (b & 0x7F) << shift;
+			shift += 7;
+			headerLength++;
+		} while ((b & 0x80) != 0);
+		
+		if (lineBuffer.length < length) {
+			lineBuffer = new byte[length];
+		}
+		
+		int read = 0;
+		while (read < length) {
+			int count = in.read(lineBuffer, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		
+		stats.tcpBytesIn.addAndGet(headerLength + length);
+		framesRead++;
+		
+		if (decryptBuffer.length < length) {
+			decryptBuffer = new byte[length];
+		}
+		
+		int decrypted = opener != null ? opener.open(SessionCipher.SERVER_TO_CLIENT, framesOpened++, lineBuffer, 0, length, decryptBuffer, 0) : NetUtils.decryptRaw(lineBuffer, 0, length, keyBytes, decryptBuffer, 0);
+		frameReader.reset(decryptBuffer, 0, decrypted);
+		
+		while (frameReader.hasRemaining()) {
+			Opcode opcode = OPCODES[frameReader.readByte() & 0x7F];
+			int bodyLength = frameReader.readVarint();
+			int end = frameReader.position() + bodyLength;
+			
+			message.reset(opcode);
+			
+			if (opcode == Opcode.WORLD_SEED) {
+				spawner = RectSpawner.of(frameReader.readLong(), frameReader.readVarint(), frameReader.readVarint(), frameReader.readVarint(), frameReader.readVarint());
+			} else if ((opcode == Opcode.RECT_ADDED || opcode == Opcode.RECT_DESTROYED) && seeded) {
+				int id = frameReader.readVarint();
+				
+				if (spawner != null) {
+					spawner.spawn(id);
+					message.x = spawner.x;
+					message.y = spawner.y;
+				}
+			} else if ((opcode == Opcode.RECT_ADDED || opcode == Opcode.RECT_DESTROYED) && packed) {
+				message.x = RectCodec.readUnit(frameReader);
+				message.y = RectCodec.readUnit(frameReader);
+			} else if (opcode == Opcode.RECT_ADDED || opcode == Opcode.RECT_DESTROYED) {
+				message.x = frameReader.readFloat();
+				message.y = frameReader.readFloat();
+			} else if (opcode == Opcode.PORT) {
+				message.value = frameReader.readSignedVarint();
+			} else if (opcode == Opcode.SESSION) {
+				message.value = frameReader.readSignedVarint();
+				message.token = frameReader.readString();
+			} else if (opcode == Opcode.RESUME) {
+				resumeToken = frameReader.readString();
+				resumeGraceMillis = frameReader.readVarint();
+			} else if (opcode == Opcode.SCORES) {
+				for (int count = frameReader.readVarint(); count > 0; count--) {
+					String name = frameReader.readString();
+					int score = frameReader.readSignedVarint();
+					
+					if (name.replace(' ', '_').equals(scoreName)) {
+						message.value = score;
+					}
+				}
+			} else if (opcode == Opcode.GAME_INFO) {
+				frameReader.readString();
+				frameReader.readString();
+				frameReader.readVarint();
+				frameReader.readVarint();
+				frameReader.readString();
+				frameReader.readString();
+				message.value = frameReader.readVarint();
+			}
+			
+			frameReader.skip(end - frameReader.position());
+			consumer.accept(message);
+		}
+	}
+	
+	/**
+	 * Reads a player's score from every {@link Opcode#SCORES} message into {@link ServerMessage#value}.
+	 * 
+	 * @param name name of the player
+	 */
+	void readScoresOf(final String name) {
+		scoreName = name.replace(' ', '_');
+	}
+	
+	private void parseText(final String line) {
+		int space = line.indexOf(' ');
+		String header = space == -1 ? line : line.substring(0, space);
+		String body = space == -1 ? "" : line.substring(space + 1);
+		
+		Opcode opcode = null;
+		for (Opcode candidate : Opcode.values()) {
+			if (!candidate.header.isEmpty() && candidate.header.equals(header)) {
+				opcode = candidate;
+				break;
+			}
+		}
+		
+		message.reset(opcode);
+		message.text = line;
+		
+		if (opcode == Opcode.RECT_ADDED || opcode == Opcode.RECT_DESTROYED) {
+			String[] parts = body.split(":");
+			message.x = Float.parseFloat(parts[0]);
+			message.y = Float.parseFloat(parts[1]);
+		} else if (opcode == Opcode.PORT) {
+			message.value = Integer.parseInt(body);
+		} else if (opcode == Opcode.SESSION) {
+			for (String field : body.split(" ")) {
+				if (field.startsWith("port:")) {
+					message.value = Integer.parseInt(field.substring(5));
+				} else if (field.startsWith("token:")) {
+					message.token = field.substring(6);
+				}
+			}
+		} else if (opcode == Opcode.GAME_INFO) {
+			for (String field : body.split(" ")) {
+				if (field.startsWith("room:")) {
+					message.value = Integer.parseInt(field.substring(5));
+				}
+			}
+		} else if (opcode == Opcode.SCORES) {
+			for (String field : body.split(" ")) {
+				int colon = field.lastIndexOf(':');
+				
+				if (colon > 0 && field.substring(0, colon).equals(scoreName)) {
+					message.value = Integer.parseInt(field.substring(colon + 1));
+				}
+			}
+		} else if (opcode == Opcode.RESUME) {
+			for (String field : body.split(" ")) {
+				if (field.startsWith("token:")) {
+					resumeToken = field.substring(6);
+				} else if (field.startsWith("grace:")) {
+					resumeGraceMillis = Integer.parseInt(field.substring(6));
+				}
+			}
+		}
+	}
+}
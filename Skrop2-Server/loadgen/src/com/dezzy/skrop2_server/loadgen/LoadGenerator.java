@@ -0,0 +1,279 @@
+package com.dezzy.skrop2_server.loadgen;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.dezzy.skrop2_server.net.SessionCipher;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+
+/**
+ * A headless load generator for a Skrop 2 server. It creates games through the info server, fills each one with simulated players that
+ * speak the real protocol (key negotiation, UDP hello, <code>init-player</code>, pings, clicks and snapshot acks), and reports connect
+ * times, click-to-broadcast latency percentiles and bandwidth while the games run. Every game uses the <code>TIMER_POINTS</code> win
+ * condition, so the run ends by itself when the games do.
+ * <p>
+ * The info server serves one client at a time, so games are created and joined one after another; the players then run in parallel.
+ * The server needs at least <code>games * players</code> game server slots. Servers in single-port mode are handled too: players present
+ * the session token from <code>join-game</code> on the shared port.
+ * <p>
+ * Usage: <code>java -jar loadgen/target/loadgen.jar [options]</code>
+ * <pre>
+ * -host &lt;address&gt;        server address (default 127.0.0.1)
+ * -port &lt;port&gt;           info server port (default 30200)
+ * -games &lt;n&gt;             number of games (default 1)
+ * -players &lt;n&gt;           players in each game (default 2)
+ * -click-rate &lt;n&gt;        clicks per second per player (default 5)
+ * -duration &lt;seconds&gt;    length of each game (default 30)
+ * -world-size &lt;n&gt;        rectangles in each game world (default 10)
+ * -protocol &lt;name&gt;       binary or text (default binary)
+ * -cipher &lt;name&gt;         legacy or aes-gcm; aes-gcm needs the binary protocol (default legacy)
+ * -blip &lt;seconds&gt;        drop every player's TCP connection this long into the game and resume the session (default 0, never)
+ * -report &lt;seconds&gt;      seconds between progress reports (default 5)
+ * -leaderboard &lt;n&gt;       print the server's top n players by wins once the games end (default 0, never)
+ * </pre>
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class LoadGenerator {
+	
+	private String host = "127.0.0.1";
+	private int infoPort = 30200;
+	private int games = 1;
+	private int playersPerGame = 2;
+	private double clickRate = 5;
+	private int durationSeconds = 30;
+	private int worldSize = 10;
+	private boolean binary = true;
+	private boolean sealed = false;
+	private int blipSeconds = 0;
+	private int reportSeconds = 5;
+	private int leaderboard = 0;
+	
+	private final LoadStats stats = new LoadStats();
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		LoadGenerator generator = new LoadGenerator();
+		
+		try {
+			generator.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("See the LoadGenerator class documentation for the list of options");
+			System.exit(-1);
+		}
+		
+		generator.run();
+	}
+	
+	private void parseArgs(final String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Option \"" + args[i] + "\" needs a value");
+			}
+			
+			String option = args[i];
+			String value = args[i + 1];
+			
+			try {
+				if (option.equals("-host")) {
+					host = value;
+				} else if (option.equals("-port")) {
+					infoPort = Integer.parseInt(value);
+				} else if (option.equals("-games")) {
+					games = positive(option, Integer.parseInt(value));
+				} else if (option.equals("-players")) {
+					playersPerGame = positive(option, Integer.parseInt(value));
+				} else if (option.equals("-click-rate")) {
+					clickRate = Double.parseDouble(value);
+					if (!(clickRate > 0)) {
+						throw new IllegalArgumentException("Option \"-click-rate\" must be positive");
+					}
+				} else if (option.equals("-duration")) {
+					durationSeconds = positive(option, Integer.parseInt(value));
+				} else if (option.equals("-world-size")) {
+					worldSize = positive(option, Integer.parseInt(value));
+				} else if (option.equals("-protocol")) {
+					if (!value.equals("binary") && !value.equals("text")) {
+						throw new IllegalArgumentException("Option \"-protocol\" must be binary or text");
+					}
+					binary = value.equals("binary");
+				} else if (option.equals("-cipher")) {
+					if (!value.equals("legacy") && !value.equals(SessionCipher.NAME)) {
+						throw new IllegalArgumentException("Option \"-cipher\" must be legacy or " + SessionCipher.NAME);
+					}
+					sealed = value.equals(SessionCipher.NAME);
+				} else if (option.equals("-blip")) {
+					blipSeconds = Integer.parseInt(value);
+					if (blipSeconds < 0) {
+						throw new IllegalArgumentException("Option \"-blip\" must not be negative");
+					}
+				} else if (option.equals("-report")) {
+					reportSeconds = positive(option, Integer.parseInt(value));
+				} else if (option.equals("-leaderboard")) {
+					leaderboard = Integer.parseInt(value);
+					if (leaderboard < 0) {
+						throw new IllegalArgumentException("Option \"-leaderboard\" must not be negative");
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown option \"" + option + "\"");
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Option \"" + option + "\" needs a number, not \"" + value + "\"");
+			}
+		}
+		
+		if (sealed && !binary) {
+			throw new IllegalArgumentException("Option \"-cipher " + SessionCipher.NAME + "\" needs the binary protocol");
+		}
+	}
+	
+	private static int positive(final String option, int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException("Option \"" + option + "\" must be positive");
+		}
+		
+		return value;
+	}
+	
+	private void run() throws InterruptedException {
+		int totalPlayers = games * playersPerGame;
+		System.out.println("Starting " + games + " games of " + playersPerGame + " players against " + host + ":" + infoPort + ", " + clickRate + " clicks per second per player, "
+				+ durationSeconds + " seconds per game, " + worldSize + " rectangles, " + (binary ? "binary" : "text") + " protocol" + (sealed ? " with " + SessionCipher.NAME : "")
+				+ (blipSeconds > 0 ? ", dropping connections " + blipSeconds + " seconds into each game" : ""));
+				
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+			Thread thread = new Thread(runnable, "Load generator scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		CountDownLatch finished = new CountDownLatch(totalPlayers);
+		List<SimulatedPlayer> players = new ArrayList<SimulatedPlayer>();
+		
+		long start = System.nanoTime();
+		long[] lastReport = {start};
+		
+		scheduler.scheduleAtFixedRate(() -> {
+			long now = System.nanoTime();
+			System.out.println(stats.report((now - lastReport[0]) / 1e9));
+			lastReport[0] = now;
+		}, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+		
+		for (int game = 0; game < games; game++) {
+			try {
+				players.addAll(startGame(game, scheduler, finished));
+			} catch (IOException e) {
+				System.err.println("Could not start game " + game + ": " + e);
+			}
+		}
+		
+		for (long missing = totalPlayers - players.size(); missing > 0; missing--) { //Players that never started are already done
+			stats.playersFailed.incrementAndGet();
+			finished.countDown();
+		}
+		
+		int countdownSeconds = 10; //Time for the server to notice that every player is ready and count down
+		if (!finished.await(durationSeconds + countdownSeconds + 30, TimeUnit.SECONDS)) {
+			System.err.println("Some games did not end in time, stopping their players");
+			players.forEach(SimulatedPlayer::abandon);
+		}
+		
+		scheduler.shutdownNow();
+		
+		System.out.println();
+		System.out.println(stats.summary((System.nanoTime() - start) / 1e9));
+		
+		if (leaderboard > 0) {
+			printLeaderboard();
+		}
+	}
+	
+	/**
+	 * Asks the info server for its best players and prints the reply.
+	 */
+	private void printLeaderboard() {
+		try (ClientConnection info = new ClientConnection(host, infoPort, false, stats)) {
+			info.send("leaderboard by:wins count:" + leaderboard);
+			System.out.println(await(info, Opcode.LEADERBOARD).text);
+			info.send("quit");
+		} catch (IOException e) {
+			System.err.println("Could not get the leaderboard: " + e);
+		}
+	}
+	
+	/**
+	 * Creates a game through the info server, then joins it and starts a simulated player for every seat.
+	 * 
+	 * @return the started players
+	 * @throws IOException if the info server fails or refuses to create the game
+	 */
+	private List<SimulatedPlayer> startGame(int game, final ScheduledExecutorService scheduler, final CountDownLatch finished) throws IOException {
+		List<SimulatedPlayer> started = new ArrayList<SimulatedPlayer>();
+		
+		try (ClientConnection info = new ClientConnection(host, infoPort, false, stats)) {
+			info.send("create-game name:Load_Game_" + game + " max-players:" + playersPerGame + " win-condition:TIMER_POINTS win-condition-arg:" + durationSeconds + " world-size:" + worldSize);
+			
+			ServerMessage reply = await(info, Opcode.GAME_INFO, Opcode.CANNOT_CREATE_GAME);
+			if (reply.opcode != Opcode.GAME_INFO) {
+				throw new IOException("The server could not create a game");
+			}
+			
+			int room = reply.value;
+			
+			for (int seat = 0; seat < playersPerGame; seat++) {
+				info.send("join-game room:" + room);
+				reply = await(info, Opcode.PORT, Opcode.SESSION, Opcode.GAME_FULL, Opcode.JOIN_GAME_NO_GAME);
+				
+				if (reply.opcode != Opcode.PORT && reply.opcode != Opcode.SESSION) {
+					System.err.println("Could not join room " + room + ": " + reply.opcode.header);
+					continue;
+				}
+				
+				String name = "Load " + game + "-" + seat;
+				int color = (int) (Math.random() * 0x1000000);
+				SimulatedPlayer player = new SimulatedPlayer(name, color, host, reply.value, reply.token, binary, sealed, blipSeconds, clickRate, stats, scheduler, finished);
+				
+				try {
+					player.start();
+					started.add(player);
+				} catch (IOException e) {
+					System.err.println(name + " could not connect to port " + reply.value + ": " + e);
+				}
+			}
+			
+			info.send("quit");
+		}
+		
+		System.out.println("Game " + game + " created with " + started.size() + " players");
+		return started;
+	}
+	
+	/**
+	 * Reads info server messages until one of the expected kinds arrives.
+	 */
+	private static ServerMessage await(final ClientConnection connection, final Opcode... expected) throws IOException {
+		ServerMessage[] found = new ServerMessage[1];
+		
+		while (found[0] == null) {
+			connection.read(message -> {
+				for (Opcode opcode : expected) {
+					if (message.opcode == opcode && found[0] == null) {
+						found[0] = new ServerMessage();
+						found[0].reset(message.opcode);
+						found[0].value = message.value;
+						found[0].token = message.token;
+						found[0].text = message.text;
+					}
+				}
+			});
+		}
+		
+		return found[0];
+	}
+}
@@ -0,0 +1,108 @@
+package com.dezzy.skrop2_server.loadgen;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+
+/**
+ * Everything the load generator measures, shared by every simulated player. All counters are cumulative; {@link #report(double)} turns
+ * the byte counters into rates over the time since the last report.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class LoadStats {
+	
+	/**
+	 * Time from opening a game server connection to having a negotiated key
+	 */
+	final Histogram connectTimes = new Histogram();
+	
+	/**
+	 * Time from losing a game server connection to having resumed the session on a new one
+	 */
+	final Histogram resumeTimes = new Histogram();
+	
+	/**
+	 * Time from sending a click on a rectangle to receiving the broadcast that destroys it
+	 */
+	final Histogram clickLatencies = new Histogram();
+	
+	final AtomicLong tcpBytesIn = new AtomicLong(0);
+	final AtomicLong tcpBytesOut = new AtomicLong(0);
+	final AtomicLong udpBytesIn = new AtomicLong(0);
+	final AtomicLong udpPacketsIn = new AtomicLong(0);
+	
+	final AtomicLong clicksSent = new AtomicLong(0);
+	
+	/**
+	 * Clicks on a rectangle that was never destroyed, or was destroyed so late that the click was given up on
+	 */
+	final AtomicLong clicksUnanswered = new AtomicLong(0);
+	
+	/**
+	 * Clicks on a rectangle that was destroyed by another player or by the world, so the click did not score
+	 */
+	final AtomicLong clicksMissed = new AtomicLong(0);
+	
+	final AtomicInteger playersConnected = new AtomicInteger(0);
+	final AtomicInteger playersInGame = new AtomicInteger(0);
+	final AtomicInteger playersFinished = new AtomicInteger(0);
+	final AtomicInteger playersFailed = new AtomicInteger(0);
+	
+	private long lastTCPIn = 0;
+	private long lastTCPOut = 0;
+	private long lastUDPIn = 0;
+	private long lastClicks = 0;
+	
+	/**
+	 * Formats the current state, with byte and click rates over the time since the last report.
+	 * 
+	 * @param seconds seconds since the last report
+	 * @return a report line
+	 */
+	synchronized String report(double seconds) {
+		long tcpIn = tcpBytesIn.get();
+		long tcpOut = tcpBytesOut.get();
+		long udpIn = udpBytesIn.get();
+		long clicks = clicksSent.get();
+		
+		String out = String.format("players %d connected, %d in game, %d finished, %d failed | clicks %.0f/s | TCP in %.1f KB/s out %.1f KB/s | UDP in %.1f KB/s | click-to-broadcast %s",
+				playersConnected.get(), playersInGame.get(), playersFinished.get(), playersFailed.get(), (clicks - lastClicks) / seconds,
+				(tcpIn - lastTCPIn) / seconds / 1024, (tcpOut - lastTCPOut) / seconds / 1024, (udpIn - lastUDPIn) / seconds / 1024,
+				summary(clickLatencies));
+				
+		lastTCPIn = tcpIn;
+		lastTCPOut = tcpOut;
+		lastUDPIn = udpIn;
+		lastClicks = clicks;
+		
+		return out;
+	}
+	
+	/**
+	 * Formats the totals for the whole run.
+	 * 
+	 * @param seconds length of the run in seconds
+	 * @return a multi-line summary
+	 */
+	String summary(double seconds) {
+		return String.format("Players: %d connected, %d finished, %d failed%n", playersConnected.get(), playersFinished.get(), playersFailed.get())
+				+ String.format("Connect time: %s%n", summary(connectTimes))
+				+ String.format("Resume time: %s%n", summary(resumeTimes))
+				+ String.format("Click-to-broadcast latency: %s%n", summary(clickLatencies))
+				+ String.format("Clicks: %d sent, %d missed, %d unanswered%n", clicksSent.get(), clicksMissed.get(), clicksUnanswered.get())
+				+ String.format("TCP: %.1f KB/s in, %.1f KB/s out (%d / %d bytes)%n", tcpBytesIn.get() / seconds / 1024, tcpBytesOut.get() / seconds / 1024, tcpBytesIn.get(), tcpBytesOut.get())
+				+ String.format("UDP: %.1f KB/s in (%d bytes in %d packets)", udpBytesIn.get() / seconds / 1024, udpBytesIn.get(), udpPacketsIn.get());
+	}
+	
+	/**
+	 * Formats the usual percentiles of a histogram of microseconds in milliseconds.
+	 * 
+	 * @return p50, p90, p99 and max
+	 */
+	private static String summary(final Histogram micros) {
+		return String.format("p50 %.2f p90 %.2f p99 %.2f max %.2f ms (%d samples)", micros.percentile(0.5) / 1000.0, micros.percentile(0.9) / 1000.0, micros.percentile(0.99) / 1000.0, micros.max() / 1000.0, micros.count());
+	}
+}
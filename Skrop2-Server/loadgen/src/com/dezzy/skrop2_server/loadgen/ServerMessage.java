@@ -0,0 +1,49 @@
+package com.dezzy.skrop2_server.loadgen;
+
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+
+/**
+ * One message from the server, reduced to the few fields the load generator uses. The same object is filled for both the text and the
+ * binary protocol and is reused for every message on a connection.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class ServerMessage {
+	
+	/**
+	 * Kind of message, or null if the message was not recognized
+	 */
+	Opcode opcode;
+	
+	/**
+	 * Center of the rectangle in {@link Opcode#RECT_ADDED} and {@link Opcode#RECT_DESTROYED}
+	 */
+	float x;
+	float y;
+	
+	/**
+	 * The port in {@link Opcode#PORT} and {@link Opcode#SESSION}, the room in {@link Opcode#GAME_INFO}, or the score of the player given to
+	 * {@link ClientConnection#readScoresOf(String)} in {@link Opcode#SCORES}
+	 */
+	int value;
+	
+	/**
+	 * The session token in {@link Opcode#SESSION}
+	 */
+	String token;
+	
+	/**
+	 * The text form of the message. Only set for the text protocol.
+	 */
+	String text;
+	
+	void reset(final Opcode _opcode) {
+		opcode = _opcode;
+		x = 0;
+		y = 0;
+		value = 0;
+		token = null;
+		text = null;
+	}
+}
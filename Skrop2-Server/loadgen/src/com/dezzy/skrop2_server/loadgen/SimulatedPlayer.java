@@ -0,0 +1,513 @@
+package com.dezzy.skrop2_server.loadgen;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.dezzy.skrop2_server.net.protocol.FrameReader;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+
+/**
+ * One simulated player on a game server port. The player binds its UDP socket with a hello, connects over TCP, sends <code>init-player</code>
+ * and pings once a second until the game begins. In the game it clicks at a fixed rate on the center of a rectangle it has seen added, and
+ * measures the time until the broadcast that destroys that rectangle comes back, as long as the score update that follows it shows that
+ * this player's click was the one that scored. Each click carries the sequence number of the newest UDP
+ * snapshot as its frame. It acknowledges every complete UDP snapshot like a real client, and leaves when the server sends the end-game scores.
+ * If its TCP connection is lost, it resumes its session on a new connection and sends a new UDP hello.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class SimulatedPlayer {
+	
+	private static final byte[] UDP_HELLO = "Hello UDP".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Rectangles are only clicked once they are this old, so that they have grown past size 0 and a click on their center scores
+	 */
+	private static final long MIN_RECT_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/**
+	 * A click with no matching broadcast after this long is counted as unanswered
+	 */
+	private static final long CLICK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+	
+	private final String name;
+	private final int color;
+	private final String host;
+	private final int port;
+	
+	/**
+	 * Session token from <code>join-game</code> if the server runs in single-port mode, or null
+	 */
+	private final String session;
+	
+	/**
+	 * The UDP hello: {@link #UDP_HELLO}, or the session token on a shared port
+	 */
+	private final byte[] hello;
+	private final boolean binary;
+	private final boolean sealed;
+	
+	/**
+	 * Seconds into the game at which the TCP connection is dropped once, or 0
+	 */
+	private final int blipSeconds;
+	private final double clickRate;
+	
+	private final LoadStats stats;
+	private final ScheduledExecutorService scheduler;
+	private final CountDownLatch finished;
+	
+	private final SplittableRandom random;
+	private final RectSet rects = new RectSet();
+	
+	/**
+	 * Send time of every click that has not been answered yet, by {@link #rectKey(float, float)}
+	 */
+	private final Map<Long, Long> pendingClicks = new ConcurrentHashMap<Long, Long>();
+	
+	/**
+	 * Send time of the click on the rectangle in the last {@link Opcode#RECT_DESTROYED}, or -1. The server follows the destruction caused
+	 * by a click with a score update, so the click is only answered if the next score update shows that this player scored; otherwise
+	 * another player or the world destroyed the rectangle. Only accessed from the TCP reading thread.
+	 */
+	private long destroyedClick = -1;
+	
+	/**
+	 * This player's score in the last score update. Only accessed from the TCP reading thread.
+	 */
+	private int score = 0;
+	
+	private DatagramSocket udp;
+	private ClientConnection connection;
+	
+	/**
+	 * Sequence number of the newest snapshot received, sent with every click as its frame
+	 */
+	private volatile int lastSnapshot = 0;
+	
+	private volatile boolean inGame = false;
+	private volatile boolean done = false;
+	
+	private ScheduledFuture<?> pinger;
+	private ScheduledFuture<?> clicker;
+	
+	/**
+	 * Creates a player. Nothing is opened until {@link #start()}.
+	 * 
+	 * @param _name player name
+	 * @param _color player color
+	 * @param _host game server address
+	 * @param _port game server TCP and UDP port, from <code>join-game</code>
+	 * @param _session session token from <code>join-game</code>, or null if the port belongs to one slot
+	 * @param _binary true to use the binary protocol
+	 * @param _sealed true to ask for the AES-GCM {@link com.dezzy.skrop2_server.net.SessionCipher SessionCipher}
+	 * @param _blipSeconds seconds into the game at which to drop the TCP connection and resume the session, or 0 to never drop it
+	 * @param _clickRate clicks per second once the game begins
+	 * @param _stats shared measurements
+	 * @param _scheduler runs pings and clicks
+	 * @param _finished counted down once when this player is done, whether it finished the game or failed
+	 */
+	SimulatedPlayer(final String _name, int _color, final String _host, int _port, final String _session, boolean _binary, boolean _sealed, int _blipSeconds, double _clickRate, final LoadStats _stats, final ScheduledExecutorService _scheduler, final CountDownLatch _finished) {
+		name = _name;
+		color = _color;
+		host = _host;
+		port = _port;
+		session = _session;
+		hello = (session == null) ? UDP_HELLO : ("session " + session).getBytes(StandardCharsets.US_ASCII);
+		binary = _binary;
+		sealed = _sealed;
+		blipSeconds = _blipSeconds;
+		clickRate = _clickRate;
+		stats = _stats;
+		scheduler = _scheduler;
+		finished = _finished;
+		random = new SplittableRandom(_name.hashCode());
+	}
+	
+	/**
+	 * Binds UDP, connects, and joins the game. Returns once the player has been added; the rest runs on its own threads.
+	 * 
+	 * @throws IOException if the player could not connect
+	 */
+	void start() throws IOException {
+		udp = new DatagramSocket();
+		sendHello();
+		
+		long start = System.nanoTime();
+		connection = new ClientConnection(host, port, session, binary, sealed, stats);
+		connection.readScoresOf(name);
+		stats.connectTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		stats.playersConnected.incrementAndGet();
+		
+		connection.send("init-player name:" + name.replace(' ', '_') + " color:" + color);
+		
+		Thread tcpReader = new Thread(this::readTCP, name + " TCP");
+		tcpReader.setDaemon(true);
+		tcpReader.start();
+		
+		Thread udpReader = new Thread(this::readUDP, name + " UDP");
+		udpReader.setDaemon(true);
+		udpReader.start();
+		
+		pinger = scheduler.scheduleAtFixedRate(() -> send("ping"), 0, 1, TimeUnit.SECONDS);
+	}
+	
+	private void sendHello() throws IOException {
+		udp.send(new DatagramPacket(hello, hello.length, new InetSocketAddress(host, port)));
+	}
+	
+	private void readTCP() {
+		try {
+			while (!done) {
+				try {
+					connection.read(this::handle);
+				} catch (IOException e) {
+					if (!done && !resume(e)) {
+						fail();
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println(name + " could not read a message from the server");
+			e.printStackTrace();
+			fail();
+		}
+	}
+	
+	/**
+	 * Resumes the session on a new connection, trying again until the server's grace period is over, since the server may not have noticed
+	 * that the old connection is gone yet.
+	 * 
+	 * @param cause why the old connection failed
+	 * @return true if the session was resumed
+	 */
+	private boolean resume(final IOException cause) {
+		if (!connection.resumable()) {
+			System.err.println(name + " lost its TCP connection: " + cause);
+			return false;
+		}
+		
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(connection.resumeGraceMillis());
+		
+		while (!done) {
+			try {
+				connection.resume(host, port, session);
+				stats.resumeTimes.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				sendHello(); //The server waits for a new hello after a resume, in case the client's address changed
+				return true;
+			} catch (IOException e) {
+				if (System.nanoTime() > deadline) {
+					System.err.println(name + " could not resume its session: " + e);
+					return false;
+				}
+			}
+			
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		
+		return false;
+	}
+	
+	private void handle(final ServerMessage message) {
+		if (message.opcode == null) {
+			return;
+		}
+		
+		switch (message.opcode) {
+		case WAITING_FOR_UDP:
+			try {
+				sendHello();
+			} catch (IOException e) {
+				System.err.println(name + " could not resend its UDP hello: " + e);
+			}
+			break;
+		case GAME_BEGIN:
+			if (!inGame) {
+				inGame = true;
+				stats.playersInGame.incrementAndGet();
+				
+				long period = (long) (TimeUnit.SECONDS.toNanos(1) / clickRate);
+				clicker = scheduler.scheduleAtFixedRate(this::click, random.nextLong(period), period, TimeUnit.NANOSECONDS);
+				
+				if (blipSeconds > 0) {
+					scheduler.schedule(connection::drop, blipSeconds, TimeUnit.SECONDS);
+				}
+			}
+			break;
+		case RECT_ADDED:
+			rects.add(message.x, message.y, System.nanoTime());
+			break;
+		case RECT_DESTROYED:
+			rects.remove(message.x, message.y);
+			missedClick();
+			
+			Long sent = pendingClicks.remove(rectKey(message.x, message.y));
+			destroyedClick = sent == null ? -1 : sent;
+			break;
+		case SCORES:
+			if (message.value > score && destroyedClick != -1) {
+				stats.clickLatencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - destroyedClick));
+				destroyedClick = -1;
+			}
+			
+			score = message.value;
+			missedClick();
+			break;
+		case END_GAME_SCORES:
+			finish();
+			break;
+		default:
+			break;
+		}
+	}
+	
+	private void click() {
+		if (!inGame || done) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		expireClicks(now);
+		
+		float[] target = rects.pick(random, now - MIN_RECT_AGE_NANOS, pendingClicks);
+		float x = target == null ? (float) random.nextDouble() : target[0];
+		float y = target == null ? (float) random.nextDouble() : target[1];
+		
+		if (target != null) {
+			pendingClicks.put(rectKey(x, y), now);
+		}
+		
+		int frame = lastSnapshot;
+		send(frame > 0 ? "c l:" + x + ":" + y + " f:" + frame : "c l:" + x + ":" + y);
+		stats.clicksSent.incrementAndGet();
+	}
+	
+	/**
+	 * Counts the click on the last destroyed rectangle as missed, if it was not answered.
+	 */
+	private void missedClick() {
+		if (destroyedClick != -1) {
+			stats.clicksMissed.incrementAndGet();
+			destroyedClick = -1;
+		}
+	}
+	
+	private void expireClicks(long now) {
+		Iterator<Long> sendTimes = pendingClicks.values().iterator();
+		
+		while (sendTimes.hasNext()) {
+			if (now - sendTimes.next() > CLICK_TIMEOUT_NANOS) {
+				sendTimes.remove();
+				stats.clicksUnanswered.incrementAndGet();
+			}
+		}
+	}
+	
+	private void readUDP() {
+		byte[] buffer = new byte[2048];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		FrameReader reader = new FrameReader();
+		
+		try {
+			while (!done) {
+				packet.setLength(buffer.length);
+				udp.receive(packet);
+				stats.udpBytesIn.addAndGet(packet.getLength());
+				stats.udpPacketsIn.incrementAndGet();
+				
+				reader.reset(buffer, 0, packet.getLength());
+				if (reader.remaining() > 3 && reader.readByte() == Opcode.SNAPSHOT.code) {
+					int sequence = reader.readVarint();
+					reader.readVarint(); //Baseline
+					int flags = reader.readByte();
+					
+					if (sequence > lastSnapshot) {
+						lastSnapshot = sequence;
+					}
+					
+					if ((flags & 1) == 0) { //Only complete snapshots can be used as a baseline
+						send("snapshot-ack seq:" + sequence);
+					}
+				}
+			}
+		} catch (SocketException e) {
+			//The socket was closed by finish()
+		} catch (IOException | RuntimeException e) {
+			if (!done) {
+				System.err.println(name + " could not read a UDP packet: " + e);
+			}
+		}
+	}
+	
+	private void send(final String message) {
+		if (done) {
+			return;
+		}
+		
+		try {
+			connection.send(message);
+		} catch (IOException e) {
+			if (connection.resumable()) { //The reading thread resumes the session; this message is lost
+				return;
+			}
+			
+			System.err.println(name + " could not send \"" + message + "\": " + e);
+			fail();
+		}
+	}
+	
+	private void finish() {
+		if (stop()) {
+			stats.playersFinished.incrementAndGet();
+		}
+	}
+	
+	private void fail() {
+		if (stop()) {
+			stats.playersFailed.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stops the player exactly once.
+	 * 
+	 * @return true if this call stopped the player
+	 */
+	private synchronized boolean stop() {
+		if (done) {
+			return false;
+		}
+		
+		if (connection != null) {
+			try {
+				connection.send("quit");
+			} catch (IOException e) {
+				//Leaving anyway
+			}
+		}
+		
+		done = true;
+		
+		if (pinger != null) {
+			pinger.cancel(false);
+		}
+		
+		if (clicker != null) {
+			clicker.cancel(false);
+		}
+		
+		if (inGame) {
+			stats.playersInGame.decrementAndGet();
+		}
+		
+		try {
+			if (connection != null) {
+				connection.close();
+			}
+		} catch (IOException e) {
+			//Already closed
+		}
+		
+		if (udp != null) {
+			udp.close();
+		}
+		
+		finished.countDown();
+		return true;
+	}
+	
+	/**
+	 * Gives up on a player that has not finished in time.
+	 */
+	void abandon() {
+		fail();
+	}
+	
+	/**
+	 * Identifies a rectangle by its center. Rectangles are placed at random, so two live rectangles practically never share a center.
+	 */
+	private static long rectKey(float x, float y) {
+		return ((long) Float.floatToIntBits(x) << 32) | (Float.floatToIntBits(y) & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * The rectangles this player has seen added and not yet destroyed, with the time each was added. Supports picking a random one.
+	 */
+	private static final class RectSet {
+		private long[] keys = new long[64];
+		private long[] addTimes = new long[64];
+		private int count = 0;
+		private final Map<Long, Integer> indices = new HashMap<Long, Integer>();
+		
+		synchronized void add(float x, float y, long now) {
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+				addTimes = Arrays.copyOf(addTimes, count * 2);
+			}
+			
+			long key = rectKey(x, y);
+			keys[count] = key;
+			addTimes[count] = now;
+			indices.put(key, count);
+			count++;
+		}
+		
+		synchronized void remove(float x, float y) {
+			Integer index = indices.remove(rectKey(x, y));
+			
+			if (index != null) {
+				count--;
+				
+				if (index != count) {
+					keys[index] = keys[count];
+					addTimes[index] = addTimes[count];
+					indices.put(keys[index], index);
+				}
+			}
+		}
+		
+		/**
+		 * Picks a random rectangle that was added before a time and has not been clicked yet.
+		 * 
+		 * @return the center of the rectangle, or null if there is none
+		 */
+		synchronized float[] pick(final SplittableRandom random, long addedBefore, final Map<Long, Long> pending) {
+			if (count == 0) {
+				return null;
+			}
+			
+			int first = random.nextInt(count);
+			
+			for (int i = 0; i < count; i++) {
+				int index = (first + i) % count;
+				
+				if (addTimes[index] <= addedBefore && !pending.containsKey(keys[index])) {
+					long key = keys[index];
+					return new float[] {Float.intBitsToFloat((int) (key >>> 32)), Float.intBitsToFloat((int) key)};
+				}
+			}
+			
+			return null;
+		}
+	}
+}
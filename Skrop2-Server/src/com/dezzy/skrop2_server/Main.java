@@ -3,19 +3,28 @@ package com.dezzy.skrop2_server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Paths;
 
 import com.dezzy.skrop2_server.game.skrop2.SkropGame;
 import com.dezzy.skrop2_server.game.skrop2.SkropPlayer;
 import com.dezzy.skrop2_server.game.skrop2.SkropWinCondition;
+import com.dezzy.skrop2_server.net.tcp.Server;
+import com.dezzy.skrop2_server.net.tcp.SlowClientPolicy;
 import com.dezzy.skrop2_server.server.GameServer;
+import com.dezzy.skrop2_server.server.MatchRecorder;
 
 public class Main {
 	private static final int EXPECTED_ARGS = 5;
 	
+	/**
+	 * The slow client policy, its high-water mark, and the number of single-port acceptors can follow the expected arguments
+	 */
+	private static final int MAX_ARGS = EXPECTED_ARGS + 3;
+	
 	public static final void main(String[] args) throws IOException {
 		
-		if (args.length != EXPECTED_ARGS) {
-			System.err.println("Please enter exactly " + EXPECTED_ARGS + " arguments, see the README for more info!\nStopping...");
+		if (args.length < EXPECTED_ARGS || args.length > MAX_ARGS) {
+			System.err.println("Please enter " + EXPECTED_ARGS + " to " + MAX_ARGS + " arguments, see the README for more info!\nStopping...");
 			System.exit(-1);
 		} else {
 			String serverName = args[0];
@@ -23,9 +32,19 @@ public class Main {
 			int gameServerStartPort = Integer.parseInt(args[2]);
 			int gameServerCount = Integer.parseInt(args[3]);
 			int timeoutMillis = Integer.parseInt(args[4]);
+			SlowClientPolicy slowClientPolicy = args.length > 5 ? SlowClientPolicy.valueOf(args[5].toUpperCase()) : SlowClientPolicy.COLLAPSE;
+			int highWaterMark = args.length > 6 ? Integer.parseInt(args[6]) : Server.DEFAULT_HIGH_WATER_MARK;
+			int acceptorCount = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+			
+			GameServer gameServer = new GameServer("Skrop 2", serverName, infoServerPort, gameServerStartPort, gameServerCount, acceptorCount, timeoutMillis, SkropGame.class, SkropPlayer.class, SkropWinCondition.values());
+			gameServer.setSlowClientPolicy(slowClientPolicy, highWaterMark);
 			
-			@SuppressWarnings("unused")
-			GameServer gameServer = new GameServer("Skrop 2", serverName, infoServerPort, gameServerStartPort, gameServerCount, timeoutMillis, SkropGame.class, SkropPlayer.class, SkropWinCondition.values());
+			try {
+				gameServer.openStats(Paths.get(serverName + "-stats.log"));
+			} catch (IOException e) {
+				System.err.println("Unable to open the stats file, so player stats will not be kept");
+				e.printStackTrace();
+			}
 			
 			/*
 			Timer timer = new Timer();
@@ -39,9 +58,33 @@ public class Main {
 			*/
 			
 			BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-			while (!reader.readLine().equals("stop"));
+			String command;
+			while (!(command = reader.readLine()).equals("stop")) {
+				if (command.startsWith("record ")) {
+					record(gameServer, command.split(" "));
+				} else if (command.equals("stop-recording")) {
+					gameServer.stopRecording();
+				}
+			}
 			System.out.println("Stopping the server...");
+			gameServer.shutdown();
 			System.exit(0);
 		}
 	}
+	
+	/**
+	 * Handles <code>record &lt;file&gt; [megabytes]</code>, which records every game created from then on until <code>stop-recording</code>.
+	 * The log can be replayed with {@link Replay}.
+	 */
+	private static void record(final GameServer gameServer, final String[] command) {
+		try {
+			int capacity = command.length > 2 ? (int) Math.min(Integer.parseInt(command[2]) * (1L << 20), Integer.MAX_VALUE) : MatchRecorder.DEFAULT_CAPACITY;
+			gameServer.startRecording(Paths.get(command[1]), capacity);
+		} catch (NumberFormatException e) {
+			System.err.println("Malformed log size \"" + command[2] + "\"");
+		} catch (IOException e) {
+			System.err.println("Unable to record to \"" + command[1] + "\"");
+			e.printStackTrace();
+		}
+	}
 }
@@ -0,0 +1,74 @@
+package com.dezzy.skrop2_server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.dezzy.skrop2_server.game.skrop2.SkropGame;
+import com.dezzy.skrop2_server.game.skrop2.SkropPlayer;
+import com.dezzy.skrop2_server.game.skrop2.SkropWinCondition;
+import com.dezzy.skrop2_server.server.MatchRecorder;
+import com.dezzy.skrop2_server.server.MatchReplay;
+
+/**
+ * Replays a match log recorded by the server's <code>record</code> command at full speed and reports how fast the games ran. Usage:
+ * <pre>
+ * java -cp skrop2-server.jar com.dezzy.skrop2_server.Replay &lt;log&gt; [-repeat &lt;count&gt;] [-verify]
+ * </pre>
+ * <code>-repeat</code> replays the log several times, so that later runs show the games after the JIT has warmed up. <code>-verify</code>
+ * replays it once more while recording, and checks that every Room broadcast what it broadcast on the live server; the exit status is 1 if
+ * any Room did not.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class Replay {
+	
+	public static final void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Please give the match log to replay, optionally followed by -repeat <count> and -verify");
+			System.exit(-1);
+		}
+		
+		Path log = Paths.get(args[0]);
+		int repeat = 1;
+		boolean verify = false;
+		
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-repeat") && i + 1 < args.length) {
+				repeat = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-verify")) {
+				verify = true;
+			} else {
+				System.err.println("Unknown argument \"" + args[i] + "\"");
+				System.exit(-1);
+			}
+		}
+		
+		MatchReplay replay = new MatchReplay(SkropGame.class, SkropPlayer.class, SkropWinCondition.values());
+		
+		for (int i = 0; i < repeat; i++) {
+			replay.replay(log, null);
+			System.out.println(replay.summary());
+		}
+		
+		if (verify) {
+			Path replayed = Files.createTempFile("skrop2-replay", ".log");
+			int differing;
+			
+			try {
+				try (MatchRecorder recorder = new MatchRecorder(replayed, (int) Math.min(Files.size(log), Integer.MAX_VALUE))) {
+					replay.replay(log, recorder);
+				}
+				
+				differing = MatchReplay.compareBroadcasts(log, replayed);
+			} finally {
+				Files.deleteIfExists(replayed);
+			}
+			
+			System.out.println(differing == 0 ? "The replay matches the recording" : differing + " rooms did not replay the same way");
+			System.exit(differing == 0 ? 0 : 1);
+		}
+	}
+}
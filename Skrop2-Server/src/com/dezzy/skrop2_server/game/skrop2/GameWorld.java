@@ -0,0 +1,151 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.RectCodec;
+import com.dezzy.skrop2_server.net.protocol.RectSpawner;
+
+/**
+ * The rectangles of a Skrop game and the rules for growing, shrinking, and replacing them. There are two layouts: {@link World}
+ * keeps a {@link Rectangle} object per rectangle and a spatial index, which makes clicks cheap in huge worlds, and {@link PackedWorld}
+ * keeps every field in a primitive array, which makes ticks cheap and allocation-free. Both produce the same game: every rectangle is
+ * spawned by the world's {@link RectSpawner}, with its id as the spawn index, so two worlds with the same seed and size spawn the same
+ * rectangles.
+ * <p>
+ * A game world is not thread safe. Clicks are queued by the client threads and applied on the game thread before each tick, so only
+ * the game thread ever touches the world.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public abstract class GameWorld {
+	
+	/**
+	 * Number of rectangles in a default world
+	 */
+	public static final int DEFAULT_RECTS = 10;
+	
+	/**
+	 * Largest number of rectangles a world can have
+	 */
+	public static final int MAX_RECTS = 10000;
+	
+	/**
+	 * Largest size of a rectangle in a world of {@link #DEFAULT_RECTS} rectangles
+	 */
+	static final float DEFAULT_MAX_RECT_SIZE = 0.4f;
+	
+	/**
+	 * Rectangle states in {@link #writeWorld(FrameWriter)}
+	 */
+	static final int STATE_GROWING = 0;
+	static final int STATE_SHRINKING = 1;
+	static final int STATE_DEAD = 2;
+	
+	/**
+	 * Grows or shrinks every rectangle by one tick. Rectangles that finished shrinking on the previous tick are replaced by random new ones,
+	 * and each replacement is reported to the listener as it happens. Only the thread that ticks the game may call this, like every other method
+	 * that changes the world; a world has no lock of its own.
+	 * 
+	 * @param listener receives every rectangle that was destroyed and added
+	 */
+	public abstract void update(final RectListener listener);
+	
+	/**
+	 * Destroys the newest rectangle under a point, if there is one, and replaces it with a random rectangle.
+	 * 
+	 * @param x normalized x coordinate of the click
+	 * @param y normalized y coordinate of the click
+	 * @return the destroyed and added rectangles and the points earned, or a ScoreInfo with null rectangles if nothing was hit
+	 */
+	public abstract ScoreInfo checkClick(float x, float y);
+	
+	/**
+	 * Destroys a rectangle that a player hit in an earlier frame, if it still exists, and replaces it with a random rectangle. The points are
+	 * worked out from the size the rectangle had in that frame, so a player is not punished for the time the click took to arrive.
+	 * 
+	 * @param id id of the rectangle
+	 * @param seenSize size of the rectangle in the frame the player clicked on
+	 * @return the destroyed and added rectangles and the points earned, or a ScoreInfo with null rectangles if the rectangle is already gone
+	 */
+	public abstract ScoreInfo destroyRect(int id, float seenSize);
+	
+	/**
+	 * Reports every rectangle to {@link RectListener#rectAdded(int, float, float, int, float, float)}, in id order.
+	 * 
+	 * @param listener receives every rectangle
+	 */
+	public abstract void forEachRect(final RectListener listener);
+	
+	/**
+	 * The spawner that this world's rectangles come from. Its seed is sent to clients so that they can spawn the same rectangles.
+	 * 
+	 * @return spawner of this world
+	 */
+	public abstract RectSpawner spawner();
+	
+	/**
+	 * The number of rectangles this world keeps alive.
+	 * 
+	 * @return rectangle count
+	 */
+	public abstract int maxRects();
+	
+	/**
+	 * Copies the state of every rectangle into a snapshot, in id order.
+	 * 
+	 * @param sequence sequence number of the snapshot
+	 * @param out snapshot to overwrite
+	 */
+	abstract void writeSnapshot(int sequence, final WorldSnapshot out);
+	
+	/**
+	 * Packs the full state of every rectangle, in id order, with the {@link RectCodec}:
+	 * <pre>
+	 * varint   rectangle count, then for each:
+	 * varint   id
+	 * rect     x, y, color, growth factor, max size
+	 * unit     size
+	 * byte     state: 0 if growing, 1 if shrinking, 2 if dead
+	 * </pre>
+	 * 
+	 * @param out writer to append the world to
+	 */
+	public abstract void writeWorld(final FrameWriter out);
+	
+	/**
+	 * Packs one rectangle in the layout of {@link #writeWorld(FrameWriter)}.
+	 */
+	static void writeRect(final FrameWriter out, int id, float x, float y, int color, float growthFactor, float maxSize, float size, boolean growing, boolean dead) {
+		out.writeVarint(id);
+		RectCodec.writeRect(out, x, y, color, growthFactor, maxSize);
+		RectCodec.writeUnit(out, size);
+		out.writeByte(dead ? STATE_DEAD : (growing ? STATE_GROWING : STATE_SHRINKING));
+	}
+	
+	/**
+	 * Points for destroying a rectangle. Smaller rectangles are worth more.
+	 * 
+	 * @param maxSize largest size of the rectangle
+	 * @param size size of the rectangle when it was clicked
+	 * @return points earned
+	 */
+	static int points(float maxSize, float size) {
+		return size > 0 ? (int)(2*maxSize/size) : 0;
+	}
+	
+	/**
+	 * Scales the size of every rectangle so that the rectangles cover about as much of the world no matter how many there are.
+	 * 
+	 * @param rects number of rectangles in the world
+	 * @return size multiplier, 1 for a default world
+	 */
+	static float sizeScale(int rects) {
+		return (float) Math.min(1.0, Math.sqrt((double) DEFAULT_RECTS / rects));
+	}
+	
+	static void checkSize(int rects) {
+		if (rects < 1 || rects > MAX_RECTS) {
+			throw new IllegalArgumentException("A world must have between 1 and " + MAX_RECTS + " rectangles, not " + rects);
+		}
+	}
+}
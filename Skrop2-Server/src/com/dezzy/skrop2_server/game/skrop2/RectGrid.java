@@ -0,0 +1,167 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+/**
+ * A uniform grid over the unit square that indexes every {@link Rectangle} in a {@link World} by the cells its current bounds overlap.
+ * A hit test only looks at the rectangles in the cell under the point, so it costs about the same for ten rectangles as for ten thousand.
+ * Rectangles grow by a small fraction of a cell each tick, so {@link #update(Rectangle)} usually finds that the covered cells have not
+ * changed and does nothing.
+ * <p>
+ * A grid is not thread safe; like the {@link World} that owns it, it is only touched by the game thread.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class RectGrid {
+	
+	/**
+	 * Largest number of cells along each side of the grid
+	 */
+	static final int MAX_DIMENSION = 256;
+	
+	private final int dimension;
+	private final Rectangle[][] cells;
+	private final int[] cellSizes;
+	
+	/**
+	 * Creates an empty grid.
+	 * 
+	 * @param cellSize side length of one cell in normalized coordinates, ideally about the size of the largest rectangle
+	 */
+	RectGrid(float cellSize) {
+		dimension = Math.max(1, Math.min(MAX_DIMENSION, (int) Math.ceil(1.0f / cellSize)));
+		cells = new Rectangle[dimension * dimension][];
+		cellSizes = new int[dimension * dimension];
+		
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new Rectangle[4];
+		}
+	}
+	
+	/**
+	 * Adds a rectangle to every cell its current bounds overlap.
+	 * 
+	 * @param r rectangle to add
+	 */
+	void insert(final Rectangle r) {
+		float halfSize = r.size / 2.0f;
+		r.cellMinX = cell(r.x - halfSize);
+		r.cellMinY = cell(r.y - halfSize);
+		r.cellMaxX = cell(r.x + halfSize);
+		r.cellMaxY = cell(r.y + halfSize);
+		
+		for (int cy = r.cellMinY; cy <= r.cellMaxY; cy++) {
+			for (int cx = r.cellMinX; cx <= r.cellMaxX; cx++) {
+				add(cy * dimension + cx, r);
+			}
+		}
+	}
+	
+	/**
+	 * Removes a rectangle from every cell it was added to.
+	 * 
+	 * @param r rectangle to remove
+	 */
+	void remove(final Rectangle r) {
+		for (int cy = r.cellMinY; cy <= r.cellMaxY; cy++) {
+			for (int cx = r.cellMinX; cx <= r.cellMaxX; cx++) {
+				remove(cy * dimension + cx, r);
+			}
+		}
+	}
+	
+	/**
+	 * Moves a rectangle to the right cells after its size has changed.
+	 * 
+	 * @param r rectangle that has grown or shrunk
+	 */
+	void update(final Rectangle r) {
+		float halfSize = r.size / 2.0f;
+		
+		if (cell(r.x - halfSize) != r.cellMinX || cell(r.y - halfSize) != r.cellMinY || cell(r.x + halfSize) != r.cellMaxX || cell(r.y + halfSize) != r.cellMaxY) {
+			remove(r);
+			insert(r);
+		}
+	}
+	
+	/**
+	 * Finds the rectangle under a point. If several rectangles overlap the point, the newest one (the one with the highest id) is returned,
+	 * which is the one a linear scan from the end of {@link World#rects} would have found first.
+	 * 
+	 * @param x normalized x coordinate
+	 * @param y normalized y coordinate
+	 * @return the rectangle under the point, or null if there is none
+	 */
+	Rectangle hit(float x, float y) {
+		int index = cell(y) * dimension + cell(x);
+		Rectangle[] candidates = cells[index];
+		Rectangle hit = null;
+		
+		for (int i = 0; i < cellSizes[index]; i++) {
+			Rectangle r = candidates[i];
+			float halfSize = r.size / 2.0f;
+			
+			if (x <= r.x + halfSize && x >= r.x - halfSize && y <= r.y + halfSize && y >= r.y - halfSize && (hit == null || r.id > hit.id)) {
+				hit = r;
+			}
+		}
+		
+		return hit;
+	}
+	
+	/**
+	 * Finds a rectangle by its center and color. A rectangle always overlaps the cell that contains its center, so only that cell is searched.
+	 * 
+	 * @param x normalized x coordinate of the center
+	 * @param y normalized y coordinate of the center
+	 * @param color color of the rectangle
+	 * @return the newest matching rectangle, or null if there is none
+	 */
+	Rectangle find(float x, float y, int color) {
+		int index = cell(y) * dimension + cell(x);
+		Rectangle[] candidates = cells[index];
+		Rectangle found = null;
+		
+		for (int i = 0; i < cellSizes[index]; i++) {
+			Rectangle r = candidates[i];
+			
+			if (r.x == x && r.y == y && r.color == color && (found == null || r.id > found.id)) {
+				found = r;
+			}
+		}
+		
+		return found;
+	}
+	
+	private int cell(float coordinate) {
+		int cell = (int) (coordinate * dimension);
+		return cell < 0 ? 0 : (cell >= dimension ? dimension - 1 : cell);
+	}
+	
+	private void add(int index, final Rectangle r) {
+		Rectangle[] cell = cells[index];
+		int size = cellSizes[index];
+		
+		if (size == cell.length) {
+			Rectangle[] larger = new Rectangle[size * 2];
+			System.arraycopy(cell, 0, larger, 0, size);
+			cells[index] = cell = larger;
+		}
+		
+		cell[size] = r;
+		cellSizes[index] = size + 1;
+	}
+	
+	private void remove(int index, final Rectangle r) {
+		Rectangle[] cell = cells[index];
+		int size = cellSizes[index];
+		
+		for (int i = 0; i < size; i++) {
+			if (cell[i] == r) {
+				cell[i] = cell[size - 1];
+				cell[size - 1] = null;
+				cellSizes[index] = size - 1;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+/**
+ * Receives rectangles as a {@link GameWorld} adds and destroys them. The fields are passed as primitives so that a world does not need
+ * an object per rectangle to report one.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public interface RectListener {
+	
+	void rectDestroyed(int id, float x, float y, int color);
+	
+	void rectAdded(int id, float x, float y, int color, float growthFactor, float maxSize);
+}
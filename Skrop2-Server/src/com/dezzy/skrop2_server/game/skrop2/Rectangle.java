@@ -1,12 +1,12 @@
 package com.dezzy.skrop2_server.game.skrop2;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Base64;
 import java.util.Objects;
 
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.RectCodec;
+
 public class Rectangle implements Serializable {
 
 	/**
@@ -14,6 +14,11 @@ public class Rectangle implements Serializable {
 	 */
 	private static final long serialVersionUID = -5642753329858256825L;
 	
+	/**
+	 * Identifies this rectangle in world snapshots. Ids are unique within a {@link World}, or -1 for rectangles that are not part of one
+	 */
+	final int id;
+	
 	/**
 	 * Normalized coordinates, so that the same game can be displayed easily on different devices
 	 */
@@ -26,17 +31,46 @@ public class Rectangle implements Serializable {
 	private transient boolean growing = true;
 	private transient boolean dead = false;
 	
-	public Rectangle(float _x, float _y) {
-		x = _x;
-		y = _y;
-		growthFactor = (float) (0.001 * Math.random() + 0.004f);
-		maxSize = (float) (0.2 * Math.random() + 0.2f);
+	/**
+	 * The cells of the {@link RectGrid} that this rectangle was last added to
+	 */
+	transient int cellMinX;
+	transient int cellMinY;
+	transient int cellMaxX;
+	transient int cellMaxY;
+	
+	/**
+	 * Creates a rectangle with a random color, growth rate, and maximum size. The position, growth rate, and maximum size are snapped to the
+	 * {@link RectCodec} grid, so the rectangle is sent to clients exactly.
+	 * 
+	 * @param _id id of the rectangle, unique within its World
+	 * @param _x normalized x coordinate of the center
+	 * @param _y normalized y coordinate of the center
+	 * @param scale multiplies the maximum size and growth rate, so that worlds with more rectangles can have smaller ones
+	 */
+	public Rectangle(int _id, float _x, float _y, float scale) {
+		id = _id;
+		x = RectCodec.snap(_x);
+		y = RectCodec.snap(_y);
+		growthFactor = randomGrowthFactor(scale);
+		maxSize = randomMaxSize(scale);
+		color = randomColor();
+	}
 		
+	static float randomGrowthFactor(float scale) {
+		return RectCodec.snapPositive((float) (0.001 * Math.random() + 0.004f) * scale);
+	}
+	
+	static float randomMaxSize(float scale) {
+		return RectCodec.snapPositive((float) (0.2 * Math.random() + 0.2f) * scale);
+	}
+	
+	static int randomColor() {
 		int red = (int)(Math.random() * 256);
 		int green = (int)(Math.random() * 256);
 		int blue = (int)(Math.random() * 256);
 		
-		color = (red << 16) | (green << 8) | blue;
+		return (red << 16) | (green << 8) | blue;
 	}
 	
 	public String encode() {
@@ -51,10 +85,11 @@ public class Rectangle implements Serializable {
 		float growthFactor = Float.parseFloat(fields[3]);
 		float maxSize = Float.parseFloat(fields[4]);
 		
-		return new Rectangle(x, y, 0, color, growthFactor, maxSize, true, false);
+		return new Rectangle(-1, x, y, 0, color, growthFactor, maxSize, true, false);
 	}
 	
-	private Rectangle(float _x, float _y, float _size, int _color, float _growthFactor, float _maxSize, boolean _growing, boolean _dead) {
+	Rectangle(int _id, float _x, float _y, float _size, int _color, float _growthFactor, float _maxSize, boolean _growing, boolean _dead) {
+		id = _id;
 		x = _x;
 		y = _y;
 		size = _size;
@@ -66,7 +101,7 @@ public class Rectangle implements Serializable {
 	}
 	
 	public static Rectangle createIdentifier(float x, float y, int color) {
-		return new Rectangle(x, y, 0, color, 0, 0, false, true);
+		return new Rectangle(-1, x, y, 0, color, 0, 0, false, true);
 	}
 	
 	@Override
@@ -85,7 +120,7 @@ public class Rectangle implements Serializable {
 	}
 	
 	public Rectangle copy() {
-		return new Rectangle(x, y, size, color, growthFactor, maxSize, growing, dead);
+		return new Rectangle(id, x, y, size, color, growthFactor, maxSize, growing, dead);
 	}
 	
 	public void grow() {
@@ -108,12 +143,23 @@ public class Rectangle implements Serializable {
 		}
 	}
 	
-	public synchronized String serialize() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(baos);
-		oos.writeObject(this);
-		oos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
+	/**
+	 * Packs this rectangle in the layout of {@link GameWorld#writeWorld(FrameWriter)}.
+	 * 
+	 * @param out writer to append the rectangle to
+	 */
+	public synchronized void write(final FrameWriter out) {
+		GameWorld.writeRect(out, id, x, y, color, growthFactor, maxSize, size, growing, dead);
+	}
+	
+	public synchronized String serialize() {
+		FrameWriter out = new FrameWriter(16);
+		write(out);
+		return Base64.getEncoder().encodeToString(out.toByteArray());
+	}
+	
+	public int id() {
+		return id;
 	}
 	
 	public float x() {
@@ -132,6 +178,14 @@ public class Rectangle implements Serializable {
 		return color;
 	}
 	
+	public float growthFactor() {
+		return growthFactor;
+	}
+	
+	public float maxSize() {
+		return maxSize;
+	}
+	
 	public boolean isDead() {
 		return dead;
 	}
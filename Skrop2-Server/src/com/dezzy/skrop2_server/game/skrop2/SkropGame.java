@@ -1,9 +1,18 @@
 package com.dezzy.skrop2_server.game.skrop2;
 
-import com.dezzy.skrop2_server.server.GameServer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
 import com.dezzy.skrop2_server.server.GameState;
 import com.dezzy.skrop2_server.server.LocalGame;
 import com.dezzy.skrop2_server.server.Player;
+import com.dezzy.skrop2_server.server.Room;
 import com.dezzy.skrop2_server.server.WinCondition;
 
 /**
@@ -14,7 +23,49 @@ import com.dezzy.skrop2_server.server.WinCondition;
  */
 public class SkropGame extends LocalGame {
 	
-	private World gameWorld;
+	private static final Comparator<SkropPlayer> BY_POINTS = Comparator.comparingInt((SkropPlayer p) -> p.score).reversed();
+	private static final Comparator<SkropPlayer> BY_RECTS_DESTROYED = Comparator.comparingInt((SkropPlayer p) -> p.rectsDestroyed).reversed();
+	
+	private GameWorld gameWorld;
+	
+	/**
+	 * Number of rectangles in the game world, set by the <code>world-size</code> field of a <code>create-game</code> request
+	 */
+	private int worldSize = GameWorld.DEFAULT_RECTS;
+	
+	/**
+	 * True if the game world should be a {@link PackedWorld}, set by <code>world-layout:packed</code> in a <code>create-game</code> request
+	 */
+	private boolean packedWorld = false;
+	
+	/**
+	 * Broadcasts every rectangle that the game world adds or destroys
+	 */
+	private final RectListener rectBroadcaster = new RectListener() {
+		
+		@Override
+		public void rectDestroyed(int id, float x, float y, int color) {
+			room.broadcastTCP(Messages.rectDestroyed(id, x, y, color));
+		}
+		
+		@Override
+		public void rectAdded(int id, float x, float y, int color, float growthFactor, float maxSize) {
+			room.broadcastTCP(Messages.rectAdded(id, x, y, color, growthFactor, maxSize));
+		}
+	};
+	private volatile SnapshotChannel snapshots;
+	
+	/**
+	 * Number of game ticks between world snapshots
+	 */
+	private static final int SNAPSHOT_INTERVAL_TICKS = 2;
+	private int ticksSinceSnapshot = 0;
+	
+	/**
+	 * Most snapshots that a click's frame can be behind the newest snapshot and still be rewound to. At 30 ticks per second this is about
+	 * half a second, which covers any player who can still play, but does not let a client claim to have seen the world as it was long ago.
+	 */
+	private static final int MAX_REWIND_SNAPSHOTS = 8;
 	
 	private long startCountdownTime = 0;
 	private int prevSecondsLeft = 4;
@@ -28,8 +79,8 @@ public class SkropGame extends LocalGame {
 	private int prevGameSecondsLeft = 0;
 	private int gameSecondsLeft = 0;
 	
-	public SkropGame(final GameServer _game, final String _name, int _maxPlayers, final WinCondition _winCondition, final String _winConditionArg) {
-		super(_game, _name, _maxPlayers, _winCondition, _winConditionArg);
+	public SkropGame(final Room _room, final String _name, int _maxPlayers, final WinCondition _winCondition, final String _winConditionArg) {
+		super(_room, _name, _maxPlayers, _winCondition, _winConditionArg);
 		
 		skropWinCondition = (SkropWinCondition) winCondition;
 		winGoal = Integer.parseInt(winConditionArg);
@@ -39,35 +90,36 @@ public class SkropGame extends LocalGame {
 	 * Measured in Hz
 	 */
 	private static final int LOCAL_GAME_UPDATE_FREQUENCY = 30;
-	private long lastGameUpdateTime = 0;
+	
+	@Override
+	public int tickRate() {
+		return LOCAL_GAME_UPDATE_FREQUENCY;
+	}
 	
 	@Override
 	public void gameTick() {
-		switch (gameServer.gameState) {
+		switch (room.gameState) {
 		case WAITING_FOR_PLAYERS:
-			startCountdownTime = System.currentTimeMillis();
+			startCountdownTime = tickMillis();
 			break;
 		case BEGINNING:			
-			secondsLeft = (int)(SECONDS_TO_WAIT - ((System.currentTimeMillis() - startCountdownTime)/1000));
+			secondsLeft = (int)(SECONDS_TO_WAIT - ((tickMillis() - startCountdownTime)/1000));
 			
 			if (secondsLeft != prevSecondsLeft && secondsLeft != SECONDS_TO_WAIT) {
-				gameServer.broadcastTCP("countdown-timer " + (secondsLeft + 1));
+				room.broadcastTCP(Messages.countdownTimer(secondsLeft + 1));
 			}
 			prevSecondsLeft = secondsLeft;
-			if ((System.currentTimeMillis() - startCountdownTime)/1000 > SECONDS_TO_WAIT) {
+			if ((tickMillis() - startCountdownTime)/1000 > SECONDS_TO_WAIT) {
 				System.out.println("Creating the game world and starting the game...");
-				gameServer.broadcastTCP("game-begin");
+				room.broadcastTCP(Messages.GAME_BEGIN);
 				createGameWorld();
 				
-				gameStartTime = System.currentTimeMillis();
-				gameServer.gameState = GameState.IN_GAME;
+				gameStartTime = tickMillis();
+				room.gameState = GameState.IN_GAME;
 			}
 			break;
 		case IN_GAME:
-			if (System.currentTimeMillis() - lastGameUpdateTime > 1000/LOCAL_GAME_UPDATE_FREQUENCY) {
-				inGameTick();
-				lastGameUpdateTime = System.currentTimeMillis();
-			}
+			inGameTick();
 			break;
 		case GAME_ENDING:
 			endGame();
@@ -78,165 +130,230 @@ public class SkropGame extends LocalGame {
 	}
 	
 	@Override
-	public void processClickEvent(int clientID, float x, float y, final String aux) {
+	protected void processClickEvent(int seat, float x, float y, int frame, final String aux, long timestamp) {
 		
-		if (gameServer.gameState == GameState.IN_GAME) {
+		if (room.gameState == GameState.IN_GAME) {
 			
-			ScoreInfo scoreInfo = gameWorld.checkClick(x, y);
+			ScoreInfo scoreInfo = checkClick(x, y, frame);
 			int points = scoreInfo.points;
 			
 			if (points > 0) {
-				if (players[clientID] instanceof SkropPlayer) {
-					((SkropPlayer) players[clientID]).score += points;
-					((SkropPlayer) players[clientID]).rectsDestroyed++;
+				if (players[seat] instanceof SkropPlayer) {
+					((SkropPlayer) players[seat]).score += points;
+					((SkropPlayer) players[seat]).rectsDestroyed++;
 				} else {
-					System.err.println("Player \"" + players[clientID].name + "\" is not a valid SkropPlayer!");
+					System.err.println("Player \"" + players[seat].name + "\" is not a valid SkropPlayer!");
 				}
 				
-				String destroyedRect = "d " + scoreInfo.destroyed.x + ":" + scoreInfo.destroyed.y + ":" + scoreInfo.destroyed.color;
-				String addedRect = "r ";
-				String scoreUpdate = getScoreUpdateString();
-				
-				addedRect += scoreInfo.added.encode();
-				
-				gameServer.broadcastTCP(destroyedRect + "\r\n" + addedRect + "\r\n" + scoreUpdate);
+				room.broadcastTCP(destroyedMessage(scoreInfo.destroyed));
+				room.broadcastTCP(addedMessage(scoreInfo.added));
+				room.broadcastTCP(getScoreUpdate());
+				clickBroadcast(timestamp);
 			}
 		}
 	}
 	
-	private String getScoreUpdateString() {		
-		String message = "scores";
-		
-		Player[] ranked = rankPlayers(!skropWinCondition.countRects);
+	/**
+	 * Judges a click against the world as the player saw it. A click's frame is the sequence number of the newest snapshot the player had
+	 * received; if that snapshot is still in the history, the click hits whatever rectangle was under it in that snapshot, as long as
+	 * nobody has destroyed the rectangle since. Otherwise, or if the player hit nothing in the snapshot (for example a rectangle that was
+	 * broadcast over TCP after the snapshot was taken), the click is judged against the world as it is now.
+	 * 
+	 * @param x x coordinate of the click
+	 * @param y y coordinate of the click
+	 * @param frame snapshot sequence number sent with the click, or 0
+	 * @return the destroyed and added rectangles and the points earned, or a ScoreInfo with null rectangles if nothing was hit
+	 */
+	private ScoreInfo checkClick(float x, float y, int frame) {
+		WorldSnapshot seen = snapshots.frame(frame, MAX_REWIND_SNAPSHOTS);
 		
-		for (Player p : ranked) {
-			if (p instanceof SkropPlayer) { //Can't wait for pattern matching in Java
-				SkropPlayer player = (SkropPlayer) p;
-				
-				message += " " + player.name.replace(' ', '_') + ":";
+		if (seen != null) {
+			int hit = seen.hit(x, y);
+			
+			if (hit != -1) {
+				ScoreInfo scoreInfo = gameWorld.destroyRect(seen.ids[hit], seen.size[hit]);
 				
-				if (skropWinCondition.countRects) {
-					message += player.rectsDestroyed;
-				} else {
-					message += player.score;
+				if (scoreInfo.destroyed != null) {
+					return scoreInfo;
 				}
-			} else {
-				System.err.println("Player \"" + p.name + "\" is not a valid SkropPlayer!");
 			}
 		}
 		
-		return message;
+		return gameWorld.checkClick(x, y);
 	}
 	
-	private void createGameWorld() {
-		gameWorld = new World(10);
-		//sendGameWorld();
+	@Override
+	public boolean setOption(final String option, final String value) {
+		if (option.equals("world-size")) {
+			try {
+				int size = Integer.parseInt(value);
+				
+				if (size >= 1 && size <= GameWorld.MAX_RECTS) {
+					worldSize = size;
+					return true;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Malformed world size \"" + value + "\"");
+			}
+		} else if (option.equals("world-layout")) {
+			if (value.equals("packed") || value.equals("objects")) {
+				packedWorld = value.equals("packed");
+				return true;
+			}
+		}
 		
-		String out = "";
-		for (var r : gameWorld.rects) {
-			out += "\r\nr " + r.encode();
+		return false;
+	}
+	
+	@Override
+	public void processSnapshotAck(int seat, int sequence) {
+		SnapshotChannel channel = snapshots;
+		if (channel != null) {
+			channel.acknowledge(seat, sequence);
 		}
+	}
+	
+	private static Message destroyedMessage(final Rectangle r) {
+		return Messages.rectDestroyed(r.id, r.x, r.y, r.color);
+	}
+		
+	private static Message addedMessage(final Rectangle r) {
+		return Messages.rectAdded(r.id, r.x, r.y, r.color, r.growthFactor(), r.maxSize);
+	}
+	
+	/**
+	 * Builds a score update with every player in ranked order. Package-private so that it can be benchmarked.
+	 * 
+	 * @return a score message
+	 */
+	Message getScoreUpdate() {
+		SkropPlayer[] ranked = rankPlayers(!skropWinCondition.countRects);
+		
+		String[] names = new String[ranked.length];
+		int[] values = new int[ranked.length];
 		
-		if (!out.isEmpty()) {
-			gameServer.broadcastTCP(out);
+		for (int i = 0; i < ranked.length; i++) {
+			names[i] = ranked[i].name;
+			values[i] = skropWinCondition.countRects ? ranked[i].rectsDestroyed : ranked[i].score;
 		}
+		
+		return Messages.scores(names, values);
+	}
+	
+	private void createGameWorld() {
+		gameWorld = packedWorld ? new PackedWorld(worldSize, seed()) : new World(worldSize, seed());
+		room.broadcastTCP(gameWorld.spawner().message()); //Seeded clients need the seed before the first snapshot or rectangle
+		snapshots = new SnapshotChannel(maxPlayers);
+		ticksSinceSnapshot = 0;
+		sendSnapshots();
+		
+		List<Message> rects = new ArrayList<Message>(gameWorld.maxRects());
+		gameWorld.forEachRect(new RectListener() {
+			
+			@Override
+			public void rectDestroyed(int id, float x, float y, int color) {
+				
+			}
+			
+			@Override
+			public void rectAdded(int id, float x, float y, int color, float growthFactor, float maxSize) {
+				rects.add(Messages.rectAdded(id, x, y, color, growthFactor, maxSize));
+			}
+		});
+		
+		room.broadcastTCP(Messages.group(Opcode.RECT_ADDED, rects.toArray(new Message[rects.size()]))); //The whole world as one message, so that no client's queue overflows or drops part of it
 	}
 	
-	private synchronized void inGameTick() {
+	private void inGameTick() {
 		if (skropWinCondition == SkropWinCondition.TIMER_POINTS || skropWinCondition == SkropWinCondition.TIMER_RECTS) {
-			gameSecondsLeft = (int)(winGoal - ((System.currentTimeMillis() - gameStartTime)/1000));
+			gameSecondsLeft = (int)(winGoal - ((tickMillis() - gameStartTime)/1000));
 		}
 		
 		if (gameSecondsLeft != prevGameSecondsLeft && gameSecondsLeft != winGoal) {
-			gameServer.broadcastTCP("game-timer " + gameSecondsLeft);
+			room.broadcastTCP(Messages.gameTimer(gameSecondsLeft));
 		}
 		prevGameSecondsLeft = gameSecondsLeft;
 		
-		if ((System.currentTimeMillis() - gameStartTime)/1000 > winGoal) {
-			gameServer.gameState = GameState.GAME_ENDING;
+		if ((tickMillis() - gameStartTime)/1000 > winGoal) {
+			room.gameState = GameState.GAME_ENDING;
 		}
 		
-		ScoreInfo[] rects = gameWorld.update();
-		
-		String out = "";
-		
-		for (var info : rects) {
-			out += "d " + info.destroyed.x + ":" + info.destroyed.y + ":" + info.destroyed.color + "\r\nr " + info.added.encode() + "\r\n";
-		}
+		gameWorld.update(rectBroadcaster);
 		
-		if (!out.isEmpty()) {
-			gameServer.broadcastTCP(out);
+		if (++ticksSinceSnapshot >= SNAPSHOT_INTERVAL_TICKS) {
+			sendSnapshots();
+			ticksSinceSnapshot = 0;
 		}
-		//sendGameWorld();
 	}
 	
-	
-	//private long lastGameWorldBroadcastTime = 0;
 	/**
-	 * Measured in Hz
+	 * Takes a snapshot of the game world and sends it over UDP to every player, delta-encoded against the last snapshot that player
+	 * acknowledged. See {@link SnapshotChannel} for the packet layout.
 	 */
-	//private static final long GAMEWORLD_BROADCAST_FREQUENCY = 2;
-	
-	/*
-	private void sendGameWorld() {
-		try {
-			if (System.currentTimeMillis() - lastGameWorldBroadcastTime > 1000/GAMEWORLD_BROADCAST_FREQUENCY) {
-				String serializedWorld = gameWorld.serialize();
-				gameServer.broadcastUDP(serializedWorld);
-				lastGameWorldBroadcastTime = System.currentTimeMillis();
+	private void sendSnapshots() {
+		snapshots.capture(gameWorld);
+	
+		for (int seat = 0; seat < players.length; seat++) {
+			if (players[seat] != null) {
+				FrameWriter packet = snapshots.encode(seat, room.binaryVersion(seat));
+				room.sendUDP(seat, packet.array(), packet.length());
 			}
-		} catch (Exception e) {
-			System.err.println("Error preparing the game world to be sent over UDP!");
-			e.printStackTrace();
 		}
 	}
-	*/
 	
 	boolean endGameScoresSent = false;
 	
 	private void endGame() {
 		if (!endGameScoresSent) {
-			Player[] ranked = rankPlayers(!skropWinCondition.countRects);
+			SkropPlayer[] ranked = rankPlayers(!skropWinCondition.countRects);
+			int count = ranked.length;
 			
-			String message = "end-game-scores";
-			for (Player p : ranked) {
-				if (p instanceof SkropPlayer) {
-					message += " " + p.name + ":" + ((SkropPlayer) p).score + ":" + ((SkropPlayer) p).rectsDestroyed;
-				} else {
-					
-				}
+			String[] names = new String[count];
+			int[] scores = new int[count];
+			int[] rectsDestroyed = new int[count];
+			
+			for (int i = 0; i < count; i++) {
+				names[i] = ranked[i].name;
+				scores[i] = ranked[i].score;
+				rectsDestroyed[i] = ranked[i].rectsDestroyed;
 			}
 			
-			gameServer.broadcastTCP(message);
+			room.broadcastTCP(Messages.endGameScores(names, scores, rectsDestroyed));
+			
+			int[] ranking = skropWinCondition.countRects ? rectsDestroyed : scores;
+			int winners = 0;
+			while (winners < count && ranking[winners] == ranking[0]) { //Everyone tied for first wins
+				winners++;
+			}
+			
+			room.reportResults(names, scores, winners);
 			
 			endGameScoresSent = true;
 		}
 	}
 	
-	private Player[] rankPlayers(boolean sortByPoints) {
-		Player[] ranked = new Player[players.length];
-		System.arraycopy(players, 0, ranked, 0, players.length);
-		
-		boolean sorted = false;
+	/**
+	 * The players still in the game, best first. Empty seats are left out, so the first player is always the leader; players who are tied
+	 * keep their seat order. Package-private so that it can be checked with a vacated seat.
+	 * 
+	 * @param sortByPoints true to rank by points, false to rank by rectangles destroyed
+	 * @return the ranked players, without nulls
+	 */
+	SkropPlayer[] rankPlayers(boolean sortByPoints) {
+		SkropPlayer[] ranked = new SkropPlayer[players.length];
+		int count = 0;
 		
-		while (!sorted) {
-			sorted = true;
-			
-			for (int i = 1; i < players.length; i++) {
-				if (ranked[i] != null && ranked[i - 1] != null) {
-					SkropPlayer current = (SkropPlayer) ranked[i];
-					SkropPlayer prev = (SkropPlayer) ranked[i - 1];
-					
-					if ((sortByPoints && current.score > prev.score) || (!sortByPoints && current.rectsDestroyed > prev.rectsDestroyed)) {
-						sorted = false;
-						Player temp = ranked[i - 1];
-						ranked[i - 1] = ranked[i];
-						ranked[i] = temp;
-					}
-				}
+		for (Player p : players) {
+			if (p instanceof SkropPlayer) { //Can't wait for pattern matching in Java
+				ranked[count++] = (SkropPlayer) p;
+			} else if (p != null) {
+				System.err.println("Player \"" + p.name + "\" is not a valid SkropPlayer!");
 			}
 		}
 		
+		ranked = Arrays.copyOf(ranked, count);
+		Arrays.sort(ranked, sortByPoints ? BY_POINTS : BY_RECTS_DESTROYED); //Stable, so ties stay in seat order
+		
 		return ranked;
 	}
 }
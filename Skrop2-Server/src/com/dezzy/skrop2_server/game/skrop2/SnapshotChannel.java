@@ -0,0 +1,284 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+import com.dezzy.skrop2_server.net.protocol.RectCodec;
+import com.dezzy.skrop2_server.net.udp.UDPServer;
+
+/**
+ * Sends sequence-numbered snapshots of a {@link GameWorld} to every player over UDP. Each snapshot is delta-encoded against the newest snapshot
+ * that the player has acknowledged (with <code>snapshot-ack seq:N</code> over TCP) and that is still in this channel's history; when there is
+ * no such snapshot, a full snapshot is sent instead. A snapshot always fits in one packet of {@link UDPServer#UDP_PACKET_MAX_BYTE_LENGTH}
+ * bytes.
+ * <p>
+ * Packet layout, using the primitive types of the {@link com.dezzy.skrop2_server.net.protocol.BinaryProtocol BinaryProtocol}:
+ * <pre>
+ * byte     {@link Opcode#SNAPSHOT}
+ * varint   sequence
+ * varint   baseline sequence, or 0 if this is a full snapshot
+ * byte     flags: bit 0 is set if the snapshot is partial, bit 1 is set if the snapshot is packed, bit 2 is set if the snapshot is seeded
+ * varint   removed count, then for each: varint id
+ * varint   added count, then for each: varint id, float x, float y, float size, varint color
+ * varint   resized count, then for each: varint id, float size
+ * </pre>
+ * Players that negotiated {@link com.dezzy.skrop2_server.net.protocol.BinaryProtocol#PACKED_VERSION} get packed snapshots, which write
+ * every coordinate and size as a {@link RectCodec} unit and every color as a {@link RectCodec} color:
+ * <pre>
+ * varint   added count, then for each: varint id, unit x, unit y, unit size, color
+ * varint   resized count, then for each: varint id, unit size
+ * </pre>
+ * In a packed snapshot, a rectangle is only resized when its packed size changes. Players that negotiated
+ * {@link com.dezzy.skrop2_server.net.protocol.BinaryProtocol#SEEDED_VERSION} get seeded snapshots, which are packed and leave out everything
+ * about an added rectangle that the player's {@link com.dezzy.skrop2_server.net.protocol.RectSpawner RectSpawner} can work out from its id:
+ * <pre>
+ * varint   added count, then for each: varint id, unit size
+ * </pre>
+ * A client builds the world for a sequence number by taking its copy of the baseline (an empty world for a full snapshot), removing,
+ * adding, then resizing rectangles. If a delta does not fit in one packet, removals are sent first, then additions, then size changes,
+ * and the snapshot is marked partial. A partial snapshot is never used as a baseline, so clients should only acknowledge complete ones.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class SnapshotChannel {
+	
+	/**
+	 * Number of snapshots kept as possible baselines. A player whose newest acknowledgement is older than this gets a full snapshot.
+	 */
+	static final int HISTORY_LENGTH = 32;
+	
+	/**
+	 * Bit set in the flags byte of a partial snapshot
+	 */
+	static final int FLAG_PARTIAL = 1;
+	
+	/**
+	 * Bit set in the flags byte of a packed snapshot
+	 */
+	static final int FLAG_PACKED = 2;
+	
+	/**
+	 * Bit set in the flags byte of a seeded snapshot
+	 */
+	static final int FLAG_SEEDED = 4;
+	
+	/**
+	 * Bytes after the id of an added rectangle in a packed snapshot
+	 */
+	private static final int PACKED_ADDED_BYTES = 3 * RectCodec.UNIT_BYTES + RectCodec.COLOR_BYTES;
+	
+	/**
+	 * Space saved for the three section counts when deciding what fits in a packet
+	 */
+	private static final int COUNT_BYTES = 3 * 3;
+	
+	private final WorldSnapshot[] history = new WorldSnapshot[HISTORY_LENGTH];
+	private int sequence = 0;
+	
+	/**
+	 * Newest sequence number acknowledged by each seat, or 0. Written by the client I/O threads and read by the game tick.
+	 */
+	private final AtomicIntegerArray acked;
+	
+	/**
+	 * For each seat, the sequence number of every snapshot in the history that was sent to it complete, indexed by sequence modulo the
+	 * history length. Only used by the game tick.
+	 */
+	private final int[][] sentComplete;
+	
+	private final FrameWriter packet = new FrameWriter(UDPServer.UDP_PACKET_MAX_BYTE_LENGTH);
+	
+	private int[] removed = new int[0];
+	private int[] added = new int[0];
+	private int[] resized = new int[0];
+	
+	SnapshotChannel(int seats) {
+		acked = new AtomicIntegerArray(seats);
+		sentComplete = new int[seats][HISTORY_LENGTH];
+		
+		for (int i = 0; i < HISTORY_LENGTH; i++) {
+			history[i] = new WorldSnapshot(0);
+		}
+	}
+	
+	/**
+	 * Records that a player received a snapshot. Acknowledgements older than the player's newest one are ignored.
+	 * 
+	 * @param seat seat of the player
+	 * @param ackSequence sequence number of the snapshot
+	 */
+	void acknowledge(int seat, int ackSequence) {
+		int old;
+		do {
+			old = acked.get(seat);
+			if (ackSequence <= old) {
+				return;
+			}
+		} while (!acked.compareAndSet(seat, old, ackSequence));
+	}
+	
+	/**
+	 * Takes the next snapshot of the world and adds it to the history.
+	 * 
+	 * @param world world to snapshot
+	 */
+	void capture(final GameWorld world) {
+		sequence++;
+		world.writeSnapshot(sequence, history[sequence % HISTORY_LENGTH]);
+	}
+	
+	/**
+	 * Finds a snapshot that a player may have seen, so that a click can be judged against the world the player was looking at. Snapshots
+	 * are overwritten in place as they fall out of the history, so looking one up never copies the world.
+	 * 
+	 * @param frame sequence number of the snapshot
+	 * @param maxAge most snapshots the frame may be behind the newest one
+	 * @return the snapshot, or null if it is unknown, too old, or has already been overwritten
+	 */
+	WorldSnapshot frame(int frame, int maxAge) {
+		if (frame > 0 && frame <= sequence && sequence - frame <= Math.min(maxAge, HISTORY_LENGTH - 1)) {
+			WorldSnapshot snapshot = history[frame % HISTORY_LENGTH];
+			
+			if (snapshot.sequence == frame) {
+				return snapshot;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Encodes the newest snapshot for one player. The packet is reused by the next call.
+	 * 
+	 * @param seat seat of the player
+	 * @param version binary protocol version of the player, which decides whether the snapshot is packed or seeded
+	 * @return a packet holding the snapshot; only the first {@link FrameWriter#length()} bytes are valid
+	 */
+	FrameWriter encode(int seat, int version) {
+		boolean packed = version >= BinaryProtocol.PACKED_VERSION;
+		boolean seeded = version >= BinaryProtocol.SEEDED_VERSION;
+		
+		WorldSnapshot current = history[sequence % HISTORY_LENGTH];
+		WorldSnapshot baseline = baseline(seat);
+		
+		int removedCount = 0;
+		int addedCount = 0;
+		int resizedCount = 0;
+		
+		int capacity = baseline.count + current.count;
+		if (removed.length < capacity) {
+			removed = new int[capacity];
+			added = new int[capacity];
+			resized = new int[capacity];
+		}
+		
+		int b = 0;
+		int c = 0;
+		while (b < baseline.count || c < current.count) {
+			if (c == current.count || (b < baseline.count && baseline.ids[b] < current.ids[c])) {
+				removed[removedCount++] = b++;
+			} else if (b == baseline.count || current.ids[c] < baseline.ids[b]) {
+				added[addedCount++] = c++;
+			} else {
+				if (packed ? RectCodec.quantize(baseline.size[b]) != RectCodec.quantize(current.size[c]) : baseline.size[b] != current.size[c]) {
+					resized[resizedCount++] = c;
+				}
+				b++;
+				c++;
+			}
+		}
+		
+		int budget = UDPServer.UDP_PACKET_MAX_BYTE_LENGTH - 1 - varintLength(current.sequence) - varintLength(baseline.sequence) - 1 - COUNT_BYTES;
+		int removedSent = 0;
+		int addedSent = 0;
+		int resizedSent = 0;
+		
+		while (removedSent < removedCount && (budget -= varintLength(baseline.ids[removed[removedSent]])) >= 0) {
+			removedSent++;
+		}
+		
+		while (budget >= 0 && addedSent < addedCount) {
+			int a = added[addedSent];
+			if ((budget -= varintLength(current.ids[a]) + (seeded ? RectCodec.UNIT_BYTES : packed ? PACKED_ADDED_BYTES : 12 + varintLength(current.color[a]))) >= 0) {
+				addedSent++;
+			}
+		}
+		
+		int sizeBytes = packed ? RectCodec.UNIT_BYTES : 4;
+		while (budget >= 0 && resizedSent < resizedCount && (budget -= varintLength(current.ids[resized[resizedSent]]) + sizeBytes) >= 0) {
+			resizedSent++;
+		}
+		
+		boolean partial = removedSent < removedCount || addedSent < addedCount || resizedSent < resizedCount;
+		sentComplete[seat][current.sequence % HISTORY_LENGTH] = partial ? 0 : current.sequence;
+		
+		packet.reset();
+		packet.writeByte(Opcode.SNAPSHOT.code).writeVarint(current.sequence).writeVarint(baseline.sequence).writeByte((partial ? FLAG_PARTIAL : 0) | (packed ? FLAG_PACKED : 0) | (seeded ? FLAG_SEEDED : 0));
+		
+		packet.writeVarint(removedSent);
+		for (int i = 0; i < removedSent; i++) {
+			packet.writeVarint(baseline.ids[removed[i]]);
+		}
+		
+		packet.writeVarint(addedSent);
+		for (int i = 0; i < addedSent; i++) {
+			int a = added[i];
+			packet.writeVarint(current.ids[a]);
+			
+			if (seeded) {
+				RectCodec.writeUnit(packet, current.size[a]);
+			} else if (packed) {
+				RectCodec.writeUnit(packet, current.x[a]);
+				RectCodec.writeUnit(packet, current.y[a]);
+				RectCodec.writeUnit(packet, current.size[a]);
+				RectCodec.writeColor(packet, current.color[a]);
+			} else {
+				packet.writeFloat(current.x[a]).writeFloat(current.y[a]).writeFloat(current.size[a]).writeVarint(current.color[a]);
+			}
+		}
+		
+		packet.writeVarint(resizedSent);
+		for (int i = 0; i < resizedSent; i++) {
+			int r = resized[i];
+			packet.writeVarint(current.ids[r]);
+			
+			if (packed) {
+				RectCodec.writeUnit(packet, current.size[r]);
+			} else {
+				packet.writeFloat(current.size[r]);
+			}
+		}
+		
+		return packet;
+	}
+	
+	/**
+	 * Finds the snapshot to delta-encode against for a player: the newest snapshot the player acknowledged, if it is still in the history
+	 * and was sent to the player complete.
+	 */
+	private WorldSnapshot baseline(int seat) {
+		int ack = acked.get(seat);
+		
+		if (ack > 0 && ack < sequence && sequence - ack < HISTORY_LENGTH) {
+			WorldSnapshot snapshot = history[ack % HISTORY_LENGTH];
+			
+			if (snapshot.sequence == ack && sentComplete[seat][ack % HISTORY_LENGTH] == ack) {
+				return snapshot;
+			}
+		}
+		
+		return WorldSnapshot.EMPTY;
+	}
+	
+	private static int varintLength(int value) {
+		int bytes = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			bytes++;
+		}
+		return bytes;
+	}
+}
@@ -1,64 +1,137 @@
 package com.dezzy.skrop2_server.game.skrop2;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
-public class World implements Serializable {
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.RectSpawner;
+
+/**
+ * A game world that stores each rectangle as a {@link Rectangle} object and indexes them in a {@link RectGrid}, so clicks are cheap
+ * even in very large worlds. See {@link PackedWorld} for a layout that makes ticks cheaper instead.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class World extends GameWorld implements Serializable {
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 3909871252377706303L;
 	
+	/**
+	 * Every rectangle, in id order. Only modify this through the World so that the index stays correct.
+	 */
 	public List<Rectangle> rects = new ArrayList<Rectangle>();
 	private final transient int maxRects;
 	
+	/**
+	 * Scales the size of every rectangle so that the rectangles cover about as much of the world no matter how many there are
+	 */
+	private final transient float sizeScale;
+	
+	/**
+	 * Indexes {@link #rects} for hit testing
+	 */
+	private final transient RectGrid grid;
+	
+	/**
+	 * Works out every new rectangle from the seed of this world
+	 */
+	private final transient RectSpawner spawner;
+	
+	/**
+	 * Id of the next rectangle to be added
+	 */
+	private transient int nextID = 0;
+	
 	/**
 	 * The time at which this game world was the latest game world
 	 */
 	public int timeFrame = 0;
 	
+	/**
+	 * Creates a world filled with random rectangles.
+	 * 
+	 * @param _maxRects number of rectangles, between 1 and {@link #MAX_RECTS}
+	 */
 	public World(int _maxRects) {
+		this(_maxRects, ThreadLocalRandom.current().nextLong());
+	}
+	
+	/**
+	 * Creates a world filled with rectangles spawned from a seed.
+	 * 
+	 * @param _maxRects number of rectangles, between 1 and {@link #MAX_RECTS}
+	 * @param seed seed of the world's {@link RectSpawner}
+	 */
+	public World(int _maxRects, long seed) {
+		this(_maxRects, new RectSpawner(seed, sizeScale(_maxRects)), true);
+	}
+	
+	private World(int _maxRects, final RectSpawner _spawner, boolean populate) {
+		checkSize(_maxRects);
+		
 		maxRects = _maxRects;
+		sizeScale = sizeScale(maxRects);
+		spawner = _spawner;
+		grid = new RectGrid(DEFAULT_MAX_RECT_SIZE * sizeScale);
 		
-		for (int i = 0; i < maxRects; i++) {
-			addRandomRectangle();
+		if (populate) {
+			for (int i = 0; i < maxRects; i++) {
+				addRandomRectangle();
+			}
 		}
 	}
 	
-	public synchronized ScoreInfo[] update() {
-		List<ScoreInfo> out = new ArrayList<ScoreInfo>();
-		
+	@Override
+	public void update(final RectListener listener) {
 		for (int i = rects.size() - 1; i >= 0; i--) {
-			if (rects.get(i).isDead()) {
-				Rectangle destroyed = rects.remove(i);
+			Rectangle r = rects.get(i);
+			
+			if (r.isDead()) {
+				rects.remove(i);
+				grid.remove(r);
 				Rectangle added = addRandomRectangle();
-				out.add(new ScoreInfo(destroyed, added, 0));
+				listener.rectDestroyed(r.id, r.x, r.y, r.color);
+				listener.rectAdded(added.id, added.x, added.y, added.color, added.growthFactor(), added.maxSize);
 			} else {
-				rects.get(i).grow();
+				r.grow();
+				grid.update(r);
 			}
 		}
+	}
+	
+	@Override
+	public ScoreInfo checkClick(float x, float y) {
+		Rectangle r = grid.hit(x, y);
+			
+		if (r != null) {
+			int points = points(r.maxSize, r.size);
+				
+			removeRectangle(r);
+			Rectangle added = addRandomRectangle();
+			return new ScoreInfo(r, added, points);
+		}
 		
-		return out.toArray(new ScoreInfo[out.size()]);
+		return new ScoreInfo(null, null, 0);
 	}
 	
-	public synchronized ScoreInfo checkClick(float x, float y) {
-		for (int i = rects.size() - 1; i >= 0; i--) {
+	@Override
+	public ScoreInfo destroyRect(int id, float seenSize) {
+		int i = indexOf(id);
+		
+		if (i != -1) {
 			Rectangle r = rects.get(i);
-			float halfSize = r.size / 2.0f;
 			
-			if (x <= r.x + halfSize && x >= r.x - halfSize && y <= r.y + halfSize && y >= r.y - halfSize) {
-				int points = r.size > 0 ? (int)(2*r.maxSize/r.size) : 0;
-				
-				Rectangle destroyed = rects.remove(i);
-				Rectangle added = addRandomRectangle();
-				return new ScoreInfo(destroyed, added, points);
-			}
+			rects.remove(i);
+			grid.remove(r);
+			Rectangle added = addRandomRectangle();
+			return new ScoreInfo(r, added, points(r.maxSize, seenSize));
 		}
 		
 		return new ScoreInfo(null, null, 0);
@@ -72,21 +145,16 @@ public class World implements Serializable {
 	 * @param replace true if the rectangle should be replaced by a random rectangle, false if it should not be replaced
 	 * @return true if this rectangle existed and was removed
 	 */
-	public synchronized boolean removeRectangleIfExists(final Rectangle rect, boolean replace) {		
-		float x = rect.x;
-		float y = rect.y;
-		int color = rect.color;
+	public boolean removeRectangleIfExists(final Rectangle rect, boolean replace) {		
+		Rectangle r = grid.find(rect.x, rect.y, rect.color);
 		
-		for (int i = rects.size() - 1; i >= 0; i--) {
-			Rectangle r = rects.get(i);
-			if (r.x == x && r.y == y && r.color == color) {
-				rects.remove(i);
+		if (r != null) {
+			removeRectangle(r);
 				
-				if (replace) {
-					addRandomRectangle();
-				}
-				return true;
+			if (replace) {
+				addRandomRectangle();
 			}
+			return true;
 		}
 		
 		return false;
@@ -97,25 +165,115 @@ public class World implements Serializable {
 	 * 
 	 * @return a deep copy of the game world
 	 */
-	synchronized World copy() {
-		World out = new World(maxRects);
+	World copy() {
+		World out = new World(maxRects, spawner, false);
 		out.timeFrame = timeFrame;
-		rects.forEach(r -> out.rects.add(r.copy()));
+		out.nextID = nextID;
+		rects.forEach(r -> out.addRectangle(r.copy()));
 		
 		return out;
 	}
 	
-	private synchronized Rectangle addRandomRectangle() {
-		Rectangle out = new Rectangle((float)Math.random(), (float)Math.random());
-		rects.add(out);
+	@Override
+	public void forEachRect(final RectListener listener) {
+		for (Rectangle r : rects) {
+			listener.rectAdded(r.id, r.x, r.y, r.color, r.growthFactor(), r.maxSize);
+		}
+	}
+	
+	@Override
+	public RectSpawner spawner() {
+		return spawner;
+	}
+	
+	@Override
+	public int maxRects() {
+		return maxRects;
+	}
+	
+	private Rectangle addRandomRectangle() {
+		int id = nextID++;
+		spawner.spawn(id);
+		
+		Rectangle out = new Rectangle(id, spawner.x, spawner.y, 0, spawner.color, spawner.growthFactor, spawner.maxSize, true, false);
+		addRectangle(out);
 		return out;
 	}
 	
-	public synchronized String serialize() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(baos);
-		oos.writeObject(this);
-		oos.close();
-		return Base64.getEncoder().encodeToString(baos.toByteArray());
+	/**
+	 * Adds a rectangle to the end of {@link #rects} and to the index. The rectangle must have a higher id than every other rectangle.
+	 */
+	private void addRectangle(final Rectangle r) {
+		rects.add(r);
+		grid.insert(r);
+	}
+	
+	/**
+	 * Removes a rectangle from {@link #rects} and from the index.
+	 */
+	private void removeRectangle(final Rectangle r) {
+		int i = indexOf(r.id);
+		
+		if (i != -1) {
+			rects.remove(i);
+			grid.remove(r);
+		}
+	}
+	
+	/**
+	 * Finds a rectangle in {@link #rects}. {@link #rects} is in id order, so the rectangle is found with a binary search.
+	 * 
+	 * @return index of the rectangle with the id, or -1 if there is none
+	 */
+	private int indexOf(int id) {
+		int low = 0;
+		int high = rects.size() - 1;
+		
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midID = rects.get(mid).id;
+			
+			if (midID < id) {
+				low = mid + 1;
+			} else if (midID > id) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Rectangles are always added with increasing ids and removing one keeps the order of the rest, so {@link #rects} is already in id order.
+	 */
+	@Override
+	void writeSnapshot(int sequence, final WorldSnapshot out) {
+		out.reset(sequence, rects.size());
+		
+		for (Rectangle r : rects) {
+			out.add(r.id, r.x, r.y, r.size, r.color);
+		}
+	}
+	
+	@Override
+	public void writeWorld(final FrameWriter out) {
+		out.writeVarint(rects.size());
+		
+		for (Rectangle r : rects) {
+			r.write(out);
+		}
+	}
+	
+	/**
+	 * Packs this world with {@link #writeWorld(FrameWriter)} and encodes it in Base64.
+	 * 
+	 * @return the packed world, in Base64
+	 */
+	public String serialize() {
+		FrameWriter out = new FrameWriter(16 + rects.size() * 16);
+		writeWorld(out);
+		return Base64.getEncoder().encodeToString(out.toByteArray());
 	}
 }
@@ -0,0 +1,87 @@
+package com.dezzy.skrop2_server.game.skrop2;
+
+import java.util.Arrays;
+
+/**
+ * The state of every rectangle in a {@link GameWorld} at one point in time, stored as parallel arrays in id order so that two snapshots
+ * can be compared with a single merge. Snapshots are kept in a {@link SnapshotChannel}'s history and overwritten when they fall out of it,
+ * so the arrays only grow and are never reallocated once the world has reached its size.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class WorldSnapshot {
+	
+	/**
+	 * An empty snapshot, used as the baseline of a full snapshot
+	 */
+	static final WorldSnapshot EMPTY = new WorldSnapshot(0);
+	
+	int sequence = 0;
+	int count = 0;
+	
+	int[] ids;
+	float[] x;
+	float[] y;
+	float[] size;
+	int[] color;
+	
+	WorldSnapshot(int capacity) {
+		ids = new int[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		size = new float[capacity];
+		color = new int[capacity];
+	}
+	
+	/**
+	 * Empties this snapshot so that it can be refilled with {@link #add(int, float, float, float, int)}.
+	 * 
+	 * @param _sequence sequence number of the new snapshot
+	 * @param capacity number of rectangles that will be added
+	 */
+	void reset(int _sequence, int capacity) {
+		sequence = _sequence;
+		count = 0;
+		
+		if (ids.length < capacity) {
+			ids = Arrays.copyOf(ids, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			size = Arrays.copyOf(size, capacity);
+			color = Arrays.copyOf(color, capacity);
+		}
+	}
+	
+	/**
+	 * Adds a rectangle. Rectangles must be added in increasing id order.
+	 */
+	void add(int id, float _x, float _y, float _size, int _color) {
+		ids[count] = id;
+		x[count] = _x;
+		y[count] = _y;
+		size[count] = _size;
+		color[count] = _color;
+		count++;
+	}
+	
+	/**
+	 * Finds the newest rectangle under a point, exactly as {@link GameWorld#checkClick(float, float)} would have in the world this snapshot
+	 * was taken of.
+	 * 
+	 * @param px normalized x coordinate
+	 * @param py normalized y coordinate
+	 * @return index of the rectangle, or -1 if there is no rectangle under the point
+	 */
+	int hit(float px, float py) {
+		for (int i = count - 1; i >= 0; i--) {
+			float halfSize = size[i] / 2.0f;
+			
+			if (px <= x[i] + halfSize && px >= x[i] - halfSize && py <= y[i] + halfSize && py >= y[i] - halfSize) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+}
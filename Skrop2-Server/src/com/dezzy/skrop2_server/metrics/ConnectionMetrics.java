@@ -0,0 +1,106 @@
+package com.dezzy.skrop2_server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for one TCP server slot. The counters are cumulative over every client that has used the slot and are only ever
+ * added to, so reading them never blocks the I/O thread that updates them.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class ConnectionMetrics {
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder messagesDropped = new LongAdder();
+	
+	/**
+	 * Counts bytes read from the client.
+	 * 
+	 * @param bytes number of bytes read
+	 */
+	public void bytesReceived(int bytes) {
+		bytesIn.add(bytes);
+	}
+	
+	/**
+	 * Counts bytes written to the client.
+	 * 
+	 * @param bytes number of bytes written
+	 */
+	public void bytesSent(int bytes) {
+		bytesOut.add(bytes);
+	}
+	
+	/**
+	 * Counts one line received from the client.
+	 */
+	public void messageReceived() {
+		messagesIn.increment();
+	}
+	
+	/**
+	 * Counts messages taken from the message queue to be sent to the client.
+	 * 
+	 * @param count number of messages
+	 */
+	public void messagesSent(int count) {
+		messagesOut.add(count);
+	}
+	
+	/**
+	 * Counts messages that were never sent because the client was not keeping up.
+	 * 
+	 * @param count number of messages
+	 */
+	public void messagesDropped(int count) {
+		messagesDropped.add(count);
+	}
+	
+	/**
+	 * Total bytes read from clients on this slot.
+	 * 
+	 * @return bytes in
+	 */
+	public long bytesIn() {
+		return bytesIn.sum();
+	}
+	
+	/**
+	 * Total bytes written to clients on this slot.
+	 * 
+	 * @return bytes out
+	 */
+	public long bytesOut() {
+		return bytesOut.sum();
+	}
+	
+	/**
+	 * Total lines received from clients on this slot.
+	 * 
+	 * @return messages in
+	 */
+	public long messagesIn() {
+		return messagesIn.sum();
+	}
+	
+	/**
+	 * Total messages sent to clients on this slot.
+	 * 
+	 * @return messages out
+	 */
+	public long messagesOut() {
+		return messagesOut.sum();
+	}
+	
+	/**
+	 * Total messages dropped for slow clients on this slot.
+	 * 
+	 * @return messages dropped
+	 */
+	public long messagesDropped() {
+		return messagesDropped.sum();
+	}
+}
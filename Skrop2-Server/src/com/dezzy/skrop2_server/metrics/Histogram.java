@@ -0,0 +1,117 @@
+package com.dezzy.skrop2_server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, usually durations, with a fixed amount of memory no matter how many values are recorded.
+ * Values below 32 get their own bucket; above that, every power of two is split into 32 buckets, so a percentile is never off by more
+ * than about 3%. Recording is a few atomic increments, so a Histogram can stay enabled on the game and I/O threads.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class Histogram {
+	
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+	
+	/**
+	 * Records one value.
+	 * 
+	 * @param value value to record; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long clamped = Math.max(0, value);
+		
+		counts.incrementAndGet(bucket(clamped));
+		count.incrementAndGet();
+		max.accumulateAndGet(clamped, Math::max);
+	}
+	
+	/**
+	 * Number of recorded values.
+	 * 
+	 * @return count
+	 */
+	public long count() {
+		return count.get();
+	}
+	
+	/**
+	 * Largest recorded value.
+	 * 
+	 * @return maximum, or 0 if nothing has been recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+	
+	/**
+	 * Finds the value that a fraction of all recorded values are at or below.
+	 * 
+	 * @param fraction percentile from 0 to 1, e.g. 0.99 for the 99th percentile
+	 * @return the percentile, or 0 if nothing has been recorded
+	 */
+	public long percentile(double fraction) {
+		long total = count.get();
+		
+		if (total == 0) {
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			
+			if (seen >= rank) {
+				return Math.min(middle(i), max.get());
+			}
+		}
+		
+		return max.get();
+	}
+	
+	/**
+	 * Forgets every recorded value. Values recorded while this runs may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		
+		count.set(0);
+		max.set(0);
+	}
+	
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+	
+	/**
+	 * The value in the middle of a bucket.
+	 */
+	private static long middle(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		
+		return lowest + ((1L << shift) >>> 1);
+	}
+}
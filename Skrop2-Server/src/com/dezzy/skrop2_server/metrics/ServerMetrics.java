@@ -0,0 +1,35 @@
+package com.dezzy.skrop2_server.metrics;
+
+/**
+ * Histograms shared by every slot and Room of one {@link com.dezzy.skrop2_server.server.GameServer GameServer}. All durations are in
+ * nanoseconds.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class ServerMetrics {
+	
+	/**
+	 * Time to encrypt one outgoing line or binary frame
+	 */
+	public final Histogram encryptNanos = new Histogram();
+	
+	/**
+	 * Time to decrypt one incoming line
+	 */
+	public final Histogram decryptNanos = new Histogram();
+	
+	/**
+	 * Time from a click arriving on an I/O thread to the game broadcasting its result, for clicks that changed the game
+	 */
+	public final Histogram clickToBroadcastNanos = new Histogram();
+	
+	/**
+	 * Forgets every recorded duration.
+	 */
+	public void reset() {
+		encryptNanos.reset();
+		decryptNanos.reset();
+		clickToBroadcastNanos.reset();
+	}
+}
@@ -1,104 +1,369 @@
 package com.dezzy.skrop2_server.net;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Base64;
-import java.util.List;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * The wire cipher. An encrypted message is an 8-byte randomizer followed by the message bytes, each XORed with the keystream and rotated
+ * left by an amount taken from the randomizer, with a garbage byte in front of every two message bytes. The text protocol Base64-encodes
+ * encrypted messages; the binary protocol sends them raw.
+ * <p>
+ * The keystream is the key itself for the first <code>key.length</code> bytes, so messages that fit in the key are encrypted exactly as they
+ * always have been. Past that, the key repeats with every byte XORed with the number of times it has repeated, so messages of any length can be
+ * encrypted. The kernels that work on arrays and ByteBuffers allocate nothing, so the server can encrypt and decrypt every message with reused buffers.
+ * <p>
+ * Binary clients can negotiate the {@link SessionCipher} instead, which is AES-GCM and much faster; this cipher remains the one every client
+ * starts with and the fallback for clients that do not ask for AES-GCM.
+ * 
+ * @author Dezzmeister
+ *
+ */
 public class NetUtils {
 	
+	private static final byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Value of each Base64 character, or -1 for characters that are not part of the Base64 alphabet
+	 */
+	private static final byte[] BASE64_VALUES = new byte[128];
+	
+	/**
+	 * Generates connection keys. Thread safe.
+	 */
+	private static final SecureRandom keyRandom = new SecureRandom();
+	
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		
+		for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+			BASE64_VALUES[BASE64_ALPHABET[i]] = (byte) i;
+		}
+	}
+	
 	public static final String encrypt(final String in, final String key) {		
-		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-		byte[] inBytes = in.getBytes(StandardCharsets.UTF_8);
-		List<Byte> output = new ArrayList<Byte>();
+		byte[] outBytes = encrypt(in.getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8));
 		
-		byte[] randomizer = getRandomBytes(8);
-		for (byte b : randomizer) {
-			output.add(b);
+		if (outBytes == null) {
+			return null;
 		}
 		
-		if (inBytes.length > keyBytes.length || inBytes.length == 0 || keyBytes.length == 0) {
+		byte[] encoded = new byte[base64Length(outBytes.length)];
+		base64Encode(outBytes, 0, outBytes.length, encoded, 0);
+		
+		return new String(encoded, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Encrypts raw bytes with the same scheme as {@link #encrypt(String, String)}, without Base64-encoding the result. Used by the binary protocol.
+	 * 
+	 * @param inBytes bytes to encrypt
+	 * @param keyBytes key
+	 * @return the encrypted bytes, or null if <code>inBytes</code> or the key is empty
+	 */
+	public static final byte[] encrypt(final byte[] inBytes, final byte[] keyBytes) {
+		if (inBytes.length == 0 || keyBytes.length == 0) {
 			return null;
-		} else {
-			int count = 0;
-			for (int i = 0; i < inBytes.length; i++) {
+		}
+		
+		byte[] outBytes = new byte[encryptedLength(inBytes.length)];
+		encrypt(inBytes, 0, inBytes.length, keyBytes, outBytes, 0);
 				
-				if (count % 3 == 0) {
-					output.add((byte)((Math.random() * 255) - 128));
-					count++;
+		return outBytes;
+	}
+	
+	/**
+	 * The length of a message after encryption, before any Base64 encoding.
+	 * 
+	 * @param length length of the message
+	 * @return length of the encrypted message
+	 */
+	public static final int encryptedLength(int length) {
+		return 8 + length + (length + 1) / 2;
+	}
+	
+	/**
+	 * Encrypts part of an array into another array. Nothing is allocated.
+	 * 
+	 * @param in array containing the message
+	 * @param offset index of the first byte of the message
+	 * @param length length of the message
+	 * @param keyBytes key
+	 * @param out array to write to; must have room for {@link #encryptedLength(int) encryptedLength(length)} bytes
+	 * @param outOffset index in <code>out</code> to start writing at
+	 * @return the number of bytes written
+	 */
+	public static final int encrypt(final byte[] in, int offset, int length, final byte[] keyBytes, final byte[] out, int outOffset) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long randomizer = random.nextLong();
+		long garbage = 0;
+		
+		int o = outOffset;
+		for (int i = 0; i < 8; i++) {
+			out[o++] = (byte) (randomizer >>> (i * 8));
+		}
+		
+		int keyIndex = 0;
+		int keyRound = 0;
+		int count = 0;
+		
+		for (int i = offset; i < offset + length; i++) {
+			if (count % 3 == 0) {
+				if (count % 24 == 0) {
+					garbage = random.nextLong();
 				}
 				
-				output.add(rotateLeft((byte)(inBytes[i] ^ keyBytes[i]), randomizer[count % randomizer.length] & 0x07));
+				out[o++] = (byte) (garbage >>> ((count % 24) / 3 * 8));
 				count++;
 			}
+			
+			byte keyByte = (byte) (keyBytes[keyIndex] ^ keyRound);
+			if (++keyIndex == keyBytes.length) {
+				keyIndex = 0;
+				keyRound++;
+			}
+			
+			out[o++] = rotateLeft((byte) (in[i] ^ keyByte), (int) (randomizer >>> ((count % 8) * 8)) & 0x07);
+			count++;
 		}
 		
-		byte[] outBytes = new byte[output.size()];
-		for (int i = 0; i < output.size(); i++) {
-			outBytes[i] = output.get(i);
+		return o - outOffset;
+	}
+	
+	/**
+	 * Encrypts part of an array into a ByteBuffer, advancing its position. Heap buffers are written in place without allocating; direct buffers
+	 * go through a temporary array.
+	 * 
+	 * @param in array containing the message
+	 * @param offset index of the first byte of the message
+	 * @param length length of the message
+	 * @param keyBytes key
+	 * @param out buffer to write to; must have {@link #encryptedLength(int) encryptedLength(length)} bytes remaining
+	 * @return the number of bytes written
+	 */
+	public static final int encrypt(final byte[] in, int offset, int length, final byte[] keyBytes, final ByteBuffer out) {
+		int written;
+		
+		if (out.hasArray()) {
+			written = encrypt(in, offset, length, keyBytes, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + written);
+		} else {
+			written = encryptedLength(length);
+			byte[] scratch = new byte[written];
+			encrypt(in, offset, length, keyBytes, scratch, 0);
+			out.put(scratch);
 		}
 		
-		return Base64.getEncoder().encodeToString(outBytes);
+		return written;
 	}
 	
 	public static final String decrypt(final String in, final String key) {
-		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
-		byte[] allInBytes = Base64.getDecoder().decode(in.getBytes(StandardCharsets.UTF_8));
-		byte[] inBytes = new byte[allInBytes.length - 8];
+		byte[] inBytes = in.getBytes(StandardCharsets.UTF_8);
+		byte[] outBytes = new byte[inBytes.length];
 		
-		List<Byte> output = new ArrayList<Byte>();
+		int length = decrypt(inBytes, 0, inBytes.length, key.getBytes(StandardCharsets.UTF_8), outBytes);
 		
-		byte[] randomizer = new byte[8];
+		return new String(outBytes, 0, length, StandardCharsets.UTF_8);
+	}
 		
-		for (int i = 0; i < randomizer.length; i++) {
-			randomizer[i] = allInBytes[i];
-		}
+	/**
+	 * Decrypts a Base64 message made by {@link #encrypt(String, String)} straight from one byte array into another. The Base64 text is
+	 * decoded and decrypted in a single pass, and nothing is allocated, so this can be used on every message a client sends.
+	 * 
+	 * @param in array containing the Base64 text
+	 * @param offset index of the first Base64 character
+	 * @param length number of Base64 characters
+	 * @param keyBytes key
+	 * @param out array to write the decrypted bytes to; <code>length</code> bytes is always enough
+	 * @return the number of decrypted bytes written to <code>out</code>
+	 * @throws IllegalArgumentException if the message is not valid Base64 or is too short to have been encrypted
+	 */
+	public static final int decrypt(final byte[] in, int offset, int length, final byte[] keyBytes, final byte[] out) {
+		long randomizer = 0;
+		int decoded = 0;
+		int written = 0;
 		
-		System.arraycopy(allInBytes, 8, inBytes, 0, inBytes.length);
+		int keyIndex = 0;
+		int keyRound = 0;
+				
+		int bits = 0;
+		int bitCount = 0;
 		
-		int garbageCount = 0;
-		for (int i = 0; i < inBytes.length; i++) {
-			if (i % 3 != 0) {
-				byte inByte = rotateRight(inBytes[i], randomizer[i % randomizer.length] & 0x07);
+		for (int i = offset; i < offset + length; i++) {
+			int c = in[i];
+			
+			if (c == '=') {
+				break;
+			}
+			
+			int value = c >= 0 ? BASE64_VALUES[c] : -1;
+			if (value == -1) {
+				throw new IllegalArgumentException("Illegal base64 character " + Integer.toHexString(c & 0xFF));
+			}
+			
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				byte b = (byte) (bits >> bitCount);
+				
+				if (decoded < 8) {
+					randomizer |= (b & 0xFFL) << (decoded * 8);
+				} else {
+					int j = decoded - 8;
+					
+					if (j % 3 != 0) {
+						byte inByte = rotateRight(b, (int) (randomizer >>> ((j % 8) * 8)) & 0x07);
+						
+						out[written++] = (byte) (keyBytes[keyIndex] ^ keyRound ^ inByte);
+						if (++keyIndex == keyBytes.length) {
+							keyIndex = 0;
+							keyRound++;
+						}
+					}
+				}
 				
-				output.add((byte)(keyBytes[i - garbageCount] ^ inByte));
-			} else {
-				garbageCount++;
+				decoded++;
 			}
 		}
 		
-		byte[] outBytes = new byte[output.size()];
-		for (int i = 0; i < output.size(); i++) {
-			outBytes[i] = output.get(i);
+		if (decoded < 8) {
+			throw new IllegalArgumentException("Encrypted message is too short");
 		}
 		
-		return new String(outBytes, StandardCharsets.UTF_8);
+		return written;
 	}
 	
-	public static final byte rotateLeft(byte b, int times) {
-		if (times == 0) {
-			return b;
+	/**
+	 * Decrypts a raw (not Base64-encoded) message, such as a binary protocol frame. Nothing is allocated.
+	 * 
+	 * @param in array containing the encrypted message
+	 * @param offset index of the first byte of the encrypted message
+	 * @param length length of the encrypted message
+	 * @param keyBytes key
+	 * @param out array to write the decrypted bytes to; <code>length</code> bytes is always enough
+	 * @param outOffset index in <code>out</code> to start writing at
+	 * @return the number of decrypted bytes written to <code>out</code>
+	 * @throws IllegalArgumentException if the message is too short to have been encrypted
+	 */
+	public static final int decryptRaw(final byte[] in, int offset, int length, final byte[] keyBytes, final byte[] out, int outOffset) {
+		if (length < 8) {
+			throw new IllegalArgumentException("Encrypted message is too short");
+		}
+		
+		long randomizer = 0;
+		for (int i = 0; i < 8; i++) {
+			randomizer |= (in[offset + i] & 0xFFL) << (i * 8);
 		}
 		
-		byte rotated = (byte) (b << 1);
-		if ((b & 0x80) >>> 7 == 1) {
-			rotated |= 1;
+		int keyIndex = 0;
+		int keyRound = 0;
+		int o = outOffset;
+		
+		for (int j = 0; j < length - 8; j++) {
+			if (j % 3 != 0) {
+				byte inByte = rotateRight(in[offset + 8 + j], (int) (randomizer >>> ((j % 8) * 8)) & 0x07);
+				
+				out[o++] = (byte) (keyBytes[keyIndex] ^ keyRound ^ inByte);
+				if (++keyIndex == keyBytes.length) {
+					keyIndex = 0;
+					keyRound++;
+				}
+			}
 		}
 		
-		return rotateLeft(rotated, times - 1);
+		return o - outOffset;
 	}
 	
-	public static final byte rotateRight(byte b, int times) {
-		if (times == 0) {
-			return b;
+	/**
+	 * The length of data after Base64 encoding, with padding.
+	 * 
+	 * @param length length of the data
+	 * @return length of the Base64 text
+	 */
+	public static final int base64Length(int length) {
+		return (length + 2) / 3 * 4;
+	}
+	
+	/**
+	 * Base64-encodes part of an array into another array, with padding. Nothing is allocated.
+	 * 
+	 * @param in array containing the data
+	 * @param offset index of the first byte of data
+	 * @param length length of the data
+	 * @param out array to write to; must have room for {@link #base64Length(int) base64Length(length)} bytes
+	 * @param outOffset index in <code>out</code> to start writing at
+	 * @return the number of bytes written
+	 */
+	public static final int base64Encode(final byte[] in, int offset, int length, final byte[] out, int outOffset) {
+		int o = outOffset;
+		int end = offset + length;
+		int i = offset;
+		
+		for (; i + 2 < end; i += 3) {
+			int bits = ((in[i] & 0xFF) << 16) | ((in[i + 1] & 0xFF) << 8) | (in[i + 2] & 0xFF);
+			out[o++] = BASE64_ALPHABET[bits >>> 18];
+			out[o++] = BASE64_ALPHABET[(bits >>> 12) & 0x3F];
+			out[o++] = BASE64_ALPHABET[(bits >>> 6) & 0x3F];
+			out[o++] = BASE64_ALPHABET[bits & 0x3F];
 		}
 		
-		byte rotated = (byte) ((b >>> 1) & 0x7F);
-		if ((b & 0x01) == 1) {
-			rotated |= 0x80;
+		int left = end - i;
+		if (left > 0) {
+			int bits = (in[i] & 0xFF) << 16;
+			if (left == 2) {
+				bits |= (in[i + 1] & 0xFF) << 8;
+			}
+			
+			out[o++] = BASE64_ALPHABET[bits >>> 18];
+			out[o++] = BASE64_ALPHABET[(bits >>> 12) & 0x3F];
+			out[o++] = left == 2 ? BASE64_ALPHABET[(bits >>> 6) & 0x3F] : (byte) '=';
+			out[o++] = '=';
+		}
+		
+		return o - outOffset;
+	}
+	
+	/**
+	 * Encrypts part of an array and writes it to a ByteBuffer as Base64 text, advancing the buffer's position. <code>scratch</code> holds the
+	 * encrypted bytes before they are encoded, so nothing is allocated when <code>out</code> is a heap buffer.
+	 * 
+	 * @param in array containing the message
+	 * @param offset index of the first byte of the message
+	 * @param length length of the message
+	 * @param keyBytes key
+	 * @param scratch reusable array with room for {@link #encryptedLength(int) encryptedLength(length)} bytes
+	 * @param out buffer to write to; must have <code>base64Length(encryptedLength(length))</code> bytes remaining
+	 * @return the number of bytes written
+	 */
+	public static final int encryptBase64(final byte[] in, int offset, int length, final byte[] keyBytes, final byte[] scratch, final ByteBuffer out) {
+		int encrypted = encrypt(in, offset, length, keyBytes, scratch, 0);
+		int written;
+		
+		if (out.hasArray()) {
+			written = base64Encode(scratch, 0, encrypted, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + written);
+		} else {
+			byte[] encoded = new byte[base64Length(encrypted)];
+			written = base64Encode(scratch, 0, encrypted, encoded, 0);
+			out.put(encoded);
 		}
 		
-		return rotateRight(rotated, times - 1);
+		return written;
+	}
+	
+	public static final byte rotateLeft(byte b, int times) {
+		int bits = b & 0xFF;
+		return (byte) ((bits << times) | (bits >>> (8 - times)));
+	}
+	
+	public static final byte rotateRight(byte b, int times) {
+		int bits = b & 0xFF;
+		return (byte) ((bits >>> times) | (bits << (8 - times)));
 	}
 	
 	public static final String getRandomStringInRange(int length, byte min, byte max) {
@@ -110,21 +375,18 @@ public class NetUtils {
 		return new String(out, StandardCharsets.UTF_8);
 	}
 	
+	/**
+	 * A random key for a new connection. The key is sent under the public negotiation key, so it only obfuscates the legacy cipher and
+	 * keeps no secret from an eavesdropper; the {@link SessionCipher} agrees on its own key. The bytes still come from a {@link SecureRandom},
+	 * like session and resume tokens, so that one connection's key says nothing about the next.
+	 * 
+	 * @param length number of random bytes
+	 * @return the bytes, decoded as UTF-8
+	 */
 	public static final String getRandomString(int length) {
 		byte[] out = new byte[length];
-		for (int i = 0; i < out.length; i++) {
-			out[i] = (byte)((Math.random() * 255) - 128);
-		}
+		keyRandom.nextBytes(out);
 		
 		return new String(out, StandardCharsets.UTF_8);
 	}
-	
-	private static final byte[] getRandomBytes(int len) {
-	        byte[] out = new byte[len];
-		    for (int i = 0; i < out.length; i++) {
-			      out[i] = (byte)((Math.random() * 255) - 128);
-		    }
-		    
-		    return out;
-      }
 }
@@ -0,0 +1,265 @@
+package com.dezzy.skrop2_server.net;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM for binary protocol connections, through the JDK's <code>javax.crypto</code> provider, which uses the CPU's AES and carry-less
+ * multiply instructions where it can. A binary client asks for it by adding <code>cipher:aes-gcm ecdh:&lt;public key&gt;</code> to
+ * <code>key-accepted</code>; if the server agrees, its <code>protocol</code> reply ends with <code>cipher:aes-gcm ecdh:&lt;public key&gt;</code>
+ * too. That reply is the last message sent with the {@link NetUtils} cipher. After it, every frame in both directions is sealed with AES-GCM:
+ * <pre>
+ * frame := varint(length) sealed[length]
+ * sealed := AES-GCM ciphertext of the payload, followed by a 16-byte tag
+ * </pre>
+ * Server frames hold a binary protocol payload; client frames hold one text message each, without a line separator. A client that asks for
+ * the cipher must wait for the <code>protocol</code> reply before it sends anything else, and keeps using text lines if the reply does not
+ * name the cipher.
+ * <p>
+ * The session key from the <code>key</code> message cannot be used, because it is sent under {@link
+ * com.dezzy.skrop2_server.net.tcp.Server#NEGOTIATION_KEY}, which every client knows. Instead both sides make a new P-256 key pair for the
+ * session and send the public half, X.509-encoded in URL-safe Base64; the 128-bit key is the first half of the SHA-256 hash of their ECDH
+ * secret. An eavesdropper cannot read sealed frames, but nothing authenticates the public keys, so a man in the middle who rewrites the
+ * handshake still can. Nonces are never sent either: the 12-byte nonce of a frame is its direction (4 bytes) followed by the number of frames sent before
+ * it in that direction (8 bytes), which both sides can count because TCP delivers frames in order.
+ * <p>
+ * A SessionCipher is not thread safe.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class SessionCipher {
+	
+	/**
+	 * Name of the cipher in <code>key-accepted</code> and <code>protocol</code>
+	 */
+	public static final String NAME = "aes-gcm";
+	
+	/**
+	 * Field in <code>key-accepted</code> and <code>protocol</code> that names the cipher
+	 */
+	public static final String REQUEST_FIELD = "cipher";
+	
+	/**
+	 * Field in <code>key-accepted</code> and <code>protocol</code> that holds the sender's public key
+	 */
+	public static final String AGREEMENT_FIELD = "ecdh";
+	
+	/**
+	 * Direction of frames from the server to the client
+	 */
+	public static final int SERVER_TO_CLIENT = 0;
+	
+	/**
+	 * Direction of frames from the client to the server
+	 */
+	public static final int CLIENT_TO_SERVER = 1;
+	
+	/**
+	 * Length of the authentication tag at the end of every sealed frame
+	 */
+	public static final int TAG_BYTES = 16;
+	
+	private static final int KEY_BYTES = 16;
+	private static final int NONCE_BYTES = 12;
+	private static final String CURVE = "secp256r1";
+	
+	private final SecretKeySpec key;
+	private final Cipher cipher;
+	private final byte[] nonce = new byte[NONCE_BYTES];
+	
+	/**
+	 * Creates a cipher from an agreed secret.
+	 * 
+	 * @param secret ECDH secret of the session
+	 */
+	private SessionCipher(final byte[] secret) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(secret);
+			key = new SecretKeySpec(hash, 0, KEY_BYTES, "AES");
+			cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-GCM is not available", e); //Every Java platform is required to have both
+		}
+	}
+	
+	/**
+	 * Creates a new key pair for one session. Never reuse a key pair for another session.
+	 * 
+	 * @return a P-256 key pair
+	 */
+	public static KeyPair newKeyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+			generator.initialize(new ECGenParameterSpec(CURVE));
+			return generator.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("P-256 is not available", e);
+		}
+	}
+	
+	/**
+	 * The {@link #AGREEMENT_FIELD} of a <code>key-accepted</code> message or <code>protocol</code> reply.
+	 * 
+	 * @param keyPair the sender's key pair
+	 * @return <code>ecdh:</code> followed by the encoded public key
+	 */
+	public static String agreementField(final KeyPair keyPair) {
+		return AGREEMENT_FIELD + ":" + Base64.getUrlEncoder().withoutPadding().encodeToString(keyPair.getPublic().getEncoded());
+	}
+	
+	/**
+	 * Creates the cipher of a session from this side's key pair and the public key in the other side's message.
+	 * 
+	 * @param keyPair this side's key pair
+	 * @param message the decrypted <code>key-accepted</code> message or <code>protocol</code> reply of the other side
+	 * @return the session's cipher, or null if the message has no valid public key
+	 */
+	public static SessionCipher agree(final KeyPair keyPair, final String message) {
+		String prefix = AGREEMENT_FIELD + ":";
+		
+		for (String field : message.split(" ")) {
+			if (field.startsWith(prefix)) {
+				try {
+					byte[] encoded = Base64.getUrlDecoder().decode(field.substring(prefix.length()));
+					PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+					KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+					agreement.init(keyPair.getPrivate());
+					agreement.doPhase(peerKey, true);
+					return new SessionCipher(agreement.generateSecret());
+				} catch (IllegalArgumentException | GeneralSecurityException e) {
+					return null; //Not Base64, not a P-256 key, or not a point on the curve
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * True if a <code>key-accepted</code> message or <code>protocol</code> reply names this cipher.
+	 * 
+	 * @param message the decrypted message
+	 * @return true if the message asks for or agrees to AES-GCM
+	 */
+	public static boolean requested(final String message) {
+		for (String field : message.split(" ")) {
+			if (field.equals(REQUEST_FIELD + ":" + NAME)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * The length of a payload after it is sealed.
+	 * 
+	 * @param length length of the payload
+	 * @return length of the sealed frame
+	 */
+	public static int sealedLength(int length) {
+		return length + TAG_BYTES;
+	}
+	
+	/**
+	 * Encrypts part of an array into another array.
+	 * 
+	 * @param direction {@link #SERVER_TO_CLIENT} or {@link #CLIENT_TO_SERVER}
+	 * @param sequence number of frames sealed before this one in the same direction
+	 * @param in array containing the payload
+	 * @param offset index of the first byte of the payload
+	 * @param length length of the payload
+	 * @param out array to write to; must have room for {@link #sealedLength(int) sealedLength(length)} bytes
+	 * @param outOffset index in <code>out</code> to start writing at
+	 * @return the number of bytes written
+	 */
+	public int seal(int direction, long sequence, final byte[] in, int offset, int length, final byte[] out, int outOffset) {
+		try {
+			init(Cipher.ENCRYPT_MODE, direction, sequence);
+			return cipher.doFinal(in, offset, length, out, outOffset);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Error sealing a frame", e);
+		}
+	}
+	
+	/**
+	 * Encrypts part of an array into a ByteBuffer, advancing its position. Heap buffers are written in place.
+	 * 
+	 * @param direction {@link #SERVER_TO_CLIENT} or {@link #CLIENT_TO_SERVER}
+	 * @param sequence number of frames sealed before this one in the same direction
+	 * @param in array containing the payload
+	 * @param offset index of the first byte of the payload
+	 * @param length length of the payload
+	 * @param out buffer to write to; must have {@link #sealedLength(int) sealedLength(length)} bytes remaining
+	 * @return the number of bytes written
+	 */
+	public int seal(int direction, long sequence, final byte[] in, int offset, int length, final ByteBuffer out) {
+		if (out.hasArray()) {
+			int written = seal(direction, sequence, in, offset, length, out.array(), out.arrayOffset() + out.position());
+			out.position(out.position() + written);
+			return written;
+		}
+		
+		try {
+			init(Cipher.ENCRYPT_MODE, direction, sequence);
+			return cipher.doFinal(ByteBuffer.wrap(in, offset, length), out);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Error sealing a frame", e);
+		}
+	}
+	
+	/**
+	 * Decrypts a sealed frame and checks its tag.
+	 * 
+	 * @param direction {@link #SERVER_TO_CLIENT} or {@link #CLIENT_TO_SERVER}
+	 * @param sequence number of frames opened before this one in the same direction
+	 * @param in array containing the sealed frame
+	 * @param offset index of the first byte of the sealed frame
+	 * @param length length of the sealed frame
+	 * @param out array to write the payload to; <code>length - TAG_BYTES</code> bytes is always enough
+	 * @param outOffset index in <code>out</code> to start writing at
+	 * @return the number of bytes written
+	 * @throws IllegalArgumentException if the frame was not sealed with this session's key and sequence, or was changed on the way
+	 */
+	public int open(int direction, long sequence, final byte[] in, int offset, int length, final byte[] out, int outOffset) {
+		if (length < TAG_BYTES) {
+			throw new IllegalArgumentException("Sealed frame is too short");
+		}
+		
+		try {
+			init(Cipher.DECRYPT_MODE, direction, sequence);
+			return cipher.doFinal(in, offset, length, out, outOffset);
+		} catch (AEADBadTagException e) {
+			throw new IllegalArgumentException("Sealed frame failed authentication", e);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Error opening a frame", e);
+		}
+	}
+	
+	private void init(int mode, int direction, long sequence) throws GeneralSecurityException {
+		for (int i = 0; i < 4; i++) {
+			nonce[i] = (byte) (direction >>> (24 - i * 8));
+		}
+		
+		for (int i = 0; i < 8; i++) {
+			nonce[4 + i] = (byte) (sequence >>> (56 - i * 8));
+		}
+		
+		cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+	}
+}
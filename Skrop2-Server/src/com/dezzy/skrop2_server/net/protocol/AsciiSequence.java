@@ -0,0 +1,67 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CharSequence view of ASCII bytes in an array. The bytes are not copied, so an AsciiSequence is only valid until the array is reused;
+ * call {@link #toString()} to keep the text.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class AsciiSequence implements CharSequence {
+	private byte[] buf;
+	private int offset;
+	private int length;
+	
+	public AsciiSequence() {
+		this(new byte[0], 0, 0);
+	}
+	
+	public AsciiSequence(final byte[] _buf, int _offset, int _length) {
+		reset(_buf, _offset, _length);
+	}
+	
+	/**
+	 * Points this view at different bytes so that it can be reused.
+	 * 
+	 * @param _buf array to view
+	 * @param _offset index of the first character
+	 * @param _length number of characters
+	 * @return this AsciiSequence
+	 */
+	public AsciiSequence reset(final byte[] _buf, int _offset, int _length) {
+		buf = _buf;
+		offset = _offset;
+		length = _length;
+		return this;
+	}
+	
+	@Override
+	public int length() {
+		return length;
+	}
+	
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for length " + length);
+		}
+		
+		return (char) (buf[offset + index] & 0xFF);
+	}
+	
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") is out of bounds for length " + length);
+		}
+		
+		return new AsciiSequence(buf, offset + start, end - start);
+	}
+	
+	@Override
+	public String toString() {
+		return new String(buf, offset, length, StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,78 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+/**
+ * Constants for the binary wire protocol. A client asks for the binary protocol when it accepts its key, by sending
+ * <code>key-accepted binary:&lt;version&gt;</code> instead of <code>key-accepted</code>. The server answers with one last text line,
+ * <code>protocol binary:&lt;version&gt;</code>, containing the highest version that both sides support, and every message after that is sent
+ * in binary frames. Clients that send a plain <code>key-accepted</code> keep using the text protocol.
+ * <p>
+ * Layout of the binary protocol (all integers are unsigned LEB128 varints unless noted, floats are 4-byte big-endian IEEE 754, strings are a
+ * varint byte count followed by UTF-8 bytes):
+ * <pre>
+ * frame   := varint(length) encrypted-payload[length]
+ * payload := message*
+ * message := opcode(1 byte) varint(bodyLength) body[bodyLength]
+ * </pre>
+ * The payload is encrypted with the session key but is not Base64-encoded. Every message carries its body length, so clients can skip opcodes
+ * they do not understand. Messages from the client to the server are still sent as text lines.
+ * <p>
+ * Version 2 sends the bodies of <code>r</code> and <code>d</code> in the packed layout of {@link RectCodec} (16-bit fixed-point coordinates
+ * and sizes, 24-bit colors) instead of floats and varints, and the UDP snapshots sent to version 2 clients are packed the same way. Every
+ * other message is the same in both versions.
+ * <p>
+ * Version 3 clients spawn rectangles themselves with a {@link RectSpawner}. When a game starts they get a <code>world-seed</code> message
+ * (an 8-byte big-endian seed followed by the four ranges of the spawner), and from then on the bodies of <code>r</code> and <code>d</code> are
+ * only the varint id of the rectangle. Snapshots sent to version 3 clients carry only the id and size of each added rectangle. Text clients and
+ * older binary clients never see <code>world-seed</code>.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class BinaryProtocol {
+	
+	/**
+	 * Highest binary protocol version this server can speak
+	 */
+	public static final int VERSION = 3;
+	
+	/**
+	 * First version that packs rectangles with {@link RectCodec}
+	 */
+	public static final int PACKED_VERSION = 2;
+	
+	/**
+	 * First version that spawns rectangles from a {@link RectSpawner} seed, so that rectangles are sent as ids
+	 */
+	public static final int SEEDED_VERSION = 3;
+	
+	/**
+	 * Field in <code>key-accepted</code> that requests the binary protocol
+	 */
+	public static final String REQUEST_FIELD = "binary";
+	
+	private BinaryProtocol() {
+		
+	}
+	
+	/**
+	 * Reads the binary protocol version requested in a <code>key-accepted</code> message.
+	 * 
+	 * @param keyAccepted the decrypted <code>key-accepted</code> message
+	 * @return the version to use, or 0 if the client wants the text protocol
+	 */
+	public static int negotiate(final String keyAccepted) {
+		for (String field : keyAccepted.split(" ")) {
+			if (field.startsWith(REQUEST_FIELD + ":")) {
+				try {
+					int requested = Integer.parseInt(field.substring(field.indexOf(":") + 1));
+					return Math.max(0, Math.min(requested, VERSION));
+				} catch (NumberFormatException e) {
+					System.err.println("Malformed binary protocol request! Field:\"" + field + "\"");
+					return 0;
+				}
+			}
+		}
+		
+		return 0;
+	}
+}
@@ -0,0 +1,305 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A decrypted text message from a client, read in place from the buffer it was decrypted into. A message has the form
+ * <code>header field field ...</code>, where each field is usually <code>name:value</code>. The header is matched against the
+ * {@link ClientOpcode} table and the fields can be walked with {@link #nextField()} without creating any Strings or arrays, so the
+ * hottest messages (clicks) can be handled without allocating.
+ * <p>
+ * A ClientMessage is reused for every message on a connection, so it and any {@link #fieldBody()} view are only valid until the next call
+ * to {@link #reset(byte[], int, int)}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class ClientMessage {
+	
+	/**
+	 * Powers of ten that are exact as floats. A float mantissa of up to 24 bits divided by one of these is correctly rounded,
+	 * so the result is exactly what {@link Float#parseFloat(String)} would return.
+	 */
+	private static final float[] FLOAT_POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+	private static final long MAX_EXACT_MANTISSA = 1L << 24;
+	
+	private byte[] buf = new byte[0];
+	private int start;
+	private int end;
+	
+	private ClientOpcode opcode;
+	private int bodyStart;
+	
+	private int cursor;
+	private int fieldStart;
+	private int fieldColon;
+	private int fieldEnd;
+	
+	private final AsciiSequence fieldBody = new AsciiSequence();
+	private final AsciiSequence number = new AsciiSequence();
+	
+	/**
+	 * Creates a ClientMessage from a String. This copies the message, so it is only meant for messages that are not on a hot path,
+	 * such as events raised by the server itself.
+	 * 
+	 * @param message the message
+	 * @return a ClientMessage reading <code>message</code>
+	 */
+	public static ClientMessage of(final String message) {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		return new ClientMessage().reset(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Points this ClientMessage at a new message and looks up its header.
+	 * 
+	 * @param _buf array containing the message
+	 * @param offset index of the first byte of the message
+	 * @param length length of the message in bytes
+	 * @return this ClientMessage
+	 */
+	public ClientMessage reset(final byte[] _buf, int offset, int length) {
+		buf = _buf;
+		start = offset;
+		end = offset + length;
+		
+		int space = indexOf(' ', start, end);
+		int headerEnd = space == -1 ? end : space;
+		
+		opcode = ClientOpcode.lookup(buf, start, headerEnd - start);
+		bodyStart = space == -1 ? end : space + 1;
+		cursor = bodyStart;
+		fieldStart = fieldColon = fieldEnd = -1;
+		return this;
+	}
+	
+	/**
+	 * The opcode matching this message's header.
+	 * 
+	 * @return the opcode, or null if the header is not known
+	 */
+	public ClientOpcode opcode() {
+		return opcode;
+	}
+	
+	/**
+	 * Moves to the next space-separated field in the body. Empty fields are skipped.
+	 * 
+	 * @return true if there was another field
+	 */
+	public boolean nextField() {
+		while (cursor < end && buf[cursor] == ' ') {
+			cursor++;
+		}
+		
+		if (cursor >= end) {
+			fieldStart = fieldColon = fieldEnd = -1;
+			return false;
+		}
+		
+		fieldStart = cursor;
+		int space = indexOf(' ', cursor, end);
+		fieldEnd = space == -1 ? end : space;
+		fieldColon = indexOf(':', fieldStart, fieldEnd);
+		cursor = fieldEnd;
+		return true;
+	}
+	
+	/**
+	 * True if the current field has the form <code>name:value</code>.
+	 * 
+	 * @return true if the current field has a colon
+	 */
+	public boolean fieldHasBody() {
+		return fieldColon != -1;
+	}
+	
+	/**
+	 * True if the name of the current field (the part before the first colon) is <code>name</code>.
+	 * 
+	 * @param name ASCII field name
+	 * @return true if the current field has this name
+	 */
+	public boolean fieldHeaderEquals(final String name) {
+		int headerEnd = fieldColon == -1 ? fieldEnd : fieldColon;
+		if (headerEnd - fieldStart != name.length()) {
+			return false;
+		}
+		
+		for (int i = 0; i < name.length(); i++) {
+			if (buf[fieldStart + i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Index in the buffer of the first byte of the current field's value.
+	 * 
+	 * @return start of the current field's value
+	 */
+	public int fieldBodyStart() {
+		return fieldColon + 1;
+	}
+	
+	/**
+	 * Index in the buffer just past the end of the current field.
+	 * 
+	 * @return end of the current field
+	 */
+	public int fieldEnd() {
+		return fieldEnd;
+	}
+	
+	/**
+	 * A view of the current field's value. The view is reused by every field of this message.
+	 * 
+	 * @return the value of the current field
+	 */
+	public CharSequence fieldBody() {
+		return fieldBody.reset(buf, fieldColon + 1, fieldEnd - fieldColon - 1);
+	}
+	
+	/**
+	 * The current field's value as a String.
+	 * 
+	 * @return a copy of the current field's value
+	 */
+	public String fieldBodyString() {
+		return new String(buf, fieldColon + 1, fieldEnd - fieldColon - 1, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * The current field as a String, for error messages.
+	 * 
+	 * @return a copy of the current field
+	 */
+	public String fieldString() {
+		return new String(buf, fieldStart, fieldEnd - fieldStart, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * The body of this message (everything after the header) as a String.
+	 * 
+	 * @return a copy of the body
+	 */
+	public String bodyString() {
+		return new String(buf, bodyStart, end - bodyStart, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Finds a character in part of the buffer.
+	 * 
+	 * @param c ASCII character to find
+	 * @param from index to start searching at
+	 * @param to index to stop searching at (exclusive)
+	 * @return the index of the first <code>c</code>, or -1 if there is none
+	 */
+	public int indexOf(char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == c) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Parses a float in place. Plain decimals whose digits fit in 24 bits and that have at most 10 decimal places, which covers every
+	 * coordinate a client sends, are parsed without allocating; anything else falls back to {@link Float#parseFloat(String)}.
+	 * 
+	 * @param from index of the first character
+	 * @param to index just past the last character
+	 * @return the parsed float
+	 * @throws NumberFormatException if the text is not a float
+	 */
+	public float parseFloat(int from, int to) {
+		int i = from;
+		boolean negative = false;
+		
+		if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+		
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		
+		for (; i < to; i++) {
+			byte b = buf[i];
+			
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				
+				if (decimals != -1) {
+					decimals++;
+				}
+				
+				if (mantissa > MAX_EXACT_MANTISSA) {
+					return slowParseFloat(from, to);
+				}
+			} else if (b == '.' && decimals == -1) {
+				decimals = 0;
+			} else {
+				return slowParseFloat(from, to);
+			}
+		}
+		
+		if (digits == 0 || decimals >= FLOAT_POW10.length) {
+			return slowParseFloat(from, to);
+		}
+		
+		float value = decimals > 0 ? mantissa / FLOAT_POW10[decimals] : mantissa;
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Parses a decimal int in place.
+	 * 
+	 * @param from index of the first character
+	 * @param to index just past the last character
+	 * @return the parsed int
+	 * @throws NumberFormatException if the text is not an int
+	 */
+	public int parseInt(int from, int to) {
+		return Integer.parseInt(number.reset(buf, from, to - from), 0, to - from, 10);
+	}
+	
+	private float slowParseFloat(int from, int to) {
+		return Float.parseFloat(new String(buf, from, to - from, StandardCharsets.US_ASCII));
+	}
+	
+	/**
+	 * Length of the whole message in bytes.
+	 * 
+	 * @return message length
+	 */
+	public int length() {
+		return end - start;
+	}
+	
+	/**
+	 * Copies the whole message to a buffer.
+	 * 
+	 * @param out buffer to write to; must have {@link #length()} bytes remaining
+	 */
+	public void writeTo(final ByteBuffer out) {
+		out.put(buf, start, end - start);
+	}
+	
+	/**
+	 * The whole message as a String, for logging.
+	 * 
+	 * @return a copy of the message
+	 */
+	@Override
+	public String toString() {
+		return new String(buf, start, end - start, StandardCharsets.UTF_8);
+	}
+}
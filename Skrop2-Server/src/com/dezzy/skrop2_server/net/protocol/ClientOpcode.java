@@ -0,0 +1,99 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Every kind of message a client can send to the server, by text protocol header. Headers are looked up with a table built once when this class
+ * is loaded, so that a header can be matched straight from a receive buffer without creating a String.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public enum ClientOpcode {
+	KEY_ACCEPTED("key-accepted"),
+	QUIT("quit"),
+	TIMEOUT("timeout"),
+	PING("ping"),
+	INIT_PLAYER("init-player"),
+	CLICK("c"),
+	CHAT_MESSAGE("chat-message"),
+	SERVER_INFO_REQUEST("server-info-request"),
+	JOIN_GAME("join-game"),
+	GAME_INFO_REQUEST("game-info-request"),
+	CREATE_GAME("create-game"),
+	SNAPSHOT_ACK("snapshot-ack"),
+	STATS("stats"),
+	SESSION("session"),
+	RESUME("resume"),
+	LEADERBOARD("leaderboard");
+	
+	/**
+	 * Text protocol header
+	 */
+	public final String header;
+	
+	private final byte[] headerBytes;
+	
+	/**
+	 * Every opcode, indexed by header length. Most lengths have one opcode or none, so a lookup is usually a single array access
+	 * and one byte comparison.
+	 */
+	private static final ClientOpcode[][] TABLE;
+	
+	static {
+		int longest = 0;
+		for (ClientOpcode opcode : values()) {
+			longest = Math.max(longest, opcode.headerBytes.length);
+		}
+		
+		TABLE = new ClientOpcode[longest + 1][];
+		for (int i = 0; i < TABLE.length; i++) {
+			TABLE[i] = new ClientOpcode[0];
+		}
+		
+		for (ClientOpcode opcode : values()) {
+			ClientOpcode[] old = TABLE[opcode.headerBytes.length];
+			ClientOpcode[] bucket = new ClientOpcode[old.length + 1];
+			System.arraycopy(old, 0, bucket, 0, old.length);
+			bucket[old.length] = opcode;
+			TABLE[opcode.headerBytes.length] = bucket;
+		}
+	}
+	
+	private ClientOpcode(final String _header) {
+		header = _header;
+		headerBytes = _header.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Finds the opcode with the given header.
+	 * 
+	 * @param buf array containing the header
+	 * @param offset index of the first byte of the header
+	 * @param length length of the header
+	 * @return the matching opcode, or null if no opcode has this header
+	 */
+	public static ClientOpcode lookup(final byte[] buf, int offset, int length) {
+		if (length <= 0 || length >= TABLE.length) {
+			return null;
+		}
+		
+		for (ClientOpcode opcode : TABLE[length]) {
+			if (opcode.matches(buf, offset)) {
+				return opcode;
+			}
+		}
+		
+		return null;
+	}
+	
+	private boolean matches(final byte[] buf, int offset) {
+		for (int i = 0; i < headerBytes.length; i++) {
+			if (buf[offset + i] != headerBytes[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
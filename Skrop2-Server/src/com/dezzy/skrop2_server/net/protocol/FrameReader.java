@@ -0,0 +1,109 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the primitive types of the {@link BinaryProtocol} from a byte array. This is the counterpart of {@link FrameWriter}, for clients and tools
+ * that need to decode binary frames.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class FrameReader {
+	private byte[] buf;
+	private int position;
+	private int limit;
+	
+	public FrameReader() {
+		this(new byte[0], 0, 0);
+	}
+	
+	public FrameReader(final byte[] _buf, int offset, int count) {
+		reset(_buf, offset, count);
+	}
+	
+	/**
+	 * Points this FrameReader at new data so that it can be reused.
+	 * 
+	 * @param _buf array to read from
+	 * @param offset index of the first byte to read
+	 * @param count number of bytes that can be read
+	 */
+	public void reset(final byte[] _buf, int offset, int count) {
+		buf = _buf;
+		position = offset;
+		limit = offset + count;
+	}
+	
+	public boolean hasRemaining() {
+		return position < limit;
+	}
+	
+	public int remaining() {
+		return limit - position;
+	}
+	
+	public int position() {
+		return position;
+	}
+	
+	public void skip(int count) {
+		position += count;
+	}
+	
+	public int readByte() {
+		if (position >= limit) {
+			throw new IllegalStateException("Read past the end of a binary frame");
+		}
+		
+		return buf[position++];
+	}
+	
+	public int readVarint() {
+		int value = 0;
+		int shift = 0;
+		int b;
+		
+		do {
+			if (shift > 28) {
+				throw new IllegalStateException("Malformed varint in a binary frame");
+			}
+			
+			b = readByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		
+		return value;
+	}
+	
+	public int readSignedVarint() {
+		int raw = readVarint();
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+	
+	public float readFloat() {
+		int bits = ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+		return Float.intBitsToFloat(bits);
+	}
+	
+	public long readLong() {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (readByte() & 0xFF);
+		}
+		return value;
+	}
+	
+	public String readString() {
+		int count = readVarint();
+		
+		if (count > remaining()) {
+			throw new IllegalStateException("String runs past the end of a binary frame");
+		}
+		
+		String out = new String(buf, position, count, StandardCharsets.UTF_8);
+		position += count;
+		return out;
+	}
+}
@@ -0,0 +1,137 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A growable byte buffer that writes the primitive types of the {@link BinaryProtocol}. A FrameWriter can be {@link #reset()} and reused.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class FrameWriter {
+	private byte[] buf;
+	private int length = 0;
+	
+	public FrameWriter() {
+		this(64);
+	}
+	
+	public FrameWriter(int initialCapacity) {
+		buf = new byte[Math.max(16, initialCapacity)];
+	}
+	
+	private void ensureCapacity(int extra) {
+		if (length + extra > buf.length) {
+			byte[] larger = new byte[Math.max(buf.length * 2, length + extra)];
+			System.arraycopy(buf, 0, larger, 0, length);
+			buf = larger;
+		}
+	}
+	
+	public FrameWriter writeByte(int b) {
+		ensureCapacity(1);
+		buf[length++] = (byte) b;
+		return this;
+	}
+	
+	/**
+	 * Writes an unsigned LEB128 varint. Negative values take 5 bytes; use {@link #writeSignedVarint(int)} for values that may be negative.
+	 * 
+	 * @param value value to write
+	 * @return this FrameWriter
+	 */
+	public FrameWriter writeVarint(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buf[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[length++] = (byte) value;
+		return this;
+	}
+	
+	/**
+	 * Writes a zigzag-encoded varint, which keeps small negative numbers small.
+	 * 
+	 * @param value value to write
+	 * @return this FrameWriter
+	 */
+	public FrameWriter writeSignedVarint(int value) {
+		return writeVarint((value << 1) ^ (value >> 31));
+	}
+	
+	/**
+	 * Writes a 4-byte big-endian IEEE 754 float.
+	 * 
+	 * @param value value to write
+	 * @return this FrameWriter
+	 */
+	public FrameWriter writeFloat(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		ensureCapacity(4);
+		buf[length++] = (byte) (bits >>> 24);
+		buf[length++] = (byte) (bits >>> 16);
+		buf[length++] = (byte) (bits >>> 8);
+		buf[length++] = (byte) bits;
+		return this;
+	}
+	
+	/**
+	 * Writes an 8-byte big-endian long.
+	 * 
+	 * @param value value to write
+	 * @return this FrameWriter
+	 */
+	public FrameWriter writeLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buf[length++] = (byte) (value >>> shift);
+		}
+		return this;
+	}
+	
+	/**
+	 * Writes a varint byte count followed by the UTF-8 bytes of a String.
+	 * 
+	 * @param value String to write
+	 * @return this FrameWriter
+	 */
+	public FrameWriter writeString(final String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		return writeBytes(bytes, 0, bytes.length);
+	}
+	
+	public FrameWriter writeBytes(final byte[] bytes, int offset, int count) {
+		ensureCapacity(count);
+		System.arraycopy(bytes, offset, buf, length, count);
+		length += count;
+		return this;
+	}
+	
+	/**
+	 * The backing array. Only the first {@link #length()} bytes are valid, and the array may be replaced by later writes.
+	 * 
+	 * @return the backing array
+	 */
+	public byte[] array() {
+		return buf;
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public byte[] toByteArray() {
+		byte[] out = new byte[length];
+		System.arraycopy(buf, 0, out, 0, length);
+		return out;
+	}
+	
+	/**
+	 * Empties this FrameWriter so that it can be reused. The backing array is kept.
+	 */
+	public void reset() {
+		length = 0;
+	}
+}
@@ -0,0 +1,206 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message from the server to a client. A Message knows how to write itself in both the text protocol and the {@link BinaryProtocol}; each
+ * connection picks the form that its client negotiated. Both forms are built at most once and cached, so a message broadcast to many clients
+ * is only encoded once per protocol.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public abstract class Message {
+	public final Opcode opcode;
+	
+	private volatile String text;
+	private volatile byte[] textBytes;
+	private volatile byte[] binary;
+	private volatile byte[] packedBinary;
+	private volatile byte[] seededBinary;
+	
+	private static final byte[] NO_BYTES = new byte[0];
+	
+	protected Message(final Opcode _opcode) {
+		opcode = _opcode;
+	}
+	
+	/**
+	 * Writes the text form of this message, header included, without a line separator.
+	 * 
+	 * @param out builder to write to
+	 */
+	protected abstract void writeText(final StringBuilder out);
+	
+	/**
+	 * Writes the body of the binary form of this message. The opcode and body length are written by {@link #binary()}.
+	 * 
+	 * @param out writer to write the body to
+	 */
+	protected abstract void writeBinary(final FrameWriter out);
+	
+	/**
+	 * Writes the body of this message for clients that speak {@link BinaryProtocol#PACKED_VERSION} or later. Messages that are packed
+	 * differently override this and {@link #hasPackedBinary()}; by default the body is the same as {@link #writeBinary(FrameWriter)}.
+	 * 
+	 * @param out writer to write the body to
+	 */
+	protected void writePackedBinary(final FrameWriter out) {
+		writeBinary(out);
+	}
+	
+	/**
+	 * Whether {@link #writePackedBinary(FrameWriter)} writes a different body than {@link #writeBinary(FrameWriter)}.
+	 * 
+	 * @return true if this message has a packed form
+	 */
+	protected boolean hasPackedBinary() {
+		return false;
+	}
+	
+	/**
+	 * Writes the body of this message for clients that speak {@link BinaryProtocol#SEEDED_VERSION} or later, which can rebuild a rectangle
+	 * from its id. Messages that are sent differently override this and {@link #hasSeededBinary()}; by default the body is the same as
+	 * {@link #writePackedBinary(FrameWriter)}.
+	 * 
+	 * @param out writer to write the body to
+	 */
+	protected void writeSeededBinary(final FrameWriter out) {
+		writePackedBinary(out);
+	}
+	
+	/**
+	 * Whether {@link #writeSeededBinary(FrameWriter)} writes a different body than {@link #writePackedBinary(FrameWriter)}.
+	 * 
+	 * @return true if this message has a seeded form
+	 */
+	protected boolean hasSeededBinary() {
+		return false;
+	}
+	
+	/**
+	 * The lowest binary protocol version that this message is sent to. Clients that speak an older version, or the text protocol, do not
+	 * receive the message at all; its text form should be empty so that text clients skip it.
+	 * 
+	 * @return lowest binary protocol version that understands this message
+	 */
+	protected int minVersion() {
+		return 1;
+	}
+	
+	/**
+	 * The text form of this message.
+	 * 
+	 * @return the message as a text protocol line
+	 */
+	public final String text() {
+		String out = text;
+		
+		if (out == null) {
+			StringBuilder builder = new StringBuilder();
+			writeText(builder);
+			out = builder.toString();
+			text = out;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * The UTF-8 bytes of the text form of this message.
+	 * 
+	 * @return the message as a text protocol line, in UTF-8
+	 */
+	public final byte[] textBytes() {
+		byte[] out = textBytes;
+		
+		if (out == null) {
+			out = text().getBytes(StandardCharsets.UTF_8);
+			textBytes = out;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * The binary form of this message: opcode, body length and body.
+	 * 
+	 * @return the message in the binary protocol
+	 */
+	public final byte[] binary() {
+		byte[] out = binary;
+		
+		if (out == null) {
+			out = encode(0);
+			binary = out;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * The binary form of this message in a specific version of the binary protocol.
+	 * 
+	 * @param version negotiated binary protocol version
+	 * @return the message in that version of the binary protocol, or no bytes if the message is not sent to that version
+	 */
+	public final byte[] binary(int version) {
+		if (version < minVersion()) {
+			return NO_BYTES;
+		}
+		
+		if (version >= BinaryProtocol.SEEDED_VERSION && hasSeededBinary()) {
+			byte[] out = seededBinary;
+			
+			if (out == null) {
+				out = encode(BinaryProtocol.SEEDED_VERSION);
+				seededBinary = out;
+			}
+			
+			return out;
+		}
+		
+		if (version < BinaryProtocol.PACKED_VERSION || !hasPackedBinary()) {
+			return binary();
+		}
+		
+		byte[] out = packedBinary;
+		
+		if (out == null) {
+			out = encode(BinaryProtocol.PACKED_VERSION);
+			packedBinary = out;
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Encodes this message in the form used by a protocol version: opcode, body length and body. Messages that are not sent as one binary
+	 * message override this.
+	 * 
+	 * @param form 0 for {@link #writeBinary(FrameWriter)}, {@link BinaryProtocol#PACKED_VERSION} or {@link BinaryProtocol#SEEDED_VERSION}
+	 * @return the encoded message
+	 */
+	protected byte[] encode(int form) {
+		FrameWriter body = new FrameWriter();
+		
+		if (form >= BinaryProtocol.SEEDED_VERSION) {
+			writeSeededBinary(body);
+		} else if (form >= BinaryProtocol.PACKED_VERSION) {
+			writePackedBinary(body);
+		} else {
+			writeBinary(body);
+		}
+		
+		FrameWriter message = new FrameWriter(body.length() + 6);
+		message.writeByte(opcode.code);
+		message.writeVarint(body.length());
+		message.writeBytes(body.array(), 0, body.length());
+		return message.toByteArray();
+	}
+	
+	@Override
+	public String toString() {
+		return text();
+	}
+}
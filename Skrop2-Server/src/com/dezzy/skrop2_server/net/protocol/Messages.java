@@ -0,0 +1,661 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+/**
+ * Creates every {@link Message} that the server sends. The text form of each message is exactly what the server sent before the binary
+ * protocol existed, so text clients see no difference.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class Messages {
+	public static final Message TIMEOUT = new Empty(Opcode.TIMEOUT);
+	public static final Message WAITING_FOR_UDP = new Empty(Opcode.WAITING_FOR_UDP);
+	public static final Message GAME_BEGIN = new Empty(Opcode.GAME_BEGIN);
+	public static final Message GAME_INFO_NO_GAME = new Empty(Opcode.GAME_INFO_NO_GAME);
+	public static final Message JOIN_GAME_NO_GAME = new Empty(Opcode.JOIN_GAME_NO_GAME);
+	public static final Message GAME_FULL = new Empty(Opcode.GAME_FULL);
+	public static final Message CANNOT_CREATE_GAME = new Empty(Opcode.CANNOT_CREATE_GAME);
+	
+	private Messages() {
+		
+	}
+	
+	/**
+	 * A plain text message. Binary clients receive it as a {@link Opcode#TEXT} message.
+	 * 
+	 * @param text the message
+	 * @return a text message
+	 */
+	public static Message text(final String text) {
+		return new Text(text);
+	}
+	
+	public static Message playerList(final String[] names, final int[] colors) {
+		return new PlayerList(names, colors);
+	}
+	
+	public static Message chatMessage(final String name, final String body) {
+		return new ChatMessage(name, body);
+	}
+	
+	public static Message countdownTimer(int seconds) {
+		return new IntMessage(Opcode.COUNTDOWN_TIMER, seconds);
+	}
+	
+	public static Message gameTimer(int seconds) {
+		return new IntMessage(Opcode.GAME_TIMER, seconds);
+	}
+	
+	public static Message port(int port) {
+		return new IntMessage(Opcode.PORT, port);
+	}
+	
+	public static Message session(int port, final String token) {
+		return new Session(port, token);
+	}
+	
+	public static Message rectDestroyed(int id, float x, float y, int color) {
+		return new RectDestroyed(id, x, y, color);
+	}
+	
+	public static Message rectAdded(int id, float x, float y, int color, float growthFactor, float maxSize) {
+		return new RectAdded(id, x, y, color, growthFactor, maxSize);
+	}
+	
+	/**
+	 * Several messages of one kind that are queued, sent and recorded as one, such as every rectangle of a new game world. A client
+	 * receives exactly what it would have received if the messages had been sent one after another, but they take one place in its queue,
+	 * so a burst of them can never overflow it.
+	 * 
+	 * @param opcode kind of the messages
+	 * @param messages the messages, in order
+	 * @return a message made of the messages
+	 */
+	public static Message group(final Opcode opcode, final Message[] messages) {
+		return new Group(opcode, messages);
+	}
+	
+	/**
+	 * The seed and ranges of a game's {@link RectSpawner}. Only sent to clients that speak {@link BinaryProtocol#SEEDED_VERSION} or later.
+	 * 
+	 * @param seed seed of the game
+	 * @param growthMin smallest growth factor, in {@link RectCodec} units
+	 * @param growthRange how much larger the growth factor can be
+	 * @param maxSizeMin smallest maximum size, in RectCodec units
+	 * @param maxSizeRange how much larger the maximum size can be
+	 * @return a world seed message
+	 */
+	public static Message worldSeed(long seed, int growthMin, int growthRange, int maxSizeMin, int maxSizeRange) {
+		return new WorldSeed(seed, growthMin, growthRange, maxSizeMin, maxSizeRange);
+	}
+	
+	/**
+	 * The token that lets a game client resume its session, sent once the client has accepted its key.
+	 * 
+	 * @param token resume token
+	 * @param graceMillis how long the session waits for the client after its connection is lost, in milliseconds
+	 * @return a resume message
+	 */
+	public static Message resume(final String token, int graceMillis) {
+		return new Resume(token, graceMillis);
+	}
+	
+	/**
+	 * A score update, in ranked order.
+	 * 
+	 * @param names player names
+	 * @param values points or rectangles destroyed, depending on the win condition
+	 * @return a score message
+	 */
+	public static Message scores(final String[] names, final int[] values) {
+		return new Scores(names, values);
+	}
+	
+	public static Message endGameScores(final String[] names, final int[] scores, final int[] rectsDestroyed) {
+		return new EndGameScores(names, scores, rectsDestroyed);
+	}
+	
+	/**
+	 * The best players by one ranking, best first.
+	 * 
+	 * @param ranking name of the ranking
+	 * @param names player names
+	 * @param games games each player finished
+	 * @param wins games each player won
+	 * @param points points each player scored in every game together
+	 * @param bestPoints most points each player scored in one game
+	 * @return a leaderboard message
+	 */
+	public static Message leaderboard(final String ranking, final String[] names, final int[] games, final int[] wins, final int[] points, final int[] bestPoints) {
+		return new Leaderboard(ranking, names, games, wins, points, bestPoints);
+	}
+	
+	public static Message serverInfo(final String name, int openPorts, boolean gameRunning, int rooms) {
+		return new ServerInfo(name, openPorts, gameRunning, rooms);
+	}
+	
+	public static Message gameInfo(final String name, final String status, int maxPlayers, int players, final String winCondition, final String winConditionArg, int room) {
+		return new GameInfo(name, status, maxPlayers, players, winCondition, winConditionArg, room);
+	}
+	
+	private static final class Empty extends Message {
+		
+		private Empty(final Opcode _opcode) {
+			super(_opcode);
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			
+		}
+	}
+	
+	private static final class Text extends Message {
+		private final String text;
+		
+		private Text(final String _text) {
+			super(Opcode.TEXT);
+			text = _text;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(text);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(text);
+		}
+	}
+	
+	private static final class IntMessage extends Message {
+		private final int value;
+		
+		private IntMessage(final Opcode _opcode, int _value) {
+			super(_opcode);
+			value = _value;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(' ').append(value);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeSignedVarint(value);
+		}
+	}
+	
+	private static final class Session extends Message {
+		private final int port;
+		private final String token;
+		
+		private Session(int _port, final String _token) {
+			super(Opcode.SESSION);
+			port = _port;
+			token = _token;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(" port:").append(port).append(" token:").append(token);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeSignedVarint(port);
+			out.writeString(token);
+		}
+	}
+	
+	private static final class Resume extends Message {
+		private final String token;
+		private final int graceMillis;
+		
+		private Resume(final String _token, int _graceMillis) {
+			super(Opcode.RESUME);
+			token = _token;
+			graceMillis = _graceMillis;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(" token:").append(token).append(" grace:").append(graceMillis);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(token);
+			out.writeVarint(graceMillis);
+		}
+	}
+	
+	private static final class PlayerList extends Message {
+		private final String[] names;
+		private final int[] colors;
+		
+		private PlayerList(final String[] _names, final int[] _colors) {
+			super(Opcode.PLAYER_LIST);
+			names = _names;
+			colors = _colors;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.append(" name:").append(names[i].replace(' ', '_')).append(" color:").append(colors[i]);
+			}
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeVarint(names.length);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.writeString(names[i]);
+				out.writeVarint(colors[i]);
+			}
+		}
+	}
+	
+	private static final class ChatMessage extends Message {
+		private final String name;
+		private final String body;
+		
+		private ChatMessage(final String _name, final String _body) {
+			super(Opcode.CHAT_MESSAGE);
+			name = _name;
+			body = _body;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(' ').append(name.replace(' ', '_')).append(':').append(body);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(name);
+			out.writeString(body);
+		}
+	}
+	
+	private static final class RectDestroyed extends Message {
+		private final int id;
+		private final float x;
+		private final float y;
+		private final int color;
+		
+		private RectDestroyed(int _id, float _x, float _y, int _color) {
+			super(Opcode.RECT_DESTROYED);
+			id = _id;
+			x = _x;
+			y = _y;
+			color = _color;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(' ').append(x).append(':').append(y).append(':').append(color);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeFloat(x);
+			out.writeFloat(y);
+			out.writeVarint(color);
+		}
+		
+		@Override
+		protected void writePackedBinary(final FrameWriter out) {
+			RectCodec.writeUnit(out, x);
+			RectCodec.writeUnit(out, y);
+			RectCodec.writeColor(out, color);
+		}
+		
+		@Override
+		protected boolean hasPackedBinary() {
+			return true;
+		}
+		
+		@Override
+		protected void writeSeededBinary(final FrameWriter out) {
+			out.writeVarint(id);
+		}
+		
+		@Override
+		protected boolean hasSeededBinary() {
+			return true;
+		}
+	}
+	
+	private static final class RectAdded extends Message {
+		private final int id;
+		private final float x;
+		private final float y;
+		private final int color;
+		private final float growthFactor;
+		private final float maxSize;
+		
+		private RectAdded(int _id, float _x, float _y, int _color, float _growthFactor, float _maxSize) {
+			super(Opcode.RECT_ADDED);
+			id = _id;
+			x = _x;
+			y = _y;
+			color = _color;
+			growthFactor = _growthFactor;
+			maxSize = _maxSize;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(' ').append(x).append(':').append(y).append(':').append(color).append(':').append(growthFactor).append(':').append(maxSize);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeFloat(x);
+			out.writeFloat(y);
+			out.writeVarint(color);
+			out.writeFloat(growthFactor);
+			out.writeFloat(maxSize);
+		}
+		
+		@Override
+		protected void writePackedBinary(final FrameWriter out) {
+			RectCodec.writeRect(out, x, y, color, growthFactor, maxSize);
+		}
+		
+		@Override
+		protected boolean hasPackedBinary() {
+			return true;
+		}
+		
+		@Override
+		protected void writeSeededBinary(final FrameWriter out) {
+			out.writeVarint(id);
+		}
+		
+		@Override
+		protected boolean hasSeededBinary() {
+			return true;
+		}
+	}
+	
+	private static final class Group extends Message {
+		private final Message[] messages;
+		
+		private Group(final Opcode opcode, final Message[] _messages) {
+			super(opcode);
+			messages = _messages;
+		}
+		
+		/**
+		 * One line per message, separated the same way as a batch of messages sent to a text client
+		 */
+		@Override
+		protected void writeText(final StringBuilder out) {
+			for (Message message : messages) {
+				String text = message.text();
+				
+				if (!text.isEmpty()) {
+					if (out.length() > 0) {
+						out.append("\r\n");
+					}
+					
+					out.append(text);
+				}
+			}
+		}
+		
+		/**
+		 * Never called, because {@link #encode(int)} writes every message with its own header
+		 */
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			
+		}
+		
+		@Override
+		protected boolean hasPackedBinary() {
+			return true;
+		}
+		
+		@Override
+		protected boolean hasSeededBinary() {
+			return true;
+		}
+		
+		@Override
+		protected byte[] encode(int form) {
+			int version = Math.max(1, form);
+			FrameWriter out = new FrameWriter();
+			
+			for (Message message : messages) {
+				byte[] bytes = message.binary(version);
+				out.writeBytes(bytes, 0, bytes.length);
+			}
+			
+			return out.toByteArray();
+		}
+	}
+	
+	private static final class WorldSeed extends Message {
+		private final long seed;
+		private final int growthMin;
+		private final int growthRange;
+		private final int maxSizeMin;
+		private final int maxSizeRange;
+		
+		private WorldSeed(long _seed, int _growthMin, int _growthRange, int _maxSizeMin, int _maxSizeRange) {
+			super(Opcode.WORLD_SEED);
+			seed = _seed;
+			growthMin = _growthMin;
+			growthRange = _growthRange;
+			maxSizeMin = _maxSizeMin;
+			maxSizeRange = _maxSizeRange;
+		}
+		
+		/**
+		 * Text clients are sent every rectangle in full, so they never get the seed
+		 */
+		@Override
+		protected void writeText(final StringBuilder out) {
+			
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeLong(seed);
+			out.writeVarint(growthMin);
+			out.writeVarint(growthRange);
+			out.writeVarint(maxSizeMin);
+			out.writeVarint(maxSizeRange);
+		}
+		
+		@Override
+		protected int minVersion() {
+			return BinaryProtocol.SEEDED_VERSION;
+		}
+	}
+	
+	private static final class Scores extends Message {
+		private final String[] names;
+		private final int[] values;
+		
+		private Scores(final String[] _names, final int[] _values) {
+			super(Opcode.SCORES);
+			names = _names;
+			values = _values;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.append(' ').append(names[i].replace(' ', '_')).append(':').append(values[i]);
+			}
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeVarint(names.length);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.writeString(names[i]);
+				out.writeSignedVarint(values[i]);
+			}
+		}
+	}
+	
+	private static final class EndGameScores extends Message {
+		private final String[] names;
+		private final int[] scores;
+		private final int[] rectsDestroyed;
+		
+		private EndGameScores(final String[] _names, final int[] _scores, final int[] _rectsDestroyed) {
+			super(Opcode.END_GAME_SCORES);
+			names = _names;
+			scores = _scores;
+			rectsDestroyed = _rectsDestroyed;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.append(' ').append(names[i]).append(':').append(scores[i]).append(':').append(rectsDestroyed[i]);
+			}
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeVarint(names.length);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.writeString(names[i]);
+				out.writeSignedVarint(scores[i]);
+				out.writeVarint(rectsDestroyed[i]);
+			}
+		}
+	}
+	
+	private static final class Leaderboard extends Message {
+		private final String ranking;
+		private final String[] names;
+		private final int[] games;
+		private final int[] wins;
+		private final int[] points;
+		private final int[] bestPoints;
+		
+		private Leaderboard(final String _ranking, final String[] _names, final int[] _games, final int[] _wins, final int[] _points, final int[] _bestPoints) {
+			super(Opcode.LEADERBOARD);
+			ranking = _ranking;
+			names = _names;
+			games = _games;
+			wins = _wins;
+			points = _points;
+			bestPoints = _bestPoints;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(" by:").append(ranking);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.append(' ').append(names[i].replace(' ', '_')).append(':').append(games[i]).append(':').append(wins[i]).append(':').append(points[i]).append(':').append(bestPoints[i]);
+			}
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(ranking);
+			out.writeVarint(names.length);
+			
+			for (int i = 0; i < names.length; i++) {
+				out.writeString(names[i]);
+				out.writeVarint(games[i]);
+				out.writeVarint(wins[i]);
+				out.writeSignedVarint(points[i]);
+				out.writeSignedVarint(bestPoints[i]);
+			}
+		}
+	}
+	
+	private static final class ServerInfo extends Message {
+		private final String name;
+		private final int openPorts;
+		private final boolean gameRunning;
+		private final int rooms;
+		
+		private ServerInfo(final String _name, int _openPorts, boolean _gameRunning, int _rooms) {
+			super(Opcode.SERVER_INFO);
+			name = _name;
+			openPorts = _openPorts;
+			gameRunning = _gameRunning;
+			rooms = _rooms;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(" name:").append(name.replace(' ', '_')).append(" open-ports:").append(openPorts).append(" game-running:").append(gameRunning).append(" rooms:").append(rooms);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(name);
+			out.writeVarint(openPorts);
+			out.writeByte(gameRunning ? 1 : 0);
+			out.writeVarint(rooms);
+		}
+	}
+	
+	private static final class GameInfo extends Message {
+		private final String name;
+		private final String status;
+		private final int maxPlayers;
+		private final int players;
+		private final String winCondition;
+		private final String winConditionArg;
+		private final int room;
+		
+		private GameInfo(final String _name, final String _status, int _maxPlayers, int _players, final String _winCondition, final String _winConditionArg, int _room) {
+			super(Opcode.GAME_INFO);
+			name = _name;
+			status = _status;
+			maxPlayers = _maxPlayers;
+			players = _players;
+			winCondition = _winCondition;
+			winConditionArg = _winConditionArg;
+			room = _room;
+		}
+		
+		@Override
+		protected void writeText(final StringBuilder out) {
+			out.append(opcode.header).append(" name:").append(name.replace(' ', '_')).append(" status:").append(status).append(" max-players:").append(maxPlayers).append(" players:").append(players)
+				.append(" win-condition:").append(winCondition).append(" win-condition-arg:").append(winConditionArg).append(" room:").append(room);
+		}
+		
+		@Override
+		protected void writeBinary(final FrameWriter out) {
+			out.writeString(name);
+			out.writeString(status);
+			out.writeVarint(maxPlayers);
+			out.writeVarint(players);
+			out.writeString(winCondition);
+			out.writeString(winConditionArg);
+			out.writeVarint(room);
+		}
+	}
+}
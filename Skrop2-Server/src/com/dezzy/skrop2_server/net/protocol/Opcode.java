@@ -0,0 +1,101 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+/**
+ * Every kind of message the server sends. In the text protocol a message starts with its {@link #header}; in the binary protocol it starts
+ * with its {@link #code}. Codes are part of the wire format and must never be reused or renumbered; new messages get new codes.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public enum Opcode {
+	
+	/**
+	 * A plain text message with no binary layout. The body is the whole text message, so any String can still be sent to a binary client.
+	 */
+	TEXT(0, ""),
+	TIMEOUT(1, "timeout"),
+	WAITING_FOR_UDP(2, "waiting-for-udp"),
+	PLAYER_LIST(3, "player-list", Delivery.LATEST),
+	CHAT_MESSAGE(4, "chat-message"),
+	COUNTDOWN_TIMER(5, "countdown-timer", Delivery.LATEST),
+	GAME_BEGIN(6, "game-begin"),
+	GAME_TIMER(7, "game-timer", Delivery.LATEST),
+	RECT_DESTROYED(8, "d"),
+	RECT_ADDED(9, "r"),
+	SCORES(10, "scores", Delivery.LATEST),
+	END_GAME_SCORES(11, "end-game-scores"),
+	SERVER_INFO(12, "server-info"),
+	GAME_INFO(13, "game-info"),
+	GAME_INFO_NO_GAME(14, "game-info-no-game"),
+	JOIN_GAME_NO_GAME(15, "join-game-no-game"),
+	GAME_FULL(16, "game-full"),
+	PORT(17, "port"),
+	CANNOT_CREATE_GAME(18, "cannot-create-game"),
+	
+	/**
+	 * A world snapshot. Snapshots are only sent over UDP and have no text form; see {@link com.dezzy.skrop2_server.game.skrop2.SkropGame SkropGame}.
+	 */
+	SNAPSHOT(19, "snapshot"),
+	
+	/**
+	 * The reply to <code>join-game</code> when every game client shares one port. See {@link com.dezzy.skrop2_server.net.tcp.SessionAcceptor SessionAcceptor}.
+	 */
+	SESSION(20, "session"),
+	
+	/**
+	 * The seed that a game's rectangles are spawned from. Only sent to clients that speak {@link BinaryProtocol#SEEDED_VERSION} or later;
+	 * see {@link RectSpawner}.
+	 */
+	WORLD_SEED(21, "world-seed"),
+	
+	/**
+	 * The token a game client needs to resume its session after losing its connection. See {@link com.dezzy.skrop2_server.net.tcp.Server Server}.
+	 */
+	RESUME(22, "resume"),
+	
+	/**
+	 * The best players by one ranking, kept by the server's {@link com.dezzy.skrop2_server.server.StatsStore StatsStore}
+	 */
+	LEADERBOARD(23, "leaderboard");
+	
+	/**
+	 * Binary opcode
+	 */
+	public final byte code;
+	
+	/**
+	 * Text protocol header
+	 */
+	public final String header;
+	
+	/**
+	 * What a slow client can afford to lose of this kind of message
+	 */
+	public final Delivery delivery;
+	
+	private Opcode(int _code, final String _header) {
+		this(_code, _header, Delivery.RELIABLE);
+	}
+	
+	private Opcode(int _code, final String _header, final Delivery _delivery) {
+		code = (byte) _code;
+		header = _header;
+		delivery = _delivery;
+	}
+	
+	/**
+	 * How important it is that a message reaches a client that is not keeping up. See {@link com.dezzy.skrop2_server.net.tcp.SlowClientPolicy SlowClientPolicy}.
+	 */
+	public enum Delivery {
+		
+		/**
+		 * Every message of this kind must be delivered
+		 */
+		RELIABLE,
+		
+		/**
+		 * Each message of this kind carries the whole current state of something, so only the latest one matters
+		 */
+		LATEST
+	}
+}
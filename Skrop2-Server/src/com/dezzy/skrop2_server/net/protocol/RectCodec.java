@@ -0,0 +1,127 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+/**
+ * Packs rectangles for the wire. Every rectangle coordinate and length is normalized to 0..1, so it is sent as a 16-bit fixed-point
+ * fraction of 65535, and colors are sent as their 24 RGB bits. A rectangle with its growth factor and maximum size takes 11 bytes instead of
+ * the 17 or more of the float layout and the 40 or more of the text layout.
+ * <p>
+ * The server snaps every rectangle to this grid when the rectangle is created (see {@link #snap(float)}), so the packed values are exact and
+ * a client that decodes them gets the same positions, and the same growth, as the server simulates. All values are big-endian.
+ * <pre>
+ * unit   := u16                    value * 65535, rounded
+ * color  := u24                    0xRRGGBB
+ * rect   := unit x, unit y, color, unit growthFactor, unit maxSize
+ * </pre>
+ * Nothing here allocates, so rectangles can be packed straight into a reused {@link FrameWriter}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class RectCodec {
+	
+	/**
+	 * The packed value of 1.0
+	 */
+	public static final int UNIT = 0xFFFF;
+	
+	/**
+	 * Bytes in a packed unit value
+	 */
+	public static final int UNIT_BYTES = 2;
+	
+	/**
+	 * Bytes in a packed color
+	 */
+	public static final int COLOR_BYTES = 3;
+	
+	/**
+	 * Bytes in a packed rectangle written by {@link #writeRect(FrameWriter, float, float, int, float, float)}
+	 */
+	public static final int RECT_BYTES = 4 * UNIT_BYTES + COLOR_BYTES;
+	
+	private RectCodec() {
+		
+	}
+	
+	/**
+	 * Converts a normalized value to fixed point. Values outside of 0..1 are clamped.
+	 * 
+	 * @param value normalized value
+	 * @return fixed-point value, from 0 to {@link #UNIT}
+	 */
+	public static int quantize(float value) {
+		if (!(value > 0)) {
+			return 0;
+		}
+		
+		if (value >= 1) {
+			return UNIT;
+		}
+		
+		return Math.round(value * UNIT);
+	}
+	
+	/**
+	 * Converts a fixed-point value back to a normalized float.
+	 * 
+	 * @param packed fixed-point value, from 0 to {@link #UNIT}
+	 * @return normalized value
+	 */
+	public static float dequantize(int packed) {
+		return packed / (float) UNIT;
+	}
+	
+	/**
+	 * Rounds a normalized value to the nearest value that can be packed exactly.
+	 * 
+	 * @param value normalized value
+	 * @return the closest packable value
+	 */
+	public static float snap(float value) {
+		return dequantize(quantize(value));
+	}
+	
+	/**
+	 * Rounds a small positive rate to the nearest value that can be packed exactly, but never to 0, so that something that grows keeps
+	 * growing after it is snapped.
+	 * 
+	 * @param value normalized rate, greater than 0
+	 * @return the closest packable value that is greater than 0
+	 */
+	public static float snapPositive(float value) {
+		return dequantize(Math.max(1, quantize(value)));
+	}
+	
+	public static FrameWriter writeUnit(final FrameWriter out, float value) {
+		int packed = quantize(value);
+		return out.writeByte(packed >>> 8).writeByte(packed);
+	}
+	
+	public static FrameWriter writeColor(final FrameWriter out, int color) {
+		return out.writeByte(color >>> 16).writeByte(color >>> 8).writeByte(color);
+	}
+	
+	/**
+	 * Packs a whole rectangle, as sent when the rectangle is added.
+	 * 
+	 * @return the writer
+	 */
+	public static FrameWriter writeRect(final FrameWriter out, float x, float y, int color, float growthFactor, float maxSize) {
+		writeUnit(out, x);
+		writeUnit(out, y);
+		writeColor(out, color);
+		writeUnit(out, growthFactor);
+		return writeUnit(out, maxSize);
+	}
+	
+	public static float readUnit(final FrameReader in) {
+		int high = in.readByte() & 0xFF;
+		return dequantize((high << 8) | (in.readByte() & 0xFF));
+	}
+	
+	public static int readColor(final FrameReader in) {
+		int red = in.readByte() & 0xFF;
+		int green = in.readByte() & 0xFF;
+		return (red << 16) | (green << 8) | (in.readByte() & 0xFF);
+	}
+}
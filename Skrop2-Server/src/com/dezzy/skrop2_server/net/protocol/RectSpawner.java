@@ -0,0 +1,121 @@
+package com.dezzy.skrop2_server.net.protocol;
+
+import java.util.SplittableRandom;
+
+/**
+ * Derives every rectangle of a game from the game's seed and the rectangle's spawn index, so that a client that knows the seed can rebuild any
+ * rectangle from its id alone. The n-th rectangle a world spawns has id n, and its fields come from draws <code>2n + 1</code> and
+ * <code>2n + 2</code> of <code>new SplittableRandom(seed)</code> (SplitMix64: draw k is <code>mix64(seed + k * 0x9E3779B97F4A7C15)</code>).
+ * Any one rectangle can be spawned without drawing the ones before it, and nothing is shared between games, so game threads never contend
+ * for a generator.
+ * <p>
+ * The fields are worked out with integer arithmetic in {@link RectCodec} units, so every client gets exactly the values the server simulates:
+ * <pre>
+ * place  := draw 2n + 1            x = place bits 63..48, y = bits 47..32, color = bits 23..0
+ * shape  := draw 2n + 2            growthFactor = growthMin + pick(shape bits 63..32, growthRange)
+ *                                  maxSize = maxSizeMin + pick(shape bits 31..0, maxSizeRange)
+ * pick(bits, range) := (bits * (range + 1)) &gt;&gt;&gt; 32, with bits unsigned
+ * </pre>
+ * The four ranges depend on the size of the world and are sent to clients with the seed in {@link #message()}.
+ * <p>
+ * A RectSpawner is not thread safe; {@link #spawn(int)} overwrites the fields of the last spawn.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class RectSpawner {
+	
+	/**
+	 * Increment between SplitMix64 draws, the same one <code>SplittableRandom</code> uses
+	 */
+	private static final long GAMMA = 0x9E3779B97F4A7C15L;
+	
+	/**
+	 * Draws from the game's stream used by each spawn
+	 */
+	private static final int DRAWS_PER_SPAWN = 2;
+	
+	public final long seed;
+	
+	/**
+	 * Smallest growth factor and maximum size, and how much larger they can be, in {@link RectCodec} units
+	 */
+	public final int growthMin;
+	public final int growthRange;
+	public final int maxSizeMin;
+	public final int maxSizeRange;
+	
+	/**
+	 * Fields of the last rectangle spawned
+	 */
+	public float x;
+	public float y;
+	public int color;
+	public float growthFactor;
+	public float maxSize;
+	
+	/**
+	 * Creates a spawner for a game world.
+	 * 
+	 * @param _seed seed of the game
+	 * @param scale multiplies the maximum size and growth rate, so that worlds with more rectangles can have smaller ones
+	 */
+	public RectSpawner(long _seed, float scale) {
+		this(_seed, RectCodec.quantize(0.004f * scale), RectCodec.quantize(0.005f * scale), RectCodec.quantize(0.2f * scale), RectCodec.quantize(0.4f * scale));
+	}
+	
+	/**
+	 * Creates a spawner from the fields of a <code>world-seed</code> message, as a client would.
+	 * 
+	 * @param _seed seed of the game
+	 * @param _growthMin smallest growth factor
+	 * @param _growthRange how much larger the growth factor can be
+	 * @param _maxSizeMin smallest maximum size
+	 * @param _maxSizeRange how much larger the maximum size can be
+	 * @return a spawner that spawns the same rectangles as the server's
+	 */
+	public static RectSpawner of(long _seed, int _growthMin, int _growthRange, int _maxSizeMin, int _maxSizeRange) {
+		return new RectSpawner(_seed, _growthMin, _growthMin + _growthRange, _maxSizeMin, _maxSizeMin + _maxSizeRange);
+	}
+	
+	private RectSpawner(long _seed, int _growthMin, int growthMax, int _maxSizeMin, int maxSizeMax) {
+		seed = _seed;
+		growthMin = Math.max(1, _growthMin); //A rectangle that does not grow would never die
+		growthRange = Math.max(growthMin, growthMax) - growthMin;
+		maxSizeMin = Math.max(1, _maxSizeMin);
+		maxSizeRange = Math.max(maxSizeMin, maxSizeMax) - maxSizeMin;
+	}
+	
+	/**
+	 * Works out the fields of a rectangle and stores them in {@link #x}, {@link #y}, {@link #color}, {@link #growthFactor} and {@link #maxSize}.
+	 * 
+	 * @param index spawn index, which is also the id of the rectangle
+	 */
+	public void spawn(int index) {
+		SplittableRandom random = new SplittableRandom(seed + (long) index * DRAWS_PER_SPAWN * GAMMA);
+		long place = random.nextLong();
+		long shape = random.nextLong();
+		
+		x = RectCodec.dequantize((int) (place >>> 48));
+		y = RectCodec.dequantize((int) (place >>> 32) & RectCodec.UNIT);
+		color = (int) place & 0xFFFFFF;
+		growthFactor = RectCodec.dequantize(growthMin + pick((int) (shape >>> 32), growthRange));
+		maxSize = RectCodec.dequantize(maxSizeMin + pick((int) shape, maxSizeRange));
+	}
+	
+	/**
+	 * Maps 32 random bits evenly onto 0..range.
+	 */
+	private static int pick(int bits, int range) {
+		return (int) (((bits & 0xFFFFFFFFL) * (range + 1)) >>> 32);
+	}
+	
+	/**
+	 * The <code>world-seed</code> message that lets a client spawn the same rectangles as this spawner.
+	 * 
+	 * @return world seed message
+	 */
+	public Message message() {
+		return Messages.worldSeed(seed, growthMin, growthRange, maxSizeMin, maxSizeRange);
+	}
+}
@@ -0,0 +1,178 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.dezzy.skrop2_server.net.protocol.Message;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring of messages waiting to be sent to one client. Game and I/O threads {@link #offer(Message, int)
+ * offer} messages, and the {@link Server}'s I/O thread takes them off in order when it writes the next frame. The ring is allocated once, so a
+ * client that stops reading costs at most {@link #capacity()} message references instead of an unbounded queue. The queue also keeps the
+ * total size of its messages, so that a {@link Server} can tell how far behind its client is in bytes.
+ * <p>
+ * Slots are handed between producers and the consumer with per-slot sequence numbers, the same way as in
+ * {@link com.dezzy.skrop2_server.server.ClickQueue ClickQueue}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class OutboundQueue {
+	
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final Message[] messages;
+	
+	/**
+	 * Size of each message, in the same slot as the message
+	 */
+	private final int[] sizes;
+	
+	private final AtomicLong tail = new AtomicLong(0);
+	
+	/**
+	 * Total size of the messages in the queue. Added to by producers before a message is published and taken from by the consumer after
+	 * it is removed, so it never counts less than what is published.
+	 */
+	private final AtomicLong bytes = new AtomicLong(0);
+	
+	/**
+	 * Only written by the consumer. Volatile so that producers can read the queue depth.
+	 */
+	private volatile long head = 0;
+	
+	/**
+	 * Creates an empty queue.
+	 * 
+	 * @param capacity maximum number of waiting messages, rounded up to a power of two
+	 */
+	OutboundQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		
+		sequences = new AtomicLongArray(size);
+		messages = new Message[size];
+		sizes = new int[size];
+		
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Adds a message to the end of the queue. Safe to call from any number of threads at once.
+	 * 
+	 * @param message message to add
+	 * @param size size of the message in bytes, as it will be sent
+	 * @return true if the message was added, false if the queue was full
+	 */
+	boolean offer(final Message message, int size) {
+		long position;
+		int slot;
+		
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (difference < 0) { //The consumer has not freed this slot yet, so the ring is full
+				return false;
+			}
+		}
+		
+		messages[slot] = message;
+		sizes[slot] = size;
+		bytes.addAndGet(size);
+		sequences.set(slot, position + 1);
+		return true;
+	}
+	
+	/**
+	 * Gets a published message without removing it. Must only be called by the consumer.
+	 * 
+	 * @param index position of the message, with 0 being the oldest
+	 * @return the message, or null if the message at that position has not been published yet
+	 */
+	Message peek(int index) {
+		long position = head + index;
+		int slot = (int) position & mask;
+		
+		if (index >= mask + 1 || sequences.get(slot) != position + 1) {
+			return null;
+		}
+		
+		return messages[slot];
+	}
+	
+	/**
+	 * Removes the oldest published message. Must only be called by the consumer.
+	 * 
+	 * @return the oldest message, or null if the queue is empty
+	 */
+	Message poll() {
+		long position = head;
+		int slot = (int) position & mask;
+		
+		if (sequences.get(slot) != position + 1) {
+			return null;
+		}
+		
+		Message message = messages[slot];
+		messages[slot] = null;
+		bytes.addAndGet(-sizes[slot]);
+		
+		sequences.set(slot, position + mask + 1);
+		head = position + 1;
+		
+		return message;
+	}
+	
+	/**
+	 * Removes every published message. Must only be called by the consumer.
+	 * 
+	 * @return the number of messages removed
+	 */
+	int clear() {
+		int count = 0;
+		while (poll() != null) {
+			count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * The number of messages in the queue, including any that are still being added. Safe to call from any thread.
+	 * 
+	 * @return queue depth
+	 */
+	int size() {
+		return (int) Math.max(0, tail.get() - head);
+	}
+	
+	/**
+	 * The total size of the messages in the queue, including any that are still being added. Safe to call from any thread.
+	 * 
+	 * @return queued bytes
+	 */
+	long bytes() {
+		return bytes.get();
+	}
+	
+	boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	/**
+	 * The maximum number of messages the queue can hold.
+	 * 
+	 * @return capacity
+	 */
+	int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,173 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last frames a {@link Server} sent to its client, exactly as they were written to the socket, so that they can be sent again to a client
+ * that resumes its session after losing its connection. Frames are numbered from 0 in the order they were added, and the oldest frames are
+ * dropped once the buffer holds more than a fixed number of frames or bytes, so a session that is never resumed costs a bounded amount of
+ * memory. The bytes live in one ring that is allocated when the buffer is created.
+ * <p>
+ * A ReplayBuffer is not thread safe; it is only used by its Server's I/O thread.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class ReplayBuffer {
+	
+	private final byte[] data;
+	
+	/**
+	 * Start and length in {@link #data} of each stored frame, in a ring indexed from {@link #head}
+	 */
+	private final int[] offsets;
+	private final int[] lengths;
+	
+	private int head = 0;
+	private int count = 0;
+	
+	/**
+	 * Bytes of {@link #data} in use, and the index that the next frame is copied to
+	 */
+	private int used = 0;
+	private int writeIndex = 0;
+	
+	/**
+	 * Number of the oldest stored frame, and of the next frame to be added
+	 */
+	private long first = 0;
+	private long next = 0;
+	
+	/**
+	 * Creates an empty replay buffer.
+	 * 
+	 * @param maxFrames most frames the buffer holds
+	 * @param maxBytes most bytes the buffer holds
+	 */
+	ReplayBuffer(int maxFrames, int maxBytes) {
+		data = new byte[maxBytes];
+		offsets = new int[maxFrames];
+		lengths = new int[maxFrames];
+	}
+	
+	/**
+	 * Drops every frame and numbers frames from 0 again.
+	 */
+	void clear() {
+		head = 0;
+		count = 0;
+		used = 0;
+		writeIndex = 0;
+		first = 0;
+		next = 0;
+	}
+	
+	/**
+	 * Adds a frame, dropping the oldest frames if there is no room for it. A frame larger than the whole buffer cannot be replayed, so
+	 * it drops every frame before it as well.
+	 * 
+	 * @param frame array containing the frame
+	 * @param offset index of the first byte of the frame
+	 * @param length length of the frame
+	 */
+	void add(final byte[] frame, int offset, int length) {
+		if (length > data.length) {
+			head = 0;
+			count = 0;
+			used = 0;
+			writeIndex = 0;
+			next++;
+			first = next;
+			return;
+		}
+		
+		while (count == offsets.length || used + length > data.length) {
+			used -= lengths[head];
+			head = (head + 1) % offsets.length;
+			count--;
+			first++;
+		}
+		
+		int slot = (head + count) % offsets.length;
+		offsets[slot] = writeIndex;
+		lengths[slot] = length;
+		
+		int untilEnd = Math.min(length, data.length - writeIndex);
+		System.arraycopy(frame, offset, data, writeIndex, untilEnd);
+		System.arraycopy(frame, offset + untilEnd, data, 0, length - untilEnd);
+		
+		writeIndex = (writeIndex + length) % data.length;
+		used += length;
+		count++;
+		next++;
+	}
+	
+	/**
+	 * Number of the next frame to be added, which is also the number of frames added since the buffer was last cleared.
+	 * 
+	 * @return number of the next frame
+	 */
+	long next() {
+		return next;
+	}
+	
+	/**
+	 * Number of the oldest frame that can still be replayed.
+	 * 
+	 * @return number of the oldest stored frame
+	 */
+	long first() {
+		return first;
+	}
+	
+	/**
+	 * True if every frame from <code>from</code> onwards is still stored.
+	 * 
+	 * @param from number of the first frame a client is missing
+	 * @return true if the client can be sent everything it missed
+	 */
+	boolean covers(long from) {
+		return from >= first && from <= next;
+	}
+	
+	/**
+	 * The total length of every frame from <code>from</code> onwards.
+	 * 
+	 * @param from number of the first frame; must be {@link #covers(long) covered}
+	 * @return number of bytes that {@link #replay(long, ByteBuffer)} will write
+	 */
+	int bytesFrom(long from) {
+		int total = 0;
+		
+		for (long frame = from; frame < next; frame++) {
+			total += lengths[slotOf(frame)];
+		}
+		
+		return total;
+	}
+	
+	/**
+	 * Copies every frame from <code>from</code> onwards to a buffer, in order.
+	 * 
+	 * @param from number of the first frame; must be {@link #covers(long) covered}
+	 * @param out buffer to write to; must have {@link #bytesFrom(long) bytesFrom(from)} bytes remaining
+	 * @return the number of frames copied
+	 */
+	int replay(long from, final ByteBuffer out) {
+		for (long frame = from; frame < next; frame++) {
+			int slot = slotOf(frame);
+			int offset = offsets[slot];
+			int length = lengths[slot];
+			
+			int untilEnd = Math.min(length, data.length - offset);
+			out.put(data, offset, untilEnd);
+			out.put(data, 0, length - untilEnd);
+		}
+		
+		return (int) (next - from);
+	}
+	
+	private int slotOf(long frame) {
+		return (int) ((head + (frame - first)) % offsets.length);
+	}
+}
@@ -0,0 +1,221 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One I/O thread of a {@link TCPEngine}. The loop blocks in {@link Selector#select(long)} until a channel is ready, another thread
+ * hands it work, or the timeout check interval passes. Servers are only ever touched by the loop that owns them, so none of the channel
+ * handling code needs to be synchronized.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class SelectorLoop implements Runnable {
+	
+	/**
+	 * Maximum time (in milliseconds) the loop will sleep before checking its Servers for timed out clients
+	 */
+	private static final long TIMEOUT_CHECK_INTERVAL = 100;
+	
+	private final Selector selector;
+	
+	/**
+	 * Work submitted by other threads (registrations, closes) that must run on this loop
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * Servers that have new outgoing messages waiting to be flushed
+	 */
+	private final ConcurrentLinkedQueue<Server> flushRequests = new ConcurrentLinkedQueue<Server>();
+	
+	/**
+	 * Every Server owned by this loop; only accessed from the loop thread
+	 */
+	private final List<Server> servers = new ArrayList<Server>();
+	
+	/**
+	 * Every {@link SessionAcceptor} owned by this loop; only accessed from the loop thread
+	 */
+	private final List<SessionAcceptor> acceptors = new ArrayList<SessionAcceptor>();
+	
+	private volatile boolean isRunning = true;
+	private volatile Thread thread;
+	
+	SelectorLoop() throws IOException {
+		selector = Selector.open();
+	}
+	
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		long lastTimeoutCheck = System.currentTimeMillis();
+		
+		while (isRunning) {
+			try {
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+			} catch (IOException e) {
+				System.err.println("Error waiting for TCP channels to become ready");
+				e.printStackTrace();
+			}
+			
+			runTasks();
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				Object attachment = key.attachment();
+				
+				if (attachment instanceof Server) {
+					((Server) attachment).handle(key);
+				} else if (attachment instanceof SessionAcceptor) {
+					((SessionAcceptor) attachment).handle(key);
+				} else {
+					((ServerPool) attachment).handle(key);
+				}
+			}
+			
+			Server server;
+			while ((server = flushRequests.poll()) != null) {
+				server.flush();
+			}
+			
+			long now = System.currentTimeMillis();
+			if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+				for (int i = 0; i < servers.size(); i++) {
+					servers.get(i).checkTimeout(now);
+				}
+				
+				for (int i = 0; i < acceptors.size(); i++) {
+					acceptors.get(i).checkTimeout(now);
+				}
+				lastTimeoutCheck = now;
+			}
+		}
+		
+		for (Server server : servers) {
+			server.closeChannels();
+		}
+		
+		for (SessionAcceptor acceptor : acceptors) {
+			acceptor.closeChannels();
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Runs a task on this loop's thread. If called from the loop thread, the task will run before the loop sleeps again.
+	 * 
+	 * @param task work to run on the loop thread
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Asks the loop to flush a Server's outgoing message queue. Requests are deduplicated by the Server, so this is called at most once
+	 * per flush no matter how many messages are queued.
+	 * 
+	 * @param server Server with messages waiting to be sent
+	 */
+	void requestFlush(final Server server) {
+		flushRequests.add(server);
+		wakeup();
+	}
+	
+	/**
+	 * Registers a channel with this loop's selector. Must be called from the loop thread.
+	 * 
+	 * @param channel channel to register
+	 * @param ops interest set
+	 * @param handler Server, {@link SessionAcceptor} or {@link ServerPool} that handles events on the channel
+	 * @return the new selection key
+	 * @throws ClosedChannelException if the channel has been closed
+	 */
+	SelectionKey register(final SelectableChannel channel, int ops, final Object handler) throws ClosedChannelException {
+		return channel.register(selector, ops, handler);
+	}
+	
+	/**
+	 * Adds a Server to the set of Servers that are checked for timeouts. Must be called from the loop thread.
+	 * 
+	 * @param server Server owned by this loop
+	 */
+	void adopt(final Server server) {
+		servers.add(server);
+	}
+	
+	/**
+	 * Removes a Server from this loop. Must be called from the loop thread.
+	 * 
+	 * @param server Server owned by this loop
+	 */
+	void release(final Server server) {
+		servers.remove(server);
+	}
+	
+	/**
+	 * Adds a SessionAcceptor to the set of acceptors that are checked for timeouts. Must be called from the loop thread.
+	 * 
+	 * @param acceptor SessionAcceptor owned by this loop
+	 */
+	void adopt(final SessionAcceptor acceptor) {
+		acceptors.add(acceptor);
+	}
+	
+	/**
+	 * Removes a SessionAcceptor from this loop. Must be called from the loop thread.
+	 * 
+	 * @param acceptor SessionAcceptor owned by this loop
+	 */
+	void release(final SessionAcceptor acceptor) {
+		acceptors.remove(acceptor);
+	}
+	
+	/**
+	 * True if the calling thread is this loop's I/O thread.
+	 * 
+	 * @return true if called from the loop thread
+	 */
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	private void wakeup() {
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+	
+	void stop() {
+		isRunning = false;
+		selector.wakeup();
+	}
+}
@@ -1,36 +1,183 @@
 package com.dezzy.skrop2_server.net.tcp;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.dezzy.skrop2_server.metrics.ConnectionMetrics;
+import com.dezzy.skrop2_server.metrics.ServerMetrics;
 import com.dezzy.skrop2_server.net.NetUtils;
+import com.dezzy.skrop2_server.net.SessionCipher;
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.ClientMessage;
+import com.dezzy.skrop2_server.net.protocol.ClientOpcode;
+import com.dezzy.skrop2_server.net.protocol.FrameWriter;
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+import com.dezzy.skrop2_server.net.protocol.Opcode.Delivery;
 import com.dezzy.skrop2_server.server.GameServer;
 
 /**
  * Facilitates a TCP connection to another device. The Server will send a random 1000-character key to the client and hold all outgoing messages (except "quit" and "timeout") until the client accepts the key
  * with a <code>"key-accepted"</code> message. Before the client accepts the key, traffic is encrypted with {@link #NEGOTIATION_KEY}. 
- * After the client accepts the key, all traffic will be encrypted and decrypted with this new key.
+ * After the client accepts the key, all traffic will be encrypted and decrypted with this new key. The client can ask for the {@link BinaryProtocol}
+ * when it accepts the key; otherwise messages are sent as text lines. A binary client can also ask for the {@link SessionCipher}, in which
+ * case every frame after negotiation is sealed with AES-GCM instead of the {@link NetUtils} cipher, in both directions.
+ * <p>
+ * A Server does not have its own thread. It is owned by one I/O thread of a {@link TCPEngine}, which accepts, reads, writes and checks for
+ * timeouts on the Server's behalf using non-blocking channels.
+ * <p>
+ * Outgoing messages wait in a bounded {@link OutboundQueue}. A new frame is only built once the last one has been written to the socket, so
+ * a client that reads slowly backs up into that queue instead of into an ever-growing write buffer. When the queue passes its high-water mark,
+ * the Server's {@link SlowClientPolicy} decides which messages the client can do without.
+ * <p>
+ * A game client is sent a <code>resume</code> message with a token once it accepts its key. If its connection is lost or times out, the
+ * Server holds on to the session for another {@link #timeoutMillis} milliseconds instead of telling the {@link GameServer}, and keeps the
+ * frames it sends in the meantime in a {@link ReplayBuffer} along with the last frames the client may have missed. A client that reconnects
+ * within that time sends <code>resume token:&lt;token&gt; frames:&lt;n&gt; sent:&lt;m&gt;</code> as its first line, encrypted with
+ * {@link #NEGOTIATION_KEY}, instead of waiting for a key; <code>n</code> is the number of complete text lines or binary frames it has read
+ * since the <code>protocol</code> reply (or since it accepted its key, for text clients), and <code>m</code> is the number of frames it has
+ * sealed if it uses the {@link SessionCipher}. The Server answers with a <code>resumed</code> line encrypted with the session key, sends
+ * every frame after the first <code>n</code> again exactly as it was first sent, and the session carries on with the same key, cipher and
+ * slot. Messages the client sent while its connection was down are lost.
  * 
  * @author Dezzmeister
  *
  */
-public class Server implements Runnable {
+public class Server {
 	
 	/**
-	 * When a new client connects, this key is used to encrypt/decrypt messages until a new random key is negotiated.
+	 * When a new client connects, this key is used to encrypt/decrypt messages until a new random key is negotiated. Every client has to know it,
+	 * so it is public.
 	 */
-	private static final String NEGOTIATION_KEY = "GaRZ}:zZO}o%L9<7&LWhNkSA@oPlMJ!&6QpC/+2Hgd_@{wp;0);R.)puQMJ~|:^fBYTs|SibxgR,5*TbPps1RAV)P'oG3XzaMO44`19\\8Rbhp>>M;p}5^qh>se#(TfV5rW7MOaP(;w?/v-DmR`N^rSl(-U)`:.~L%O0a\"DzJLUS`i&HscQ|vHwaZae/,#KG|\"i(z5@9ry=\"G`*l]Fy%^.9H=+.P&D=:j5BTW\"o~_XC(chSgUKh%8-ioyc\"A/~ns\\1*O6gC=irzguy<Ki#!Gq,f<<|V/Wf\\N2'dM0db/$2Kv>blGWf@-/I[kNu5GlD?$e'@EC=UZh{:.|JVt%v-[:9A>S4oqD{[xoI.a?tnHLy|XcVQJF[642SpOQoOKL;T2^YzT/H\\6N'XI]tq\"DgQGUaj0_m|wBFA1E&GCTG:i{9\"siXF\"]X99XJ3sV|xz^[yu>ALS|%,Ky!+_vlBcc[n[nlVDP+<4+9d,s\"Z:2jMvj0PZF&%pq3k)BCX9HU_bn-UWi1Fh0=T{lPz6TQ\"*/m:l=-w8Pt,g,Y#'r#ER;\"q*LJ<OWW$L6ti$]V*1z|q8YZpXBrZRK@MOX-#YvKC\\RiAA]D_[KLv;t${q'JDhk:C%G.1I>NQup>L#[&wwgq*j8M0S=S09,T{tWdyh%Wz{Vt}59bg5`4%ZvSJW]it@7'G8!2'I<O.c{D.I#R~eY%TvLHhU?Z.#O}A<PD;^SK[$`>\"vdgfSw9^60{J%`<~~=2i'+<8\"iV*/2#QqgbR6OWr~b?84i\\O(qs2KZZpJg%#!-JF+T|5W<`qu!6*j&Cs(+F9$<~E)0`:AuwK|M=zjn}Aw*6()dY$!5,:ddw9v+gP1yJ0EnDo%0tt>S?~Upw/`Nu5GRzIW%xwI6m\\3k::Df\"N4h2lF#F7I/C1c\"Dy,0#$apq.Okn7S0GajqZRu=!N2E%+@J|Wu/i4(?lSYYAbHR*',K-;rOecYli95%MMI>0=}(!~Sxmp1-#!X%O[#/O.ol7d@G%Whn%s0MZ#MyQv0jT8fRj\\h<eyQc\\7|5qHg+eTQ[&)MWqkaS81\"0w9@NqUZGnQse/[9cY_c2]4P($_5PKHN\\`$~\\0hl:M'\"PH<$xJ7zF!t&!p'ZI^x%gf.jh[Ri{FS{a2<Ba]%G=!=er4+!U*Z4na'n[y+']h!0O\"mFMzwvp-H%)!QnRl+e4RH_^/@(4RV{ZB|Lh0@%1?aB1[2{6+H,Aj-]ni_y(*5]'zL=/N1Nl>I~)ZaC8qK>o\"2aN6P>q'\"rq9.7$TQHPw5%5{TT:*Hs--EgAR}J;8&-O:Pc4v=^G46#~?oMy?(#Cx$^F(FH4Q[&Tus^0\\U!m2giSkAlwVri^D#-Z2YIuZ`|?2Q(}M@^!J6!e_qX73v'!L<1m[/jHM\"4h%(QT#S%Z2xYRaXkrV\"ZP@W5S1VFNtc:dlT56_l8AgcW<fOwTB/5h'FL}2oVbLJ<yYl*ErAjaI4FBr]5\"XxrB7-sg\"xU\\4mD.<mkgxtG*,|uA\\],_uEt&z2(@h8OwLU6LM<+|DAdq\\oQ\\2;dpD/uov9-EZxw<@xO%.X[oDjR,U@WYBZf:8B\"W+@la}.}){?{4h;K}/bFJ(\"f-Kq=8,8C8O1!&@B,ui5~&C<f:?-<RLWnybYvX,TDL4[<:GBDS}%_Oha0q-!<<F+c#R;4~`mGhHOg6}9_Atx3R2#\"KKot2:yN{AjEyY_l2RZa=xm\"$bQ]lr+~@+L0A%S$&CiO>/lrZh[~{x,8;/l6JBk0`.I^:l`*V*k<?6IjbLmiQ)-!9ct\"Qs^v_$W}N@yjNQ\\@7g5o8O7Bwf5-DqesW)4CU,deM17eVa3l_,}*p*E0u5Q[X+}twY\\GkG4!9-8uv1o^'UI[C^bJ).~aKhGAXO+l9s0iBGddzJ;:&sgzFa=Mzm8R`\"8rwhif&j_cHtP~c660MmhTQ17'-#JKdexm%zO'mk%lg'>!JNVGu6NbbJ<&J@XW$\"S;P/5\"#L;iMrQi:z~)=Zf~f`,m(L+IvV_qY^E|3z:/mV0nzGV9^zz{z?to*9%&'T$P0me&f=u(XbeU>#z$w~[>W~ozE";
+	public static final String NEGOTIATION_KEY = "GaRZ}:zZO}o%L9<7&LWhNkSA@oPlMJ!&6QpC/+2Hgd_@{wp;0);R.)puQMJ~|:^fBYTs|SibxgR,5*TbPps1RAV)P'oG3XzaMO44`19\\8Rbhp>>M;p}5^qh>se#(TfV5rW7MOaP(;w?/v-DmR`N^rSl(-U)`:.~L%O0a\"DzJLUS`i&HscQ|vHwaZae/,#KG|\"i(z5@9ry=\"G`*l]Fy%^.9H=+.P&D=:j5BTW\"o~_XC(chSgUKh%8-ioyc\"A/~ns\\1*O6gC=irzguy<Ki#!Gq,f<<|V/Wf\\N2'dM0db/$2Kv>blGWf@-/I[kNu5GlD?$e'@EC=UZh{:.|JVt%v-[:9A>S4oqD{[xoI.a?tnHLy|XcVQJF[642SpOQoOKL;T2^YzT/H\\6N'XI]tq\"DgQGUaj0_m|wBFA1E&GCTG:i{9\"siXF\"]X99XJ3sV|xz^[yu>ALS|%,Ky!+_vlBcc[n[nlVDP+<4+9d,s\"Z:2jMvj0PZF&%pq3k)BCX9HU_bn-UWi1Fh0=T{lPz6TQ\"*/m:l=-w8Pt,g,Y#'r#ER;\"q*LJ<OWW$L6ti$]V*1z|q8YZpXBrZRK@MOX-#YvKC\\RiAA]D_[KLv;t${q'JDhk:C%G.1I>NQup>L#[&wwgq*j8M0S=S09,T{tWdyh%Wz{Vt}59bg5`4%ZvSJW]it@7'G8!2'I<O.c{D.I#R~eY%TvLHhU?Z.#O}A<PD;^SK[$`>\"vdgfSw9^60{J%`<~~=2i'+<8\"iV*/2#QqgbR6OWr~b?84i\\O(qs2KZZpJg%#!-JF+T|5W<`qu!6*j&Cs(+F9$<~E)0`:AuwK|M=zjn}Aw*6()dY$!5,:ddw9v+gP1yJ0EnDo%0tt>S?~Upw/`Nu5GRzIW%xwI6m\\3k::Df\"N4h2lF#F7I/C1c\"Dy,0#$apq.Okn7S0GajqZRu=!N2E%+@J|Wu/i4(?lSYYAbHR*',K-;rOecYli95%MMI>0=}(!~Sxmp1-#!X%O[#/O.ol7d@G%Whn%s0MZ#MyQv0jT8fRj\\h<eyQc\\7|5qHg+eTQ[&)MWqkaS81\"0w9@NqUZGnQse/[9cY_c2]4P($_5PKHN\\`$~\\0hl:M'\"PH<$xJ7zF!t&!p'ZI^x%gf.jh[Ri{FS{a2<Ba]%G=!=er4+!U*Z4na'n[y+']h!0O\"mFMzwvp-H%)!QnRl+e4RH_^/@(4RV{ZB|Lh0@%1?aB1[2{6+H,Aj-]ni_y(*5]'zL=/N1Nl>I~)ZaC8qK>o\"2aN6P>q'\"rq9.7$TQHPw5%5{TT:*Hs--EgAR}J;8&-O:Pc4v=^G46#~?oMy?(#Cx$^F(FH4Q[&Tus^0\\U!m2giSkAlwVri^D#-Z2YIuZ`|?2Q(}M@^!J6!e_qX73v'!L<1m[/jHM\"4h%(QT#S%Z2xYRaXkrV\"ZP@W5S1VFNtc:dlT56_l8AgcW<fOwTB/5h'FL}2oVbLJ<yYl*ErAjaI4FBr]5\"XxrB7-sg\"xU\\4mD.<mkgxtG*,|uA\\],_uEt&z2(@h8OwLU6LM<+|DAdq\\oQ\\2;dpD/uov9-EZxw<@xO%.X[oDjR,U@WYBZf:8B\"W+@la}.}){?{4h;K}/bFJ(\"f-Kq=8,8C8O1!&@B,ui5~&C<f:?-<RLWnybYvX,TDL4[<:GBDS}%_Oha0q-!<<F+c#R;4~`mGhHOg6}9_Atx3R2#\"KKot2:yN{AjEyY_l2RZa=xm\"$bQ]lr+~@+L0A%S$&CiO>/lrZh[~{x,8;/l6JBk0`.I^:l`*V*k<?6IjbLmiQ)-!9ct\"Qs^v_$W}N@yjNQ\\@7g5o8O7Bwf5-DqesW)4CU,deM17eVa3l_,}*p*E0u5Q[X+}twY\\GkG4!9-8uv1o^'UI[C^bJ).~aKhGAXO+l9s0iBGddzJ;:&sgzFa=Mzm8R`\"8rwhif&j_cHtP~c660MmhTQ17'-#JKdexm%zO'mk%lg'>!JNVGu6NbbJ<&J@XW$\"S;P/5\"#L;iMrQi:z~)=Zf~f`,m(L+IvV_qY^E|3z:/mV0nzGV9^zz{z?to*9%&'T$P0me&f=u(XbeU>#z$w~[>W~ozE";
+	static final byte[] NEGOTIATION_KEY_BYTES = NEGOTIATION_KEY.getBytes(StandardCharsets.UTF_8);
+	
+	/**
+	 * Line separator written after every encrypted message, the same one that {@link java.io.PrintWriter#println(String)} used to write
+	 */
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Separates the messages in one encrypted batch
+	 */
+	private static final byte[] BATCH_SEPARATOR = "\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+	
+	/**
+	 * Longest sealed frame a client can send
+	 */
+	private static final int MAX_CLIENT_FRAME_LENGTH = 65536;
+	
+	/**
+	 * Most frames and bytes kept for a game client that resumes its session
+	 */
+	private static final int REPLAY_FRAMES = 512;
+	private static final int REPLAY_BYTES = 131072;
+	
+	private static final byte[] RESUMED = "resumed".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] RESUME_FAILED = "resume-failed".getBytes(StandardCharsets.UTF_8);
+	
+	private static final SecureRandom tokenRandom = new SecureRandom();
+	
+	/**
+	 * Maximum number of messages waiting to be sent to one client. A client that falls this far behind is disconnected.
+	 */
+	public static final int OUTBOUND_CAPACITY = 1024;
+	
+	/**
+	 * Maximum number of bytes waiting to be sent to one client, measured in the protocol the client negotiated. A client that falls this far
+	 * behind is disconnected. Large enough for the starting world of a game with {@link com.dezzy.skrop2_server.game.skrop2.GameWorld#MAX_RECTS
+	 * MAX_RECTS} rectangles, sent as text.
+	 */
+	public static final int MAX_OUTBOUND_BYTES = 2 << 20;
+	
+	/**
+	 * Default number of queued bytes at which the {@link SlowClientPolicy} starts to apply
+	 */
+	public static final int DEFAULT_HIGH_WATER_MARK = 16384;
 	
 	private volatile boolean newKeyNegotiated = false;
 	private volatile String newKey;
 	
+	/**
+	 * UTF-8 bytes of {@link #newKey}, used to encrypt and decrypt everything after negotiation
+	 */
+	private byte[] newKeyBytes;
+	
+	/**
+	 * Binary protocol version negotiated with the current client, or 0 if the client uses the text protocol
+	 */
+	private volatile int binaryVersion = 0;
+	
+	/**
+	 * AES-GCM cipher negotiated with the current client, or null if the client uses the {@link NetUtils} cipher. Only accessed from the owning I/O thread.
+	 */
+	private SessionCipher sessionCipher = null;
+	
+	/**
+	 * Frames sealed and opened with {@link #sessionCipher}, which number the nonces
+	 */
+	private long framesSealed = 0;
+	private long framesOpened = 0;
+	
+	/**
+	 * Token that the client can resume its session with, or null if the session cannot be resumed. Only accessed from the owning I/O thread.
+	 */
+	private String resumeToken = null;
+	
+	/**
+	 * Frames sent since the client accepted its key, for a client that resumes its session. Created for the first resumable session.
+	 */
+	private ReplayBuffer replay = null;
+	
+	/**
+	 * True while the session is held for a client that lost its connection. A connection accepted in this state must resume the session.
+	 */
+	private boolean suspended = false;
+	
+	/**
+	 * Time in milliseconds at which the session was suspended, and the number of frames sent before then
+	 */
+	private long suspendedAt;
+	private long framesBeforeSuspend;
+	
+	/**
+	 * Length of the client frame being read, or -1 while its length is being read
+	 */
+	private int frameLength = -1;
+	private int frameLengthBits = 0;
+	private int frameLengthShift = 0;
+	
+	/**
+	 * Reused to build binary payloads
+	 */
+	private final FrameWriter payload = new FrameWriter(INITIAL_BUFFER_SIZE);
+	
+	/**
+	 * Reused to write binary frame headers
+	 */
+	private final FrameWriter frameHeader = new FrameWriter(8);
+	
+	/**
+	 * Holds an encrypted line before it is Base64-encoded into the write buffer
+	 */
+	private byte[] encryptScratch = new byte[INITIAL_BUFFER_SIZE];
+	
 	/**
 	 * The {@link GameServer} in control of this Server
 	 */
@@ -51,7 +198,27 @@ public class Server implements Runnable {
 	 */
 	private volatile boolean isRunning = true;
 	
-	private final ServerSocket serverSocket;
+	/**
+	 * True while a {@link ServerPool} has handed this Server a client that it has not finished with
+	 */
+	private final AtomicBoolean claimed = new AtomicBoolean(false);
+	
+	/**
+	 * The I/O thread that owns this Server. Every channel operation happens on this thread.
+	 */
+	private final SelectorLoop loop;
+	
+	/**
+	 * The port this Server listens on, or null if clients are handed to it by a {@link SessionAcceptor}
+	 */
+	private final ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+	
+	/**
+	 * The connected client, or null if no client is connected
+	 */
+	private SocketChannel channel;
+	private SelectionKey channelKey;
 	
 	/**
 	 * Server TCP port
@@ -69,139 +236,967 @@ public class Server implements Runnable {
 	 */
 	private long lastMessageReceived;
 	
+	/**
+	 * True if the game server has already been told that the current client timed out. Cleared when the client sends another message.
+	 */
+	private boolean timeoutReported = false;
+	
+	/**
+	 * IP of the last client to connect
+	 */
+	private volatile InetAddress lastClientIP;
+	
 	/**
 	 * A FIFO that contains any messages that need to be sent to the client;
 	 * this is better than the old <code>sendMessage</code> flag because multiple messages can wait in a queue instead of destroying any unsent message
 	 */
-	private final ConcurrentLinkedQueue<String> messageQueue;
+	private final OutboundQueue messageQueue;
+	
+	private volatile SlowClientPolicy slowClientPolicy = SlowClientPolicy.COLLAPSE;
+	
+	/**
+	 * Number of queued bytes at which {@link #slowClientPolicy} starts to apply
+	 */
+	private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+	
+	/**
+	 * Set by a sending thread when the client has fallen too far behind and must be disconnected. The I/O thread disconnects the client
+	 * on its next flush.
+	 */
+	private volatile boolean overflowed = false;
+	
+	/**
+	 * Set by a sending thread when the queue passed the high-water mark under {@link SlowClientPolicy#COLLAPSE}, so that the next frame is collapsed
+	 */
+	private volatile boolean collapseRequested = false;
+	
+	/**
+	 * True if the last frame could not be written to the socket all at once. No new frame is built until it has been.
+	 */
+	private boolean writePending = false;
+	
+	/**
+	 * Messages taken off the message queue for the frame being built
+	 */
+	private final Message[] batch;
+	
+	/**
+	 * Used while collapsing a batch, indexed by {@link Opcode#ordinal()}
+	 */
+	private final boolean[] newestSeen = new boolean[Opcode.values().length];
+	
+	/**
+	 * True if this Server is already waiting for its I/O thread to flush the message queue
+	 */
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	
+	/**
+	 * Traffic through this Server
+	 */
+	private final ConnectionMetrics metrics = new ConnectionMetrics();
+	
+	/**
+	 * Encryption timings shared with the other Servers of the {@link GameServer}
+	 */
+	private final ServerMetrics serverMetrics;
+	
+	/**
+	 * Bytes received from the client that do not yet form a complete line
+	 */
+	private byte[] lineBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private int lineLength = 0;
+	
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	
+	/**
+	 * Holds the decrypted form of the line being processed
+	 */
+	private byte[] decryptBuffer = new byte[INITIAL_BUFFER_SIZE];
+	
+	/**
+	 * Reads the line being processed in place from {@link #decryptBuffer}
+	 */
+	private final ClientMessage clientMessage = new ClientMessage();
+	
+	/**
+	 * Encrypted bytes waiting to be written to the client, in fill mode
+	 */
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
 	
 	/**
 	 * Create a TCP server with the specified {@link GameServer}.
 	 * 
 	 * @param _game GameServer object controlling this Server
+	 * @param engine TCP engine that will run this Server
 	 * @param _port TCP port the server will open on
 	 * @param _clientID number to identify the client connected to this server
 	 * @param _timeoutMillis number of milliseconds to wait between messages before notifying the game server of a timeout
-	 * @throws IOException if the {@link java.net.ServerSocket ServerSocket} cannot be created
+	 * @throws IOException if the {@link java.nio.channels.ServerSocketChannel ServerSocketChannel} cannot be created
+	 */
+	public Server(final GameServer _game, final TCPEngine engine, int _port, int _clientID, int _timeoutMillis) throws IOException {
+		this(_game, engine, _port, _clientID, _timeoutMillis, true);
+	}
+	
+	/**
+	 * Create a TCP server with the specified {@link GameServer}, optionally without a port of its own.
+	 * 
+	 * @param _game GameServer object controlling this Server
+	 * @param engine TCP engine that will run this Server
+	 * @param _port TCP port the server will open on, or the shared port that a {@link SessionAcceptor} accepts its clients on
+	 * @param _clientID number to identify the client connected to this server
+	 * @param _timeoutMillis number of milliseconds to wait between messages before notifying the game server of a timeout
+	 * @param listen true to open the port, false if clients will be handed to this Server with {@link #attach(SocketChannel, byte[])}
+	 * @throws IOException if the {@link java.nio.channels.ServerSocketChannel ServerSocketChannel} cannot be created
 	 */
-	public Server(final GameServer _game, int _port, int _clientID, int _timeoutMillis) throws IOException {
+	public Server(final GameServer _game, final TCPEngine engine, int _port, int _clientID, int _timeoutMillis, boolean listen) throws IOException {
 		gameServer = _game;
 		clientID = _clientID;
 		port = _port;
 		timeoutMillis = _timeoutMillis;
+		serverMetrics = _game.metrics();
 		
-		messageQueue = new ConcurrentLinkedQueue<String>();
+		messageQueue = new OutboundQueue(OUTBOUND_CAPACITY);
+		batch = new Message[messageQueue.capacity()];
 		
-		serverSocket = new ServerSocket(port);
+		if (listen) {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+		} else {
+			serverChannel = null;
+		}
+		
+		loop = engine.nextLoop();
+		loop.execute(() -> {
+			try {
+				if (serverChannel != null) {
+					acceptKey = loop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+				}
+				loop.adopt(this);
+			} catch (IOException e) {
+				System.err.println("Error registering TCP server on port " + port);
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	/**
+	 * Handles a ready channel. Called by the owning I/O thread.
+	 * 
+	 * @param key selection key of the channel that is ready
+	 */
+	void handle(final SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+	
+		try {
+			if (key == acceptKey) {
+				if (key.isAcceptable()) {
+					accept();
+				}
+			} else {
+				if (key.isReadable()) {
+					read();
+				}
+				
+				if (key.isValid() && key.isWritable()) {
+					write();
+				}
+			}
+		} catch (Exception e) {
+			connectionFailed(e);
+		}
 	}
 	
 	/**
-	 * This is set to true when the game tries to send a quit or timeout message while the server is still negotiating a key.
+	 * Drops the client, or suspends its session if the connection was lost and the session can be resumed.
+	 * 
+	 * @param e what went wrong
 	 */
-	private volatile boolean clearQueue = false;
+	private void connectionFailed(final Exception e) {
+		if (e instanceof EOFException) {
+			if (!suspend("Client closed the connection")) {
+				System.out.println("Client closed the connection on TCP port " + port + ", processing client quit message");
+				dropConnection();
+			}
+		} else if (e instanceof IOException) {
+			if (!suspend("Lost the connection to the client")) {
+				System.err.println("Error with TCP server on port " + port + ", processing client quit message");
+				e.printStackTrace();
+				dropConnection();
+			}
+		} else {
+			System.err.println("Error with TCP server on port " + port + ", processing client quit message");
+			e.printStackTrace();
+			
+			if (suspended) { //Only the connection that was meant to resume the session is at fault
+				closeChannel();
+			} else {
+				dropConnection();
+			}
+		}
+	}
 	
-	@Override
-	public void run() {
-		while (isRunning) {
+	private void accept() throws IOException {
+		SocketChannel accepted = serverChannel.accept();
+		
+		if (accepted != null && open(accepted, null)) {
+			acceptKey.interestOps(0); //Stop accepting until this client leaves
+		}
+	}
+	
+	/**
+	 * Reserves this Server for a client that a {@link ServerPool} is about to hand to it with {@link #attach(SocketChannel, byte[])}.
+	 * The Server is released again when that client's connection ends.
+	 * 
+	 * @return true if the Server was idle and is now claimed
+	 */
+	boolean claim() {
+		return claimed.compareAndSet(false, true);
+	}
+		
+	/**
+	 * Hands a client that connected to a shared port to this Server. The Server sends the client a key as if the client had just connected to it.
+	 * 
+	 * @param accepted connected client
+	 * @param unread bytes that the client sent after its session line, which are processed before anything else the client sends
+	 */
+	void attach(final SocketChannel accepted, final byte[] unread) {
+		loop.execute(() -> {
+			try {
+				if (!open(accepted, unread)) {
+					return;
+				}
+			} catch (IOException e) {
+				System.err.println("Error handing a client on shared TCP port " + port + " to slot " + clientID);
+				e.printStackTrace();
+				dropConnection();
+				return;
+			}
+			
+			if (readBuffer.position() > 0) { //A resuming client sends its resume line right after its session line, without waiting for a reply
+				try {
+					receive();
+				} catch (RuntimeException e) {
+					connectionFailed(e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Starts serving a newly connected client. Called by the owning I/O thread.
+	 * 
+	 * @param accepted connected client
+	 * @param unread bytes the client has already sent, or null
+	 * @return true if the client is now this Server's client, false if it was turned away
+	 */
+	private boolean open(final SocketChannel accepted, final byte[] unread) throws IOException {
+		if (channel != null || !isRunning) { //One client per port
+			accepted.close();
+			return false;
+		}
+		
+		if (!suspended) { //A suspended session keeps its key, cipher and waiting messages for the client that resumes it
 			messageQueue.clear();
+			quit = false;
+			newKeyNegotiated = false;
+			binaryVersion = 0;
+			sessionCipher = null;
+			framesSealed = 0;
+			framesOpened = 0;
+			timeoutReported = false;
+			overflowed = false;
+			collapseRequested = false;
+			writePending = false;
+			writeBuffer.clear();
+		}
+		
+		frameLength = -1;
+		frameLengthBits = 0;
+		frameLengthShift = 0;
+		lineLength = 0;
+		readBuffer.clear();
+		
+		if (unread != null) {
+			readBuffer.put(unread);
+		}
+		
+		accepted.configureBlocking(false);
+		accepted.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		
+		channel = accepted;
+		channelKey = loop.register(channel, SelectionKey.OP_READ, this);
+		
+		lastClientIP = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+		lastMessageReceived = System.currentTimeMillis();
+		
+		if (suspended) {
+			System.out.println("Client reconnected to TCP port " + port + ", waiting for it to resume its session");
+			return true;
+		}
+		
+		System.out.println("Client connected to TCP port " + port);
+		
+		newKey = NetUtils.getRandomString(1000);
+		newKeyBytes = newKey.getBytes(StandardCharsets.UTF_8);
+		sendString("key " + newKey);
+		return true;
+	}
+	
+	private void read() throws IOException {
+		int read = channel.read(readBuffer);
+		
+		if (read == -1) {
+			throw new EOFException();
+		}
+		
+		metrics.bytesReceived(read);
+		receive();
+	}
+	
+	/**
+	 * Processes every complete line or frame in the read buffer.
+	 */
+	private void receive() {
+		readBuffer.flip();
+		
+		while (readBuffer.hasRemaining() && channel != null) {
+			byte b = readBuffer.get();
 			
-			try (Socket socket = serverSocket.accept();
-					BufferedReader din = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-					PrintWriter dout = new PrintWriter(new BufferedOutputStream(socket.getOutputStream()))) {
-				System.out.println("Client connected to TCP port " + port);
-				
-				socket.setTcpNoDelay(true);
+			if (sessionCipher != null && !suspended) {
+				readFrameByte(b);
+			} else if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && lineBuffer[length - 1] == '\r') {
+					length--;
+				}
 				
-				newKey = NetUtils.getRandomString(1000);
-				sendString("key " + newKey);
+				lineLength = 0;
 				
-				String in = "";
+				if (length > 0) {
+					processLine(lineBuffer, length);
+				}
+			} else {
+				appendLineByte(b);
+			}
+		}
+		
+		readBuffer.clear();
+	}
+	
+	private void appendLineByte(byte b) {
+		if (lineLength == lineBuffer.length) {
+			byte[] larger = new byte[lineBuffer.length * 2];
+			System.arraycopy(lineBuffer, 0, larger, 0, lineLength);
+			lineBuffer = larger;
+		}
+		
+		lineBuffer[lineLength++] = b;
+	}
+	
+	/**
+	 * Reads one byte of a sealed client frame, and processes the frame once it is complete.
+	 */
+	private void readFrameByte(byte b) {
+		if (frameLength != -1) {
+			appendLineByte(b);
+		} else {
+			frameLengthBits |= (b & 0x7F) << frameLengthShift;
+			frameLengthShift += 7;
+			
+			if ((b & 0x80) != 0) {
+				if (frameLengthShift > 28) {
+					throw new IllegalArgumentException("Malformed frame length");
+				}
+				return;
+			}
+			
+			frameLength = frameLengthBits;
+			frameLengthBits = 0;
+			frameLengthShift = 0;
+			
+			if (frameLength > MAX_CLIENT_FRAME_LENGTH) {
+				throw new IllegalArgumentException("Client frame of " + frameLength + " bytes is too long");
+			}
+		}
+		
+		if (lineLength == frameLength) {
+			int length = frameLength;
+			frameLength = -1;
+			lineLength = 0;
+			processFrame(lineBuffer, length);
+		}
+	}
+	
+	private void processLine(final byte[] line, int length) {
+		if (decryptBuffer.length < length) {
+			decryptBuffer = new byte[Math.max(decryptBuffer.length * 2, length)];
+		}
+		
+		long start = System.nanoTime();
+		int decryptedLength = NetUtils.decrypt(line, 0, length, newKeyNegotiated && !suspended ? newKeyBytes : NEGOTIATION_KEY_BYTES, decryptBuffer);
+		serverMetrics.decryptNanos.record(System.nanoTime() - start);
+		processMessage(decryptedLength);
+	}
+	
+	private void processFrame(final byte[] frame, int length) {
+		if (decryptBuffer.length < length) {
+			decryptBuffer = new byte[Math.max(decryptBuffer.length * 2, length)];
+		}
+		
+		long start = System.nanoTime();
+		int decryptedLength = sessionCipher.open(SessionCipher.CLIENT_TO_SERVER, framesOpened++, frame, 0, length, decryptBuffer, 0);
+		serverMetrics.decryptNanos.record(System.nanoTime() - start);
+		processMessage(decryptedLength);
+	}
+	
+	/**
+	 * Handles the decrypted message at the start of {@link #decryptBuffer}.
+	 */
+	private void processMessage(int decryptedLength) {
+		lastMessageReceived = System.currentTimeMillis();
+		timeoutReported = false;
+		metrics.messageReceived();
+		
+		clientMessage.reset(decryptBuffer, 0, decryptedLength);
+		ClientOpcode opcode = clientMessage.opcode();
+		
+		if (suspended) {
+			resume();
+			return;
+		}
+		
+		if (opcode == ClientOpcode.QUIT) {
+			quit = true;
+			gameServer.processClientEvent(clientID, clientMessage);
+			endConnection();
+			return;
+		}
+		
+		if (newKeyNegotiated) {
+			gameServer.processClientEvent(clientID, clientMessage);
+		}
+		
+		if (!newKeyNegotiated && opcode == ClientOpcode.KEY_ACCEPTED) {
+			newKeyNegotiated = true;
+			
+			String keyAccepted = clientMessage.toString();
+			int version = BinaryProtocol.negotiate(keyAccepted);
+			if (version > 0) {
+				String protocol = "protocol " + BinaryProtocol.REQUEST_FIELD + ":" + version;
+				SessionCipher sealer = null;
 				
-				lastMessageReceived = System.currentTimeMillis();
-				while (!quit || !messageQueue.isEmpty()) {
-					
-					if (din.ready()) {
-						in = din.readLine();
-						
-						lastMessageReceived = System.currentTimeMillis();
-						
-						String decrypted = NetUtils.decrypt(in, newKeyNegotiated ? newKey : NEGOTIATION_KEY);
-						
-						if (decrypted.equals("quit")) {
-							quit = true;
-							gameServer.processClientEvent(clientID, "quit");
-							break;
-						}
-						
-						if (newKeyNegotiated) {
-							gameServer.processClientEvent(clientID, decrypted);
-						}
-						
-						if (decrypted.equals("key-accepted")) {
-							newKeyNegotiated = true;
-						}
-					} else {
-						
-						String message = null;
-						
-						if (!newKeyNegotiated) {
-							if (!messageQueue.isEmpty() && messageQueue.peek().startsWith("key ")) {
-								dout.println(NetUtils.encrypt(messageQueue.poll(), NEGOTIATION_KEY));
-								dout.flush();
-							}
-							
-							messageQueue.stream().forEach(s -> {
-								if (s.equals("quit")) {
-									dout.println(NetUtils.encrypt("quit", NEGOTIATION_KEY));
-									dout.flush();
-									clearQueue = true;
-								} else if (s.equals("timeout")) {
-									dout.println(NetUtils.encrypt("timeout", NEGOTIATION_KEY));
-									dout.flush();
-									clearQueue = true;									
-								}
-							});
-							
-							if (clearQueue) {
-								messageQueue.clear();
-								clearQueue = false;
-							}
-						} else {
-							String out = "";
-							while ((message = messageQueue.poll()) != null) {
-								out += message + "\r\n";
-							}
-							
-							if (!out.isEmpty()) {
-								dout.println(NetUtils.encrypt(out.trim(), newKey));
-								dout.flush(); //Flush the buffer once instead of for every waiting message, for performance
-							}
-						}
-					}
+				if (SessionCipher.requested(keyAccepted)) {
+					KeyPair keyPair = SessionCipher.newKeyPair();
+					sealer = SessionCipher.agree(keyPair, keyAccepted);
 					
-					if (System.currentTimeMillis() - lastMessageReceived > timeoutMillis) {
-						if (!quit) {
-							gameServer.processClientEvent(clientID, "timeout");
-						}
+					if (sealer != null) { //A client without a valid public key keeps the NetUtils cipher
+						protocol += " " + SessionCipher.REQUEST_FIELD + ":" + SessionCipher.NAME + " " + SessionCipher.agreementField(keyPair);
 					}
 				}
-				quit = false;
-				newKeyNegotiated = false;
-				newKey = null;
+				
+				byte[] reply = protocol.getBytes(StandardCharsets.UTF_8);
+				queueLine(reply, reply.length, newKeyBytes); //The last text line; everything after this is binary
+				binaryVersion = version;
+				sessionCipher = sealer; //Takes over from the next byte the client sends
+			}
+			
+			if (clientID >= 0) { //Only game clients have a seat worth keeping
+				issueResumeToken();
+			}
+			
+			requestFlush(); //Release any messages that were held during negotiation
+		}
+	}
+	
+	/**
+	 * Makes the current session resumable and sends the client its resume token.
+	 */
+	private void issueResumeToken() {
+		if (replay == null) {
+			replay = new ReplayBuffer(REPLAY_FRAMES, REPLAY_BYTES);
+		}
+		
+		replay.clear();
+		
+		byte[] random = new byte[16];
+		tokenRandom.nextBytes(random);
+		
+		StringBuilder token = new StringBuilder(random.length * 2);
+		for (byte b : random) {
+			token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		resumeToken = token.toString();
+		send(Messages.resume(resumeToken, timeoutMillis));
+	}
+	
+	/**
+	 * Handles the first message on a connection to a suspended session, which must be a <code>resume</code> message with the session's token.
+	 */
+	private void resume() {
+		String token = null;
+		long frames = -1;
+		long sent = -1;
+		
+		if (clientMessage.opcode() == ClientOpcode.RESUME) {
+			while (clientMessage.nextField()) {
+				if (clientMessage.fieldHeaderEquals("token")) {
+					token = clientMessage.fieldBodyString();
+				} else if (clientMessage.fieldHeaderEquals("frames")) {
+					CharSequence fieldBody = clientMessage.fieldBody();
+					frames = Long.parseLong(fieldBody, 0, fieldBody.length(), 10);
+				} else if (clientMessage.fieldHeaderEquals("sent")) {
+					CharSequence fieldBody = clientMessage.fieldBody();
+					sent = Long.parseLong(fieldBody, 0, fieldBody.length(), 10);
+				}
+			}
+		}
+		
+		if (!resumeToken.equals(token)) { //Someone else connected, so keep waiting for the client
+			System.out.println("Client on TCP port " + port + " did not resume the suspended session, closing its connection");
+			closeChannel();
+			return;
+		}
+		
+		if (!replay.covers(frames) || (sessionCipher != null && sent < framesOpened)) {
+			System.out.println("Client on TCP port " + port + " missed more than can be replayed, ending its session");
+			suspended = false;
+			resumeToken = null;
+			newKeyNegotiated = false; //Anything else this client is sent uses the negotiation key, as for a new client
+			binaryVersion = 0;
+			sessionCipher = null;
+			messageQueue.clear();
+			
+			queueLine(RESUME_FAILED, RESUME_FAILED.length, NEGOTIATION_KEY_BYTES);
+			gameServer.processClientEvent(clientID, "quit");
+			closeConnection();
+			return;
+		}
+		
+		if (sessionCipher != null) {
+			framesOpened = sent; //Frames the client sealed while its connection was down were never opened, so skip their nonces
+		}
+		
+		suspended = false;
+		queueLine(RESUMED, RESUMED.length, newKeyBytes);
+		
+		ensureWriteCapacity(replay.bytesFrom(frames));
+		int replayed = replay.replay(frames, writeBuffer);
+		
+		System.out.println("Client resumed its session on TCP port " + port + " after " + (System.currentTimeMillis() - suspendedAt) + " ms, replaying " + replayed + " frames");
+		gameServer.processClientEvent(clientID, clientMessage);
+		requestFlush();
+	}
+	
+	/**
+	 * Moves waiting messages from the message queue to the write buffer. Called by the owning I/O thread.
+	 */
+	void flush() {
+		flushRequested.set(false);
+		
+		if (channel == null && !suspended) {
+			messageQueue.clear();
+			return;
+		}
+			
+		if (overflowed) {
+			System.out.println("Client on TCP port " + port + " fell " + messageQueue.size() + " messages (" + messageQueue.bytes() + " bytes) behind, disconnecting");
+			dropConnection();
+			return;
+		}
+		
+		if (writePending) { //The socket has not taken the last frame yet, so leave new messages queued until it has
+			return;
+		}
+		
+		int frameStart = writeBuffer.position();
+		
+		if (!newKeyNegotiated) {
+			Message first = messageQueue.peek(0);
+			if (first != null && first.text().startsWith("key ")) {
+				messageQueue.poll();
+				byte[] keyMessage = first.textBytes();
+				queueLine(keyMessage, keyMessage.length, NEGOTIATION_KEY_BYTES);
+				metrics.messagesSent(1);
+			}
+				
+			boolean clearQueue = false;
+			Message m;
+			for (int i = 0; (m = messageQueue.peek(i)) != null; i++) {
+				String s = m.text();
+				if (s.equals("quit") || s.equals("timeout")) {
+					queueLine(m.textBytes(), m.textBytes().length, NEGOTIATION_KEY_BYTES);
+					metrics.messagesSent(1);
+					clearQueue = true;
+				}
+			}
+				
+			if (clearQueue || quit) {
 				messageQueue.clear();
-			} catch (Exception e) {
+			}
+		} else if (binaryVersion > 0) {
+			flushBinary();
+		} else {
+			payload.reset();
+			int count = takeBatch();
+			
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = batch[i].textBytes();
+				
+				if (bytes.length > 0) {
+					if (payload.length() > 0) {
+						payload.writeBytes(BATCH_SEPARATOR, 0, BATCH_SEPARATOR.length);
+					}
+					
+					payload.writeBytes(bytes, 0, bytes.length);
+				}
+			}
+				
+			releaseBatch(count);
+			
+			if (payload.length() > 0) {
+				queueLine(payload.array(), payload.length(), newKeyBytes); //Encrypt and write the batch once instead of once for every waiting message, for performance
+			}
+		}
+		
+		if (resumeToken != null && writeBuffer.position() > frameStart) {
+			replay.add(writeBuffer.array(), frameStart, writeBuffer.position() - frameStart);
+		}
+		
+		if (suspended) { //Nothing is sent until the client resumes the session
+			writeBuffer.clear();
+			
+			if (replay.first() > framesBeforeSuspend) {
+				expireSession("fell further behind than can be replayed");
+			}
+			return;
+		}
+		
+		try {
+			write();
+		} catch (IOException e) {
+			if (!suspend("Lost the connection to the client")) {
 				System.err.println("Error with TCP server on port " + port + ", processing client quit message");
 				e.printStackTrace();
-				gameServer.processClientEvent(clientID, "quit");
-				messageQueue.clear();
+				dropConnection();
+			}
+		}
+	}
+	
+	/**
+	 * Packs every waiting message into one binary frame.
+	 */
+	private void flushBinary() {
+		payload.reset();
+		int count = takeBatch();
+		
+		for (int i = 0; i < count; i++) {
+			byte[] bytes = batch[i].binary(binaryVersion);
+			payload.writeBytes(bytes, 0, bytes.length);
+		}
+		
+		releaseBatch(count);
+		
+		if (payload.length() > 0) {
+			int encryptedLength = sessionCipher != null ? SessionCipher.sealedLength(payload.length()) : NetUtils.encryptedLength(payload.length());
+			
+			frameHeader.reset();
+			frameHeader.writeVarint(encryptedLength);
+			
+			ensureWriteCapacity(frameHeader.length() + encryptedLength);
+			writeBuffer.put(frameHeader.array(), 0, frameHeader.length());
+			
+			long start = System.nanoTime();
+			if (sessionCipher != null) {
+				sessionCipher.seal(SessionCipher.SERVER_TO_CLIENT, framesSealed++, payload.array(), 0, payload.length(), writeBuffer);
+			} else {
+				NetUtils.encrypt(payload.array(), 0, payload.length(), newKeyBytes, writeBuffer);
+			}
+			serverMetrics.encryptNanos.record(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Takes the messages for the next frame off the message queue and into {@link #batch}. If the queue passed its high-water mark under
+	 * {@link SlowClientPolicy#COLLAPSE}, the batch is collapsed first.
+	 * 
+	 * @return the number of messages in the batch
+	 */
+	private int takeBatch() {
+		int count = 0;
+		
+		Message message;
+		while (count < batch.length && (message = messageQueue.poll()) != null) {
+			batch[count++] = message;
+		}
+		
+		if (collapseRequested) {
+			collapseRequested = false;
+			count = collapseBatch(count);
+		}
+		
+		metrics.messagesSent(count);
+		return count;
+	}
+	
+	/**
+	 * Removes every {@link Delivery#LATEST} message from the batch that a newer message of the same kind makes obsolete. The order of the
+	 * remaining messages does not change.
+	 * 
+	 * @param count number of messages in the batch
+	 * @return the number of messages left
+	 */
+	private int collapseBatch(int count) {
+		Arrays.fill(newestSeen, false);
+		
+		for (int i = count - 1; i >= 0; i--) {
+			Opcode opcode = batch[i].opcode;
+			
+			if (opcode.delivery == Delivery.LATEST) {
+				if (newestSeen[opcode.ordinal()]) {
+					batch[i] = null;
+				} else {
+					newestSeen[opcode.ordinal()] = true;
+				}
+			}
+		}
+		
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (batch[i] != null) {
+				batch[kept++] = batch[i];
+			}
+		}
+		
+		metrics.messagesDropped(count - kept);
+		Arrays.fill(batch, kept, count, null);
+		return kept;
+	}
+	
+	/**
+	 * Lets go of the messages in the batch once they have been encoded.
+	 */
+	private void releaseBatch(int count) {
+		Arrays.fill(batch, 0, count, null);
+	}
+	
+	private void ensureWriteCapacity(int needed) {
+		if (writeBuffer.remaining() < needed) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + needed));
+			writeBuffer.flip();
+			larger.put(writeBuffer);
+			writeBuffer = larger;
+		}
+	}
+	
+	/**
+	 * Encrypts a text line and writes it to the write buffer as Base64, followed by a line separator.
+	 * 
+	 * @param line array containing the line, starting at index 0
+	 * @param length length of the line
+	 * @param keyBytes key to encrypt the line with
+	 */
+	private void queueLine(final byte[] line, int length, final byte[] keyBytes) {
+		int encryptedLength = NetUtils.encryptedLength(length);
+		
+		if (encryptScratch.length < encryptedLength) {
+			encryptScratch = new byte[Math.max(encryptScratch.length * 2, encryptedLength)];
+		}
+		
+		ensureWriteCapacity(NetUtils.base64Length(encryptedLength) + LINE_SEPARATOR.length);
+		long start = System.nanoTime();
+		NetUtils.encryptBase64(line, 0, length, keyBytes, encryptScratch, writeBuffer);
+		serverMetrics.encryptNanos.record(System.nanoTime() - start);
+		writeBuffer.put(LINE_SEPARATOR);
+	}
+	
+	private void write() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		
+		writeBuffer.flip();
+		metrics.bytesSent(channel.write(writeBuffer));
+		boolean drained = !writeBuffer.hasRemaining();
+		writeBuffer.compact();
+		
+		if (drained) {
+			channelKey.interestOps(SelectionKey.OP_READ);
+			
+			if (writePending) { //Messages may have backed up while the socket was full
+				writePending = false;
+				
+				if (!messageQueue.isEmpty()) {
+					requestFlush();
+				}
+			}
+			
+			if (quit && messageQueue.isEmpty()) {
+				endConnection();
+			}
+		} else {
+			writePending = true;
+			channelKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Tells the game server that the client left and closes the connection.
+	 */
+	private void dropConnection() {
+		try {
+			gameServer.processClientEvent(clientID, "quit");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
+		endConnection();
+	}
+	
+	/**
+	 * Closes the current connection and starts accepting new clients again.
+	 */
+	private void endConnection() {
+		closeChannel();
+		
+		quit = false;
+		newKeyNegotiated = false;
+		newKey = null;
+		newKeyBytes = null;
+		binaryVersion = 0;
+		sessionCipher = null;
+		resumeToken = null;
+		suspended = false;
+		messageQueue.clear();
+		overflowed = false;
+		collapseRequested = false;
+		writePending = false;
+		writeBuffer.clear();
+		claimed.set(false);
+	}
+	
+	/**
+	 * Closes the current connection, if there is one, and starts accepting new clients again. The session is left as it is.
+	 */
+	private void closeChannel() {
+		if (channel != null) {
+			channelKey.cancel();
+			
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 		
+		channel = null;
+		channelKey = null;
+		frameLength = -1;
+		frameLengthBits = 0;
+		frameLengthShift = 0;
+		lineLength = 0;
+		
+		if (isRunning && acceptKey != null && acceptKey.isValid()) {
+			acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+		}
+	}
+	
+	/**
+	 * Holds the session of a game client that lost its connection without quitting, so that the client can resume it within
+	 * {@link #timeoutMillis} milliseconds. The connection is closed, and frames sent until the client comes back are only kept in the replay buffer.
+	 * If the session is already suspended, the connection that was meant to resume it is closed and the session waits for another one.
+	 * 
+	 * @param reason what happened to the connection, for the log
+	 * @return true if the session is held, false if it cannot be resumed and the client has to be dropped
+	 */
+	private boolean suspend(final String reason) {
+		if (suspended) {
+			closeChannel();
+			return true;
+		}
+		
+		if (resumeToken == null || !newKeyNegotiated || quit || !isRunning) {
+			return false;
+		}
+		
+		closeChannel();
+		suspended = true;
+		suspendedAt = System.currentTimeMillis();
+		framesBeforeSuspend = replay.next();
+		writePending = false;
+		writeBuffer.clear();
+		
+		System.out.println(reason + " on TCP port " + port + ", holding the session for " + timeoutMillis + " ms");
+		
+		if (!messageQueue.isEmpty()) {
+			requestFlush();
+		}
+		return true;
+	}
+	
+	/**
+	 * Gives up on a suspended session and tells the game server that the client timed out.
+	 * 
+	 * @param reason why the session cannot be resumed, for the log
+	 */
+	private void expireSession(final String reason) {
+		System.out.println("Client on TCP port " + port + " " + reason + ", ending its session");
+		suspended = false;
+		resumeToken = null;
+		
 		try {
-			serverSocket.close();
+			gameServer.processClientEvent(clientID, "timeout");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		
+		endConnection();
+	}
+	
+	/**
+	 * Notifies the game server if the client has not sent a message in {@link #timeoutMillis} milliseconds, or suspends the session if it can be
+	 * resumed. A suspended session that is not resumed in time ends the same way. Called by the owning I/O thread.
+	 * 
+	 * @param now current time in milliseconds
+	 */
+	void checkTimeout(long now) {
+		if (suspended) {
+			if (now - suspendedAt > timeoutMillis) {
+				expireSession("did not resume its session within " + timeoutMillis + " ms");
+			}
+		} else if (channel != null && !quit && !timeoutReported && now - lastMessageReceived > timeoutMillis) {
+			timeoutReported = true;
+			
+			if (!suspend("Client timed out")) {
+				gameServer.processClientEvent(clientID, "timeout");
+			}
+		}
+	}
+	
+	/**
+	 * Closes the client connection and the {@link java.nio.channels.ServerSocketChannel ServerSocketChannel}. Called by the owning I/O thread.
+	 */
+	void closeChannels() {
+		endConnection();
+		
+		if (serverChannel == null) {
+			return;
+		}
+		
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void requestFlush() {
+		if (flushRequested.compareAndSet(false, true)) {
+			loop.requestFlush(this);
+		}
 	}
 	
 	/**
@@ -210,22 +1205,27 @@ public class Server implements Runnable {
 	 * @return the last client to connect to this server
 	 */
 	public InetAddress lastClientIP() {
-		return serverSocket.getInetAddress();
+		return lastClientIP;
 	}
 	
 	/**
-	 * Forces the server to close its current connection.
+	 * Forces the server to close its current connection. Any messages that are already queued will be sent first.
 	 */
 	public void closeConnection() {
 		quit = true;
+		requestFlush();
 	}
 	
 	/**
-	 * Stops the server and closes the {@link java.net.ServerSocket ServerSocket}.
+	 * Stops the server and closes the {@link java.nio.channels.ServerSocketChannel ServerSocketChannel}.
 	 */
 	public void stopServer() {
 		quit = true;
 		isRunning = false;
+		loop.execute(() -> {
+			closeChannels();
+			loop.release(this);
+		});
 	}
 	
 	/**
@@ -234,11 +1234,82 @@ public class Server implements Runnable {
 	 * @param _message String to send, with the newline omitted
 	 */
 	public void sendString(final String _message) {
-		/*
-		message = _message;
-		sendMessage = true;
-		*/
-		messageQueue.add(_message);
+		send(Messages.text(_message));
+	}
+	
+	/**
+	 * Tries to send a message to the client, in whichever protocol the client negotiated.
+	 * 
+	 * @param message message to send
+	 */
+	public void send(final Message message) {
+		enqueue(message);
+		requestFlush();
+	}
+	
+	/**
+	 * Tries to send several messages to the client, in whichever protocol the client negotiated. The messages are added to the message queue
+	 * together and the queue is flushed once, so they go out in one frame.
+	 * 
+	 * @param messages messages to send, in order
+	 */
+	public void send(final Collection<Message> messages) {
+		for (Message message : messages) {
+			enqueue(message);
+		}
+		
+		requestFlush();
+	}
+	
+	/**
+	 * Adds a message to the message queue, unless the {@link SlowClientPolicy} says that a client this far behind can do without it. How far
+	 * behind the client is is measured in bytes, so that one large message, such as the starting world of a game, counts for what it costs
+	 * to send rather than as one message.
+	 * 
+	 * @param message message to add
+	 */
+	private void enqueue(final Message message) {
+		int version = binaryVersion;
+		int bytes = version > 0 ? message.binary(version).length : message.textBytes().length; //Encoded once per protocol and cached, so the flush reuses it
+		
+		if (messageQueue.bytes() >= highWaterMark) {
+			Delivery delivery = message.opcode.delivery;
+			
+			switch (slowClientPolicy) {
+			case DROP_STALE:
+				if (delivery != Delivery.RELIABLE) {
+					metrics.messagesDropped(1);
+					return;
+				}
+				break;
+			case COLLAPSE:
+				collapseRequested = true;
+				break;
+			case DISCONNECT:
+				overflowed = true;
+				return;
+			}
+		}
+		
+		if (messageQueue.bytes() + bytes > MAX_OUTBOUND_BYTES || !messageQueue.offer(message, bytes)) { //Not even a reliable message fits, so the client has to go
+			metrics.messagesDropped(1);
+			overflowed = true;
+		}
+	}
+	
+	/**
+	 * Sets what happens to messages for this Server's client once it falls behind.
+	 * 
+	 * @param policy what to do with messages once the queue passes the high-water mark
+	 * @param _highWaterMark number of queued bytes at which the policy starts to apply, from 1 to {@link #MAX_OUTBOUND_BYTES}
+	 */
+	public void setSlowClientPolicy(final SlowClientPolicy policy, int _highWaterMark) {
+		if (_highWaterMark < 1 || _highWaterMark > MAX_OUTBOUND_BYTES) {
+			throw new IllegalArgumentException("High-water mark must be from 1 to " + MAX_OUTBOUND_BYTES + " bytes, not " + _highWaterMark);
+		}
+		
+		slowClientPolicy = policy;
+		highWaterMark = _highWaterMark;
 	}
 	
 	/**
@@ -249,4 +1320,40 @@ public class Server implements Runnable {
 	public boolean sendingMessage() {
 		return !messageQueue.isEmpty();
 	}
+	
+	/**
+	 * The number of messages waiting to be sent to the client. See {@link #queuedBytes()} for how far behind the client is.
+	 * 
+	 * @return message queue depth
+	 */
+	public int queueDepth() {
+		return messageQueue.size();
+	}
+	
+	/**
+	 * The number of bytes waiting to be sent to the client. A number that stays near the high-water mark means that the client is not keeping up.
+	 * 
+	 * @return queued bytes
+	 */
+	public long queuedBytes() {
+		return messageQueue.bytes();
+	}
+	
+	/**
+	 * The binary protocol version negotiated with the current client.
+	 * 
+	 * @return binary protocol version, or 0 if the client uses the text protocol or has not finished negotiating
+	 */
+	public int binaryVersion() {
+		return binaryVersion;
+	}
+	
+	/**
+	 * Traffic counters for this Server, cumulative over every client it has served.
+	 * 
+	 * @return this Server's metrics
+	 */
+	public ConnectionMetrics metrics() {
+		return metrics;
+	}
 }
@@ -0,0 +1,146 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts clients on one TCP port and hands each of them to an idle {@link Server} from a fixed pool, so that one port can serve as many
+ * clients at once as the pool has Servers. Every client still gets a Server of its own, with its own key, buffers and message queue, and the
+ * pooled Servers are spread across the I/O threads of the {@link TCPEngine} like any other Server. A client that arrives while every Server
+ * in the pool is busy is turned away.
+ * <p>
+ * The pooled Servers must be created without a port of their own (see {@link Server#Server(com.dezzy.skrop2_server.server.GameServer, TCPEngine, int, int, int, boolean)}).
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class ServerPool {
+	
+	/**
+	 * Pooled TCP port
+	 */
+	public final int port;
+	
+	private final SelectorLoop loop;
+	private final ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+	
+	private final Server[] servers;
+	
+	/**
+	 * Index of the first Server to try for the next client, so that clients are spread over the whole pool. Only accessed from the owning I/O thread.
+	 */
+	private int next = 0;
+	
+	/**
+	 * Only accessed from the owning I/O thread
+	 */
+	private boolean fullReported = false;
+	
+	private volatile boolean isRunning = true;
+	
+	/**
+	 * Opens the pooled port and starts accepting clients on the next I/O thread of a TCP engine.
+	 * 
+	 * @param engine TCP engine that will run this pool's accepting side
+	 * @param _port TCP port to accept clients on
+	 * @param _servers Servers that the clients are handed to
+	 * @throws IOException if the port cannot be bound
+	 */
+	public ServerPool(final TCPEngine engine, int _port, final Server[] _servers) throws IOException {
+		port = _port;
+		servers = _servers;
+		
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		
+		loop = engine.nextLoop();
+		loop.execute(() -> {
+			try {
+				acceptKey = loop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+			} catch (IOException e) {
+				System.err.println("Error registering the server pool on TCP port " + port);
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	/**
+	 * Handles the pooled port becoming acceptable. Called by the owning I/O thread.
+	 * 
+	 * @param key selection key of the pooled port
+	 */
+	void handle(final SelectionKey key) {
+		if (!key.isValid() || !key.isAcceptable()) {
+			return;
+		}
+		
+		try {
+			accept();
+		} catch (IOException e) {
+			System.err.println("Error accepting a client on TCP port " + port);
+			e.printStackTrace();
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel accepted;
+		
+		while ((accepted = serverChannel.accept()) != null) {
+			Server server = isRunning ? claimServer() : null;
+			
+			if (server == null) {
+				if (isRunning && !fullReported) {
+					System.err.println("Every one of the " + servers.length + " servers on TCP port " + port + " is busy, turning clients away");
+					fullReported = true;
+				}
+				
+				accepted.close();
+				continue;
+			}
+			
+			fullReported = false;
+			server.attach(accepted, null);
+		}
+	}
+	
+	/**
+	 * Finds an idle Server and claims it for a new client.
+	 * 
+	 * @return the claimed Server, or null if every Server is busy
+	 */
+	private Server claimServer() {
+		for (int i = 0; i < servers.length; i++) {
+			Server server = servers[(next + i) % servers.length];
+			
+			if (server.claim()) {
+				next = (next + i + 1) % servers.length;
+				return server;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Stops accepting clients and closes the pooled port. The pooled Servers are not stopped.
+	 */
+	public void stop() {
+		isRunning = false;
+		loop.execute(() -> {
+			if (acceptKey != null) {
+				acceptKey.cancel();
+			}
+			
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+}
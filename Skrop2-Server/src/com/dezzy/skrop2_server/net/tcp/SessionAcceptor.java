@@ -0,0 +1,307 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.dezzy.skrop2_server.net.NetUtils;
+import com.dezzy.skrop2_server.net.protocol.ClientOpcode;
+
+/**
+ * Accepts game clients on the one TCP port that every game server slot shares, and hands each connection to the {@link Server} of the slot
+ * that the client's session token was issued for. A client's first line on the shared port must be <code>session &lt;token&gt;</code>,
+ * encrypted with {@link Server#NEGOTIATION_KEY}; after that, the slot's Server sends a key and the connection goes on exactly as if the
+ * client had connected to a port of its own. Connections with an unknown token, or that do not send their token within the timeout, are closed.
+ * <p>
+ * An acceptor is owned by one I/O thread of a {@link TCPEngine}. Several acceptors can listen on the same port with <code>SO_REUSEPORT</code>,
+ * in which case the kernel spreads new connections across them and their I/O threads.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class SessionAcceptor {
+	
+	/**
+	 * Longest session line that will be read before the connection is closed
+	 */
+	private static final int MAX_LINE_LENGTH = 512;
+	
+	/**
+	 * Most connections that can be waiting to send their session line at once. When another one arrives, the oldest is closed.
+	 */
+	private static final int MAX_PENDING = 256;
+	
+	private static final byte[] NO_BYTES = new byte[0];
+	
+	/**
+	 * Shared TCP port
+	 */
+	public final int port;
+	
+	private final SelectorLoop loop;
+	private final ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+	
+	/**
+	 * Finds the Server of the slot that a session token was issued for, or returns null if the token is unknown
+	 */
+	private final Function<String, Server> router;
+	
+	private final int timeoutMillis;
+	
+	/**
+	 * Connections that have not sent their session line yet. Only accessed from the owning I/O thread.
+	 */
+	private final Map<SelectionKey, Pending> pending = new HashMap<SelectionKey, Pending>();
+	
+	private volatile boolean isRunning = true;
+	
+	/**
+	 * Opens the shared port and starts accepting connections on the next I/O thread of a TCP engine.
+	 * 
+	 * @param engine TCP engine that will run this acceptor
+	 * @param _port shared TCP port
+	 * @param reusePort true to listen with <code>SO_REUSEPORT</code>, so that other acceptors can listen on the same port
+	 * @param _router finds the Server for a session token; called from the I/O thread
+	 * @param _timeoutMillis number of milliseconds a new connection has to send its session line
+	 * @throws IOException if the port cannot be bound
+	 */
+	public SessionAcceptor(final TCPEngine engine, int _port, boolean reusePort, final Function<String, Server> _router, int _timeoutMillis) throws IOException {
+		port = _port;
+		router = _router;
+		timeoutMillis = _timeoutMillis;
+		
+		serverChannel = ServerSocketChannel.open();
+		if (reusePort) {
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		
+		loop = engine.nextLoop();
+		loop.execute(() -> {
+			try {
+				acceptKey = loop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+				loop.adopt(this);
+			} catch (IOException e) {
+				System.err.println("Error registering the session acceptor on TCP port " + port);
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	/**
+	 * True if several acceptors can share a port on this platform.
+	 * 
+	 * @return true if <code>SO_REUSEPORT</code> is supported
+	 */
+	public static boolean canReusePort() {
+		try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Handles a ready channel. Called by the owning I/O thread.
+	 * 
+	 * @param key selection key of the channel that is ready
+	 */
+	void handle(final SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		
+		if (key == acceptKey) {
+			try {
+				accept();
+			} catch (IOException e) {
+				System.err.println("Error accepting a client on shared TCP port " + port);
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		Pending connection = pending.get(key);
+		if (connection == null) {
+			key.cancel();
+			return;
+		}
+		
+		try {
+			read(connection);
+		} catch (EOFException e) {
+			close(connection);
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Error reading a session line on shared TCP port " + port);
+			e.printStackTrace();
+			close(connection);
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel accepted;
+		
+		while ((accepted = serverChannel.accept()) != null) {
+			if (!isRunning) {
+				accepted.close();
+				continue;
+			}
+			
+			if (pending.size() >= MAX_PENDING) {
+				close(oldest());
+			}
+			
+			accepted.configureBlocking(false);
+			SelectionKey key = loop.register(accepted, SelectionKey.OP_READ, this);
+			pending.put(key, new Pending(accepted, key));
+		}
+	}
+	
+	private void read(final Pending connection) throws IOException {
+		ByteBuffer buffer = connection.buffer;
+		
+		if (connection.channel.read(buffer) == -1) {
+			throw new EOFException();
+		}
+		
+		int end = -1;
+		for (int i = 0; i < buffer.position(); i++) {
+			if (buffer.get(i) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		
+		if (end == -1) {
+			if (!buffer.hasRemaining()) {
+				System.err.println("Session line on shared TCP port " + port + " is too long, closing the connection");
+				close(connection);
+			}
+			return;
+		}
+		
+		byte[] bytes = buffer.array();
+		int length = (end > 0 && bytes[end - 1] == '\r') ? end - 1 : end;
+		
+		byte[] decrypted = new byte[Math.max(length, 1)];
+		int decryptedLength = NetUtils.decrypt(bytes, 0, length, Server.NEGOTIATION_KEY_BYTES, decrypted);
+		String line = new String(decrypted, 0, decryptedLength, StandardCharsets.UTF_8);
+		
+		String header = ClientOpcode.SESSION.header + " ";
+		Server server = line.startsWith(header) ? router.apply(line.substring(header.length()).trim()) : null;
+		
+		if (server == null) {
+			System.err.println("Client on shared TCP port " + port + " sent an unknown session, closing the connection");
+			close(connection);
+			return;
+		}
+		
+		pending.remove(connection.key);
+		connection.key.cancel();
+		
+		int unread = buffer.position() - (end + 1);
+		byte[] rest = unread == 0 ? NO_BYTES : new byte[unread];
+		System.arraycopy(bytes, end + 1, rest, 0, unread);
+		
+		server.attach(connection.channel, rest);
+	}
+	
+	/**
+	 * Closes every connection that has not sent its session line in time. Called by the owning I/O thread.
+	 * 
+	 * @param now current time in milliseconds
+	 */
+	void checkTimeout(long now) {
+		Iterator<Pending> connections = pending.values().iterator();
+		
+		while (connections.hasNext()) {
+			Pending connection = connections.next();
+			
+			if (now - connection.acceptedAt > timeoutMillis) {
+				connections.remove();
+				closeChannel(connection);
+			}
+		}
+	}
+	
+	private Pending oldest() {
+		Pending oldest = null;
+		
+		for (Pending connection : pending.values()) {
+			if (oldest == null || connection.acceptedAt < oldest.acceptedAt) {
+				oldest = connection;
+			}
+		}
+		
+		return oldest;
+	}
+	
+	private void close(final Pending connection) {
+		pending.remove(connection.key);
+		closeChannel(connection);
+	}
+	
+	private static void closeChannel(final Pending connection) {
+		connection.key.cancel();
+		
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Closes the shared port and every connection waiting to send its session line. Called by the owning I/O thread.
+	 */
+	void closeChannels() {
+		for (Pending connection : pending.values()) {
+			closeChannel(connection);
+		}
+		pending.clear();
+		
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Stops accepting connections and closes the shared port.
+	 */
+	public void stop() {
+		isRunning = false;
+		loop.execute(() -> {
+			closeChannels();
+			loop.release(this);
+		});
+	}
+	
+	/**
+	 * A connection that has not sent its session line yet
+	 */
+	private static final class Pending {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+		private final long acceptedAt = System.currentTimeMillis();
+		
+		private Pending(final SocketChannel _channel, final SelectionKey _key) {
+			channel = _channel;
+			key = _key;
+		}
+	}
+}
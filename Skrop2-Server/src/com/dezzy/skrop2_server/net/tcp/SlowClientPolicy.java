@@ -0,0 +1,29 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import com.dezzy.skrop2_server.net.protocol.Opcode.Delivery;
+
+/**
+ * What a {@link Server} does when its client stops keeping up and the bytes in its outbound queue pass the high-water mark. Whatever the
+ * policy, a client whose queue fills up completely is disconnected, because a {@link Delivery#RELIABLE} message cannot be dropped. Rectangle
+ * updates are reliable: they are the only record of the world that text and older binary clients get.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public enum SlowClientPolicy {
+	
+	/**
+	 * Drop every message that is not {@link Delivery#RELIABLE} until the queue drains below the high-water mark
+	 */
+	DROP_STALE,
+	
+	/**
+	 * Send only the newest message of each {@link Delivery#LATEST} kind, so that the client still ends up with the current state
+	 */
+	COLLAPSE,
+	
+	/**
+	 * Disconnect the client as soon as the queue passes the high-water mark
+	 */
+	DISCONNECT
+}
@@ -0,0 +1,73 @@
+package com.dezzy.skrop2_server.net.tcp;
+
+import java.io.IOException;
+
+/**
+ * A small, fixed pool of non-blocking I/O threads that serves every TCP {@link Server} in the process. Each I/O thread owns a
+ * {@link java.nio.channels.Selector Selector}; Servers are spread across the threads round-robin when they are created, and every
+ * accept, read, write, flush and timeout check for a Server happens on the thread that owns it. An idle engine sleeps in
+ * <code>select()</code> instead of polling, so the number of open ports no longer determines how much CPU the server burns.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class TCPEngine {
+	
+	private final SelectorLoop[] loops;
+	private final Thread[] loopThreads;
+	
+	/**
+	 * Index of the loop that the next Server will be assigned to
+	 */
+	private int nextLoop = 0;
+	
+	/**
+	 * Creates a TCP engine and starts its I/O threads.
+	 * 
+	 * @param name name used for the I/O threads
+	 * @param threadCount number of I/O threads; values less than 1 are treated as 1
+	 * @throws IOException if a {@link java.nio.channels.Selector Selector} cannot be opened
+	 */
+	public TCPEngine(final String name, int threadCount) throws IOException {
+		int count = Math.max(1, threadCount);
+		
+		loops = new SelectorLoop[count];
+		loopThreads = new Thread[count];
+		
+		for (int i = 0; i < count; i++) {
+			loops[i] = new SelectorLoop();
+			loopThreads[i] = new Thread(loops[i], name + " TCP I/O Thread " + i);
+			loopThreads[i].setDaemon(true);
+			loopThreads[i].start();
+		}
+	}
+	
+	/**
+	 * Picks the I/O thread that will own the next Server.
+	 * 
+	 * @return the selector loop that should own a new Server
+	 */
+	synchronized SelectorLoop nextLoop() {
+		SelectorLoop loop = loops[nextLoop];
+		nextLoop = (nextLoop + 1) % loops.length;
+		return loop;
+	}
+	
+	/**
+	 * The number of I/O threads in this engine.
+	 * 
+	 * @return I/O thread count
+	 */
+	public int threadCount() {
+		return loops.length;
+	}
+	
+	/**
+	 * Stops every I/O thread. Servers should be stopped with {@link Server#stopServer()} first so that their sockets are closed cleanly.
+	 */
+	public void shutdown() {
+		for (SelectorLoop loop : loops) {
+			loop.stop();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.dezzy.skrop2_server.net.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.function.Function;
+
+/**
+ * The one UDP port that every game server slot shares. Each slot still has its own {@link UDPServer}, created with
+ * {@link UDPServer#UDPServer(SharedUDPPort)}, but every UDPServer sends from this port's channel. A client binds its address to its slot by
+ * sending the hello <code>session &lt;token&gt;</code> to this port, with the session token it got from <code>join-game</code>; after that,
+ * the {@link UDPEngine} routes the client's address to the slot's UDPServer like it does for a slot with a port of its own.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class SharedUDPPort {
+	
+	/**
+	 * Start of a hello on a shared port
+	 */
+	private static final String HELLO_HEADER = "session ";
+	
+	/**
+	 * Shared UDP port
+	 */
+	public final int port;
+	
+	final UDPEngine engine;
+	final DatagramChannel channel;
+	
+	/**
+	 * Only accessed from the engine's I/O thread
+	 */
+	SelectionKey key;
+	
+	/**
+	 * Finds the UDPServer of the slot that a session token was issued for, or returns null if the token is unknown
+	 */
+	private final Function<String, UDPServer> router;
+	
+	/**
+	 * UDPServers that could not send every queued packet because the socket's send buffer was full. Only accessed from the engine's I/O thread.
+	 */
+	private final ArrayDeque<UDPServer> blocked = new ArrayDeque<UDPServer>();
+	
+	/**
+	 * Opens the shared port and registers it with a UDP engine.
+	 * 
+	 * @param _engine engine that will do all I/O for this port
+	 * @param _port shared UDP port
+	 * @param _router finds the UDPServer for a session token; called from the engine's I/O thread
+	 * @throws IOException if the port cannot be bound
+	 */
+	public SharedUDPPort(final UDPEngine _engine, int _port, final Function<String, UDPServer> _router) throws IOException {
+		engine = _engine;
+		port = _port;
+		router = _router;
+		
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		
+		engine.execute(() -> {
+			try {
+				key = engine.register(channel, this);
+			} catch (IOException e) {
+				System.err.println("Error registering shared UDP port " + port);
+				e.printStackTrace();
+			}
+		});
+	}
+	
+	/**
+	 * Finds the UDPServer that a hello from an unknown address is for. Called from the engine's I/O thread.
+	 * 
+	 * @param datagram the hello, in read mode
+	 * @return the UDPServer of the slot named by the hello, or null if the datagram is not a hello for a known session
+	 */
+	UDPServer route(final ByteBuffer datagram) {
+		String hello = StandardCharsets.US_ASCII.decode(datagram).toString().trim();
+		
+		if (!hello.startsWith(HELLO_HEADER)) {
+			return null;
+		}
+		
+		return router.apply(hello.substring(HELLO_HEADER.length()).trim());
+	}
+	
+	/**
+	 * Remembers a UDPServer that has packets left to send, and waits for the socket to become writable. Called from the engine's I/O thread.
+	 * 
+	 * @param server UDPServer with packets left in its queue
+	 */
+	void writeBlocked(final UDPServer server) {
+		blocked.add(server);
+		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+	
+	/**
+	 * Lets every blocked UDPServer send again. Called from the engine's I/O thread when the socket is writable.
+	 */
+	void writeReady() {
+		key.interestOps(SelectionKey.OP_READ);
+		
+		for (int count = blocked.size(); count > 0; count--) {
+			blocked.poll().writeQueued();
+		}
+	}
+	
+	/**
+	 * Closes the shared port. The UDPServers that send from it should be stopped first.
+	 */
+	public void stop() {
+		engine.execute(() -> {
+			if (key != null) {
+				key.cancel();
+			}
+			
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+}
@@ -0,0 +1,260 @@
+package com.dezzy.skrop2_server.net.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One non-blocking I/O thread that serves every {@link UDPServer} in the process. Every UDPServer's
+ * {@link java.nio.channels.DatagramChannel DatagramChannel} is registered with this engine's {@link Selector}, and incoming datagrams are
+ * routed by the address they came from: a datagram from a client that has already said hello goes to that client's UDPServer no matter
+ * which port it arrived on, and a datagram from an unknown address is a hello for the UDPServer that owns the port, or for the UDPServer
+ * that the hello names if it arrived on a {@link SharedUDPPort}. Outgoing packets are
+ * queued by each UDPServer and only sent when it is flushed, so a game tick costs one wakeup of this thread no matter how many packets it sends.
+ * An idle engine sleeps in <code>select()</code> instead of polling.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class UDPEngine implements Runnable {
+	
+	/**
+	 * Largest datagram that will be read. Anything longer is truncated; clients only ever send short hellos.
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = 2048;
+	
+	private final Selector selector;
+	private final Thread thread;
+	
+	/**
+	 * Work submitted by other threads (registrations, closes) that must run on the I/O thread
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * UDPServers that have packets waiting to be sent
+	 */
+	private final ConcurrentLinkedQueue<UDPServer> flushRequests = new ConcurrentLinkedQueue<UDPServer>();
+	
+	/**
+	 * The UDPServer bound to each client address
+	 */
+	private final ConcurrentHashMap<SocketAddress, UDPServer> routes = new ConcurrentHashMap<SocketAddress, UDPServer>();
+	
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+	
+	/**
+	 * Packets are copied here before they are sent; only used by the I/O thread
+	 */
+	final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(UDPServer.UDP_PACKET_MAX_BYTE_LENGTH);
+	
+	private volatile boolean isRunning = true;
+	
+	/**
+	 * Creates a UDP engine and starts its I/O thread.
+	 * 
+	 * @param name name used for the I/O thread
+	 * @throws IOException if a {@link Selector} cannot be opened
+	 */
+	public UDPEngine(final String name) throws IOException {
+		selector = Selector.open();
+		
+		thread = new Thread(this, name + " UDP I/O Thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void run() {
+		while (isRunning) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("Error waiting for UDP channels to become ready");
+				e.printStackTrace();
+			}
+			
+			runTasks();
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				if (!key.isValid()) {
+					continue;
+				}
+				
+				if (key.attachment() instanceof SharedUDPPort) {
+					SharedUDPPort shared = (SharedUDPPort) key.attachment();
+					
+					if (key.isReadable()) {
+						receive(shared);
+					}
+					
+					if (key.isValid() && key.isWritable()) {
+						shared.writeReady();
+					}
+					
+					continue;
+				}
+				
+				UDPServer server = (UDPServer) key.attachment();
+				
+				if (key.isReadable()) {
+					receive((DatagramChannel) key.channel(), server);
+				}
+				
+				if (key.isValid() && key.isWritable()) {
+					server.writeQueued();
+				}
+			}
+			
+			UDPServer server;
+			while ((server = flushRequests.poll()) != null) {
+				server.writeQueued();
+			}
+		}
+		
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Reads every datagram waiting on a channel and routes each one by its source address.
+	 * 
+	 * @param channel readable channel
+	 * @param owner UDPServer that owns the channel's port
+	 */
+	private void receive(final DatagramChannel channel, final UDPServer owner) {
+		try {
+			SocketAddress source;
+			while ((source = channel.receive(receiveBuffer)) != null) {
+				receiveBuffer.clear();
+				
+				UDPServer bound = routes.get(source);
+				if (bound == null && owner.bind(source)) {
+					routes.put(source, owner);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Error receiving a UDP packet on port " + owner.port);
+			e.printStackTrace();
+			receiveBuffer.clear();
+		}
+	}
+	
+	/**
+	 * Reads every datagram waiting on a shared port. A datagram from an address that is not bound yet is a hello, and binds the address
+	 * to the UDPServer of the session it names.
+	 * 
+	 * @param shared readable shared port
+	 */
+	private void receive(final SharedUDPPort shared) {
+		try {
+			SocketAddress source;
+			while ((source = shared.channel.receive(receiveBuffer)) != null) {
+				if (!routes.containsKey(source)) {
+					receiveBuffer.flip();
+					
+					UDPServer server = shared.route(receiveBuffer);
+					if (server != null && server.bind(source)) {
+						routes.put(source, server);
+					}
+				}
+				
+				receiveBuffer.clear();
+			}
+		} catch (IOException e) {
+			System.err.println("Error receiving a UDP packet on shared port " + shared.port);
+			e.printStackTrace();
+			receiveBuffer.clear();
+		}
+	}
+	
+	/**
+	 * Runs a task on the I/O thread.
+	 * 
+	 * @param task work to run on the I/O thread
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Asks the I/O thread to send a UDPServer's queued packets. Requests are deduplicated by the UDPServer.
+	 * 
+	 * @param server UDPServer with packets waiting to be sent
+	 */
+	void requestFlush(final UDPServer server) {
+		flushRequests.add(server);
+		
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Registers a channel with this engine's selector. Must be called from the I/O thread.
+	 * 
+	 * @param channel channel to register
+	 * @param server UDPServer that owns the channel
+	 * @return the new selection key
+	 * @throws ClosedChannelException if the channel has been closed
+	 */
+	SelectionKey register(final DatagramChannel channel, final UDPServer server) throws ClosedChannelException {
+		return channel.register(selector, SelectionKey.OP_READ, server);
+	}
+	
+	/**
+	 * Registers a shared port's channel with this engine's selector. Must be called from the I/O thread.
+	 * 
+	 * @param channel channel to register
+	 * @param shared shared port that owns the channel
+	 * @return the new selection key
+	 * @throws ClosedChannelException if the channel has been closed
+	 */
+	SelectionKey register(final DatagramChannel channel, final SharedUDPPort shared) throws ClosedChannelException {
+		return channel.register(selector, SelectionKey.OP_READ, shared);
+	}
+	
+	/**
+	 * Stops routing a client address to a UDPServer.
+	 * 
+	 * @param address client address
+	 * @param server UDPServer the address was bound to
+	 */
+	void unroute(final SocketAddress address, final UDPServer server) {
+		routes.remove(address, server);
+	}
+	
+	/**
+	 * Stops the I/O thread. UDPServers should be stopped with {@link UDPServer#stopServer()} first so that their channels are closed.
+	 */
+	public void shutdown() {
+		isRunning = false;
+		selector.wakeup();
+	}
+}
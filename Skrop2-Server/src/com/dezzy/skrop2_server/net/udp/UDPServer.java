@@ -1,117 +1,127 @@
 package com.dezzy.skrop2_server.net.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Sends UDP packets to a client. When the client first sends a packet to this server, the server keeps the IP and destination port
- * and sends future UDP packets to that location.
+ * and sends future UDP packets to that location. All I/O happens on the {@link UDPEngine}'s thread; {@link #sendString(String)} and
+ * {@link #sendBytes(byte[], int)} only add a packet to a bounded queue, and the queue is sent when the server is {@link #flush() flushed},
+ * usually once at the end of a game tick. If the queue is full, the oldest packet is dropped: packets are unreliable game state, so a newer
+ * packet is always worth more than an older one.
  * 
  * @author Dezzmeister
  *
  */
-public class UDPServer implements Runnable {
+public class UDPServer {
 	/**
 	 * UDP packet size, in bytes
 	 */
 	public static final int UDP_PACKET_MAX_BYTE_LENGTH = 650;
 	
-	private final DatagramSocket socket;
+	/**
+	 * Maximum number of packets waiting to be sent to the client
+	 */
+	public static final int QUEUE_CAPACITY = 16;
 	
 	/**
-	 * IP of the client to send packets to
+	 * UDP port to send packets from
 	 */
-	private volatile InetAddress clientIP = null;
+	public final int port;
+	
+	private final UDPEngine engine;
+	private final DatagramChannel channel;
 	
 	/**
-	 * UDP port to send packets to
+	 * The port this server sends from if it does not have one of its own, or null
 	 */
-	private int portOut = -1;
+	private final SharedUDPPort shared;
 	
 	/**
-	 * UDP port to send packets from
+	 * Only accessed from the engine's I/O thread
 	 */
-	private int port;
+	private SelectionKey key;
 	
 	/**
-	 * True if the server should continue running
+	 * Address of the client to send packets to, or null if there is no client
 	 */
-	private volatile boolean isRunning = true;
+	private volatile InetSocketAddress clientAddress = null;
 	
 	/**
-	 * True if the UDP server should expect a message
+	 * True if the UDP server should expect a hello
 	 */
-	private boolean open = false;
+	private volatile boolean open = false;
 	
 	/**
-	 * True when the UDP server receives a message from a new client
+	 * Queued packets, as a ring of preallocated buffers. Guarded by this UDPServer's lock.
 	 */
-	private boolean firstReceived = false;
-	private volatile boolean sendMessage = false;
-	private volatile String message = "";
+	private final byte[][] queue = new byte[QUEUE_CAPACITY][UDP_PACKET_MAX_BYTE_LENGTH];
+	private final int[] queueLengths = new int[QUEUE_CAPACITY];
+	private int queueHead = 0;
+	private int queueSize = 0;
+	private long droppedPackets = 0;
 	
-	public UDPServer(int _port) throws SocketException {
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	
+	/**
+	 * Opens a non-blocking UDP channel on a port and registers it with a UDP engine.
+	 * 
+	 * @param _engine engine that will do all I/O for this server
+	 * @param _port port to receive hellos on and send packets from
+	 * @throws IOException if the port cannot be bound
+	 */
+	public UDPServer(final UDPEngine _engine, int _port) throws IOException {
+		engine = _engine;
 		port = _port;
+		shared = null;
+		
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
 		
-		socket = new DatagramSocket(port);
+		engine.execute(() -> {
+			try {
+				key = engine.register(channel, this);
+			} catch (IOException e) {
+				System.err.println("Error registering UDP port " + port);
+				e.printStackTrace();
+			}
+		});
 	}
 	
-	public void setClient(final InetAddress _clientIP) {
-		clientIP = _clientIP;
+	/**
+	 * Creates a server that sends from a shared port instead of a port of its own. Its client binds to it with a session hello on the shared port.
+	 * 
+	 * @param _shared port to send packets from
+	 */
+	public UDPServer(final SharedUDPPort _shared) {
+		engine = _shared.engine;
+		port = _shared.port;
+		channel = _shared.channel;
+		shared = _shared;
 	}
 	
-	private byte[] buf = new byte[UDP_PACKET_MAX_BYTE_LENGTH];
-	
-	@Override
-	public void run() {
-		while (isRunning) {
-			if (!firstReceived && open) {
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
-				try {
-					socket.receive(packet);
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-				
-				clientIP = packet.getAddress();
-				portOut = packet.getPort();
-				
-				firstReceived = true;
-				open = false;
-			} else {
-				if (sendMessage && firstReceived) {
-					DatagramPacket packet;
-					synchronized(message) { //Prevent sendString() from changing the message as it is being used to create a packet
-						for (int i = 0; i < UDP_PACKET_MAX_BYTE_LENGTH; i++) { //Zero the array to destroy old data
-							buf[i] = 0;
-						}
-						
-						byte[] bytes = message.getBytes();
-						
-						System.arraycopy(bytes, 0, buf, 0, bytes.length);
-						
-						packet = new DatagramPacket(buf, buf.length, clientIP, portOut);
-					}
-					
-					try {
-						socket.send(packet);
-					} catch (IOException e) {
-						System.err.println("Error sending UDP packet to " + clientIP.getHostAddress() + ":" + portOut);
-						e.printStackTrace();
-					}
-					
-					sendMessage = false;
-				}
-			}
+	/**
+	 * Binds this server to a client that sent a hello. Called from the engine's I/O thread.
+	 * 
+	 * @param address address of the client
+	 * @return true if this server was expecting a hello and is now bound to the client
+	 */
+	boolean bind(final SocketAddress address) {
+		if (!open || !(address instanceof InetSocketAddress)) {
+			return false;
 		}
 		
-		socket.close();
-		firstReceived = false;
-		clientIP = null;
-		portOut = -1;
+		clientAddress = (InetSocketAddress) address;
+		open = false;
+		return true;
 	}
 	
 	/**
@@ -127,7 +137,7 @@ public class UDPServer implements Runnable {
 	 * @return true if the UDP server has a client
 	 */
 	public boolean boundToClient() {
-		return firstReceived;
+		return clientAddress != null;
 	}
 	
 	/**
@@ -136,32 +146,163 @@ public class UDPServer implements Runnable {
 	 * @return client IP
 	 */
 	public InetAddress clientIP() {
-		return clientIP;
+		InetSocketAddress address = clientAddress;
+		return address == null ? null : address.getAddress();
 	}
 	
 	/**
-	 * Tells the server to wait for a new client
+	 * Tells the server to wait for a new client. Packets that have not been sent yet are discarded.
 	 */
 	public void reset() {
-		firstReceived = false;
-		clientIP = null;
-		portOut = -1;
+		InetSocketAddress address = clientAddress;
+		clientAddress = null;
+		open = false;
+		
+		if (address != null) {
+			engine.unroute(address, this);
+		}
+		
+		synchronized(this) {
+			queueSize = 0;
+		}
 	}
 	
 	/**
-	 * Sends a message to the client
+	 * Queues a message for the client. String messages are zero-padded to {@link #UDP_PACKET_MAX_BYTE_LENGTH} bytes.
 	 * 
 	 * @param _message String to send to the client
 	 */
 	public void sendString(final String _message) {
-		message = _message;
-		sendMessage = true;
+		byte[] bytes = _message.getBytes();
+		enqueue(bytes, Math.min(bytes.length, UDP_PACKET_MAX_BYTE_LENGTH), true);
+	}
+	
+	/**
+	 * Queues one packet of exactly <code>length</code> bytes for the client. The bytes are copied, so the array can be reused as soon as
+	 * this returns.
+	 * 
+	 * @param data packet contents
+	 * @param length number of bytes to send, at most {@link #UDP_PACKET_MAX_BYTE_LENGTH}
+	 */
+	public void sendBytes(final byte[] data, int length) {
+		if (length > UDP_PACKET_MAX_BYTE_LENGTH) {
+			throw new IllegalArgumentException("UDP packet of " + length + " bytes is longer than " + UDP_PACKET_MAX_BYTE_LENGTH + " bytes");
+		}
+		
+		enqueue(data, length, false);
+	}
+	
+	private synchronized void enqueue(final byte[] data, int length, boolean pad) {
+		if (queueSize == QUEUE_CAPACITY) {
+			queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+			queueSize--;
+			droppedPackets++;
+		}
+		
+		int slot = (queueHead + queueSize) % QUEUE_CAPACITY;
+		byte[] packet = queue[slot];
+		System.arraycopy(data, 0, packet, 0, length);
+		
+		if (pad) {
+			Arrays.fill(packet, length, UDP_PACKET_MAX_BYTE_LENGTH, (byte) 0);
+			length = UDP_PACKET_MAX_BYTE_LENGTH;
+		}
+		
+		queueLengths[slot] = length;
+		queueSize++;
+	}
+	
+	/**
+	 * Asks the engine to send every queued packet. Does nothing if the queue is empty or a flush is already pending.
+	 */
+	public void flush() {
+		boolean empty;
+		synchronized(this) {
+			empty = queueSize == 0;
+		}
+		
+		if (!empty && flushRequested.compareAndSet(false, true)) {
+			engine.requestFlush(this);
+		}
+	}
+	
+	/**
+	 * Sends queued packets until the queue is empty or the socket's send buffer is full. Called from the engine's I/O thread.
+	 */
+	void writeQueued() {
+		flushRequested.set(false);
+		
+		SelectionKey channelKey = (shared == null) ? key : shared.key;
+		if (channelKey == null || !channelKey.isValid()) {
+			return;
+		}
+		
+		InetSocketAddress address = clientAddress;
+		ByteBuffer buffer = engine.sendBuffer;
+		boolean blocked = false;
+		
+		synchronized(this) {
+			while (queueSize > 0) {
+				if (address == null) {
+					queueSize = 0;
+					break;
+				}
+				
+				buffer.clear();
+				buffer.put(queue[queueHead], 0, queueLengths[queueHead]);
+				buffer.flip();
+				
+				try {
+					if (channel.send(buffer, address) == 0) {
+						blocked = true;
+						break;
+					}
+				} catch (IOException e) {
+					System.err.println("Error sending UDP packet to " + address.getAddress().getHostAddress() + ":" + address.getPort());
+					e.printStackTrace();
+				}
+				
+				queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+				queueSize--;
+			}
+		}
+		
+		if (shared == null) {
+			key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		} else if (blocked) {
+			shared.writeBlocked(this);
+		}
 	}
 	
 	/**
-	 * Stops the server and closes the {@link java.net.DatagramSocket DatagramSocket}
+	 * The number of packets that were dropped because the queue was full.
+	 * 
+	 * @return dropped packet count
+	 */
+	public synchronized long droppedPackets() {
+		return droppedPackets;
+	}
+	
+	/**
+	 * Closes the {@link java.nio.channels.DatagramChannel DatagramChannel}, unless this server sends from a {@link SharedUDPPort}
 	 */
 	public void stopServer() {
-		isRunning = false;
+		reset();
+		
+		if (shared != null) {
+			return;
+		}
+		
+		engine.execute(() -> {
+			if (key != null) {
+				key.cancel();
+			}
+			
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
 	}
 }
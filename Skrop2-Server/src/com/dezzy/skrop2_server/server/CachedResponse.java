@@ -0,0 +1,36 @@
+package com.dezzy.skrop2_server.server;
+
+import com.dezzy.skrop2_server.net.protocol.Message;
+
+/**
+ * An info server response that is built once and sent to every client that asks for it until the state it describes changes. The state is
+ * summed up in a key (for example a Room's {@link GameState} and player count); a cached response is only rebuilt when its key no longer
+ * matches. Because a {@link Message} caches its own encodings, a reused response is also only encoded once per protocol.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class CachedResponse {
+	
+	/**
+	 * The state that {@link #message} was built from
+	 */
+	final long key;
+	
+	final Message message;
+	
+	CachedResponse(long _key, final Message _message) {
+		key = _key;
+		message = _message;
+	}
+	
+	/**
+	 * True if this response still describes the given state.
+	 * 
+	 * @param _key key of the current state
+	 * @return true if the response can be sent as it is
+	 */
+	boolean matches(long _key) {
+		return key == _key;
+	}
+}
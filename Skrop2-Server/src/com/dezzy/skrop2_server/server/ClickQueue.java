@@ -0,0 +1,156 @@
+package com.dezzy.skrop2_server.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring of click events. Client I/O threads {@link #offer(int, float, float, int, CharSequence)
+ * offer} clicks as they are parsed, and the game thread {@link #drain(Consumer) drains} them in order at the start of each tick, so the game
+ * world is only ever touched by one thread and needs no locks.
+ * <p>
+ * Each slot has a sequence number that says whose turn it is. A producer may only claim the tail position if the slot's sequence equals
+ * that position, which means the consumer has freed it; it claims the position by advancing the tail, writes the event and publishes it by
+ * setting the sequence to position + 1. The consumer reads a slot once its sequence is head + 1 and frees it by setting the sequence to
+ * head + capacity.
+ * <p>
+ * If the slot at the tail has not been freed yet, the ring is full and {@link #offer(int, float, float, int, CharSequence) offer} drops the
+ * click and returns false instead of waiting. Producers are I/O threads that serve many clients, so waiting on a slow game thread would
+ * stall every one of those clients; a click that arrives while a whole ring of clicks is still waiting is not worth that. Dropped clicks are
+ * counted in {@link #droppedClicks()}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class ClickQueue {
+	
+	private final int mask;
+	private final AtomicLongArray sequences;
+	
+	private final int[] seats;
+	private final float[] xs;
+	private final float[] ys;
+	private final int[] frames;
+	private final long[] timestamps;
+	private final String[] auxes;
+	
+	private final AtomicLong tail = new AtomicLong(0);
+	
+	/**
+	 * Only accessed by the consumer
+	 */
+	private long head = 0;
+	
+	private final AtomicLong droppedClicks = new AtomicLong(0);
+	
+	/**
+	 * Creates an empty click queue.
+	 * 
+	 * @param capacity maximum number of clicks waiting to be applied, rounded up to a power of two
+	 */
+	public ClickQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		
+		sequences = new AtomicLongArray(size);
+		seats = new int[size];
+		xs = new float[size];
+		ys = new float[size];
+		frames = new int[size];
+		timestamps = new long[size];
+		auxes = new String[size];
+		
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Adds a click to the queue, stamped with the current time. Safe to call from any number of threads at once.
+	 * 
+	 * @param seat seat of the player that clicked
+	 * @param x x coordinate of the click
+	 * @param y y coordinate of the click
+	 * @param frame frame of the game that the client was showing when it clicked, or 0 if the client did not say
+	 * @param aux auxiliary click information, or null. It is copied, so it can be a view of a buffer that is about to be reused.
+	 * @return true if the click was queued, false if the queue was full and the click was dropped
+	 */
+	public boolean offer(int seat, float x, float y, int frame, final CharSequence aux) {
+		long timestamp = System.nanoTime();
+		long position;
+		int slot;
+		
+		while (true) {
+			position = tail.get();
+			slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (difference < 0) { //The consumer has not freed this slot yet, so the ring is full
+				droppedClicks.incrementAndGet();
+				return false;
+			}
+		}
+		
+		seats[slot] = seat;
+		xs[slot] = x;
+		ys[slot] = y;
+		frames[slot] = frame;
+		timestamps[slot] = timestamp;
+		auxes[slot] = aux == null ? null : aux.toString();
+		
+		sequences.set(slot, position + 1);
+		return true;
+	}
+	
+	/**
+	 * Applies every click that has been published, oldest first. Must only be called from one thread at a time.
+	 * 
+	 * @param consumer receives each click
+	 * @return the number of clicks applied
+	 */
+	public int drain(final Consumer consumer) {
+		int count = 0;
+		
+		while (true) {
+			int slot = (int) head & mask;
+			
+			if (sequences.get(slot) != head + 1) {
+				return count;
+			}
+			
+			int seat = seats[slot];
+			float x = xs[slot];
+			float y = ys[slot];
+			int frame = frames[slot];
+			long timestamp = timestamps[slot];
+			String aux = auxes[slot];
+			auxes[slot] = null;
+			
+			sequences.set(slot, head + mask + 1); //Free the slot before the click is applied, so that an exception cannot jam the ring
+			head++;
+			count++;
+			
+			consumer.click(seat, x, y, frame, aux, timestamp);
+		}
+	}
+	
+	/**
+	 * The number of clicks that were dropped because the queue was full.
+	 * 
+	 * @return dropped click count
+	 */
+	public long droppedClicks() {
+		return droppedClicks.get();
+	}
+	
+	/**
+	 * Receives clicks drained from a ClickQueue.
+	 */
+	@FunctionalInterface
+	public interface Consumer {
+		void click(int seat, float x, float y, int frame, final String aux, long timestamp);
+	}
+}
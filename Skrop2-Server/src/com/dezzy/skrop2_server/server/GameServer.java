@@ -1,37 +1,173 @@
 package com.dezzy.skrop2_server.server;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.dezzy.skrop2_server.metrics.ServerMetrics;
+import com.dezzy.skrop2_server.net.protocol.ClientMessage;
+import com.dezzy.skrop2_server.net.protocol.ClientOpcode;
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
 import com.dezzy.skrop2_server.net.tcp.Server;
+import com.dezzy.skrop2_server.net.tcp.ServerPool;
+import com.dezzy.skrop2_server.net.tcp.SessionAcceptor;
+import com.dezzy.skrop2_server.net.tcp.SlowClientPolicy;
+import com.dezzy.skrop2_server.net.tcp.TCPEngine;
+import com.dezzy.skrop2_server.net.udp.SharedUDPPort;
+import com.dezzy.skrop2_server.net.udp.UDPEngine;
 import com.dezzy.skrop2_server.net.udp.UDPServer;
 
 /**
- * This class manages the infoserver and the gameservers. This class is responsible for interpreting client messages and managing the {@link LocalGame}.
- * This class creates the LocalGame, passes client input events to it, and gives the LocalGame access to TCP and UDP send functions. This class contains no
- * game logic and is intended only to facilitate a general multiplayer game protocol.
+ * This class manages the infoserver and the gameservers. This class is responsible for interpreting client messages and managing the {@link Room Rooms}.
+ * Each Room runs its own {@link LocalGame}; this class creates the LocalGames, passes client input events to them, and gives them access to TCP and UDP send functions
+ * through their Rooms. Game server slots are shared by every Room: a slot is reserved for a Room when a client asks to join it and is freed when that client leaves.
+ * This class contains no game logic and is intended only to facilitate a general multiplayer game protocol.
+ * <p>
+ * By default every slot has a TCP and a UDP port of its own, and <code>join-game</code> tells the client which port to connect to. In single-port
+ * mode, every game client connects to the same TCP and UDP port instead: <code>join-game</code> gives the client a session token, the client sends
+ * that token as the first line on the shared TCP port and as its hello on the shared UDP port, and one or more {@link SessionAcceptor SessionAcceptors}
+ * hand the connection to the reserved slot. Slots are only created when they are first reserved, so startup does not depend on the number of slots.
  * 
  * @author Dezzmeister
  *
  */
 public class GameServer {
-	public volatile GameState gameState = GameState.NO_GAME;
-	
 	private final String gameName;
 	private final String serverName;
 	
-	private final Server infoServer;
-	private final Thread infoServerThread;
+	/**
+	 * Runs every TCP server (the info server and all game servers) on a small pool of I/O threads
+	 */
+	private final TCPEngine tcpEngine;
+	
+	/**
+	 * Most lobby clients that the info server can serve at once
+	 */
+	private static final int INFO_SERVER_CONNECTIONS = 64;
+	
+	/**
+	 * Serve lobby clients on the info server port, one client per Server. The client on <code>infoServers[i]</code> has clientID <code>-1 - i</code>.
+	 */
+	private final Server[] infoServers;
+	private final ServerPool infoServerPool;
+	
+	/**
+	 * The last <code>server-info</code> response, rebuilt only when the number of Rooms changes
+	 */
+	private volatile CachedResponse serverInfo;
+	
+	/**
+	 * The TCP and UDP servers of each slot. In single-port mode, a slot's servers are null until the slot is first reserved.
+	 * Slots are published through atomic arrays so that {@link #server(int)} can be called without the GameServer lock,
+	 * which rooms must never take while holding their own monitor.
+	 */
+	private final AtomicReferenceArray<Server> servers;
+	private final UDPEngine udpEngine;
+	private final AtomicReferenceArray<UDPServer> udpServers;
+	
+	/**
+	 * First game server port, or in single-port mode the port every game client connects to
+	 */
+	private final int startPort;
+	
+	/**
+	 * Accept every game client on {@link #startPort} in single-port mode, or null if every slot has its own port
+	 */
+	private final SessionAcceptor[] acceptors;
+	private final SharedUDPPort sharedUDPPort;
+	
+	/**
+	 * The slot that each session token was issued for, in single-port mode
+	 */
+	private final Map<String, Integer> sessions = new ConcurrentHashMap<String, Integer>();
+	
+	/**
+	 * The session token issued for each reserved slot, or null
+	 */
+	private final String[] slotTokens;
 	
-	private final Server[] servers;
-	private final Thread[] serverThreads;
-	private final UDPServer[] udpServers;
-	private final Thread[] udpServerThreads;
+	private final SecureRandom tokenRandom = new SecureRandom();
+	
+	/**
+	 * Applied to every slot, including slots that are created after it is set
+	 */
+	private SlowClientPolicy slowClientPolicy = SlowClientPolicy.COLLAPSE;
+	private int highWaterMark = Server.DEFAULT_HIGH_WATER_MARK;
+	
+	/**
+	 * True if a player has been added to a game on this slot
+	 */
 	private final boolean[] inUse;
 	
+	/**
+	 * The Room that each slot is reserved for, or null if the slot is free
+	 */
+	private final Room[] slotRooms;
+	
+	/**
+	 * The seat in its Room of the player on each slot, or -1 if the slot has no player
+	 */
+	private final int[] slotSeats;
+	
+	/**
+	 * Time in milliseconds at which each slot was reserved. A reservation that has not turned into a player after {@link #timeoutMillis} milliseconds is released.
+	 */
+	private final long[] reservationTimes;
+	
 	private final int timeoutMillis;
 	
-	private LocalGame localGame;
-	private Thread localGameThread;
+	/**
+	 * Every Room hosted by this server, by Room ID
+	 */
+	private final Map<Integer, Room> rooms = new ConcurrentSkipListMap<Integer, Room>();
+	private int nextRoomID = 0;
+	
+	/**
+	 * Runs the {@link LocalGame} ticks of every Room on one worker thread per core
+	 */
+	private final TickScheduler tickScheduler;
+	
+	/**
+	 * Handles each kind of client message, indexed by {@link ClientOpcode#ordinal()}
+	 */
+	private final ClientEventHandler[] handlers = new ClientEventHandler[ClientOpcode.values().length];
+	
+	/**
+	 * Histograms shared by every slot and Room
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/**
+	 * Records every Room created while it is set, or null if nothing is being recorded
+	 */
+	private volatile MatchRecorder recorder;
+	
+	/**
+	 * Keeps the results of every finished match, or null if results are not kept
+	 */
+	private volatile StatsStore statsStore;
+	
+	/**
+	 * Players listed in a <code>leaderboard</code> reply that does not ask for a number
+	 */
+	private static final int DEFAULT_LEADERBOARD = 10;
+	
+	/**
+	 * JMX views of this server and its slots, also used to answer <code>stats</code> requests
+	 */
+	private final ServerStats serverStats;
+	private final SlotStats[] slotStats;
 	
 	private final Class<? extends LocalGame> gameClass;
 	private final Class<? extends Player> playerClass;
@@ -40,15 +176,16 @@ public class GameServer {
 	/**
 	 * Creates a GameServer and opens a TCP socket for the info server as well as several TCP and UDP sockets
 	 * for each client. A total of <code>serverCount * 2</code> sockets are opened, with consecutive ports
-	 * starting at <code>startPort</code>. Because this class is responsible for creating a {@link LocalGame} object, interpreting a {@link WinCondition}
-	 * and adding {@link Player Players} to the LocalGame, it needs extra information so it knows which subclasses to instantiate and which WinConditions to
+	 * starting at <code>startPort</code>. All TCP sockets are served by one {@link TCPEngine} with at most one I/O thread per core, and all UDP sockets
+	 * by one {@link UDPEngine} thread. Because this class is responsible for creating {@link LocalGame} objects, interpreting a {@link WinCondition}
+	 * and adding {@link Player Players} to the LocalGames, it needs extra information so it knows which subclasses to instantiate and which WinConditions to
 	 * use. This decouples the server framework from any specific game logic.
 	 * 
 	 * @param _gameName the name of the game running on this server
 	 * @param _serverName the name of the server
 	 * @param infoServerPort info server port
 	 * @param startPort port of first client server
-	 * @param serverCount number of client servers
+	 * @param serverCount number of client servers, shared by every Room
 	 * @param _timeoutMillis the number of milliseconds for the servers to wait before a client has timed out
 	 * @param _gameClass the type of game to create when a create-game request is fulfilled
 	 * @param _playerClass the type of player to add to the game
@@ -56,39 +193,183 @@ public class GameServer {
 	 * @throws IOException if there is an error creating the server sockets
 	 */
 	public GameServer(final String _gameName, final String _serverName, int infoServerPort, int startPort, int serverCount, int _timeoutMillis, final Class<? extends LocalGame> _gameClass, final Class<? extends Player> _playerClass, final WinCondition[] _possibleWinConditions) throws IOException {
-		System.out.println("Starting a " + _gameName + " server named " + _serverName + " with " + serverCount + " consecutive TCP/UDP game server ports, starting at " + startPort + ". The TCP infoserver will run on port " + infoServerPort + ", and clients will be timed out after " + _timeoutMillis + " milliseconds of inactivity.");
+		this(_gameName, _serverName, infoServerPort, startPort, serverCount, 0, _timeoutMillis, _gameClass, _playerClass, _possibleWinConditions);
+	}
+	
+	/**
+	 * Creates a GameServer that can run in single-port mode. With <code>acceptorCount</code> set to 0, this is the same as
+	 * {@link #GameServer(String, String, int, int, int, int, Class, Class, WinCondition[])}. Otherwise every game client connects to TCP and UDP port
+	 * <code>gamePort</code>, which is accepted on by <code>acceptorCount</code> {@link SessionAcceptor SessionAcceptors} sharing the port with
+	 * <code>SO_REUSEPORT</code>, and the <code>serverCount</code> slots are created as they are needed.
+	 * 
+	 * @param _gameName the name of the game running on this server
+	 * @param _serverName the name of the server
+	 * @param infoServerPort info server port
+	 * @param gamePort port of first client server, or in single-port mode the port every game client connects to
+	 * @param serverCount number of client slots, shared by every Room
+	 * @param acceptorCount number of acceptors on the shared port, or 0 to give every slot its own port
+	 * @param _timeoutMillis the number of milliseconds for the servers to wait before a client has timed out
+	 * @param _gameClass the type of game to create when a create-game request is fulfilled
+	 * @param _playerClass the type of player to add to the game
+	 * @param _possibleWinConditions every potential win condition, so that the server can pick a default or match a requested win condition
+	 * @throws IOException if there is an error creating the server sockets
+	 */
+	public GameServer(final String _gameName, final String _serverName, int infoServerPort, int gamePort, int serverCount, int acceptorCount, int _timeoutMillis, final Class<? extends LocalGame> _gameClass, final Class<? extends Player> _playerClass, final WinCondition[] _possibleWinConditions) throws IOException {
+		if (acceptorCount > 1 && !SessionAcceptor.canReusePort()) {
+			System.err.println("SO_REUSEPORT is not supported on this platform, so only one acceptor will listen on the shared port");
+			acceptorCount = 1;
+		}
+		
+		if (acceptorCount == 0) {
+			System.out.println("Starting a " + _gameName + " server named " + _serverName + " with " + serverCount + " consecutive TCP/UDP game server ports, starting at " + gamePort + ". The TCP infoserver will run on port " + infoServerPort + ", and clients will be timed out after " + _timeoutMillis + " milliseconds of inactivity.");
+		} else {
+			System.out.println("Starting a " + _gameName + " server named " + _serverName + " with " + serverCount + " game server slots on shared TCP/UDP port " + gamePort + " (" + acceptorCount + " acceptors). The TCP infoserver will run on port " + infoServerPort + ", and clients will be timed out after " + _timeoutMillis + " milliseconds of inactivity.");
+		}
 		
 		gameName = _gameName;
 		serverName = _serverName;
 		
 		timeoutMillis = _timeoutMillis;
 		
-		infoServer = new Server(this, infoServerPort, -1, timeoutMillis);
+		handlers[ClientOpcode.KEY_ACCEPTED.ordinal()] = this::ignore;
+		handlers[ClientOpcode.QUIT.ordinal()] = this::disconnect;
+		handlers[ClientOpcode.TIMEOUT.ordinal()] = this::disconnect;
+		handlers[ClientOpcode.PING.ordinal()] = this::ping;
+		handlers[ClientOpcode.INIT_PLAYER.ordinal()] = this::initPlayer;
+		handlers[ClientOpcode.CLICK.ordinal()] = this::click;
+		handlers[ClientOpcode.CHAT_MESSAGE.ordinal()] = this::chatMessage;
+		handlers[ClientOpcode.SERVER_INFO_REQUEST.ordinal()] = this::infoRequest;
+		handlers[ClientOpcode.JOIN_GAME.ordinal()] = this::infoRequest;
+		handlers[ClientOpcode.GAME_INFO_REQUEST.ordinal()] = this::infoRequest;
+		handlers[ClientOpcode.CREATE_GAME.ordinal()] = this::infoRequest;
+		handlers[ClientOpcode.SNAPSHOT_ACK.ordinal()] = this::snapshotAck;
+		handlers[ClientOpcode.STATS.ordinal()] = this::infoRequest;
+		handlers[ClientOpcode.SESSION.ordinal()] = this::ignore;
+		handlers[ClientOpcode.RESUME.ordinal()] = this::resume;
+		handlers[ClientOpcode.LEADERBOARD.ordinal()] = this::infoRequest;
+		
+		tcpEngine = new TCPEngine(gameName + " " + serverName, Math.min(Runtime.getRuntime().availableProcessors(), serverCount + 1));
 		
-		servers = new Server[serverCount];
-		serverThreads = new Thread[serverCount];
-		udpServers = new UDPServer[serverCount];
-		udpServerThreads = new Thread[serverCount];
+		infoServers = new Server[INFO_SERVER_CONNECTIONS];
+		for (int i = 0; i < infoServers.length; i++) {
+			infoServers[i] = new Server(this, tcpEngine, infoServerPort, -1 - i, timeoutMillis, false);
+		}
+		infoServerPool = new ServerPool(tcpEngine, infoServerPort, infoServers);
+		
+		udpEngine = new UDPEngine(gameName + " " + serverName);
+		
+		tickScheduler = new TickScheduler(gameName + " " + serverName, Runtime.getRuntime().availableProcessors());
+		
+		startPort = gamePort;
+		servers = new AtomicReferenceArray<Server>(serverCount);
+		udpServers = new AtomicReferenceArray<UDPServer>(serverCount);
+		slotStats = new SlotStats[serverCount];
+		slotTokens = new String[serverCount];
 		inUse = new boolean[serverCount];
+		slotRooms = new Room[serverCount];
+		slotSeats = new int[serverCount];
+		reservationTimes = new long[serverCount];
 		
 		for (int i = 0; i < serverCount; i++) {
-			servers[i] = new Server(this, startPort + i, i, timeoutMillis);
-			serverThreads[i] = new Thread(servers[i], gameName + " " + serverName + " TCP Game Server Thread " + i);
-			serverThreads[i].start();
-			
-			udpServers[i] = new UDPServer(startPort + i);
-			udpServerThreads[i] = new Thread(udpServers[i], gameName + " " + serverName + " UDP Game Server Thread " + i);
-			udpServerThreads[i].start();
-			
 			inUse[i] = false;
+			slotSeats[i] = -1;
 		}
 		
-		infoServerThread = new Thread(infoServer, gameName + " " + serverName + " Info Server Thread");
-		infoServerThread.start();
-		
 		gameClass = _gameClass;
 		playerClass = _playerClass;
 		possibleWinConditions = _possibleWinConditions;
+		
+		serverStats = new ServerStats(this, tickScheduler.tickDurations());
+		registerMBean(serverStats, "type=Server");
+		
+		if (acceptorCount == 0) {
+			acceptors = null;
+			sharedUDPPort = null;
+			
+			for (int i = 0; i < serverCount; i++) {
+				openSlot(i);
+			}
+		} else {
+			acceptors = new SessionAcceptor[acceptorCount];
+			for (int i = 0; i < acceptorCount; i++) {
+				acceptors[i] = new SessionAcceptor(tcpEngine, gamePort, acceptorCount > 1, this::sessionServer, timeoutMillis);
+			}
+			
+			sharedUDPPort = new SharedUDPPort(udpEngine, gamePort, this::sessionUDPServer);
+		}
+	}
+	
+	/**
+	 * Creates the TCP and UDP servers of a slot. In single-port mode this happens when the slot is first reserved; otherwise every slot is opened
+	 * at startup, on its own port.
+	 * 
+	 * @param slot slot to open
+	 * @throws IOException if the slot's ports cannot be opened
+	 */
+	private synchronized void openSlot(int slot) throws IOException {
+		if (acceptors == null) {
+			servers.set(slot, new Server(this, tcpEngine, startPort + slot, slot, timeoutMillis));
+			udpServers.set(slot, new UDPServer(udpEngine, startPort + slot));
+		} else {
+			servers.set(slot, new Server(this, tcpEngine, startPort, slot, timeoutMillis, false));
+			udpServers.set(slot, new UDPServer(sharedUDPPort));
+		}
+		
+		servers.get(slot).setSlowClientPolicy(slowClientPolicy, highWaterMark);
+		
+		slotStats[slot] = new SlotStats(this, slot);
+		registerMBean(slotStats[slot], acceptors == null ? "type=Slot,port=" + servers.get(slot).port : "type=Slot,slot=" + slot);
+	}
+	
+	/**
+	 * Issues a new session token for a reserved slot, replacing any earlier one.
+	 * 
+	 * @param slot reserved slot
+	 * @return session token for the client that reserved the slot
+	 */
+	private synchronized String issueSession(int slot) {
+		endSession(slot);
+		
+		byte[] random = new byte[16];
+		tokenRandom.nextBytes(random);
+		
+		StringBuilder token = new StringBuilder(random.length * 2);
+		for (byte b : random) {
+			token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		slotTokens[slot] = token.toString();
+		sessions.put(slotTokens[slot], slot);
+		return slotTokens[slot];
+	}
+	
+	private synchronized void endSession(int slot) {
+		if (slotTokens[slot] != null) {
+			sessions.remove(slotTokens[slot]);
+			slotTokens[slot] = null;
+		}
+	}
+	
+	/**
+	 * Finds the TCP server of the slot that a session token was issued for. Called by the {@link SessionAcceptor SessionAcceptors}.
+	 * 
+	 * @param token session token sent by the client
+	 * @return the slot's server, or null if the token is unknown or its reservation has expired
+	 */
+	private synchronized Server sessionServer(final String token) {
+		Integer slot = sessions.get(token);
+		return (slot == null || slotRooms[slot] == null) ? null : servers.get(slot);
+	}
+	
+	/**
+	 * Finds the UDP server of the slot that a session token was issued for. Called by the {@link SharedUDPPort}.
+	 * 
+	 * @param token session token sent by the client
+	 * @return the slot's UDP server, or null if the token is unknown or its reservation has expired
+	 */
+	private synchronized UDPServer sessionUDPServer(final String token) {
+		Integer slot = sessions.get(token);
+		return (slot == null || slotRooms[slot] == null) ? null : udpServers.get(slot);
 	}
 	
 	/**
@@ -98,222 +379,780 @@ public class GameServer {
 	 * @param message String message received from client
 	 */
 	public void processClientEvent(int clientID, final String message) {
-		String header = message;
-		String body = "";
+		processClientEvent(clientID, ClientMessage.of(message));
+	}
+		
+	/**
+	 * Processes a message received from the client. The message is dispatched through a table indexed by its {@link ClientOpcode}, and
+	 * click events are parsed in place, so the hottest client messages are handled without allocating.
+	 * 
+	 * @param clientID ID of the client that sent the message
+	 * @param message message received from client, only valid until this method returns
+	 */
+	public void processClientEvent(int clientID, final ClientMessage message) {
+		ClientOpcode opcode = message.opcode();
+		Room room = clientID >= 0 ? slotRooms[clientID] : null;
 		
-		if (message.contains(" ")) {
-			header = message.substring(0, message.indexOf(" "));
-			body = message.substring(message.indexOf(" ") + 1);	
+		MatchRecorder matchRecorder = recorder;
+		if (matchRecorder != null) {
+			matchRecorder.inbound(clientID, room == null ? -1 : room.id, message);
 		}
 		
-		if (header.equals("ping")) {
-			if (gameState == GameState.WAITING_FOR_PLAYERS && clientID != -1) {
-				if (checkAllPlayersJoined() && checkAllUDPServersBound()) {
-					gameState = GameState.BEGINNING;
-					System.out.println("All players are connected, beginning the game");
-				}
-				
-				if (!udpServers[clientID].boundToClient()) {
-					servers[clientID].sendString("waiting-for-udp");
-				}
-			}			
-		} else if (header.equals("init-player")) { //A new player has connected to the server
-			if (gameState == GameState.WAITING_FOR_PLAYERS) {
-				String name = "Jose"; //Default player name
-				int color = 0xFF00FF; //Default player color
-				
-				for (String field : body.split(" ")) {
-					String fieldHeader = field.substring(0, field.indexOf(":"));
-					String fieldBody = field.substring(field.indexOf(":") + 1);
-					
-					if (fieldHeader.equals("name")) {
-						name = fieldBody.replace('_', ' ');
-					} else if (fieldHeader.equals("color")) {
-						color = Integer.parseInt(fieldBody);
-					}
-				}
-				
-				for (Player player : localGame.players) {
-					
-					while (player != null && player.hasSimilarColorTo(color)) {
-						int red = (int)(Math.random() * 256);
-						int green = (int)(Math.random() * 256);
-						int blue = (int)(Math.random() * 256);
-						
-						color = (red << 16) | (green << 8) | blue;
-					}
+		if (opcode == null) { //Unknown messages are ignored
+			return;
+		}
+		
+		handlers[opcode.ordinal()].handle(clientID, room, message);
+	}
+	
+	private void ping(int clientID, final Room room, final ClientMessage message) {
+		if (room != null && room.gameState == GameState.WAITING_FOR_PLAYERS) {
+			if (checkAllPlayersJoined(room) && checkAllUDPServersBound(room)) {
+				room.gameState = GameState.BEGINNING;
+				System.out.println("All players are connected to room " + room.id + ", beginning the game");
+			}
+			
+			if (!udpServers.get(clientID).boundToClient()) {
+				servers.get(clientID).send(Messages.WAITING_FOR_UDP);
+			}
+		}			
+	}
+	
+	/**
+	 * A new player has connected to the server
+	 */
+	private void initPlayer(int clientID, final Room room, final ClientMessage message) {
+		if (room == null) {
+			System.err.println("Client " + clientID + " tried to initialize a player without joining a game, disconnecting...");
+			servers.get(clientID).send(Messages.JOIN_GAME_NO_GAME);
+			servers.get(clientID).closeConnection();
+			return;
+		}
+		
+		if (room.gameState == GameState.WAITING_FOR_PLAYERS && !inUse[clientID]) {
+			String name = "Jose"; //Default player name
+			int color = 0xFF00FF; //Default player color
+			
+			while (message.nextField()) {
+				if (message.fieldHeaderEquals("name")) {
+					name = message.fieldBodyString().replace('_', ' ');
+				} else if (message.fieldHeaderEquals("color")) {
+					CharSequence fieldBody = message.fieldBody();
+					color = Integer.parseInt(fieldBody, 0, fieldBody.length(), 10);
 				}
+			}
+			
+			LocalGame localGame = room.game;
+			
+			for (Player player : localGame.players) {
 				
-				try {
-					Player player = playerClass.getDeclaredConstructor(String.class, int.class).newInstance(name, color);
+				while (player != null && player.hasSimilarColorTo(color)) {
+					int red = (int)(Math.random() * 256);
+					int green = (int)(Math.random() * 256);
+					int blue = (int)(Math.random() * 256);
 					
-					localGame.addPlayer(clientID, player);
-					System.out.println("Player \"" + name.replace('_', ' ') + "\" has connected to the server on port " + servers[clientID].port + " with color " + color + " and clientID " + clientID);
-				} catch (Exception e) {
-					e.printStackTrace();
-					System.err.println("Player \"" + name + "\" tried to connect on port " + servers[clientID].port + " but could not be added to the game, disconnecting...");
-					servers[clientID].closeConnection();
-					udpServers[clientID].reset();
-					inUse[clientID] = false;
-					return;
+					color = (red << 16) | (green << 8) | blue;
 				}
 			}
 			
-			inUse[clientID] = true;
+			int seat = room.takeSeat(clientID);
 			
-			broadcastTCP(getFullPlayerList());
-		} else if (header.equals("quit") || header.equals("timeout")) {
-			if (clientID >= 0 && inUse[clientID]) {
-				udpServers[clientID].reset();
-				servers[clientID].sendString("timeout");
-				servers[clientID].closeConnection();
-				localGame.disconnectPlayer(clientID);
-				inUse[clientID] = false;
-				
-				if (header.equals("timeout")) {
-					System.out.println("Client " + clientID + " has timed out, disconnecting");
-				} else {
-					System.out.println("Client " + clientID + " has disconnected");
+			try {
+				if (seat == -1) {
+					throw new IllegalStateException("Room " + room.id + " is full");
 				}
 				
-				if (localGame.currentPlayers == 0) {
-					System.out.println("Everybody has disconnected, destroying the game");
-					localGame = null;
-					gameState = GameState.NO_GAME;
-				} else {
-					broadcastTCP(getFullPlayerList());
+				Player player = playerClass.getDeclaredConstructor(String.class, int.class).newInstance(name, color);
+				
+				localGame.addPlayer(seat, player);
+				
+				System.out.println("Player \"" + name.replace('_', ' ') + "\" has connected to room " + room.id + " on port " + servers.get(clientID).port + " with color " + color + " and clientID " + clientID);
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.err.println("Player \"" + name + "\" tried to connect on port " + servers.get(clientID).port + " but could not be added to the game, disconnecting...");
+				if (seat != -1) {
+					room.leaveSeat(seat);
 				}
+				servers.get(clientID).closeConnection();
+				udpServers.get(clientID).reset();
+				releaseSlot(clientID);
+				return;
 			}
 			
-			if (clientID == -1) {
-				infoServer.sendString("timeout");
-				infoServer.closeConnection();
-				
-				if (header.equals("timeout")) {
-					System.out.println("Client has timed out from the infoserver, disconnecting");
-				} else {
-					System.out.println("Client has disconnected from the infoserver");
-				}
+			synchronized(this) {
+				slotSeats[clientID] = seat;
+				inUse[clientID] = true;
 			}
-		} else if (header.equals("c")) {
-			if (gameState == GameState.IN_GAME) {				
-				float x = -1;
-				float y = -1;
-				String aux = null;
 				
-				String[] fields = body.split(" ");
-				for (String field : fields) {
-					if (field.contains(":")) {
-						String fieldHeader = field.substring(0, field.indexOf(":"));
-						String fieldBody = field.substring(field.indexOf(":") + 1);
-						
-						if (fieldHeader.equals("l")) {
-							try {
-								x = Float.parseFloat(fieldBody.substring(0, fieldBody.indexOf(":")));
-								y = Float.parseFloat(fieldBody.substring(fieldBody.indexOf(":") + 1));
-							} catch (Exception e) {
-								System.err.println("Malformed field in click event! Field:\"" + field + "\" Event:\"" + message + "\"");
-								e.printStackTrace();
+			room.broadcastTCP(getFullPlayerList(room));
+		}
+	}
+					
+	private void disconnect(int clientID, final Room room, final ClientMessage message) {
+		if (clientID >= 0 && inUse[clientID]) {
+			int seat = slotSeats[clientID];
+				
+			udpServers.get(clientID).reset();
+			servers.get(clientID).send(Messages.TIMEOUT);
+			servers.get(clientID).closeConnection();
+			room.leaveSeat(seat);
+			room.game.disconnectPlayer(seat);
+			releaseSlot(clientID);
+				
+			if (message.opcode() == ClientOpcode.TIMEOUT) {
+				System.out.println("Client " + clientID + " has timed out, disconnecting");
+			} else {
+				System.out.println("Client " + clientID + " has disconnected");
+			}
+					
+			if (room.game.currentPlayers == 0) {
+				System.out.println("Everybody has disconnected from room " + room.id + ", destroying the game");
+				destroyRoom(room);
+			} else {
+				room.broadcastTCP(getFullPlayerList(room));
+			}
+		} else if (clientID >= 0 && room != null) { //The client joined a room but left before adding a player
+			servers.get(clientID).closeConnection();
+			releaseSlot(clientID);
+		}
+		
+		if (clientID < 0) {
+			infoServer(clientID).send(Messages.TIMEOUT);
+			infoServer(clientID).closeConnection();
+			
+			if (message.opcode() == ClientOpcode.TIMEOUT) {
+				System.out.println("Client has timed out from the infoserver, disconnecting");
+			} else {
+				System.out.println("Client has disconnected from the infoserver");
+			}
+		}
+	}
+	
+	private void click(int clientID, final Room room, final ClientMessage message) {
+		if (room != null && room.gameState == GameState.IN_GAME && inUse[clientID]) {
+			float x = -1;
+			float y = -1;
+			int frame = 0;
+			CharSequence aux = null;
+			
+			while (message.nextField()) {
+				if (message.fieldHasBody()) {
+					if (message.fieldHeaderEquals("l")) {
+						try {
+							int split = message.indexOf(':', message.fieldBodyStart(), message.fieldEnd());
+							if (split == -1) {
+								throw new NumberFormatException("Click location has no y coordinate");
 							}
-						} else if (fieldHeader.equals("a")) {
-							aux = fieldBody;
+							
+							x = message.parseFloat(message.fieldBodyStart(), split);
+							y = message.parseFloat(split + 1, message.fieldEnd());
+						} catch (Exception e) {
+							System.err.println("Malformed field in click event! Field:\"" + message.fieldString() + "\" Event:\"" + message + "\"");
+							e.printStackTrace();
 						}
-					} else {
-						System.err.println("Malformed field in click event! Field:\"" + field + "\" Event:\"" + message + "\"");
+					} else if (message.fieldHeaderEquals("f")) {
+						try {
+							frame = message.parseInt(message.fieldBodyStart(), message.fieldEnd());
+						} catch (NumberFormatException e) {
+							System.err.println("Malformed field in click event! Field:\"" + message.fieldString() + "\" Event:\"" + message + "\"");
+						}
+					} else if (message.fieldHeaderEquals("a")) {
+						aux = message.fieldBody();
 					}
+				} else {
+					System.err.println("Malformed field in click event! Field:\"" + message.fieldString() + "\" Event:\"" + message + "\"");
 				}
-				
-				if (x != -1 && y != -1) {
-					localGame.processClickEvent(clientID, x, y, aux);
+			}
+			
+			if (x != -1 && y != -1) {
+				room.game.queueClick(slotSeats[clientID], x, y, frame, aux);
+			}
+		}
+	}
+	
+	private void chatMessage(int clientID, final Room room, final ClientMessage message) {
+		if (room != null && room.gameState == GameState.WAITING_FOR_PLAYERS && inUse[clientID]) {
+			room.broadcastTCP(Messages.chatMessage(room.game.players[slotSeats[clientID]].name, message.bodyString()));
+		}
+	}
+	
+	private void snapshotAck(int clientID, final Room room, final ClientMessage message) {
+		if (room != null && room.gameState == GameState.IN_GAME && inUse[clientID]) {
+			while (message.nextField()) {
+				if (message.fieldHasBody() && message.fieldHeaderEquals("seq")) {
+					try {
+						room.game.processSnapshotAck(slotSeats[clientID], message.parseInt(message.fieldBodyStart(), message.fieldEnd()));
+					} catch (NumberFormatException e) {
+						System.err.println("Malformed field in snapshot ack! Field:\"" + message.fieldString() + "\" Event:\"" + message + "\"");
+					}
 				}
 			}
-		} else if (header.equals("chat-message")) {
+		}
+	}
+	
+	private void infoRequest(int clientID, final Room room, final ClientMessage message) {
+		if (clientID < 0) {
+			handleInfoMessage(infoServer(clientID), message.opcode(), message.bodyString());
+		}
+	}
+	
+	/**
+	 * The info server connection of a lobby client.
+	 * 
+	 * @param clientID clientID of the lobby client, less than 0
+	 * @return the Server that the client is connected to
+	 */
+	private Server infoServer(int clientID) {
+		return infoServers[-1 - clientID];
+	}
+	
+	/**
+	 * A game client resumed its session on a new connection, which may come from a new address, so its UDP server waits for a new hello
+	 */
+	private void resume(int clientID, final Room room, final ClientMessage message) {
+		if (clientID >= 0 && room != null) {
+			udpServers.get(clientID).reset();
+			udpServers.get(clientID).openForNewClients();
+			System.out.println("Client " + clientID + " resumed its session");
+		}
+	}
+	
+	private void ignore(int clientID, final Room room, final ClientMessage message) {
+		
+	}
+	
+	private Message getFullPlayerList(final Room room) {
+		Player[] players = room.game.players;
+		int count = 0;
+		
+		for (Player player : players) {
+			if (player != null) {
+				count++;
+			}
+		}
+		
+		String[] names = new String[count];
+		int[] colors = new int[count];
+		int i = 0;
+		
+		for (Player player : players) {
+			if (player != null) {
+				names[i] = player.name;
+				colors[i] = player.color;
+				i++;
+			}
+		}
+		
+		return Messages.playerList(names, colors);
+	}
+	
+	/**
+	 * Sends a message to the client on a slot.
+	 * 
+	 * @param clientID slot of the client
+	 * @param message message to send
+	 */
+	void sendTCP(int clientID, final String message) {
+		servers.get(clientID).sendString(message);
+	}
+	
+	/**
+	 * Sends a message to the client on a slot, in whichever protocol the client negotiated.
+	 * 
+	 * @param clientID slot of the client
+	 * @param message message to send
+	 */
+	void sendTCP(int clientID, final Message message) {
+		servers.get(clientID).send(message);
+	}
+	
+	/**
+	 * Sends several messages to the client on a slot, in whichever protocol the client negotiated. The messages are queued together, so they
+	 * are sent in one frame.
+	 * 
+	 * @param clientID slot of the client
+	 * @param messages messages to send, in order
+	 */
+	void sendTCP(int clientID, final List<Message> messages) {
+		servers.get(clientID).send(messages);
+	}
+	
+	/**
+	 * Queues a message for the client on a slot over UDP, if the client has bound a UDP address. The message is sent when the slot is
+	 * flushed with {@link #flushUDP(int)}.
+	 * 
+	 * @param clientID slot of the client
+	 * @param message message to send
+	 */
+	void sendUDP(int clientID, final String message) {
+		if (udpServers.get(clientID).boundToClient()) {
+			udpServers.get(clientID).sendString(message);
+		}
+	}
+	
+	/**
+	 * Queues one UDP packet for the client on a slot, if the client has bound a UDP address. The packet is sent when the slot is
+	 * flushed with {@link #flushUDP(int)}.
+	 * 
+	 * @param clientID slot of the client
+	 * @param data packet contents, which are copied
+	 * @param length number of bytes to send
+	 */
+	void sendUDP(int clientID, final byte[] data, int length) {
+		if (udpServers.get(clientID).boundToClient()) {
+			udpServers.get(clientID).sendBytes(data, length);
+		}
+	}
+	
+	/**
+	 * Sends every UDP packet queued for the client on a slot.
+	 * 
+	 * @param clientID slot of the client
+	 */
+	void flushUDP(int clientID) {
+		udpServers.get(clientID).flush();
+	}
+	
+	private boolean checkAllPlayersJoined(final Room room) {
+		return (room.game.currentPlayers == room.game.maxPlayers);
+	}
+	
+	private boolean checkAllUDPServersBound(final Room room) {
+		for (int seat = 0; seat < room.seatCount(); seat++) {
+			int clientID = room.clientInSeat(seat);
+	
+			if (clientID != -1 && !udpServers.get(clientID).boundToClient()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Reserves a free slot for a client that wants to join a Room. Expired reservations are released first.
+	 * 
+	 * @param room Room the client wants to join
+	 * @return the reserved slot, -1 if the Room is full, or -2 if every slot is in use
+	 */
+	private synchronized int reserveSlot(final Room room) {
+		long now = System.currentTimeMillis();
+		int reserved = 0;
+		int free = -1;
+		
+		for (int i = 0; i < slotRooms.length; i++) {
+			if (slotRooms[i] != null && !inUse[i] && now - reservationTimes[i] > timeoutMillis) {
+				slotRooms[i] = null;
+				endSession(i);
+			}
 			
-			if (gameState == GameState.WAITING_FOR_PLAYERS) {
-				broadcastTCP("chat-message " + localGame.players[clientID].name.replace(' ', '_') + ":" + body);
+			if (slotRooms[i] == room && !inUse[i]) {
+				reserved++;
+			} else if (slotRooms[i] == null && free == -1) {
+				free = i;
 			}
 		}
 		
-		if (clientID == -1) {
-			handleInfoMessage(header, body);
+		if (room.occupiedSeats() + reserved >= room.seatCount()) {
+			return -1;
+		}
+		
+		if (free == -1) {
+			return -2;
 		}
+		
+		if (servers.get(free) == null) {
+			try {
+				openSlot(free);
+			} catch (IOException e) {
+				System.err.println("Unable to open game server slot " + free);
+				e.printStackTrace();
+				return -2;
+			}
+		}
+		
+		slotRooms[free] = room;
+		reservationTimes[free] = now;
+		return free;
+	}
+	
+	/**
+	 * Frees a slot so that it can be reserved by another Room.
+	 * 
+	 * @param clientID slot to free
+	 */
+	private synchronized void releaseSlot(int clientID) {
+		inUse[clientID] = false;
+		slotRooms[clientID] = null;
+		slotSeats[clientID] = -1;
+		endSession(clientID);
 	}
 	
-	private synchronized String getFullPlayerList() {
-		String playerList = "player-list";
+	private synchronized int freeSlotCount() {
+		int count = 0;
+		for (int i = 0; i < slotRooms.length; i++) {
+			if (slotRooms[i] == null) {
+				count++;
+			}
+		}
 		
-		for (Player player : localGame.players) {
-			if (player != null) {
-				playerList += " name:" + player.name.replace(' ', '_') + " color:" + player.color;
+		return count;
+	}
+	
+	private void destroyRoom(final Room room) {
+		room.game.stop();
+		room.gameState = GameState.NO_GAME;
+		rooms.remove(room.id);
+		unregisterMBean("type=Room,id=" + room.id);
+	}
+	
+	/**
+	 * Registers an MBean with the platform MBean server, under this server's name. Monitoring is optional, so a failure is only reported.
+	 * 
+	 * @param mbean the MBean
+	 * @param properties key properties that identify the MBean within this server
+	 */
+	private void registerMBean(final Object mbean, final String properties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, mbeanName(properties));
+		} catch (JMException e) {
+			System.err.println("Unable to register the JMX MBean \"" + properties + "\": " + e);
+		}
+	}
+	
+	private void unregisterMBean(final String properties) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName(properties));
+		} catch (JMException e) {
+			System.err.println("Unable to unregister the JMX MBean \"" + properties + "\": " + e);
+		}
+	}
+	
+	private ObjectName mbeanName(final String properties) throws JMException {
+		return new ObjectName("com.dezzy.skrop2_server:server=" + ObjectName.quote(serverName) + "," + properties);
+	}
+	
+	/**
+	 * Formats every metric of this server as one info server line: server-wide fields first, then one <code>slot</code> field for each slot
+	 * that has a client or a reservation and one <code>room</code> field for each Room.
+	 * 
+	 * @return the reply to a <code>stats</code> request
+	 */
+	private String getStats() {
+		StringBuilder out = new StringBuilder("stats");
+		
+		out.append(" rooms:").append(serverStats.getRoomCount());
+		out.append(" slots-in-use:").append(serverStats.getSlotsInUse()).append("/").append(serverStats.getSlotCount());
+		out.append(" ticks:").append(serverStats.getTickCount());
+		out.append(" tick-us:").append(serverStats.getTickP50Micros()).append(":").append(serverStats.getTickP99Micros()).append(":").append(serverStats.getTickMaxMicros());
+		out.append(" click-to-broadcast-us:").append(serverStats.getClickToBroadcastP50Micros()).append(":").append(serverStats.getClickToBroadcastP99Micros()).append(":").append(serverStats.getClickToBroadcastMaxMicros());
+		out.append(" encrypt-ns:").append(serverStats.getEncryptP50Nanos()).append(":").append(serverStats.getEncryptP99Nanos());
+		out.append(" decrypt-ns:").append(serverStats.getDecryptP50Nanos()).append(":").append(serverStats.getDecryptP99Nanos());
+		out.append(" udp-dropped:").append(serverStats.getUDPDroppedPackets());
+		
+		for (SlotStats slot : slotStats) {
+			int room = (slot == null) ? -1 : slot.getRoom();
+			
+			if (room != -1) {
+				out.append(" slot:").append(acceptors == null ? slot.getPort() : slot.getSlot()).append(":").append(room).append(":").append(slot.getBytesIn()).append(":").append(slot.getBytesOut())
+						.append(":").append(slot.getMessagesIn()).append(":").append(slot.getMessagesOut()).append(":").append(slot.getQueueDepth()).append(":").append(slot.getMessagesDropped()).append(":").append(slot.getUDPDroppedPackets());
 			}
 		}
 		
-		return playerList;
+		for (Room room : rooms.values()) {
+			RoomStats stats = new RoomStats(room);
+			
+			out.append(" room:").append(room.id).append(":").append(stats.getGameState()).append(":").append(stats.getPlayers()).append(":").append(stats.getTickP99Micros())
+					.append(":").append(stats.getClickToBroadcastP99Micros()).append(":").append(stats.getDroppedClicks());
+		}
+		
+		return out.toString();
 	}
 	
-	public synchronized void broadcastTCP(final String message) {
-		for (int i = 0; i < servers.length; i++) {
-			if (inUse[i]) {
-				servers[i].sendString(message);
+	/**
+	 * Sets what every game server slot does with messages for a client that is not keeping up. The info server keeps the default.
+	 * 
+	 * @param policy what to do with messages once a slot's queue passes the high-water mark
+	 * @param highWaterMark number of queued bytes at which the policy starts to apply
+	 */
+	public synchronized void setSlowClientPolicy(final SlowClientPolicy policy, int _highWaterMark) {
+		slowClientPolicy = policy;
+		highWaterMark = _highWaterMark;
+		
+		for (int slot = 0; slot < servers.length(); slot++) {
+			Server server = servers.get(slot);
+			
+			if (server != null) {
+				server.setSlowClientPolicy(policy, _highWaterMark);
 			}
 		}
 	}
 	
-	public synchronized void broadcastUDP(final String message) {
-		for (int i = 0; i < udpServers.length; i++) {
-			if (inUse[i] && udpServers[i].boundToClient()) {
-				udpServers[i].sendString(message);
+	/**
+	 * Starts recording every Room created from now on to a {@link MatchRecorder} log, which can be replayed with a {@link MatchReplay}. Rooms
+	 * that already exist are not recorded, because they could not be replayed without the start of their match. If a log is already being
+	 * recorded, it is closed first.
+	 * 
+	 * @param path file to record to; it is replaced if it exists
+	 * @param capacity size of the log in bytes
+	 * @throws IOException if the log cannot be created
+	 */
+	public synchronized void startRecording(final Path path, int capacity) throws IOException {
+		stopRecording();
+		
+		recorder = new MatchRecorder(path, capacity);
+		System.out.println("Recording new games to " + path + " (" + (capacity >> 20) + " MB)");
+	}
+	
+	/**
+	 * Stops recording and closes the log. Does nothing if nothing is being recorded.
+	 */
+	public synchronized void stopRecording() {
+		MatchRecorder matchRecorder = recorder;
+		if (matchRecorder == null) {
+			return;
+		}
+		
+		recorder = null;
+		for (Room room : rooms.values()) {
+			room.recorder = null;
+		}
+		
+		try {
+			matchRecorder.close();
+			System.out.println("Stopped recording to " + matchRecorder.path() + ": " + matchRecorder.bytesUsed() + " bytes recorded, " + matchRecorder.droppedRecords() + " records dropped");
+		} catch (IOException e) {
+			System.err.println("Error closing the match log " + matchRecorder.path());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts keeping the results of every match that ends in a {@link StatsStore}, which also answers <code>leaderboard</code> requests. Does
+	 * nothing if results are already being kept.
+	 * 
+	 * @param path the stats file; it is created if it does not exist
+	 * @throws IOException if the stats file cannot be read or written
+	 */
+	public synchronized void openStats(final Path path) throws IOException {
+		if (statsStore == null) {
+			statsStore = new StatsStore(gameName + " " + serverName, path);
+			System.out.println("Keeping player stats in " + path + " (" + statsStore.playerCount() + " players)");
+		}
+	}
+	
+	/**
+	 * Queues the results of a match for the {@link StatsStore}, if there is one. Never blocks.
+	 * 
+	 * @param names names of the players, in ranked order
+	 * @param points points each player scored
+	 * @param winners number of players at the start of <code>names</code> that won
+	 */
+	void reportResults(final String[] names, final int[] points, int winners) {
+		StatsStore store = statsStore;
+		if (store != null) {
+			store.submit(names, points, winners);
+		}
+	}
+	
+	/**
+	 * Stops recording and writes every queued match result. Called when the server is stopping.
+	 */
+	public synchronized void shutdown() {
+		stopRecording();
+		
+		if (statsStore != null) {
+			try {
+				statsStore.close();
+			} catch (IOException e) {
+				System.err.println("Error closing the stats store");
+				e.printStackTrace();
 			}
+			statsStore = null;
 		}
 	}
 	
-	private boolean checkAllPlayersJoined() {		
-		return (localGame.currentPlayers == localGame.maxPlayers);
+	/**
+	 * Histograms shared by every slot and Room of this server.
+	 * 
+	 * @return server-wide metrics
+	 */
+	public ServerMetrics metrics() {
+		return metrics;
 	}
 	
-	private synchronized boolean checkAllUDPServersBound() {
-		for (int i = 0; i < udpServers.length; i++) {
-			if (inUse[i] && !udpServers[i].boundToClient()) {
-				return false;
+	int roomCount() {
+		return rooms.size();
+	}
+	
+	int slotCount() {
+		return servers.length();
+	}
+	
+	synchronized int slotsInUse() {
+		int count = 0;
+		for (boolean used : inUse) {
+			if (used) {
+				count++;
 			}
 		}
 		
-		return true;
+		return count;
 	}
 	
-	private void handleInfoMessage(final String header, final String body) {
-		if (header.equals("server-info-request")) { //The client requested info about the server
-			System.out.println("Client requesting server info");
-			infoServer.sendString("server-info name:" + serverName.replace(' ', '_') + " open-ports:" + servers.length + " game-running:" + (gameState != GameState.NO_GAME));
-		} else if (header.equals("join-game")) { //The client wants to join the game and needs a port
+	synchronized boolean slotInUse(int clientID) {
+		return inUse[clientID];
+	}
+	
+	synchronized Room slotRoom(int clientID) {
+		return slotRooms[clientID];
+	}
+	
+	/**
+	 * The TCP server of a slot.
+	 * 
+	 * @param clientID slot
+	 * @return the slot's server, or null if the slot has not been opened yet
+	 */
+	Server server(int clientID) {
+		return servers.get(clientID);
+	}
+	
+	/**
+	 * The UDP server of a slot.
+	 * 
+	 * @param clientID slot
+	 * @return the slot's UDP server, or null if the slot has not been opened yet
+	 */
+	UDPServer udpServer(int clientID) {
+		return udpServers.get(clientID);
+	}
+	
+	/**
+	 * Finds the Room that an info server request refers to. If the request has a <code>room</code> field, that Room is returned; otherwise the Room
+	 * with the lowest ID that is still waiting for players is returned, or the Room with the lowest ID if none are waiting.
+	 * 
+	 * @param body body of the info server request
+	 * @return the requested Room, or null if there is no such Room
+	 */
+	private Room findRoom(final String body) {
+		for (String field : body.split(" ")) {
+			if (field.startsWith("room:")) {
+				try {
+					return rooms.get(Integer.parseInt(field.substring(field.indexOf(":") + 1)));
+				} catch (NumberFormatException e) {
+					System.err.println("Malformed room ID in info server request! Field:\"" + field + "\"");
+					return null;
+				}
+			}
+		}
+		
+		for (Room room : rooms.values()) {
+			if (room.gameState == GameState.WAITING_FOR_PLAYERS) {
+				return room;
+			}
+		}
+		
+		for (Room room : rooms.values()) {
+			return room;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * The <code>server-info</code> response. Everything in it but the number of Rooms is fixed when the server starts, so the response is
+	 * reused until a Room is created or destroyed.
+	 * 
+	 * @return server info message
+	 */
+	private Message getServerInfo() {
+		int roomCount = rooms.size();
+		
+		CachedResponse cached = serverInfo;
+		if (cached == null || !cached.matches(roomCount)) {
+			cached = new CachedResponse(roomCount, Messages.serverInfo(serverName, servers.length(), roomCount > 0, roomCount));
+			serverInfo = cached;
+		}
+		
+		return cached.message;
+	}
+	
+	/**
+	 * The <code>leaderboard</code> response for a request. The request can pick a ranking with <code>by</code> (wins by default) and a number of
+	 * players with <code>count</code>.
+	 * 
+	 * @param body body of the <code>leaderboard</code> request
+	 * @return leaderboard message, with no players if results are not being kept
+	 */
+	private Message getLeaderboard(final String body) {
+		StatsStore.Ranking ranking = StatsStore.Ranking.WINS;
+		int count = DEFAULT_LEADERBOARD;
+		
+		for (String field : body.split(" ")) {
+			if (field.startsWith("by:")) {
+				StatsStore.Ranking named = StatsStore.Ranking.named(field.substring(field.indexOf(":") + 1));
+				
+				if (named != null) {
+					ranking = named;
+				} else {
+					System.err.println("Unknown leaderboard ranking in info server request! Field:\"" + field + "\"");
+				}
+			} else if (field.startsWith("count:")) {
+				try {
+					count = Math.max(1, Math.min(StatsStore.MAX_LEADERBOARD, Integer.parseInt(field.substring(field.indexOf(":") + 1))));
+				} catch (NumberFormatException e) {
+					System.err.println("Malformed count in info server request! Field:\"" + field + "\"");
+				}
+			}
+		}
+		
+		StatsStore store = statsStore;
+		if (store == null) {
+			return Messages.leaderboard(ranking.header, new String[0], new int[0], new int[0], new int[0], new int[0]);
+		}
+		
+		return store.leaderboard(ranking, count);
+	}
+	
+	private void handleInfoMessage(final Server infoServer, final ClientOpcode opcode, final String body) {
+		if (opcode == ClientOpcode.SERVER_INFO_REQUEST) { //The client requested info about the server
+			infoServer.send(getServerInfo());
+		} else if (opcode == ClientOpcode.JOIN_GAME) { //The client wants to join a game and needs a port
 			System.out.println("Client requesting to join game");
 			
-			if (gameState == GameState.NO_GAME) {
-				infoServer.sendString("join-game-no-game");
+			Room room = findRoom(body);
+			
+			if (room == null || room.gameState == GameState.NO_GAME) {
+				infoServer.send(Messages.JOIN_GAME_NO_GAME);
 			} else {
+				int slot = reserveSlot(room);
 				
-				int i = 0;
-				while (inUse[i] == true && i < localGame.maxPlayers) {
-					i++;
-				}
-				
-				if (i == localGame.maxPlayers) { //The game has reached the max number of players
-					infoServer.sendString("game-full");
+				if (slot < 0) { //The game has reached the max number of players, or the server has no free slots
+					infoServer.send(Messages.GAME_FULL);
+				} else if (acceptors == null) {
+					udpServers.get(slot).openForNewClients(); //Tell the UDP server to expect a new client
+					infoServer.send(Messages.port(servers.get(slot).port)); //Tell the client which port to use
 				} else {
-					udpServers[i].openForNewClients(); //Tell the UDP server to expect a new client
-					infoServer.sendString("port " + servers[i].port); //Tell the client which port to use
+					udpServer(slot).openForNewClients();
+					infoServer.send(Messages.session(startPort, issueSession(slot))); //Tell the client which port to use and how to find its slot there
 				}
 			}
-		} else if (header.equals("game-info-request")) { //The client has requested info about the current game
-			System.out.println("Client requesting game info");
-			if (gameState != GameState.NO_GAME) {
-				infoServer.sendString("game-info name:" + localGame.name.replace(' ', '_') + " status:" + gameState.toString() + " max-players:" + localGame.maxPlayers + " players:" + localGame.currentPlayers + " win-condition:" + localGame.winCondition.toString() + " win-condition-arg:" + localGame.winConditionArg);
+		} else if (opcode == ClientOpcode.GAME_INFO_REQUEST) { //The client has requested info about a game
+			Room room = findRoom(body);
+			
+			if (room != null && room.gameState != GameState.NO_GAME) {
+				infoServer.send(room.gameInfo());
 			} else {
-				infoServer.sendString("game-info-no-game");
+				infoServer.send(Messages.GAME_INFO_NO_GAME);
 			}
-		} else if (header.equals("create-game")) { //The client wants to create a game
+		} else if (opcode == ClientOpcode.STATS) { //The client wants the server's metrics
+			infoServer.send(Messages.text(getStats()));
+		} else if (opcode == ClientOpcode.LEADERBOARD) { //The client wants the best players across every match
+			infoServer.send(getLeaderboard(body));
+		} else if (opcode == ClientOpcode.CREATE_GAME) { //The client wants to create a game
 			
-			if (gameState == GameState.NO_GAME) {
+			if (rooms.size() < freeSlotCount()) { //Every Room needs at least one slot
 				String[] fields = body.split(" ");
 				
 				String playerGameName = gameName + " Game";
@@ -321,6 +1160,8 @@ public class GameServer {
 				int maxPlayers = 2;
 				WinCondition winCondition = possibleWinConditions[0];
 				String winConditionArg = "";
+				int tcpFlushTicks = 1;
+				List<String> gameOptions = new ArrayList<String>();
 				
 				for (String s : fields) {
 					if (s.contains(":")) {
@@ -340,29 +1181,63 @@ public class GameServer {
 							}
 						} else if (fieldHeader.equals("win-condition-arg")) { //More data on the win condition, interpreted by subclasses of LocalGame
 							winConditionArg = fieldBody;
+						} else if (fieldHeader.equals("tcp-flush-ticks")) {
+							tcpFlushTicks = Math.max(1, Integer.parseInt(fieldBody));
+						} else { //Any other field is an option for the game itself
+							gameOptions.add(s);
 						}
 					} else {
 						System.err.println("Malformed \"create-game\" request received from client!");
 					}
 				}
 				
+				Room room;
+				synchronized(this) {
+					room = new Room(nextRoomID++, this, maxPlayers);
+				}
+				
+				room.setTCPFlushTicks(tcpFlushTicks);
+				
 				try {
-					localGame = gameClass.getDeclaredConstructor(GameServer.class, String.class, int.class, WinCondition.class, String.class).newInstance(this, playerGameName, maxPlayers, winCondition, winConditionArg);
+					room.game = gameClass.getDeclaredConstructor(Room.class, String.class, int.class, WinCondition.class, String.class).newInstance(room, playerGameName, maxPlayers, winCondition, winConditionArg);
 				} catch (Exception e) {
 					e.printStackTrace();
 					System.err.println("Error starting the server-side game!");
+					infoServer.send(Messages.CANNOT_CREATE_GAME);
+					return;
 				}
 				
-				localGameThread  = new Thread(localGame, gameName + " Server Game Logic Thread");
-				localGameThread.start();
+				for (String option : gameOptions) {
+					if (!room.game.setOption(option.substring(0, option.indexOf(":")), option.substring(option.indexOf(":") + 1))) {
+						System.err.println("Ignoring unknown or invalid \"create-game\" field \"" + option + "\"");
+					}
+				}
 				
-				System.out.println("Creating a " + gameName + " game with name \"" + playerGameName + "\", max " + maxPlayers + " players, and " + winCondition.getInfoString(winConditionArg));
-				gameState = GameState.WAITING_FOR_PLAYERS;
+				MatchRecorder matchRecorder = recorder;
+				if (matchRecorder != null) {
+					matchRecorder.room(room, gameOptions);
+					room.recorder = matchRecorder;
+				}
 				
-				infoServer.sendString("game-info name:" + localGame.name.replace(' ', '_') + " status:" + gameState.toString() + " max-players:" + localGame.maxPlayers + " players:" + localGame.currentPlayers + " win-condition:" + localGame.winCondition.toString() + " win-condition-arg:" + localGame.winConditionArg); //Return the new game info to the client
+				room.gameState = GameState.WAITING_FOR_PLAYERS;
+				rooms.put(room.id, room);
+				room.game.start(tickScheduler);
+				registerMBean(new RoomStats(room), "type=Room,id=" + room.id);
+				
+				System.out.println("Creating a " + gameName + " game in room " + room.id + " with name \"" + playerGameName + "\", max " + maxPlayers + " players, and " + winCondition.getInfoString(winConditionArg));
+				
+				infoServer.send(room.gameInfo()); //Return the new game info to the client
 			} else {
-				infoServer.sendString("cannot-create-game");
+				infoServer.send(Messages.CANNOT_CREATE_GAME);
 			}
 		}
 	}
+	
+	/**
+	 * Handles one kind of client message. The Room is null if the client has not joined one.
+	 */
+	@FunctionalInterface
+	private interface ClientEventHandler {
+		void handle(int clientID, final Room room, final ClientMessage message);
+	}
 }
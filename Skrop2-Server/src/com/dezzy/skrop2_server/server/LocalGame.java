@@ -1,14 +1,29 @@
 package com.dezzy.skrop2_server.server;
 
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+import com.dezzy.skrop2_server.server.TickScheduler.Ticker;
+
 /**
  * Subclasses of this class contain game logic and run the actual game that the players play. Subclasses receive player input events from the {@link GameServer} and send
- * crucial game info through the GameServer to the players. 
+ * crucial game info through their {@link Room} to the players. The GameServer runs {@link #gameTick()} at {@link #tickRate()} ticks per second
+ * with a {@link TickScheduler}.
+ * <p>
+ * A game that reads the time through {@link #tickMillis()} and takes its randomness from {@link #seed()} does the same thing every time it is
+ * given the same players, clicks and ticks, so a match {@link MatchRecorder recorded} on a live server can be {@link MatchReplay replayed} exactly.
  * 
  * @author Dezzmeister
  *
  */
-public abstract class LocalGame implements Runnable {
-	protected final GameServer gameServer;
+public abstract class LocalGame {
+	
+	/**
+	 * Measured in Hz
+	 */
+	public static final int DEFAULT_TICK_RATE = 30;
+	
+	protected final Room room;
 	public final String name;
 	public final int maxPlayers;
 	public volatile int currentPlayers = 0;
@@ -18,17 +33,53 @@ public abstract class LocalGame implements Runnable {
 	
 	public final Player[] players;
 	
+	/**
+	 * Maximum number of clicks waiting for the next tick
+	 */
+	private static final int CLICK_QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * Clicks from the client I/O threads, waiting to be processed on the game thread
+	 */
+	private final ClickQueue clicks = new ClickQueue(CLICK_QUEUE_CAPACITY);
+	
+	/**
+	 * Consumers that {@link #clicks} is drained into, with and without recording. Kept in fields so that a tick does not create a method reference.
+	 */
+	private final ClickQueue.Consumer clickProcessor = this::processClickEvent;
+	private final ClickQueue.Consumer clickRecorder = this::recordClickEvent;
+	
+	/**
+	 * Time from each click arriving to its result being broadcast, in nanoseconds
+	 */
+	private final Histogram clickLatencies = new Histogram();
+	
+	/**
+	 * Runs {@link #gameTick()}, or null if the game has not been started
+	 */
+	private volatile Ticker ticker;
+	
+	/**
+	 * Wall clock time at which the current tick started, in milliseconds
+	 */
+	private long tickMillis = System.currentTimeMillis();
+	
+	/**
+	 * Seed for everything random in the game
+	 */
+	private long seed = ThreadLocalRandom.current().nextLong();
+	
 	/**
 	 * Creates a LocalGame with the specified parameters. The LocalGame controls game logic and is created/destroyed by the {@link GameServer}.
 	 * 
-	 * @param _game Game object
+	 * @param _room the Room this game is hosted in
 	 * @param _name name of the game/match
 	 * @param _maxPlayers number of players to expect
 	 * @param _winCondition when to end this game/match
 	 * @param _winConditionArg auxiliary win condition information
 	 */
-	public LocalGame(final GameServer _game, final String _name, int _maxPlayers, final WinCondition _winCondition, final String _winConditionArg) {
-		gameServer = _game;
+	public LocalGame(final Room _room, final String _name, int _maxPlayers, final WinCondition _winCondition, final String _winConditionArg) {
+		room = _room;
 		name = _name;
 		maxPlayers = _maxPlayers;
 		players = new Player[maxPlayers];
@@ -38,47 +89,229 @@ public abstract class LocalGame implements Runnable {
 	}
 	
 	/**
-	 * Processes a client's click at the specified normalized coordinates.
+	 * Sets a game-specific option from a <code>create-game</code> request. Every field of the request that the {@link GameServer} does not
+	 * understand itself is passed here before the game starts. By default no options are understood.
+	 * 
+	 * @param option name of the field
+	 * @param value value of the field
+	 * @return true if the option was understood and its value was valid
+	 */
+	public boolean setOption(final String option, final String value) {
+		return false;
+	}
+	
+	/**
+	 * The seed that everything random in this game should come from. It is picked when the game is created, and is recorded so that a replay
+	 * of the game can use the same one.
+	 * 
+	 * @return the game's seed
+	 */
+	public final long seed() {
+		return seed;
+	}
+	
+	/**
+	 * Replaces the game's seed with a recorded one. Must be called before the game starts.
+	 * 
+	 * @param _seed seed of the recorded game
+	 */
+	final void setSeed(long _seed) {
+		seed = _seed;
+	}
+	
+	/**
+	 * The wall clock time at which the current tick started. Games should use this instead of {@link System#currentTimeMillis()}, so that
+	 * a replayed tick sees the time that was recorded.
 	 * 
-	 * @param clientID clientID of the client
+	 * @return start of the current tick, in milliseconds
+	 */
+	protected final long tickMillis() {
+		return tickMillis;
+	}
+	
+	/**
+	 * Queues a client's click to be processed at the start of the next tick. This is called from the client I/O threads and never blocks;
+	 * if the game has fallen so far behind that its click queue is full, the click is dropped.
+	 * 
+	 * @param seat seat of the player that clicked
+	 * @param x x coordinate of the click, from 0 to 1
+	 * @param y y coordinate of the click, from 0 to 1
+	 * @param frame frame of the game that the client was showing when it clicked, from the click's <code>f</code> field, or 0 if the client
+	 * did not send one
+	 * @param aux any auxiliary information that the game may need about a click event, or null if there is none. It is copied, so it can
+	 * be a view of the client's receive buffer.
+	 * @return true if the click was queued
+	 */
+	public final boolean queueClick(int seat, float x, float y, int frame, final CharSequence aux) {
+		return clicks.offer(seat, x, y, frame, aux);
+	}
+	
+	/**
+	 * Processes a client's click at the specified normalized coordinates. Clicks are processed on the game thread at the start of each tick,
+	 * in the order they were received, so a game does not need to synchronize anything that only clicks and ticks touch.
+	 * 
+	 * @param seat seat of the player that clicked
 	 * @param x x coordinate of the click, from 0 to 1
 	 * @param y y coordinate of the click, from 0 to 1
-	 * @param aux any auxiliary information that the game may need about a click event
+	 * @param frame frame of the game that the client was showing when it clicked, or 0 if the client did not say. What a frame is depends on
+	 * the game; a game can use it to judge the click against what the player saw instead of against the game as it is now.
+	 * @param aux any auxiliary information that the game may need about a click event, or null if there is none
+	 * @param timestamp when the server received the click, in {@link System#nanoTime()} time
+	 */
+	protected abstract void processClickEvent(int seat, float x, float y, int frame, final String aux, long timestamp);
+	
+	/**
+	 * Clicks that were dropped because the click queue was full.
+	 * 
+	 * @return dropped click count
+	 */
+	public long droppedClicks() {
+		return clicks.droppedClicks();
+	}
+	
+	/**
+	 * Records how long a click took to take effect. Games call this right after broadcasting the messages that a click caused, with the
+	 * timestamp that was passed to {@link #processClickEvent(int, float, float, int, String, long)}.
+	 * 
+	 * @param timestamp when the server received the click, in {@link System#nanoTime()} time
+	 */
+	protected final void clickBroadcast(long timestamp) {
+		long latency = System.nanoTime() - timestamp;
+		
+		clickLatencies.record(latency);
+		room.metrics().clickToBroadcastNanos.record(latency);
+	}
+	
+	/**
+	 * Time from each click arriving on the server to its result being broadcast, in nanoseconds. Only clicks that changed the game are counted.
+	 * 
+	 * @return click-to-broadcast latency histogram
+	 */
+	public Histogram clickLatencies() {
+		return clickLatencies;
+	}
+	
+	/**
+	 * Called when a player acknowledges a world snapshot that was sent over UDP. Games that send snapshots override this; by default
+	 * acknowledgements are ignored.
+	 * 
+	 * @param seat seat of the player
+	 * @param sequence sequence number of the snapshot
 	 */
-	public abstract void processClickEvent(int clientID, float x, float y, final String aux);
+	public void processSnapshotAck(int seat, int sequence) {
+		
+	}
 	
 	/**
 	 * Run one game tick
 	 */
 	protected abstract void gameTick();
 	
-	@Override
-	public void run() {
-		while (true) {
+	/**
+	 * The number of times per second that {@link #gameTick()} should run. Subclasses can override this to tick faster or slower.
+	 * 
+	 * @return tick rate, in Hz
+	 */
+	public int tickRate() {
+		return DEFAULT_TICK_RATE;
+	}
+	
+	/**
+	 * Starts ticking the game on the given scheduler.
+	 * 
+	 * @param scheduler scheduler that will run the game ticks
+	 */
+	final void start(final TickScheduler scheduler) {
+		ticker = scheduler.schedule(name + " (room " + room.id + ")", this::tick, tickRate());
+	}
+	
+	private void tick() {
+		tick(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Applies every queued click, runs one game tick, then sends everything the tick queued over TCP and UDP. If the Room is being recorded,
+	 * the clicks and the tick are recorded as they are applied, while holding the lock of this game. Players join and leave, and are
+	 * recorded, while holding the same lock, so in the log every join and leave comes before the first tick that saw it.
+	 * 
+	 * @param millis the clock of the tick, see {@link #tickMillis()}
+	 */
+	final void tick(long millis) {
+		tickMillis = millis;
+		
+		MatchRecorder recorder = room.recorder;
+		if (recorder == null) {
+			clicks.drain(clickProcessor);
 			gameTick();
+		} else {
+			synchronized (this) {
+				GameState state = room.gameState;
+				clicks.drain(clickRecorder);
+				recorder.tick(room.id, state, millis);
+				gameTick();
+			}
+		}
+		
+		room.endTick();
+	}
+	
+	private void recordClickEvent(int seat, float x, float y, int frame, final String aux, long timestamp) {
+		MatchRecorder recorder = room.recorder;
+		if (recorder != null) {
+			recorder.click(room.id, seat, x, y, frame, aux);
+		}
+		
+		processClickEvent(seat, x, y, frame, aux, timestamp);
+	}
+	
+	/**
+	 * Stops ticking the game. The game will not tick again after this returns, except for a tick that is already running.
+	 */
+	final void stop() {
+		if (ticker != null) {
+			ticker.cancel();
 		}
 	}
 	
 	/**
-	 * Adds a player to the game
+	 * Tick statistics for this game (tick duration and overruns), or null if the game has not been started.
+	 * 
+	 * @return the Ticker running this game
+	 */
+	public Ticker ticker() {
+		return ticker;
+	}
+	
+	/**
+	 * Adds a player to the game, and records it if the Room is being recorded
 	 * 
-	 * @param clientID clientID of the player that connected and joined the game
-	 * @param name name of the player
+	 * @param seat seat of the player that connected and joined the game
+	 * @param newPlayer the player
 	 */
-	synchronized final void addPlayer(int clientID, final Player newPlayer) {
-		players[clientID] = newPlayer;
+	synchronized final void addPlayer(int seat, final Player newPlayer) {
+		MatchRecorder recorder = room.recorder;
+		if (recorder != null) {
+			recorder.join(room.id, seat, newPlayer.name, newPlayer.color);
+		}
+		
+		players[seat] = newPlayer;
 		
 		recountPlayers();
 	}
 	
 	/**
-	 * Removes a player from the game
+	 * Removes a player from the game, and records it if the Room is being recorded
 	 * 
-	 * @param clientID clientID of the player that disconnected
+	 * @param seat seat of the player that disconnected
 	 */
-	synchronized final void disconnectPlayer(int clientID) {
-		Player oldPlayer = players[clientID];
-		players[clientID] = null;
+	synchronized final void disconnectPlayer(int seat) {
+		MatchRecorder recorder = room.recorder;
+		if (recorder != null) {
+			recorder.leave(room.id, seat);
+		}
+		
+		Player oldPlayer = players[seat];
+		players[seat] = null;
 		
 		System.out.println("Player \"" + oldPlayer.name + "\" has disconnected");
 		
@@ -0,0 +1,141 @@
+package com.dezzy.skrop2_server.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a log written by a {@link MatchRecorder}, one record at a time, in the order the records were reserved. See MatchRecorder for the
+ * layout. The file is mapped read-only, and {@link #body()} is a view of the mapping, so reading a log does not copy it.
+ * <p>
+ * A MatchLog is not thread safe.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class MatchLog implements Closeable {
+	
+	private final FileChannel channel;
+	private final ByteBuffer log;
+	
+	/**
+	 * Wall clock time at which recording started, in milliseconds
+	 */
+	public final long startMillis;
+	
+	/**
+	 * End of the last record that can be read
+	 */
+	private final int end;
+	
+	private int position = MatchRecorder.HEADER_BYTES;
+	
+	private byte type;
+	private long nanos;
+	private ByteBuffer body;
+	
+	/**
+	 * Opens a match log.
+	 * 
+	 * @param path the log file
+	 * @throws IOException if the file cannot be read or is not a match log
+	 */
+	public MatchLog(final Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		
+		if (log.limit() < MatchRecorder.HEADER_BYTES || log.getInt(0) != MatchRecorder.MAGIC) {
+			channel.close();
+			throw new IOException(path + " is not a match log");
+		}
+		
+		if (log.getInt(4) != MatchRecorder.FORMAT_VERSION) {
+			channel.close();
+			throw new IOException(path + " is a version " + log.getInt(4) + " match log, but only version " + MatchRecorder.FORMAT_VERSION + " can be read");
+		}
+		
+		startMillis = log.getLong(8);
+		
+		long length = log.getLong(MatchRecorder.LENGTH_OFFSET);
+		end = (length == 0) ? log.limit() : (int) Math.min(length, log.limit()); //A recorder that was never closed leaves the length at 0
+	}
+	
+	/**
+	 * Moves to the next record.
+	 * 
+	 * @return true if there was another finished record
+	 */
+	public boolean next() {
+		if (position + MatchRecorder.RECORD_HEADER_BYTES > end) {
+			return false;
+		}
+		
+		int length = log.getInt(position);
+		if (length < MatchRecorder.RECORD_HEADER_BYTES || position + length > end) {
+			return false;
+		}
+		
+		type = log.get(position + 4);
+		nanos = log.getLong(position + 5);
+		
+		ByteBuffer view = log.duplicate();
+		view.limit(position + length).position(position + MatchRecorder.RECORD_HEADER_BYTES);
+		body = view.slice();
+		
+		position += length;
+		return true;
+	}
+	
+	/**
+	 * Type of the current record, one of the record types of {@link MatchRecorder}.
+	 * 
+	 * @return record type
+	 */
+	public byte type() {
+		return type;
+	}
+	
+	/**
+	 * When the current record was written, in nanoseconds since recording started.
+	 * 
+	 * @return record timestamp
+	 */
+	public long nanos() {
+		return nanos;
+	}
+	
+	/**
+	 * The body of the current record, positioned at its start. Only valid until the log is closed.
+	 * 
+	 * @return view of the record body
+	 */
+	public ByteBuffer body() {
+		return body;
+	}
+	
+	/**
+	 * Reads a string written by a {@link MatchRecorder}.
+	 * 
+	 * @param in record body, positioned at the string
+	 * @return the string, or null if none was written in its place
+	 */
+	public static String getString(final ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,367 @@
+package com.dezzy.skrop2_server.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.ClientMessage;
+import com.dezzy.skrop2_server.net.protocol.Message;
+
+/**
+ * Records matches to an append-only binary log, so that a match can be {@link MatchReplay replayed} later for debugging and regression
+ * benchmarking. The log is a file of fixed size mapped into memory: writing a record is one atomic add to reserve its bytes and a few
+ * stores into the mapping, with no locks, system calls or allocation, so the game threads can record every tick. The operating system
+ * writes the pages back to the file, and they survive the server crashing as long as the machine does not.
+ * <p>
+ * Layout of the log (integers are big-endian, strings are an int byte count followed by UTF-8 bytes):
+ * <pre>
+ * log    := magic(int) version(int) startMillis(long) length(long) record*
+ * record := length(int) type(byte) nanos(long) body[length - 13]
+ * </pre>
+ * <code>length</code> in the header is the number of bytes used, written when the recorder is closed, or 0 if it never was. The
+ * <code>nanos</code> of a record are the time since the recorder was opened. The length of a record is written after the rest of it, so a
+ * record that was never finished has a length of 0 and ends the log. The bodies of each type are:
+ * <pre>
+ * ROOM      := room(int) seed(long) maxPlayers(int) tcpFlushTicks(int) name winCondition winConditionArg optionCount(int) option*
+ * JOIN      := room(int) seat(int) color(int) name
+ * LEAVE     := room(int) seat(int)
+ * INBOUND   := clientID(int) room(int) message
+ * CLICK     := room(int) seat(int) x(float) y(float) frame(int) aux, with a byte count of -1 if there is no aux
+ * TICK      := room(int) gameState(byte) millis(long)
+ * BROADCAST := room(int) payload
+ * </pre>
+ * <code>INBOUND</code> is every message passed to {@link GameServer#processClientEvent(int, ClientMessage)}, with room -1 if the client had
+ * not joined one. <code>CLICK</code> and <code>TICK</code> are written by the game thread: the clicks applied by a tick come before the tick,
+ * whose game state is the one the clicks were applied in. <code>JOIN</code> and <code>LEAVE</code> are written as the game changes, under
+ * the same lock as a recorded tick, so they come before the first tick that saw them. <code>BROADCAST</code> is every TCP broadcast flushed by a {@link Room}, as a
+ * payload of the highest {@link BinaryProtocol} version. Only Rooms created after recording starts are recorded.
+ * <p>
+ * Once the log is full, records are dropped and counted. A MatchRecorder is thread safe.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class MatchRecorder implements Closeable {
+	
+	/**
+	 * "SKRL"
+	 */
+	public static final int MAGIC = 0x534B524C;
+	
+	/**
+	 * Version of the log layout
+	 */
+	public static final int FORMAT_VERSION = 1;
+	
+	/**
+	 * Size of a log if none is given, in bytes
+	 */
+	public static final int DEFAULT_CAPACITY = 256 << 20;
+	
+	static final int HEADER_BYTES = 24;
+	static final int LENGTH_OFFSET = 16;
+	
+	/**
+	 * Length, type and timestamp of a record
+	 */
+	static final int RECORD_HEADER_BYTES = 13;
+	
+	public static final byte ROOM = 1;
+	public static final byte JOIN = 2;
+	public static final byte LEAVE = 3;
+	public static final byte INBOUND = 4;
+	public static final byte CLICK = 5;
+	public static final byte TICK = 6;
+	public static final byte BROADCAST = 7;
+	
+	private final Path path;
+	private final FileChannel channel;
+	private final MappedByteBuffer log;
+	private final int capacity;
+	
+	/**
+	 * Offset of the next record to be reserved
+	 */
+	private final AtomicLong next = new AtomicLong(HEADER_BYTES);
+	
+	private final AtomicLong droppedRecords = new AtomicLong(0);
+	
+	private final long startNanos;
+	
+	private volatile boolean closed = false;
+	
+	/**
+	 * Each thread writes through its own view of the log, because a view's position cannot be shared
+	 */
+	private final ThreadLocal<ByteBuffer> views;
+	
+	/**
+	 * Creates a log file, replacing any file that is already there, and starts recording to it.
+	 * 
+	 * @param _path file to record to
+	 * @param _capacity size of the log in bytes, including the header
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public MatchRecorder(final Path _path, int _capacity) throws IOException {
+		if (_capacity < HEADER_BYTES) {
+			throw new IllegalArgumentException("A match log must be at least " + HEADER_BYTES + " bytes, not " + _capacity);
+		}
+		
+		path = _path;
+		capacity = _capacity;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		views = ThreadLocal.withInitial(log::duplicate);
+		
+		startNanos = System.nanoTime();
+		log.putInt(0, MAGIC);
+		log.putInt(4, FORMAT_VERSION);
+		log.putLong(8, System.currentTimeMillis());
+		log.putLong(LENGTH_OFFSET, 0);
+	}
+	
+	/**
+	 * Records a new Room and everything needed to create its game again.
+	 * 
+	 * @param room the Room, with its game created and its options set
+	 * @param options every game-specific <code>create-game</code> field, as <code>name:value</code>
+	 */
+	void room(final Room room, final List<String> options) {
+		LocalGame game = room.game;
+		byte[] name = utf8(game.name);
+		byte[] winCondition = utf8(game.winCondition.getName());
+		byte[] winConditionArg = utf8(game.winConditionArg);
+		byte[][] optionBytes = new byte[options.size()][];
+		
+		int length = 24 + stringLength(name) + stringLength(winCondition) + stringLength(winConditionArg);
+		for (int i = 0; i < optionBytes.length; i++) {
+			optionBytes[i] = utf8(options.get(i));
+			length += stringLength(optionBytes[i]);
+		}
+		
+		ByteBuffer out = begin(ROOM, length);
+		if (out != null) {
+			out.putInt(room.id).putLong(game.seed()).putInt(game.maxPlayers).putInt(room.tcpFlushTicks());
+			putString(out, name);
+			putString(out, winCondition);
+			putString(out, winConditionArg);
+			out.putInt(optionBytes.length);
+			for (byte[] option : optionBytes) {
+				putString(out, option);
+			}
+			commit(out, length);
+		}
+	}
+	
+	/**
+	 * Records a player joining a Room.
+	 * 
+	 * @param room ID of the Room
+	 * @param seat seat of the player
+	 * @param name name of the player
+	 * @param color color of the player
+	 */
+	void join(int room, int seat, final String name, int color) {
+		byte[] nameBytes = utf8(name);
+		int length = 12 + stringLength(nameBytes);
+		
+		ByteBuffer out = begin(JOIN, length);
+		if (out != null) {
+			out.putInt(room).putInt(seat).putInt(color);
+			putString(out, nameBytes);
+			commit(out, length);
+		}
+	}
+	
+	/**
+	 * Records a player leaving a Room.
+	 * 
+	 * @param room ID of the Room
+	 * @param seat seat of the player
+	 */
+	void leave(int room, int seat) {
+		ByteBuffer out = begin(LEAVE, 8);
+		if (out != null) {
+			out.putInt(room).putInt(seat);
+			commit(out, 8);
+		}
+	}
+	
+	/**
+	 * Records a message from a client.
+	 * 
+	 * @param clientID ID of the client that sent the message
+	 * @param room ID of the client's Room, or -1
+	 * @param message the message, which is copied
+	 */
+	void inbound(int clientID, int room, final ClientMessage message) {
+		int length = 12 + message.length();
+		
+		ByteBuffer out = begin(INBOUND, length);
+		if (out != null) {
+			out.putInt(clientID).putInt(room).putInt(message.length());
+			message.writeTo(out);
+			commit(out, length);
+		}
+	}
+	
+	/**
+	 * Records a click as it is applied by the game thread.
+	 * 
+	 * @param room ID of the Room
+	 * @param seat seat of the player that clicked
+	 * @param x x coordinate of the click
+	 * @param y y coordinate of the click
+	 * @param frame frame sent with the click, or 0
+	 * @param aux auxiliary click information, or null
+	 */
+	void click(int room, int seat, float x, float y, int frame, final String aux) {
+		byte[] auxBytes = aux == null ? null : utf8(aux);
+		int length = 20 + (auxBytes == null ? 4 : stringLength(auxBytes));
+		
+		ByteBuffer out = begin(CLICK, length);
+		if (out != null) {
+			out.putInt(room).putInt(seat).putFloat(x).putFloat(y).putInt(frame);
+			if (auxBytes == null) {
+				out.putInt(-1);
+			} else {
+				putString(out, auxBytes);
+			}
+			commit(out, length);
+		}
+	}
+	
+	/**
+	 * Records a game tick, after the clicks that it applied.
+	 * 
+	 * @param room ID of the Room
+	 * @param state game state that the tick started in
+	 * @param millis the tick's clock, see {@link LocalGame#tickMillis()}
+	 */
+	void tick(int room, final GameState state, long millis) {
+		ByteBuffer out = begin(TICK, 13);
+		if (out != null) {
+			out.putInt(room).put((byte) state.ordinal()).putLong(millis);
+			commit(out, 13);
+		}
+	}
+	
+	/**
+	 * Records the TCP broadcasts that a Room flushed together.
+	 * 
+	 * @param room ID of the Room
+	 * @param messages the broadcasts, in order
+	 */
+	void broadcast(int room, final List<Message> messages) {
+		int length = 4;
+		for (int i = 0; i < messages.size(); i++) {
+			length += messages.get(i).binary(BinaryProtocol.VERSION).length;
+		}
+		
+		ByteBuffer out = begin(BROADCAST, length);
+		if (out != null) {
+			out.putInt(room);
+			for (int i = 0; i < messages.size(); i++) {
+				out.put(messages.get(i).binary(BinaryProtocol.VERSION));
+			}
+			commit(out, length);
+		}
+	}
+	
+	/**
+	 * Reserves room for a record and writes everything but its length.
+	 * 
+	 * @return a view positioned at the start of the body and limited to its end, or null if the record does not fit
+	 */
+	private ByteBuffer begin(byte type, int bodyLength) {
+		if (closed) {
+			return null;
+		}
+		
+		int length = RECORD_HEADER_BYTES + bodyLength;
+		long offset = next.getAndAdd(length);
+		
+		if (offset + length > capacity) {
+			if (droppedRecords.getAndIncrement() == 0) {
+				System.err.println("The match log " + path + " is full, so nothing else will be recorded");
+			}
+			return null;
+		}
+		
+		ByteBuffer view = views.get();
+		view.limit((int) offset + length).position((int) offset + 4);
+		view.put(type).putLong(System.nanoTime() - startNanos);
+		return view;
+	}
+	
+	/**
+	 * Writes the length of a record whose body has been written, which makes it visible to readers.
+	 */
+	private void commit(final ByteBuffer view, int bodyLength) {
+		int length = RECORD_HEADER_BYTES + bodyLength;
+		view.putInt(view.limit() - length, length);
+	}
+	
+	private static byte[] utf8(final String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static int stringLength(final byte[] s) {
+		return 4 + s.length;
+	}
+	
+	private static void putString(final ByteBuffer out, final byte[] s) {
+		out.putInt(s.length).put(s);
+	}
+	
+	/**
+	 * The file this recorder writes to.
+	 * 
+	 * @return path of the log
+	 */
+	public Path path() {
+		return path;
+	}
+	
+	/**
+	 * Bytes of the log that have been used, including the header.
+	 * 
+	 * @return used bytes
+	 */
+	public long bytesUsed() {
+		return Math.min(next.get(), capacity);
+	}
+	
+	/**
+	 * Records that did not fit in the log.
+	 * 
+	 * @return dropped record count
+	 */
+	public long droppedRecords() {
+		return droppedRecords.get();
+	}
+	
+	/**
+	 * Stops recording, writes the used length to the header, and flushes the log to the file. Records that were being written when this was
+	 * called may be cut off.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		closed = true;
+		log.putLong(LENGTH_OFFSET, bytesUsed());
+		log.force();
+		channel.close();
+	}
+}
@@ -0,0 +1,333 @@
+package com.dezzy.skrop2_server.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+import com.dezzy.skrop2_server.net.protocol.Opcode;
+
+/**
+ * Replays a match log written by a {@link MatchRecorder}, as fast as the games can run. Every recorded Room is created again with the same
+ * game, options and {@link LocalGame#seed() seed}, in a Room with no {@link GameServer}, and its players, clicks and ticks are applied in the
+ * order they were recorded, with each tick seeing the clock and game state it was recorded with. A game that follows the rules in
+ * {@link LocalGame} broadcasts exactly what it broadcast on the live server, which {@link #compareBroadcasts(Path, Path)} can check.
+ * <p>
+ * Inbound messages are counted but not applied: the GameServer has already turned them into the joins, leaves and clicks that the games saw.
+ * Because nothing waits between ticks, the time the replay takes is the time the games spent working, which makes a recorded match a
+ * repeatable benchmark.
+ * <p>
+ * A MatchReplay is not thread safe.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class MatchReplay {
+	
+	private final Class<? extends LocalGame> gameClass;
+	private final Class<? extends Player> playerClass;
+	private final WinCondition[] possibleWinConditions;
+	
+	/**
+	 * Rooms that are being replayed, by Room ID
+	 */
+	private final Map<Integer, Room> rooms = new HashMap<Integer, Room>();
+	
+	/**
+	 * Duration of each replayed tick, in nanoseconds
+	 */
+	private final Histogram tickNanos = new Histogram();
+	
+	private int roomCount;
+	private long joins;
+	private long clicks;
+	private long ticks;
+	private long inbound;
+	private long broadcastBytes;
+	private long errors;
+	
+	private long recordedNanos;
+	private long elapsedNanos;
+	
+	/**
+	 * Creates a replay harness for one kind of game. The arguments are the same as the ones given to the {@link GameServer} that recorded the log.
+	 * 
+	 * @param _gameClass the type of game that was recorded
+	 * @param _playerClass the type of player in the game
+	 * @param _possibleWinConditions every potential win condition, so that recorded win conditions can be found by name
+	 */
+	public MatchReplay(final Class<? extends LocalGame> _gameClass, final Class<? extends Player> _playerClass, final WinCondition[] _possibleWinConditions) {
+		gameClass = _gameClass;
+		playerClass = _playerClass;
+		possibleWinConditions = _possibleWinConditions;
+	}
+	
+	/**
+	 * Replays every Room in a log. An exception thrown by a game is reported with the record that caused it, and the replay carries on.
+	 * 
+	 * @param path the log
+	 * @param output records the replayed Rooms, the same way a live server would, or null
+	 * @throws IOException if the log cannot be read
+	 */
+	public void replay(final Path path, final MatchRecorder output) throws IOException {
+		rooms.clear();
+		tickNanos.reset();
+		roomCount = 0;
+		joins = clicks = ticks = inbound = broadcastBytes = errors = 0;
+		recordedNanos = 0;
+		
+		try (MatchLog log = new MatchLog(path)) {
+			long start = System.nanoTime();
+			
+			while (log.next()) {
+				try {
+					apply(log.type(), log.body(), output);
+				} catch (Exception e) {
+					errors++;
+					System.err.println("Error replaying record " + log.type() + " at " + log.nanos() + " ns");
+					e.printStackTrace();
+				}
+				
+				recordedNanos = log.nanos();
+			}
+			
+			elapsedNanos = System.nanoTime() - start;
+		}
+	}
+	
+	private void apply(byte type, final ByteBuffer body, final MatchRecorder output) throws ReflectiveOperationException {
+		switch (type) {
+		case MatchRecorder.ROOM:
+			createRoom(body, output);
+			break;
+		case MatchRecorder.JOIN: {
+			Room room = rooms.get(body.getInt());
+			int seat = body.getInt();
+			int color = body.getInt();
+			String name = MatchLog.getString(body);
+			
+			if (room != null) {
+				room.game.addPlayer(seat, playerClass.getDeclaredConstructor(String.class, int.class).newInstance(name, color)); //Recorded to the output by the game
+				joins++;
+			}
+			break;
+		}
+		case MatchRecorder.LEAVE: {
+			Room room = rooms.get(body.getInt());
+			int seat = body.getInt();
+			
+			if (room != null) {
+				room.game.disconnectPlayer(seat);
+				
+				if (room.game.currentPlayers == 0) {
+					room.gameState = GameState.NO_GAME;
+					rooms.remove(room.id);
+				}
+			}
+			break;
+		}
+		case MatchRecorder.INBOUND:
+			inbound++;
+			break;
+		case MatchRecorder.CLICK: {
+			Room room = rooms.get(body.getInt());
+			int seat = body.getInt();
+			float x = body.getFloat();
+			float y = body.getFloat();
+			int frame = body.getInt();
+			String aux = MatchLog.getString(body);
+			
+			if (room != null) {
+				room.game.queueClick(seat, x, y, frame, aux);
+				clicks++;
+			}
+			break;
+		}
+		case MatchRecorder.TICK: {
+			Room room = rooms.get(body.getInt());
+			GameState state = GameState.values()[body.get()];
+			long millis = body.getLong();
+			
+			if (room != null) {
+				room.gameState = state;
+				
+				long start = System.nanoTime();
+				room.game.tick(millis);
+				tickNanos.record(System.nanoTime() - start);
+				ticks++;
+			}
+			break;
+		}
+		case MatchRecorder.BROADCAST:
+			broadcastBytes += body.remaining() - 4;
+			break;
+		default:
+			System.err.println("Skipping unknown match log record " + type);
+			break;
+		}
+	}
+	
+	private void createRoom(final ByteBuffer body, final MatchRecorder output) throws ReflectiveOperationException {
+		int id = body.getInt();
+		long seed = body.getLong();
+		int maxPlayers = body.getInt();
+		int tcpFlushTicks = body.getInt();
+		String name = MatchLog.getString(body);
+		String winConditionName = MatchLog.getString(body);
+		String winConditionArg = MatchLog.getString(body);
+		
+		List<String> options = new ArrayList<String>();
+		for (int count = body.getInt(); count > 0; count--) {
+			options.add(MatchLog.getString(body));
+		}
+		
+		WinCondition winCondition = null;
+		for (WinCondition condition : possibleWinConditions) {
+			if (condition.getName().equals(winConditionName)) {
+				winCondition = condition;
+				break;
+			}
+		}
+		
+		if (winCondition == null) {
+			throw new IllegalArgumentException("Room " + id + " was recorded with unknown win condition \"" + winConditionName + "\"");
+		}
+		
+		Room room = new Room(id, null, maxPlayers);
+		room.setTCPFlushTicks(tcpFlushTicks);
+		room.game = gameClass.getDeclaredConstructor(Room.class, String.class, int.class, WinCondition.class, String.class).newInstance(room, name, maxPlayers, winCondition, winConditionArg);
+		
+		for (String option : options) {
+			room.game.setOption(option.substring(0, option.indexOf(":")), option.substring(option.indexOf(":") + 1));
+		}
+		
+		room.game.setSeed(seed);
+		
+		if (output != null) {
+			output.room(room, options);
+			room.recorder = output;
+		}
+		
+		room.gameState = GameState.WAITING_FOR_PLAYERS;
+		rooms.put(id, room);
+		roomCount++;
+	}
+	
+	/**
+	 * Duration of each tick of the last replay, in nanoseconds.
+	 * 
+	 * @return tick duration histogram
+	 */
+	public Histogram tickNanos() {
+		return tickNanos;
+	}
+	
+	/**
+	 * Describes the last replay: what was replayed, how long it took, and how long the ticks took.
+	 * 
+	 * @return one line summary
+	 */
+	public String summary() {
+		double seconds = elapsedNanos / 1e9;
+		
+		return String.format("Replayed %d rooms, %d players, %d ticks, %d clicks and %d inbound messages (%d broadcast bytes) in %.1f ms, %.0fx as fast as the %.1f s recording: %.0f ticks/s, tick p50/p99/max %d/%d/%d us, %d errors",
+				roomCount, joins, ticks, clicks, inbound, broadcastBytes, seconds * 1e3, recordedNanos / (double) Math.max(1, elapsedNanos), recordedNanos / 1e9, ticks / Math.max(seconds, 1e-9),
+				tickNanos.percentile(0.5) / 1000, tickNanos.percentile(0.99) / 1000, tickNanos.max() / 1000, errors);
+	}
+	
+	/**
+	 * Compares the broadcasts of every Room in two logs, usually a live recording and a replay of it, and prints the first difference in each
+	 * Room. Player lists and chat messages are not compared, because they are broadcast by the {@link GameServer} rather than the game.
+	 * 
+	 * @param expected the first log
+	 * @param actual the second log
+	 * @return the number of Rooms whose broadcasts differ
+	 * @throws IOException if either log cannot be read
+	 */
+	public static int compareBroadcasts(final Path expected, final Path actual) throws IOException {
+		try (MatchLog expectedLog = new MatchLog(expected); MatchLog actualLog = new MatchLog(actual)) {
+			Map<Integer, List<ByteBuffer>> expectedRooms = gameBroadcasts(expectedLog);
+			Map<Integer, List<ByteBuffer>> actualRooms = gameBroadcasts(actualLog);
+			int differing = 0;
+			
+			for (Map.Entry<Integer, List<ByteBuffer>> entry : expectedRooms.entrySet()) {
+				List<ByteBuffer> want = entry.getValue();
+				List<ByteBuffer> got = actualRooms.getOrDefault(entry.getKey(), new ArrayList<ByteBuffer>());
+				
+				int i = 0;
+				while (i < want.size() && i < got.size() && want.get(i).equals(got.get(i))) {
+					i++;
+				}
+				
+				if (i < want.size() || i < got.size()) {
+					differing++;
+					System.out.println("Room " + entry.getKey() + ": broadcast " + i + " of " + want.size() + " differs, recorded " + describe(want, i) + " but replayed " + describe(got, i));
+				} else {
+					System.out.println("Room " + entry.getKey() + ": all " + want.size() + " broadcasts match");
+				}
+			}
+			
+			return differing;
+		}
+	}
+	
+	/**
+	 * Splits every <code>BROADCAST</code> record of a log into messages, by Room.
+	 */
+	private static Map<Integer, List<ByteBuffer>> gameBroadcasts(final MatchLog log) {
+		Map<Integer, List<ByteBuffer>> rooms = new TreeMap<Integer, List<ByteBuffer>>();
+		
+		while (log.next()) {
+			if (log.type() != MatchRecorder.BROADCAST) {
+				continue;
+			}
+			
+			ByteBuffer payload = log.body();
+			List<ByteBuffer> messages = rooms.computeIfAbsent(payload.getInt(), id -> new ArrayList<ByteBuffer>());
+			
+			while (payload.hasRemaining()) {
+				int start = payload.position();
+				byte code = payload.get();
+				int bodyLength = 0;
+				
+				for (int shift = 0; ; shift += 7) {
+					byte b = payload.get();
+					bodyLength |= (b & 0x7F) << shift;
+					if (b >= 0) {
+						break;
+					}
+				}
+				
+				payload.position(payload.position() + bodyLength);
+				
+				if (code != Opcode.PLAYER_LIST.code && code != Opcode.CHAT_MESSAGE.code) {
+					ByteBuffer message = payload.duplicate();
+					message.limit(payload.position()).position(start);
+					messages.add(message.slice());
+				}
+			}
+		}
+		
+		return rooms;
+	}
+	
+	private static String describe(final List<ByteBuffer> messages, int index) {
+		if (index >= messages.size()) {
+			return "nothing";
+		}
+		
+		byte code = messages.get(index).get(0);
+		for (Opcode opcode : Opcode.values()) {
+			if (opcode.code == code) {
+				return "\"" + opcode.header + "\"";
+			}
+		}
+		
+		return "opcode " + code;
+	}
+}
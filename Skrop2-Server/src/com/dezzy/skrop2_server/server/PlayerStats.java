@@ -0,0 +1,45 @@
+package com.dezzy.skrop2_server.server;
+
+/**
+ * Everything a {@link StatsStore} knows about one player, summed over every game the player finished. A PlayerStats never changes; adding
+ * a result makes a new one, so the same object can be read by any thread.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class PlayerStats {
+	
+	public final String name;
+	
+	/**
+	 * Games finished, and games won
+	 */
+	public final int games;
+	public final int wins;
+	
+	/**
+	 * Points scored in every game together, and the most scored in one game
+	 */
+	public final int points;
+	public final int bestPoints;
+	
+	PlayerStats(final String _name, int _games, int _wins, int _points, int _bestPoints) {
+		name = _name;
+		games = _games;
+		wins = _wins;
+		points = _points;
+		bestPoints = _bestPoints;
+	}
+	
+	/**
+	 * Adds the result of one game.
+	 * 
+	 * @param won true if the player won the game
+	 * @param gamePoints points the player scored in the game
+	 * @return new stats for the player
+	 */
+	PlayerStats add(boolean won, int gamePoints) {
+		int total = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, (long) points + gamePoints));
+		return new PlayerStats(name, games + 1, won ? wins + 1 : wins, total, games == 0 ? gamePoints : Math.max(bestPoints, gamePoints));
+	}
+}
@@ -0,0 +1,331 @@
+package com.dezzy.skrop2_server.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dezzy.skrop2_server.metrics.ServerMetrics;
+import com.dezzy.skrop2_server.net.protocol.BinaryProtocol;
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
+
+/**
+ * One match hosted by a {@link GameServer}. A Room has its own {@link LocalGame}, {@link GameState} and seats; each seat is filled by
+ * a client connected to one of the GameServer's slots. LocalGames talk to their players only through their Room, so a GameServer can host
+ * many Rooms at once without them seeing each other's traffic.
+ * <p>
+ * TCP broadcasts are not sent right away. They are collected until the end of the tick (or of every {@link #setTCPFlushTicks(int) few ticks})
+ * and then handed to each player's server together, so that each player gets one encrypted frame per flush instead of one per broadcast.
+ * <p>
+ * A Room without a GameServer is used to {@link MatchReplay replay} a recorded match: it has no clients, so nothing it sends goes anywhere,
+ * but its game runs and encodes everything as if every player spoke the newest binary protocol.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class Room {
+	
+	/**
+	 * Room identifier, used by clients in <code>join-game</code> and <code>game-info-request</code>
+	 */
+	public final int id;
+	
+	public volatile GameState gameState = GameState.NO_GAME;
+	
+	private final GameServer gameServer;
+	
+	private final ServerMetrics metrics;
+	
+	/**
+	 * The game running in this room. Set by the {@link GameServer} right after the game is created.
+	 */
+	volatile LocalGame game;
+	
+	/**
+	 * Records this room's clicks, ticks and broadcasts, or null if it is not being recorded
+	 */
+	volatile MatchRecorder recorder;
+	
+	/**
+	 * The last <code>game-info</code> response for this room, rebuilt only when the game state or the player count changes
+	 */
+	private volatile CachedResponse gameInfo;
+	
+	/**
+	 * The clientID of the player in each seat, or -1 if the seat is empty. Seat numbers index {@link LocalGame#players}.
+	 */
+	private final int[] seatClients;
+	
+	/**
+	 * TCP broadcasts waiting for the next {@link #endTick()} that flushes them, in the order they were made
+	 */
+	private final List<Message> pendingTCP = new ArrayList<Message>();
+	
+	/**
+	 * Number of ticks between TCP flushes
+	 */
+	private volatile int tcpFlushTicks = 1;
+	
+	/**
+	 * Ticks since pending TCP broadcasts were last flushed. Only touched by the game thread.
+	 */
+	private int ticksSinceTCPFlush = 0;
+	
+	Room(int _id, final GameServer _gameServer, int maxPlayers) {
+		id = _id;
+		gameServer = _gameServer;
+		metrics = (gameServer == null) ? new ServerMetrics() : gameServer.metrics();
+		seatClients = new int[maxPlayers];
+		
+		for (int i = 0; i < seatClients.length; i++) {
+			seatClients[i] = -1;
+		}
+	}
+	
+	/**
+	 * Gives a client the first empty seat.
+	 * 
+	 * @param clientID client taking the seat
+	 * @return the seat number, or -1 if every seat is taken
+	 */
+	synchronized int takeSeat(int clientID) {
+		for (int i = 0; i < seatClients.length; i++) {
+			if (seatClients[i] == -1) {
+				seatClients[i] = clientID;
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Empties a seat.
+	 * 
+	 * @param seat seat to empty
+	 */
+	synchronized void leaveSeat(int seat) {
+		seatClients[seat] = -1;
+	}
+	
+	/**
+	 * The number of seats that are filled.
+	 * 
+	 * @return number of seated players
+	 */
+	synchronized int occupiedSeats() {
+		int count = 0;
+		for (int clientID : seatClients) {
+			if (clientID != -1) {
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * The clientID of the player in a seat.
+	 * 
+	 * @param seat seat number
+	 * @return clientID of the seated player, or -1 if the seat is empty
+	 */
+	synchronized int clientInSeat(int seat) {
+		return seatClients[seat];
+	}
+	
+	/**
+	 * The binary protocol version negotiated by the player in a seat.
+	 * 
+	 * @param seat seat number
+	 * @return binary protocol version, or 0 if the seat is empty or its player uses the text protocol
+	 */
+	public int binaryVersion(int seat) {
+		if (gameServer == null) {
+			return BinaryProtocol.VERSION;
+		}
+		
+		int clientID;
+		
+		//Never take the GameServer lock while holding this Room: the GameServer locks Rooms while holding its own lock
+		synchronized(this) {
+			clientID = seatClients[seat];
+		}
+		
+		return (clientID == -1) ? 0 : gameServer.server(clientID).binaryVersion();
+	}
+	
+	/**
+	 * The <code>game-info</code> response for this room. The game's name, size and win condition never change once the game is created, so
+	 * the response is reused until the {@link GameState} or the player count changes.
+	 * 
+	 * @return game info message
+	 */
+	Message gameInfo() {
+		LocalGame localGame = game;
+		GameState state = gameState;
+		int players = localGame.currentPlayers;
+		long key = ((long) state.ordinal() << 32) | players;
+		
+		CachedResponse cached = gameInfo;
+		if (cached == null || !cached.matches(key)) {
+			cached = new CachedResponse(key, Messages.gameInfo(localGame.name, state.toString(), localGame.maxPlayers, players, localGame.winCondition.toString(), localGame.winConditionArg, id));
+			gameInfo = cached;
+		}
+		
+		return cached.message;
+	}
+	
+	/**
+	 * The number of seats in this room.
+	 * 
+	 * @return max players
+	 */
+	public int seatCount() {
+		return seatClients.length;
+	}
+	
+	/**
+	 * The game running in this room.
+	 * 
+	 * @return this room's LocalGame
+	 */
+	public LocalGame game() {
+		return game;
+	}
+	
+	/**
+	 * Histograms shared with the other Rooms of the {@link GameServer}.
+	 * 
+	 * @return server-wide metrics
+	 */
+	ServerMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Reports the final results of this room's match, so that they count towards every player's stats. Never blocks. The results of a
+	 * {@link MatchReplay replayed} match are not reported.
+	 * 
+	 * @param names names of the players, in ranked order
+	 * @param points points each player scored
+	 * @param winners number of players at the start of <code>names</code> that won
+	 */
+	public void reportResults(final String[] names, final int[] points, int winners) {
+		if (gameServer != null) {
+			gameServer.reportResults(names, points, winners);
+		}
+	}
+	
+	/**
+	 * Sends a message over TCP to every player in this room.
+	 * 
+	 * @param message message to send
+	 */
+	public void broadcastTCP(final String message) {
+		broadcastTCP(Messages.text(message));
+	}
+	
+	/**
+	 * Sends a message over TCP to every player in this room. The message is queued and sent with every other broadcast of the tick when the
+	 * tick ends, to every player seated at that time. It is encoded at most once per protocol, no matter how many players receive it.
+	 * 
+	 * @param message message to send
+	 */
+	public synchronized void broadcastTCP(final Message message) {
+		pendingTCP.add(message);
+	}
+	
+	/**
+	 * Sets how often queued TCP broadcasts are sent. Flushing less often than every tick means fewer, larger frames, at the cost of up to
+	 * <code>ticks - 1</code> ticks of extra latency.
+	 * 
+	 * @param ticks number of ticks between TCP flushes, at least 1
+	 */
+	public void setTCPFlushTicks(int ticks) {
+		if (ticks < 1) {
+			throw new IllegalArgumentException("TCP flush window must be at least 1 tick, not " + ticks);
+		}
+		
+		tcpFlushTicks = ticks;
+	}
+	
+	int tcpFlushTicks() {
+		return tcpFlushTicks;
+	}
+	
+	/**
+	 * Sends everything the tick queued: TCP broadcasts if the flush window has passed, and every UDP packet. Called by the game thread at
+	 * the end of every tick.
+	 */
+	void endTick() {
+		if (++ticksSinceTCPFlush >= tcpFlushTicks) {
+			flushTCP();
+			ticksSinceTCPFlush = 0;
+		}
+		
+		flushUDP();
+	}
+	
+	/**
+	 * Hands every queued TCP broadcast to the server of each seated player at once, so that each server encrypts and writes them as one frame.
+	 */
+	private synchronized void flushTCP() {
+		if (pendingTCP.isEmpty()) {
+			return;
+		}
+		
+		MatchRecorder matchRecorder = recorder;
+		if (matchRecorder != null) {
+			matchRecorder.broadcast(id, pendingTCP);
+		}
+		
+		for (int clientID : seatClients) {
+			if (clientID != -1) {
+				gameServer.sendTCP(clientID, pendingTCP);
+			}
+		}
+		
+		pendingTCP.clear();
+	}
+	
+	/**
+	 * Sends a message over UDP to every player in this room that has bound a UDP address. The message is queued and sent with everything
+	 * else at the end of the tick by {@link #flushUDP()}.
+	 * 
+	 * @param message message to send
+	 */
+	public synchronized void broadcastUDP(final String message) {
+		for (int clientID : seatClients) {
+			if (clientID != -1) {
+				gameServer.sendUDP(clientID, message);
+			}
+		}
+	}
+	
+	/**
+	 * Sends one UDP packet to the player in a seat, if there is one and it has bound a UDP address. The bytes are copied, so the array
+	 * can be reused as soon as this returns, and the packet is sent at the end of the tick by {@link #flushUDP()}.
+	 * 
+	 * @param seat seat of the player
+	 * @param data packet contents
+	 * @param length number of bytes to send
+	 */
+	public synchronized void sendUDP(int seat, final byte[] data, int length) {
+		int clientID = seatClients[seat];
+		if (clientID != -1) {
+			gameServer.sendUDP(clientID, data, length);
+		}
+	}
+	
+	/**
+	 * Sends every UDP packet queued for the players in this room. This runs after every game tick, so everything a tick sends over UDP
+	 * goes out in one batch.
+	 */
+	public synchronized void flushUDP() {
+		for (int clientID : seatClients) {
+			if (clientID != -1) {
+				gameServer.flushUDP(clientID);
+			}
+		}
+	}
+}
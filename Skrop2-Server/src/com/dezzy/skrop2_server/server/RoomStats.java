@@ -0,0 +1,103 @@
+package com.dezzy.skrop2_server.server;
+
+import static com.dezzy.skrop2_server.server.ServerStats.micros;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+import com.dezzy.skrop2_server.server.TickScheduler.Ticker;
+
+/**
+ * Reads the metrics of one {@link Room} for JMX.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class RoomStats implements RoomStatsMBean {
+	
+	/**
+	 * Stands in for the tick histogram of a game that has not started
+	 */
+	private static final Histogram EMPTY = new Histogram();
+	
+	private final Room room;
+	
+	RoomStats(final Room _room) {
+		room = _room;
+	}
+	
+	@Override
+	public int getId() {
+		return room.id;
+	}
+	
+	@Override
+	public String getName() {
+		return room.game.name;
+	}
+	
+	@Override
+	public String getGameState() {
+		return room.gameState.toString();
+	}
+	
+	@Override
+	public int getPlayers() {
+		return room.game.currentPlayers;
+	}
+	
+	@Override
+	public int getMaxPlayers() {
+		return room.game.maxPlayers;
+	}
+	
+	@Override
+	public long getTickCount() {
+		Ticker ticker = room.game.ticker();
+		return ticker == null ? 0 : ticker.tickCount();
+	}
+	
+	@Override
+	public long getOverrunCount() {
+		Ticker ticker = room.game.ticker();
+		return ticker == null ? 0 : ticker.overrunCount();
+	}
+	
+	@Override
+	public long getTickP50Micros() {
+		return micros(ticks().percentile(0.5));
+	}
+	
+	@Override
+	public long getTickP99Micros() {
+		return micros(ticks().percentile(0.99));
+	}
+	
+	@Override
+	public long getTickMaxMicros() {
+		return micros(ticks().max());
+	}
+	
+	@Override
+	public long getClickToBroadcastP50Micros() {
+		return micros(room.game.clickLatencies().percentile(0.5));
+	}
+	
+	@Override
+	public long getClickToBroadcastP99Micros() {
+		return micros(room.game.clickLatencies().percentile(0.99));
+	}
+	
+	@Override
+	public long getClickToBroadcastMaxMicros() {
+		return micros(room.game.clickLatencies().max());
+	}
+	
+	@Override
+	public long getDroppedClicks() {
+		return room.game.droppedClicks();
+	}
+	
+	private Histogram ticks() {
+		Ticker ticker = room.game.ticker();
+		return ticker == null ? EMPTY : ticker.durations();
+	}
+}
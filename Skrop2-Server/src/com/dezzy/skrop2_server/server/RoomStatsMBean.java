@@ -0,0 +1,26 @@
+package com.dezzy.skrop2_server.server;
+
+/**
+ * JMX view of one {@link Room}. The MBean is registered when the Room is created and unregistered when it is destroyed.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public interface RoomStatsMBean {
+	int getId();
+	String getName();
+	String getGameState();
+	int getPlayers();
+	int getMaxPlayers();
+	
+	long getTickCount();
+	long getOverrunCount();
+	long getTickP50Micros();
+	long getTickP99Micros();
+	long getTickMaxMicros();
+	
+	long getClickToBroadcastP50Micros();
+	long getClickToBroadcastP99Micros();
+	long getClickToBroadcastMaxMicros();
+	long getDroppedClicks();
+}
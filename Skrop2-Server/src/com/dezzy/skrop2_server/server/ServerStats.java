@@ -0,0 +1,118 @@
+package com.dezzy.skrop2_server.server;
+
+import java.util.concurrent.TimeUnit;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+import com.dezzy.skrop2_server.metrics.ServerMetrics;
+import com.dezzy.skrop2_server.net.udp.UDPServer;
+
+/**
+ * Reads the server-wide metrics of a {@link GameServer} for JMX.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class ServerStats implements ServerStatsMBean {
+	private final GameServer gameServer;
+	private final Histogram ticks;
+	private final ServerMetrics metrics;
+	
+	ServerStats(final GameServer _gameServer, final Histogram _ticks) {
+		gameServer = _gameServer;
+		ticks = _ticks;
+		metrics = _gameServer.metrics();
+	}
+	
+	@Override
+	public int getRoomCount() {
+		return gameServer.roomCount();
+	}
+	
+	@Override
+	public int getSlotCount() {
+		return gameServer.slotCount();
+	}
+	
+	@Override
+	public int getSlotsInUse() {
+		return gameServer.slotsInUse();
+	}
+	
+	@Override
+	public long getTickCount() {
+		return ticks.count();
+	}
+	
+	@Override
+	public long getTickP50Micros() {
+		return micros(ticks.percentile(0.5));
+	}
+	
+	@Override
+	public long getTickP99Micros() {
+		return micros(ticks.percentile(0.99));
+	}
+	
+	@Override
+	public long getTickMaxMicros() {
+		return micros(ticks.max());
+	}
+	
+	@Override
+	public long getClickToBroadcastP50Micros() {
+		return micros(metrics.clickToBroadcastNanos.percentile(0.5));
+	}
+	
+	@Override
+	public long getClickToBroadcastP99Micros() {
+		return micros(metrics.clickToBroadcastNanos.percentile(0.99));
+	}
+	
+	@Override
+	public long getClickToBroadcastMaxMicros() {
+		return micros(metrics.clickToBroadcastNanos.max());
+	}
+	
+	@Override
+	public long getEncryptP50Nanos() {
+		return metrics.encryptNanos.percentile(0.5);
+	}
+	
+	@Override
+	public long getEncryptP99Nanos() {
+		return metrics.encryptNanos.percentile(0.99);
+	}
+	
+	@Override
+	public long getDecryptP50Nanos() {
+		return metrics.decryptNanos.percentile(0.5);
+	}
+	
+	@Override
+	public long getDecryptP99Nanos() {
+		return metrics.decryptNanos.percentile(0.99);
+	}
+	
+	@Override
+	public long getUDPDroppedPackets() {
+		long dropped = 0;
+		for (int slot = 0; slot < gameServer.slotCount(); slot++) {
+			UDPServer server = gameServer.udpServer(slot);
+			if (server != null) {
+				dropped += server.droppedPackets();
+			}
+		}
+		
+		return dropped;
+	}
+	
+	@Override
+	public void resetHistograms() {
+		ticks.reset();
+		metrics.reset();
+	}
+	
+	static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,34 @@
+package com.dezzy.skrop2_server.server;
+
+/**
+ * JMX view of a whole {@link GameServer}. Durations are percentiles since the server started or since {@link #resetHistograms()}.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public interface ServerStatsMBean {
+	int getRoomCount();
+	int getSlotCount();
+	int getSlotsInUse();
+	
+	long getTickCount();
+	long getTickP50Micros();
+	long getTickP99Micros();
+	long getTickMaxMicros();
+	
+	long getClickToBroadcastP50Micros();
+	long getClickToBroadcastP99Micros();
+	long getClickToBroadcastMaxMicros();
+	
+	long getEncryptP50Nanos();
+	long getEncryptP99Nanos();
+	long getDecryptP50Nanos();
+	long getDecryptP99Nanos();
+	
+	long getUDPDroppedPackets();
+	
+	/**
+	 * Forgets every recorded tick, click and encryption duration. Counters are not reset.
+	 */
+	void resetHistograms();
+}
@@ -0,0 +1,80 @@
+package com.dezzy.skrop2_server.server;
+
+import com.dezzy.skrop2_server.metrics.ConnectionMetrics;
+import com.dezzy.skrop2_server.net.tcp.Server;
+
+/**
+ * Reads the metrics of one game server slot for JMX.
+ * 
+ * @author Dezzmeister
+ *
+ */
+final class SlotStats implements SlotStatsMBean {
+	private final GameServer gameServer;
+	private final int slot;
+	private final Server server;
+	private final ConnectionMetrics metrics;
+	
+	SlotStats(final GameServer _gameServer, int _slot) {
+		gameServer = _gameServer;
+		slot = _slot;
+		server = _gameServer.server(_slot);
+		metrics = server.metrics();
+	}
+	
+	@Override
+	public int getSlot() {
+		return slot;
+	}
+	
+	@Override
+	public int getPort() {
+		return server.port;
+	}
+	
+	@Override
+	public int getRoom() {
+		Room room = gameServer.slotRoom(slot);
+		return room == null ? -1 : room.id;
+	}
+	
+	@Override
+	public boolean isInUse() {
+		return gameServer.slotInUse(slot);
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return metrics.bytesIn();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return metrics.bytesOut();
+	}
+	
+	@Override
+	public long getMessagesIn() {
+		return metrics.messagesIn();
+	}
+	
+	@Override
+	public long getMessagesOut() {
+		return metrics.messagesOut();
+	}
+	
+	@Override
+	public long getMessagesDropped() {
+		return metrics.messagesDropped();
+	}
+	
+	@Override
+	public int getQueueDepth() {
+		return server.queueDepth();
+	}
+	
+	@Override
+	public long getUDPDroppedPackets() {
+		return gameServer.udpServer(slot).droppedPackets();
+	}
+}
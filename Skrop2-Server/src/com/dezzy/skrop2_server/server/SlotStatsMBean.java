@@ -0,0 +1,23 @@
+package com.dezzy.skrop2_server.server;
+
+/**
+ * JMX view of one game server slot. Byte and message counts are cumulative over every client that has used the slot.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public interface SlotStatsMBean {
+	int getSlot();
+	int getPort();
+	int getRoom();
+	boolean isInUse();
+	
+	long getBytesIn();
+	long getBytesOut();
+	long getMessagesIn();
+	long getMessagesOut();
+	int getQueueDepth();
+	long getMessagesDropped();
+	
+	long getUDPDroppedPackets();
+}
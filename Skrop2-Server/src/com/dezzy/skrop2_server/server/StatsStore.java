@@ -0,0 +1,420 @@
+package com.dezzy.skrop2_server.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dezzy.skrop2_server.net.protocol.Message;
+import com.dezzy.skrop2_server.net.protocol.Messages;
+
+/**
+ * Keeps every player's {@link PlayerStats} across matches, in a text file next to the server. Results are written behind: a game
+ * {@link #submit(String[], int[], int) submits} them to a bounded queue without blocking, and one writer thread applies them, appends them to
+ * the file and publishes new leaderboards, so no game thread ever waits for the disk. If the writer falls so far behind that the queue is
+ * full, the results of a match are dropped and counted.
+ * <p>
+ * The file is an append log of lines, with names written as in the text protocol (spaces become underscores):
+ * <pre>
+ * player &lt;name&gt; &lt;games&gt; &lt;wins&gt; &lt;points&gt; &lt;bestPoints&gt;
+ * result &lt;name&gt; &lt;won: 0 or 1&gt; &lt;points&gt;
+ * </pre>
+ * A <code>player</code> line sets everything about a player, and a <code>result</code> line adds one game to it. Once the log has as many
+ * <code>result</code> lines as there are players (and at least {@link #COMPACT_RESULTS}), it is compacted: every player is written to a new
+ * file as one <code>player</code> line, which then replaces the log. Lines are written to the file after every batch of results, so a server
+ * that crashes loses at most the results that were still queued; a line that was cut off is skipped when the file is read again.
+ * <p>
+ * Leaderboards are served from memory. After every batch the writer thread sorts the players by every {@link Ranking} and publishes the top
+ * {@link #MAX_LEADERBOARD} of each, so a query never touches the file or waits for the writer.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public final class StatsStore implements Closeable {
+	
+	/**
+	 * Most matches waiting to be written
+	 */
+	private static final int QUEUE_CAPACITY = 1024;
+	
+	/**
+	 * Fewest <code>result</code> lines that the log can have before it is compacted
+	 */
+	static final int COMPACT_RESULTS = 1024;
+	
+	/**
+	 * Most players in one leaderboard
+	 */
+	public static final int MAX_LEADERBOARD = 100;
+	
+	/**
+	 * Queued by {@link #close()} to stop the writer thread once everything before it has been written
+	 */
+	private static final MatchResults CLOSE = new MatchResults(new String[0], new int[0], 0);
+	
+	private final Path path;
+	private final BlockingQueue<MatchResults> pending = new ArrayBlockingQueue<MatchResults>(QUEUE_CAPACITY);
+	private final AtomicLong droppedMatches = new AtomicLong(0);
+	
+	/**
+	 * Every player by name. Only touched by the writer thread once it has started.
+	 */
+	private final Map<String, PlayerStats> players = new HashMap<String, PlayerStats>();
+	
+	/**
+	 * Appends to the log. Only touched by the writer thread once it has started.
+	 */
+	private BufferedWriter log;
+	
+	/**
+	 * <code>result</code> lines in the log since it was last compacted
+	 */
+	private int logResults = 0;
+	
+	private volatile Leaders leaders;
+	
+	/**
+	 * The last leaderboard response for each {@link Ranking}, rebuilt only when the leaders or the requested count change
+	 */
+	private final CachedResponse[] responses = new CachedResponse[Ranking.values().length];
+	
+	private final Thread writer;
+	
+	/**
+	 * Opens a stats file, creating it if it does not exist, reads every player in it and starts the writer thread.
+	 * 
+	 * @param name name used for the writer thread
+	 * @param _path the stats file
+	 * @throws IOException if the file cannot be read or written
+	 */
+	public StatsStore(final String name, final Path _path) throws IOException {
+		path = _path;
+		
+		if (Files.exists(path)) {
+			load();
+		}
+		
+		if (logResults >= Math.max(COMPACT_RESULTS, players.size())) {
+			compact();
+		} else {
+			log = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		
+		publish(0);
+		
+		writer = new Thread(this::write, name + " Stats Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Ways to rank players on a leaderboard. Ties are broken by another stat and then by name, so a leaderboard has one order.
+	 */
+	public enum Ranking {
+		WINS("wins", Comparator.comparingInt((PlayerStats p) -> p.wins).thenComparingInt(p -> p.points)),
+		POINTS("points", Comparator.comparingInt((PlayerStats p) -> p.points).thenComparingInt(p -> p.wins)),
+		BEST("best", Comparator.comparingInt((PlayerStats p) -> p.bestPoints).thenComparingInt(p -> p.points)),
+		GAMES("games", Comparator.comparingInt((PlayerStats p) -> p.games).thenComparingInt(p -> p.wins));
+		
+		/**
+		 * Name of the ranking in <code>leaderboard</code> requests and replies
+		 */
+		public final String header;
+		
+		private final Comparator<PlayerStats> order;
+		
+		private Ranking(final String _header, final Comparator<PlayerStats> lowestFirst) {
+			header = _header;
+			order = lowestFirst.reversed().thenComparing(p -> p.name);
+		}
+		
+		/**
+		 * Finds a ranking by name.
+		 * 
+		 * @param header name of the ranking
+		 * @return the ranking, or null if there is none with that name
+		 */
+		public static Ranking named(final String header) {
+			for (Ranking ranking : values()) {
+				if (ranking.header.equals(header)) {
+					return ranking;
+				}
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Queues the results of a match to be stored. Never blocks; if the queue is full, the results are dropped.
+	 * 
+	 * @param names names of the players, in ranked order
+	 * @param points points each player scored
+	 * @param winners number of players at the start of <code>names</code> that won
+	 * @return true if the results were queued
+	 */
+	public boolean submit(final String[] names, final int[] points, int winners) {
+		if (pending.offer(new MatchResults(names, points, winners))) {
+			return true;
+		}
+		
+		if (droppedMatches.getAndIncrement() == 0) {
+			System.err.println("The stats writer for " + path + " is not keeping up, so some match results will not be stored");
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Matches whose results were dropped because the queue was full.
+	 * 
+	 * @return dropped match count
+	 */
+	public long droppedMatches() {
+		return droppedMatches.get();
+	}
+	
+	/**
+	 * Number of players with stats, as of the last batch the writer thread finished.
+	 * 
+	 * @return player count
+	 */
+	public int playerCount() {
+		return leaders.playerCount;
+	}
+	
+	/**
+	 * The best players by a ranking, as of the last batch the writer thread finished.
+	 * 
+	 * @param ranking how to rank players
+	 * @param count most players to return; at most {@link #MAX_LEADERBOARD} are ever returned
+	 * @return the best players, best first
+	 */
+	public PlayerStats[] leaders(final Ranking ranking, int count) {
+		PlayerStats[] ranked = leaders.ranked[ranking.ordinal()];
+		return Arrays.copyOf(ranked, Math.max(0, Math.min(count, ranked.length)));
+	}
+	
+	/**
+	 * The <code>leaderboard</code> response for a ranking. It is reused until the writer thread publishes new leaders or a different count is
+	 * asked for.
+	 * 
+	 * @param ranking how to rank players
+	 * @param count most players to list, from 1 to {@link #MAX_LEADERBOARD}
+	 * @return leaderboard message
+	 */
+	Message leaderboard(final Ranking ranking, int count) {
+		Leaders current = leaders;
+		long key = (current.version << 8) | count;
+		
+		CachedResponse cached = responses[ranking.ordinal()];
+		if (cached == null || !cached.matches(key)) {
+			PlayerStats[] ranked = current.ranked[ranking.ordinal()];
+			int listed = Math.min(count, ranked.length);
+			
+			String[] names = new String[listed];
+			int[] games = new int[listed];
+			int[] wins = new int[listed];
+			int[] points = new int[listed];
+			int[] bestPoints = new int[listed];
+			
+			for (int i = 0; i < listed; i++) {
+				names[i] = ranked[i].name;
+				games[i] = ranked[i].games;
+				wins[i] = ranked[i].wins;
+				points[i] = ranked[i].points;
+				bestPoints[i] = ranked[i].bestPoints;
+			}
+			
+			cached = new CachedResponse(key, Messages.leaderboard(ranking.header, names, games, wins, points, bestPoints));
+			responses[ranking.ordinal()] = cached;
+		}
+		
+		return cached.message;
+	}
+	
+	/**
+	 * Writes every queued result, stops the writer thread and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			pending.put(CLOSE);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Runs on the writer thread: applies and appends results in batches of everything that is queued, then publishes new leaderboards.
+	 */
+	private void write() {
+		long version = 0;
+		boolean closing = false;
+		
+		while (!closing) {
+			try {
+				MatchResults results = pending.take();
+				
+				while (results != null) {
+					if (results == CLOSE) {
+						closing = true;
+						break;
+					}
+					
+					apply(results);
+					results = pending.poll();
+				}
+				
+				log.flush();
+				
+				if (logResults >= Math.max(COMPACT_RESULTS, players.size())) {
+					compact();
+				}
+			} catch (InterruptedException e) {
+				closing = true;
+			} catch (IOException e) {
+				System.err.println("Error writing player stats to " + path);
+				e.printStackTrace();
+			}
+			
+			publish(++version);
+		}
+		
+		try {
+			log.close();
+		} catch (IOException e) {
+			System.err.println("Error closing " + path);
+			e.printStackTrace();
+		}
+	}
+	
+	private void apply(final MatchResults results) throws IOException {
+		for (int i = 0; i < results.names.length; i++) {
+			boolean won = i < results.winners;
+			String name = results.names[i];
+			
+			players.put(name, stats(name).add(won, results.points[i]));
+			
+			log.write("result " + name.replace(' ', '_') + " " + (won ? 1 : 0) + " " + results.points[i]);
+			log.newLine();
+			logResults++;
+		}
+	}
+	
+	private PlayerStats stats(final String name) {
+		PlayerStats stats = players.get(name);
+		return stats == null ? new PlayerStats(name, 0, 0, 0, 0) : stats;
+	}
+	
+	/**
+	 * Reads the log into {@link #players}.
+	 */
+	private void load() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				
+				try {
+					if (fields[0].equals("player") && fields.length == 6) {
+						String name = fields[1].replace('_', ' ');
+						players.put(name, new PlayerStats(name, Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5])));
+					} else if (fields[0].equals("result") && fields.length == 4) {
+						String name = fields[1].replace('_', ' ');
+						players.put(name, stats(name).add(fields[2].equals("1"), Integer.parseInt(fields[3])));
+						logResults++;
+					} else {
+						System.err.println("Skipping malformed line in " + path + ": \"" + line + "\"");
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Skipping malformed line in " + path + ": \"" + line + "\"");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the log with one <code>player</code> line per player. The new file is written next to the log and moved over it, so the log is
+	 * never left half written.
+	 */
+	private void compact() throws IOException {
+		if (log != null) {
+			log.close();
+		}
+		
+		Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+		
+		try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+			for (PlayerStats stats : players.values()) {
+				out.write("player " + stats.name.replace(' ', '_') + " " + stats.games + " " + stats.wins + " " + stats.points + " " + stats.bestPoints);
+				out.newLine();
+			}
+		}
+		
+		Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logResults = 0;
+		
+		log = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+	
+	/**
+	 * Sorts every player by every ranking and publishes the top of each.
+	 */
+	private void publish(long version) {
+		PlayerStats[] all = players.values().toArray(new PlayerStats[players.size()]);
+		PlayerStats[][] ranked = new PlayerStats[Ranking.values().length][];
+		
+		for (Ranking ranking : Ranking.values()) {
+			PlayerStats[] sorted = all.clone();
+			Arrays.sort(sorted, ranking.order);
+			ranked[ranking.ordinal()] = Arrays.copyOf(sorted, Math.min(sorted.length, MAX_LEADERBOARD));
+		}
+		
+		leaders = new Leaders(version, all.length, ranked);
+	}
+	
+	/**
+	 * The results of one match, waiting to be written
+	 */
+	private static final class MatchResults {
+		final String[] names;
+		final int[] points;
+		final int winners;
+		
+		MatchResults(final String[] _names, final int[] _points, int _winners) {
+			names = _names;
+			points = _points;
+			winners = _winners;
+		}
+	}
+	
+	/**
+	 * The top players by every ranking, published together so that a reader never sees half of an update
+	 */
+	private static final class Leaders {
+		final long version;
+		final int playerCount;
+		final PlayerStats[][] ranked;
+		
+		Leaders(long _version, int _playerCount, final PlayerStats[][] _ranked) {
+			version = _version;
+			playerCount = _playerCount;
+			ranked = _ranked;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.dezzy.skrop2_server.server;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dezzy.skrop2_server.metrics.Histogram;
+
+/**
+ * Drives game ticks at a fixed rate on a pool of worker threads. Every scheduled {@link Ticker} runs at most once at a time and
+ * reschedules itself against an absolute deadline (<code>start + n * period</code>), so a slow tick does not push every later tick back.
+ * If a tick takes longer than a whole period, the missed ticks are skipped instead of being run back to back, and the overrun is reported.
+ * Worker threads sleep between ticks, so many games can share a machine without spinning.
+ * 
+ * @author Dezzmeister
+ *
+ */
+public class TickScheduler {
+	private final ScheduledThreadPoolExecutor executor;
+	
+	/**
+	 * Durations of every tick run by every Ticker of this scheduler, in nanoseconds
+	 */
+	private final Histogram tickDurations = new Histogram();
+	
+	/**
+	 * Creates a tick scheduler with the given number of worker threads.
+	 * 
+	 * @param name name used for the worker threads
+	 * @param threadCount number of worker threads; values less than 1 are treated as 1
+	 */
+	public TickScheduler(final String name, int threadCount) {
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		ThreadFactory threadFactory = r -> new Thread(r, name + " Tick Thread " + threadNumber.getAndIncrement());
+		
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threadCount), threadFactory);
+		executor.setRemoveOnCancelPolicy(true);
+	}
+	
+	/**
+	 * Starts running a tick function at a fixed rate.
+	 * 
+	 * @param name name of the ticking object, used when reporting overruns
+	 * @param tick the function to run every tick
+	 * @param tickRate ticks per second
+	 * @return a Ticker that can be used to read tick statistics and to stop ticking
+	 */
+	public Ticker schedule(final String name, final Runnable tick, int tickRate) {
+		Ticker ticker = new Ticker(name, tick, tickRate);
+		ticker.start();
+		return ticker;
+	}
+	
+	/**
+	 * Stops every Ticker and the worker threads.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Durations of every tick this scheduler has run, in nanoseconds.
+	 * 
+	 * @return tick duration histogram
+	 */
+	public Histogram tickDurations() {
+		return tickDurations;
+	}
+	
+	/**
+	 * A tick function scheduled at a fixed rate. Tick statistics are written by the worker thread running the tick and can be read from any thread.
+	 * 
+	 * @author Dezzmeister
+	 *
+	 */
+	public final class Ticker implements Runnable {
+		
+		/**
+		 * Minimum time (in nanoseconds) between two overrun warnings from the same Ticker
+		 */
+		private static final long OVERRUN_REPORT_INTERVAL = 5_000_000_000L;
+		
+		private final String name;
+		private final Runnable tick;
+		
+		/**
+		 * Length of one tick, in nanoseconds
+		 */
+		public final long periodNanos;
+		
+		/**
+		 * Time (from {@link System#nanoTime()}) at which the next tick should begin
+		 */
+		private long nextDeadline;
+		
+		private volatile boolean cancelled = false;
+		
+		private volatile long tickCount = 0;
+		private volatile long overrunCount = 0;
+		private volatile long lastTickNanos = 0;
+		private volatile long maxTickNanos = 0;
+		private volatile long totalTickNanos = 0;
+		
+		private final Histogram durations = new Histogram();
+		
+		private long lastOverrunReport = 0;
+		private long unreportedOverruns = 0;
+		
+		private Ticker(final String _name, final Runnable _tick, int tickRate) {
+			name = _name;
+			tick = _tick;
+			periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, tickRate);
+		}
+		
+		private void start() {
+			nextDeadline = System.nanoTime();
+			executor.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			
+			long start = System.nanoTime();
+			
+			try {
+				tick.run();
+			} catch (Exception e) {
+				System.err.println("Error running a tick of \"" + name + "\"");
+				e.printStackTrace();
+			}
+			
+			long end = System.nanoTime();
+			long duration = end - start;
+			
+			lastTickNanos = duration;
+			totalTickNanos += duration;
+			if (duration > maxTickNanos) {
+				maxTickNanos = duration;
+			}
+			tickCount++;
+			durations.record(duration);
+			tickDurations.record(duration);
+			
+			nextDeadline += periodNanos;
+			
+			if (end - nextDeadline > 0) { //This tick ran past the start of the next one, so skip the ticks that were missed
+				long missed = (end - nextDeadline) / periodNanos + 1;
+				nextDeadline += missed * periodNanos;
+				overrunCount += missed;
+				reportOverrun(missed, duration, end);
+			}
+			
+			if (!cancelled) {
+				executor.schedule(this, nextDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+		}
+		
+		private void reportOverrun(long missed, long duration, long now) {
+			unreportedOverruns += missed;
+			
+			if (now - lastOverrunReport >= OVERRUN_REPORT_INTERVAL) {
+				System.err.println("\"" + name + "\" is falling behind: skipped " + unreportedOverruns + " tick(s), last tick took " + TimeUnit.NANOSECONDS.toMicros(duration) + " us with a budget of " + TimeUnit.NANOSECONDS.toMicros(periodNanos) + " us");
+				lastOverrunReport = now;
+				unreportedOverruns = 0;
+			}
+		}
+		
+		/**
+		 * Stops this Ticker. A tick that is already running will finish, but no more ticks will start.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+		
+		/**
+		 * Number of ticks that have run.
+		 * 
+		 * @return tick count
+		 */
+		public long tickCount() {
+			return tickCount;
+		}
+		
+		/**
+		 * Number of ticks that were skipped because an earlier tick ran too long.
+		 * 
+		 * @return overrun count
+		 */
+		public long overrunCount() {
+			return overrunCount;
+		}
+		
+		/**
+		 * Duration of the most recent tick, in nanoseconds.
+		 * 
+		 * @return last tick duration
+		 */
+		public long lastTickNanos() {
+			return lastTickNanos;
+		}
+		
+		/**
+		 * Duration of the longest tick so far, in nanoseconds.
+		 * 
+		 * @return longest tick duration
+		 */
+		public long maxTickNanos() {
+			return maxTickNanos;
+		}
+		
+		/**
+		 * Mean tick duration, in nanoseconds.
+		 * 
+		 * @return average tick duration, or 0 if no ticks have run
+		 */
+		public long averageTickNanos() {
+			long count = tickCount;
+			return count == 0 ? 0 : totalTickNanos / count;
+		}
+		
+		/**
+		 * Durations of every tick this Ticker has run, in nanoseconds.
+		 * 
+		 * @return tick duration histogram
+		 */
+		public Histogram durations() {
+			return durations;
+		}
+	}
+}